@@ -0,0 +1,560 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Executes a collection of independent Requests concurrently, with a limit on how many are in flight 
+ * at once, and makes the {@link Outcome} of each available as soon as it completes. Outcomes are 
+ * delivered in the order in which the requests complete, not the order of the collection, through an 
+ * Iterator, a Stream or a Flow.Publisher.
+ * 
+ * An Outcome carrying a Response that has not yet been taken still holds the Response's connection, so
+ * it counts towards the limit as if its request were still in flight. Requests are therefore started no 
+ * faster than their Outcomes are taken from the Results, or requested by the Publisher's subscriber.
+ * 
+ * A request fails if it throws: a Response with an error status is a successful Outcome. In 
+ * {@link ErrorMode#COLLECT_ALL} mode (the default), every request yields exactly one Outcome, whether 
+ * it succeeded or failed. In {@link ErrorMode#FAIL_FAST} mode, the first failure is the last Outcome: 
+ * no further requests are started, and the Responses of those still in flight are closed as they 
+ * arrive.
+ * 
+ * If a deadline is set and expires, no further requests are started, the exchanges of those in flight
+ * are aborted, and those that have not completed yield Outcomes that failed with a TimeoutException 
+ * (only the first of them, in FAIL_FAST mode). Requests in flight are also aborted when the Results are
+ * closed, or a request fails in FAIL_FAST mode.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class Batch {
+
+   /**
+    * How a Batch treats requests that fail.
+    */
+   public enum ErrorMode {
+
+      /**
+       * Stop at the first failure.
+       */
+      FAIL_FAST,
+
+      /**
+       * Carry on, and deliver an Outcome for every request.
+       */
+      COLLECT_ALL
+   }
+
+   private final List<Request> requests;
+   private int maxConcurrency = 16;
+   private ErrorMode errorMode = ErrorMode.COLLECT_ALL;
+   private long deadline;
+   private Executor executor = Executors.defaultExecutor();
+
+   /**
+    * Create a batch of requests
+    * @param requests the requests
+    */
+   public Batch(Collection<? extends Request> requests) {
+      this.requests = new ArrayList<>(requests);
+   }
+
+   /**
+    * Execute a collection of requests, at most maxConcurrency at a time, collecting all outcomes.
+    * @param requests the requests
+    * @param maxConcurrency the maximum number of requests in flight at once
+    * @return the Outcomes, in completion order
+    */
+   public static Results executeAll(Collection<? extends Request> requests, int maxConcurrency) {
+      return new Batch(requests).maxConcurrency(maxConcurrency).execute();
+   }
+
+   /**
+    * Set the maximum number of requests in flight at once. The default is 16.
+    * @param max the maximum
+    * @return this (Builder pattern)
+    */
+   public Batch maxConcurrency(int max) {
+      if (max < 1) {
+         throw new IllegalArgumentException("maxConcurrency must be at least 1");
+      }
+      maxConcurrency = max;
+      return this;
+   }
+
+   /**
+    * Set how failed requests are treated. The default is {@link ErrorMode#COLLECT_ALL}.
+    * @param mode the error mode
+    * @return this (Builder pattern)
+    */
+   public Batch errorMode(ErrorMode mode) {
+      errorMode = mode;
+      return this;
+   }
+
+   /**
+    * Set a deadline for the whole batch, measured from when it is executed. By default there is none.
+    * @param ms the deadline in milliseconds, or 0 for none
+    * @return this (Builder pattern)
+    */
+   public Batch deadline(long ms) {
+      if (ms < 0) {
+         throw new IllegalArgumentException("Deadline may not be negative");
+      }
+      deadline = ms;
+      return this;
+   }
+
+   /**
+    * Set the Executor the requests are executed with. The default is {@link Executors#defaultExecutor()}.
+    * @param executor the Executor
+    * @return this (Builder pattern)
+    */
+   public Batch executor(Executor executor) {
+      this.executor = executor;
+      return this;
+   }
+
+   /**
+    * Start executing the requests.
+    * @return the Outcomes, in completion order
+    */
+   public Results execute() {
+      Results results = new Results(this);
+      results.start();
+      return results;
+   }
+
+   /**
+    * Start executing the requests. Closing the Stream abandons any requests not yet completed.
+    * @return a Stream of the Outcomes, in completion order
+    */
+   public Stream<Outcome> stream() {
+      return execute().stream();
+   }
+
+   /**
+    * @return a Publisher that executes the requests when subscribed to, and publishes their Outcomes
+    *    in completion order. Each subscription executes the requests again.
+    */
+   public Flow.Publisher<Outcome> publisher() {
+      return subscriber -> {
+         Results results = new Results(this);
+         ResultsSubscription subscription = new ResultsSubscription(results, subscriber);
+         results.listener = subscription::drain;
+         subscriber.onSubscribe(subscription);
+         results.start();
+      };
+   }
+
+   /**
+    * The result of executing one request in a Batch.
+    */
+   public static final class Outcome {
+
+      private final Request request;
+      private final Response response;
+      private final Throwable error;
+
+      Outcome(Request request, Response response, Throwable error) {
+         this.request = request;
+         this.response = response;
+         this.error = error;
+      }
+
+      /**
+       * @return the request
+       */
+      public Request getRequest() {
+         return request;
+      }
+
+      /**
+       * @return the Response to the request, or null if it failed
+       */
+      public Response getResponse() {
+         return response;
+      }
+
+      /**
+       * @return the reason the request failed, or null if it succeeded
+       */
+      public Throwable getError() {
+         return error;
+      }
+
+      /**
+       * @return whether a Response was received
+       */
+      public boolean isSuccess() {
+         return error == null;
+      }
+
+      @Override
+      public String toString() {
+         return request + ": " + (error == null ? "status " + response.getResponseCode() : error);
+      }
+   }
+
+   /**
+    * The Outcomes of an executing Batch, available in completion order. Iteration blocks until the 
+    * next Outcome is available. Closing abandons any requests not yet completed: no more are started,
+    * and the Responses of those in flight, or not yet taken, are closed.
+    */
+   public static final class Results implements Iterator<Outcome>, AutoCloseable {
+
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Condition available = lock.newCondition();
+      private final Deque<Outcome> ready = new ArrayDeque<>();
+      private final Set<Task> inFlight = new LinkedHashSet<>();
+      //Outcomes in ready that carry a Response, which count towards maxConcurrency until taken
+      private int untakenResponses;
+      private final List<Request> requests;
+      private final int maxConcurrency;
+      private final boolean failFast;
+      private final long deadline;
+      private final Deadline scope;
+      private final Executor executor;
+      private int next;
+      private int undelivered;
+      private boolean launching;
+      private boolean stopped;
+      private volatile Runnable listener;
+
+      private Results(Batch batch) {
+         requests = batch.requests;
+         maxConcurrency = batch.maxConcurrency;
+         failFast = batch.errorMode == ErrorMode.FAIL_FAST;
+         deadline = batch.deadline;
+         scope = deadline > 0 ? Deadline.after(deadline) : Deadline.none();
+         executor = batch.executor;
+         undelivered = requests.size();
+      }
+
+      private void start() {
+         //Registered before any request is started, so that it runs before their futures fail
+         scope.onCancel(this::expire);
+         launch();
+      }
+
+      /**
+       * @return true if there is another Outcome, waiting for it if necessary
+       */
+      @Override
+      public boolean hasNext() {
+         lock.lock();
+         try {
+            while (ready.isEmpty() && undelivered > 0) {
+               available.await();
+            }
+            return !ready.isEmpty();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * @return the next Outcome, waiting for it if necessary
+       */
+      @Override
+      public Outcome next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         return poll();
+      }
+
+      /**
+       * @return a Stream of the remaining Outcomes. Closing the Stream closes these Results.
+       */
+      public Stream<Outcome> stream() {
+         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, 
+               Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+      }
+
+      @Override
+      public void close() {
+         List<Outcome> untaken;
+         lock.lock();
+         try {
+            stop();
+            untaken = new ArrayList<>(ready);
+            ready.clear();
+            untakenResponses = 0;
+         } finally {
+            lock.unlock();
+         }
+         for (Outcome outcome : untaken) {
+            closeQuietly(outcome.response);
+         }
+         scope.cancel();
+      }
+
+      Outcome poll() {
+         Outcome outcome;
+         lock.lock();
+         try {
+            outcome = ready.poll();
+            if (outcome == null || outcome.response == null) {
+               return outcome;
+            }
+            untakenResponses--;
+         } finally {
+            lock.unlock();
+         }
+         //Taking a Response makes room for another request
+         launch();
+         return outcome;
+      }
+
+      boolean isDone() {
+         lock.lock();
+         try {
+            return ready.isEmpty() && undelivered == 0;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      //Only one thread starts requests at a time: others that find capacity leave it to that thread,
+      //so that requests completing synchronously do not recurse
+      private void launch() {
+         lock.lock();
+         try {
+            if (launching) {
+               return;
+            }
+            launching = true;
+         } finally {
+            lock.unlock();
+         }
+         for (;;) {
+            Task task;
+            lock.lock();
+            try {
+               if (stopped || inFlight.size() + untakenResponses >= maxConcurrency || next >= requests.size()) {
+                  launching = false;
+                  return;
+               }
+               task = new Task(requests.get(next++));
+               inFlight.add(task);
+            } finally {
+               lock.unlock();
+            }
+            CompletableFuture<Response> future;
+            try {
+               future = task.request.executeAsync(executor, scope);
+            } catch (RuntimeException e) {
+               future = new CompletableFuture<>();
+               future.completeExceptionally(e);
+            }
+            future.whenComplete((response, thrown) -> completed(task, response, thrown));
+         }
+      }
+
+      private void completed(Task task, Response response, Throwable thrown) {
+         Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+         boolean wanted;
+         boolean abort = false;
+         boolean finished;
+         lock.lock();
+         try {
+            wanted = inFlight.remove(task) && undelivered > 0;
+            if (wanted) {
+               offer(new Outcome(task.request, response, cause));
+               if (cause != null && failFast) {
+                  stop();
+                  abort = true;
+               }
+            }
+            finished = undelivered == 0;
+         } finally {
+            lock.unlock();
+         }
+         if (!wanted) {
+            closeQuietly(response);
+         }
+         if (abort) {
+            scope.cancel();
+         } else if (finished) {
+            scope.complete();
+         }
+         signalListener();
+         launch();
+      }
+
+      private void expire() {
+         lock.lock();
+         try {
+            if (undelivered == 0 || !scope.isExpired()) {
+               return;
+            }
+            List<Request> unfinished = new ArrayList<>();
+            for (Task task : inFlight) {
+               unfinished.add(task.request);
+            }
+            unfinished.addAll(requests.subList(next, requests.size()));
+            inFlight.clear();
+            next = requests.size();
+            for (Request request : unfinished) {
+               offer(new Outcome(request, null, new TimeoutException("Batch deadline of " + deadline + " ms expired")));
+               if (failFast) {
+                  break;
+               }
+            }
+            stop();
+         } finally {
+            lock.unlock();
+         }
+         signalListener();
+      }
+
+      //Must hold the lock
+      private void offer(Outcome outcome) {
+         ready.add(outcome);
+         if (outcome.response != null) {
+            untakenResponses++;
+         }
+         undelivered--;
+         available.signalAll();
+      }
+
+      //Must hold the lock
+      private void stop() {
+         stopped = true;
+         undelivered = 0;
+         available.signalAll();
+      }
+
+      private void signalListener() {
+         Runnable l = listener;
+         if (l != null) {
+            l.run();
+         }
+      }
+
+      private static void closeQuietly(Response response) {
+         if (response != null) {
+            try {
+               response.close();
+            } catch (IOException e) {
+               //Ignore
+            }
+         }
+      }
+   }
+
+   private static final class Task {
+
+      private final Request request;
+
+      Task(Request request) {
+         this.request = request;
+      }
+   }
+
+   private static final class ResultsSubscription implements Flow.Subscription {
+
+      private final Results results;
+      private final Flow.Subscriber<? super Outcome> subscriber;
+      private final AtomicLong demand = new AtomicLong();
+      private final AtomicInteger wip = new AtomicInteger();
+      private volatile boolean cancelled;
+      private boolean completed;
+
+      ResultsSubscription(Results results, Flow.Subscriber<? super Outcome> subscriber) {
+         this.results = results;
+         this.subscriber = subscriber;
+      }
+
+      @Override
+      public void request(long n) {
+         if (n <= 0) {
+            cancel();
+            subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+            return;
+         }
+         demand.accumulateAndGet(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+         drain();
+      }
+
+      @Override
+      public void cancel() {
+         cancelled = true;
+         results.close();
+      }
+
+      //Signals to the subscriber are serialised: whichever thread finds wip at zero delivers everything
+      //that is ready, including Outcomes that arrive meanwhile
+      void drain() {
+         if (wip.getAndIncrement() != 0) {
+            return;
+         }
+         do {
+            while (!cancelled && demand.get() > 0) {
+               Outcome outcome = results.poll();
+               if (outcome == null) {
+                  break;
+               }
+               demand.decrementAndGet();
+               subscriber.onNext(outcome);
+            }
+            if (!cancelled && !completed && results.isDone()) {
+               completed = true;
+               subscriber.onComplete();
+            }
+         } while (wip.decrementAndGet() != 0);
+      }
+   }
+}
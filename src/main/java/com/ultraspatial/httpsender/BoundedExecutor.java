@@ -0,0 +1,228 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread pool for executing requests asynchronously with a bounded number of threads and a
+ * bounded queue of tasks waiting for a thread. When both are full, the {@link SaturationPolicy}
+ * decides what happens to a newly submitted task: the submitting thread can wait for room in the
+ * queue, have the task rejected, or run the task itself. Threads that stay idle for the keep-alive 
+ * time are discarded, so an idle pool holds no threads.
+ * 
+ * The pool records how long tasks wait in the queue, and its activity is available as an
+ * {@link ExecutorStats} snapshot.
+ * 
+ * Note that some Transports hand results back to the Executor from their own I/O threads. With
+ * {@link SaturationPolicy#BLOCK}, a saturated pool can stall those threads, and with 
+ * {@link SaturationPolicy#CALLER_RUNS} the continuation runs on them.
+ */
+public class BoundedExecutor extends ThreadPoolExecutor {
+
+   /**
+    * What to do with a task submitted while all threads are busy and the queue is full.
+    */
+   public enum SaturationPolicy {
+
+      /**
+       * The submitting thread waits until there is room in the queue.
+       */
+      BLOCK,
+
+      /**
+       * The task is rejected with a RejectedExecutionException. For an asynchronous request, the 
+       * returned Future completes exceptionally.
+       */
+      FAIL_FAST,
+
+      /**
+       * The submitting thread runs the task itself, which slows down further submissions.
+       */
+      CALLER_RUNS
+   }
+
+   /**
+    * The default maximum number of threads
+    */
+   public static final int DEFAULT_MAX_THREADS = 200;
+
+   /**
+    * The default capacity of the queue
+    */
+   public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+   private static final AtomicInteger POOL_NO = new AtomicInteger();
+
+   private final SaturationPolicy policy;
+   private final ThreadLocal<Boolean> rejectWhenSaturated = new ThreadLocal<>();
+   private final LongAdder saturated = new LongAdder();
+   private final LongAdder waited = new LongAdder();
+   private final LongAdder totalWait = new LongAdder();
+   private final AtomicLong maxWait = new AtomicLong();
+
+   /**
+    * Create an executor with the default limits that runs tasks on the submitting thread when it
+    * is saturated.
+    */
+   public BoundedExecutor() {
+      this(DEFAULT_MAX_THREADS, DEFAULT_QUEUE_CAPACITY, SaturationPolicy.CALLER_RUNS);
+   }
+
+   /**
+    * Create an executor
+    * @param maxThreads the maximum number of threads
+    * @param queueCapacity the maximum number of tasks that can wait for a thread
+    * @param policy what to do with tasks submitted when the executor is saturated
+    */
+   public BoundedExecutor(int maxThreads, int queueCapacity, SaturationPolicy policy) {
+      super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), 
+            threadFactory(), new Saturated(policy));
+      this.policy = policy;
+      allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * @return the policy applied when this executor is saturated
+    */
+   public SaturationPolicy getSaturationPolicy() {
+      return policy;
+   }
+
+   /**
+    * @return a snapshot of the activity of this executor
+    */
+   public ExecutorStats getStats() {
+      long count = waited.sum();
+      return new ExecutorStats(getActiveCount(), getPoolSize(), getQueue().size(), getQueue().remainingCapacity(), 
+            getCompletedTaskCount(), saturated.sum(), count == 0 ? 0 : totalWait.sum() / count, maxWait.get());
+   }
+
+   @Override
+   public void execute(Runnable command) {
+      if (command == null) {
+         throw new NullPointerException();
+      }
+      super.execute(new QueuedTask(command));
+   }
+
+   /**
+    * Execute a task if there is a thread or room in the queue for it, and otherwise reject it with a 
+    * RejectedExecutionException, whatever the executor's SaturationPolicy. For submitters that must 
+    * neither wait nor run the task themselves, such as a timer thread.
+    * @param command the task
+    * @throws RejectedExecutionException if the executor is saturated or shut down
+    */
+   public void executeOrReject(Runnable command) {
+      rejectWhenSaturated.set(Boolean.TRUE);
+      try {
+         execute(command);
+      } finally {
+         rejectWhenSaturated.remove();
+      }
+   }
+
+   @Override
+   protected void beforeExecute(Thread t, Runnable r) {
+      super.beforeExecute(t, r);
+      if (r instanceof QueuedTask) {
+         long wait = System.nanoTime() - ((QueuedTask) r).queued;
+         waited.increment();
+         totalWait.add(wait);
+         maxWait.accumulateAndGet(wait, Math::max);
+      }
+   }
+
+   private static ThreadFactory threadFactory() {
+      String prefix = "httpsender-" + POOL_NO.incrementAndGet() + "-thread-";
+      AtomicInteger threadNo = new AtomicInteger();
+      return r -> {
+         Thread thread = new Thread(r, prefix + threadNo.incrementAndGet());
+         thread.setDaemon(false);
+         return thread;
+      };
+   }
+
+   private static final class QueuedTask implements Runnable {
+
+      private final Runnable task;
+      private final long queued = System.nanoTime();
+
+      QueuedTask(Runnable task) {
+         this.task = task;
+      }
+
+      @Override
+      public void run() {
+         task.run();
+      }
+   }
+
+   private static final class Saturated implements RejectedExecutionHandler {
+
+      private final SaturationPolicy policy;
+
+      Saturated(SaturationPolicy policy) {
+         this.policy = policy;
+      }
+
+      @Override
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+         if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+         }
+         BoundedExecutor bounded = (BoundedExecutor) executor;
+         bounded.saturated.increment();
+         switch (bounded.rejectWhenSaturated.get() != null ? SaturationPolicy.FAIL_FAST : policy) {
+            case BLOCK:
+               try {
+                  executor.getQueue().put(r);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+               }
+               break;
+            case CALLER_RUNS:
+               r.run();
+               break;
+            default:
+               throw new RejectedExecutionException("Executor is saturated: " + executor.getActiveCount() 
+                     + " active threads, " + executor.getQueue().size() + " queued tasks");
+         }
+      }
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The directives of a Cache-Control header, and the parsing of the HTTP dates that caching depends on.
+ */
+final class CacheControl {
+
+   private static final CacheControl EMPTY = new CacheControl(new HashMap<>());
+
+   private final Map<String, String> directives;
+
+   private CacheControl(Map<String, String> directives) {
+      this.directives = directives;
+   }
+
+   /**
+    * @param header the value of a Cache-Control header, which may be null
+    * @return its directives
+    */
+   static CacheControl parse(String header) {
+      if (header == null || header.isEmpty()) {
+         return EMPTY;
+      }
+      Map<String, String> directives = new HashMap<>();
+      for (String part : header.split(",")) {
+         String directive = part.trim();
+         if (directive.isEmpty()) {
+            continue;
+         }
+         int equals = directive.indexOf('=');
+         if (equals < 0) {
+            directives.put(directive.toLowerCase(), "");
+         } else {
+            String value = directive.substring(equals + 1).trim();
+            if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+               value = value.substring(1, value.length() - 1);
+            }
+            directives.put(directive.substring(0, equals).trim().toLowerCase(), value);
+         }
+      }
+      return new CacheControl(directives);
+   }
+
+   /**
+    * @param name a directive, in lower case
+    * @return whether the directive is present
+    */
+   boolean has(String name) {
+      return directives.containsKey(name);
+   }
+
+   /**
+    * @param name a directive that takes a number of seconds, in lower case
+    * @return the number of seconds, or -1 if the directive is absent or its value is not valid
+    */
+   long seconds(String name) {
+      return parseSeconds(directives.get(name));
+   }
+
+   /**
+    * @param value a number of seconds (delta-seconds), which may be null
+    * @return the number of seconds, or -1 if it is absent or not valid
+    */
+   static long parseSeconds(String value) {
+      if (value == null || value.trim().isEmpty()) {
+         return -1;
+      }
+      value = value.trim();
+      if (!value.chars().allMatch(Character::isDigit)) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+         //Too large to represent is as good as forever
+         return Long.MAX_VALUE / 1000;
+      }
+   }
+
+   /**
+    * @param value an HTTP date, which may be null
+    * @return the date in milliseconds since the epoch, or -1 if it is absent or not valid
+    */
+   static long parseDate(String value) {
+      if (value == null) {
+         return -1;
+      }
+      try {
+         return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+         return -1;
+      }
+   }
+}
@@ -0,0 +1,301 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response held by an {@link HttpCache}: its status, headers and body, the values of the request headers 
+ * it varies on, and when it was requested and received, from which its age and freshness are worked out
+ * (following RFC 7234, for a private cache).
+ */
+public final class CacheEntry {
+
+   //Responses that may be cached without explicit freshness information
+   private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+   private final String protocol;
+   private final int responseCode;
+   private final String responseStatus;
+   private final Map<String, List<String>> headerFields;
+   private final Map<String, String> varyValues;
+   private final long requestTime;
+   private final long responseTime;
+   private final InputStreamProvider body;
+
+   /**
+    * @param protocol the protocol the response was received over (may be null)
+    * @param responseCode the HTTP status code
+    * @param responseStatus the status message (may be null)
+    * @param headerFields the response headers, keyed by name as received
+    * @param varyValues the values of the request headers named by the response's Vary header, keyed by 
+    *    lower case name (a value is null if the request did not have the header)
+    * @param requestTime when the request was sent, in milliseconds since the epoch
+    * @param responseTime when the response was received, in milliseconds since the epoch
+    * @param body the response body
+    */
+   public CacheEntry(String protocol, int responseCode, String responseStatus, Map<String, List<String>> headerFields,
+         Map<String, String> varyValues, long requestTime, long responseTime, InputStreamProvider body) {
+      this.protocol = protocol;
+      this.responseCode = responseCode;
+      this.responseStatus = responseStatus;
+      this.headerFields = Collections.unmodifiableMap(headerFields);
+      this.varyValues = Collections.unmodifiableMap(varyValues);
+      this.requestTime = requestTime;
+      this.responseTime = responseTime;
+      this.body = body;
+   }
+
+   /**
+    * @param body a body
+    * @return a copy of this entry with a different body: for an {@link HttpCache} that keeps its own copy
+    */
+   public CacheEntry withBody(InputStreamProvider body) {
+      return new CacheEntry(protocol, responseCode, responseStatus, headerFields, varyValues, requestTime, 
+            responseTime, body);
+   }
+
+   /**
+    * @return the protocol the response was received over, or null if not known
+    */
+   public String getProtocol() {
+      return protocol;
+   }
+
+   /**
+    * @return the HTTP status code
+    */
+   public int getResponseCode() {
+      return responseCode;
+   }
+
+   /**
+    * @return the status message, or null if not known
+    */
+   public String getResponseStatus() {
+      return responseStatus;
+   }
+
+   /**
+    * @return the response headers, keyed by name as received
+    */
+   public Map<String, List<String>> getHeaderFields() {
+      return headerFields;
+   }
+
+   /**
+    * @return the values of the request headers the response varies on, keyed by lower case name
+    */
+   public Map<String, String> getVaryValues() {
+      return varyValues;
+   }
+
+   /**
+    * @return when the request was sent, in milliseconds since the epoch
+    */
+   public long getRequestTime() {
+      return requestTime;
+   }
+
+   /**
+    * @return when the response was received, in milliseconds since the epoch
+    */
+   public long getResponseTime() {
+      return responseTime;
+   }
+
+   /**
+    * @return the response body
+    */
+   public InputStreamProvider getBody() {
+      return body;
+   }
+
+   /**
+    * @param name a header name, in any case
+    * @return the values of the header combined with commas, or null if the response does not have it
+    */
+   public String getHeader(String name) {
+      return header(headerFields, name);
+   }
+
+   static String header(Map<String, List<String>> fields, String name) {
+      String value = null;
+      for (Map.Entry<String, List<String>> entry : fields.entrySet()) {
+         if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name)) {
+            for (String item : entry.getValue()) {
+               value = value == null ? item : value + ", " + item;
+            }
+         }
+      }
+      return value;
+   }
+
+   CacheControl getCacheControl() {
+      return CacheControl.parse(getHeader("Cache-Control"));
+   }
+
+   /**
+    * @return how long the response is fresh for after it was generated, in milliseconds
+    */
+   long freshnessLifetime() {
+      CacheControl control = getCacheControl();
+      long maxAge = control.seconds("max-age");
+      if (maxAge >= 0) {
+         return TimeUnit.SECONDS.toMillis(maxAge);
+      }
+      long date = date();
+      String expires = getHeader("Expires");
+      if (expires != null) {
+         //An invalid date, such as 0, means already expired
+         long at = CacheControl.parseDate(expires);
+         return at < 0 ? 0 : Math.max(0, at - date);
+      }
+      long lastModified = CacheControl.parseDate(getHeader("Last-Modified"));
+      if (lastModified >= 0 && lastModified < date) {
+         return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+      }
+      return 0;
+   }
+
+   /**
+    * @param now the current time in milliseconds since the epoch
+    * @return the age of the response in milliseconds: the time since it was generated by the server
+    */
+   long age(long now) {
+      long apparentAge = Math.max(0, responseTime - date());
+      long ageValue = TimeUnit.SECONDS.toMillis(Math.max(0, CacheControl.parseSeconds(getHeader("Age"))));
+      long correctedAge = ageValue + (responseTime - requestTime);
+      return Math.max(apparentAge, correctedAge) + (now - responseTime);
+   }
+
+   /**
+    * @param now the current time in milliseconds since the epoch
+    * @return how long ago the response stopped being fresh, in milliseconds; negative while it is fresh
+    */
+   long staleness(long now) {
+      return age(now) - freshnessLifetime();
+   }
+
+   /**
+    * @return whether the response must be revalidated with the server every time it is used
+    */
+   boolean requiresValidation() {
+      return getCacheControl().has("no-cache");
+   }
+
+   /**
+    * @return whether the response has a validator that the server can use to tell if it has changed
+    */
+   boolean isValidatable() {
+      return getHeader("ETag") != null || getHeader("Last-Modified") != null;
+   }
+
+   /**
+    * @param request a request
+    * @return whether the request has the same values as the original one for the headers the response varies on
+    */
+   boolean matches(PreparedRequest request) {
+      for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+         String value = request.getHeader(vary.getKey());
+         if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Update the entry with the headers of a 304 Not Modified response.
+    * @param notModified the 304 response
+    * @param requestTime when the conditional request was sent
+    * @param responseTime when the 304 response was received
+    * @return the updated entry, which shares this one's body
+    */
+   CacheEntry revalidated(Response notModified, long requestTime, long responseTime) {
+      Map<String, List<String>> merged = new LinkedHashMap<>(headerFields);
+      for (Map.Entry<String, List<String>> header : notModified.getHeaderFields().entrySet()) {
+         String name = header.getKey();
+         //The body, and so its length, are those of the stored response
+         if (name == null || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")) {
+            continue;
+         }
+         merged.keySet().removeIf(existing -> name.equalsIgnoreCase(existing));
+         merged.put(name, header.getValue());
+      }
+      return new CacheEntry(protocol, responseCode, responseStatus, merged, varyValues, requestTime, responseTime, body);
+   }
+
+   /**
+    * @param request the request the Response is for
+    * @param now the current time in milliseconds since the epoch
+    * @param start the time the request was started, in milliseconds since the epoch
+    * @return a Response built from this entry, with an Age header giving its current age
+    */
+   Response newResponse(PreparedRequest request, long now, long start) {
+      return newResponse(request, now, start, "HEAD".equals(request.getMethod()) ? null : body.getInputStream());
+   }
+
+   /**
+    * @param request the request the Response is for
+    * @param now the current time in milliseconds since the epoch
+    * @param start the time the request was started, in milliseconds since the epoch
+    * @param is a stream already opened on this entry's body
+    * @return a Response built from this entry, with an Age header giving its current age
+    */
+   Response newResponse(PreparedRequest request, long now, long start, InputStream is) {
+      if (is != null && "HEAD".equals(request.getMethod())) {
+         try {
+            is.close();
+         } catch (IOException e) {
+            //Ignore
+         }
+         is = null;
+      }
+      Map<String, List<String>> fields = new LinkedHashMap<>(headerFields);
+      fields.keySet().removeIf(name -> "Age".equalsIgnoreCase(name));
+      List<String> age = new ArrayList<>();
+      age.add(Long.toString(TimeUnit.MILLISECONDS.toSeconds(age(now))));
+      fields.put("Age", age);
+      return new Response(request.getSource(), protocol, responseCode, responseStatus, fields, is, start);
+   }
+
+   //When the response was generated, according to the server, or when it was received if that is unknown
+   private long date() {
+      long date = CacheControl.parseDate(getHeader("Date"));
+      return date < 0 ? responseTime : date;
+   }
+}
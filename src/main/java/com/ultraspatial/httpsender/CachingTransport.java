@@ -0,0 +1,559 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A Transport that answers GET and HEAD requests from an {@link HttpCache} where it can, following the 
+ * Cache-Control, Expires and Vary headers of the responses as a private cache does (RFC 7234). A stored 
+ * response is used without contacting the server for as long as it is fresh. Once it is stale, if it has an
+ * ETag or Last-Modified header, it is revalidated with a conditional request (If-None-Match or 
+ * If-Modified-Since), and a 304 Not Modified answer is turned into a normal Response with the stored body.
+ * Successful PUT, POST, DELETE and PATCH requests remove the stored responses for their url.
+ * 
+ * One response is kept for each method, url and {@link Route} (proxy, client certificates and trust settings),
+ * so a response is never shared between requests that would not share a connection: a request whose headers differ from those of the stored
+ * response in a header it varies on (by Vary) is sent to the server, and the new response replaces the 
+ * stored one. Requests that carry conditional or Range headers of their own bypass the cache. The body of
+ * a response that is to be stored is read in full before it is returned.
+ * 
+ * A stale response may still be used within the windows allowed by the stale-while-revalidate and 
+ * stale-if-error directives (RFC 5861), which a request can override with 
+ * {@link IndividualRequest#staleWhileRevalidate(int)} and {@link IndividualRequest#staleIfError(int)}. Within
+ * the stale-while-revalidate window, the stale response is returned at once, and a single refresh per url 
+ * is sent in the background, on the executor of the request if it was executed asynchronously, or the 
+ * default executor otherwise. Within the stale-if-error window, the stale response is returned if the server
+ * cannot be reached, or answers with a 500, 502, 503 or 504 error. A failed refresh leaves the stale response
+ * in the cache. Responses with a no-cache or must-revalidate directive are never used stale.
+ * 
+ * Caching is opt-in: wrap the Transport of the requests that should be cached. The counts of hits, misses
+ * and revalidations show how many exchanges with the server the cache has saved.
+ */
+public class CachingTransport implements Transport {
+
+   private static Logger log = Logger.getLogger(CachingTransport.class.getName());
+   //Status codes that may be cached without explicit freshness information (RFC 7231)
+   private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+   private static final List<String> BYPASS_HEADERS = 
+         List.of("If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range", "Range");
+   private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+   //Errors that stale-if-error applies to (RFC 5861)
+   private static final Set<Integer> SERVER_ERRORS = Set.of(500, 502, 503, 504);
+
+   private final Transport delegate;
+   private final HttpCache cache;
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder revalidations = new LongAdder();
+   private final LongAdder staleHits = new LongAdder();
+   private final LongAdder refreshes = new LongAdder();
+   //The keys of the responses being refreshed in the background
+   private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+   /**
+    * Create a caching Transport that holds responses in a {@link MemoryHttpCache} of the default size
+    * @param delegate the Transport that sends the requests
+    */
+   public CachingTransport(Transport delegate) {
+      this(delegate, new MemoryHttpCache());
+   }
+
+   /**
+    * Create a caching Transport
+    * @param delegate the Transport that sends the requests
+    * @param cache where the responses are held
+    */
+   public CachingTransport(Transport delegate, HttpCache cache) {
+      if (delegate == null || cache == null) {
+         throw new IllegalArgumentException("Transport and cache may not be null");
+      }
+      this.delegate = delegate;
+      this.cache = cache;
+   }
+
+   /**
+    * @return where the responses are held
+    */
+   public HttpCache getCache() {
+      return cache;
+   }
+
+   /**
+    * @return the number of requests answered from the cache without contacting the server
+    */
+   public long getHits() {
+      return hits.sum();
+   }
+
+   /**
+    * @return the number of cacheable requests that were sent to the server because no usable response
+    *    was stored
+    */
+   public long getMisses() {
+      return misses.sum();
+   }
+
+   /**
+    * @return the number of requests for which a stale response was revalidated with a conditional request
+    */
+   public long getRevalidations() {
+      return revalidations.sum();
+   }
+
+   /**
+    * @return the number of requests answered with a stale response, either while it was refreshed in the 
+    *    background (stale-while-revalidate) or because the server failed (stale-if-error)
+    */
+   public long getStaleHits() {
+      return staleHits.sum();
+   }
+
+   /**
+    * @return the number of background refreshes of stale responses started
+    */
+   public long getRefreshes() {
+      return refreshes.sum();
+   }
+
+   @Override
+   public Response execute(PreparedRequest request) throws Exception {
+      Lookup lookup = new Lookup(request, Executors.defaultExecutor());
+      if (lookup.hit != null) {
+         return lookup.hit;
+      }
+      Response response;
+      try {
+         response = delegate.execute(lookup.sent);
+      } catch (Exception e) {
+         Response stale = lookup.failed(e);
+         if (stale == null) {
+            throw e;
+         }
+         return stale;
+      }
+      return lookup.received(response);
+   }
+
+   @Override
+   public CompletableFuture<Response> executeAsync(PreparedRequest request, Executor executor) {
+      Lookup lookup;
+      try {
+         lookup = new Lookup(request, executor);
+      } catch (RuntimeException e) {
+         CompletableFuture<Response> cf = new CompletableFuture<>();
+         cf.completeExceptionally(e);
+         return cf;
+      }
+      if (lookup.hit != null) {
+         return CompletableFuture.completedFuture(lookup.hit);
+      }
+      //Storing a response reads its body, so not on the thread that completed the exchange
+      return delegate.executeAsync(lookup.sent, executor).handleAsync(lookup::completed, executor);
+   }
+
+   //Responses are only shared between requests with the same Route, as CoalescingTransport shares them: the
+   //same proxy, client certificates and trust settings. The key must be the same in another JVM, for a
+   //persistent cache, so the client certificates are identified by their fingerprint.
+   static String key(String method, URL url, Route route) {
+      StringBuilder key = new StringBuilder(method).append(' ').append(url);
+      if (route.getProxy() != null) {
+         key.append(" via ").append(route.getProxy());
+      }
+      if (route.getClientCerts() != null) {
+         key.append(" as ").append(route.getClientCerts().fingerprint());
+      }
+      if (route.isTrustAll()) {
+         key.append(" trusting all");
+      }
+      return key.toString();
+   }
+
+   //Whether the request may be answered from the cache, and its response stored
+   private static boolean isCacheable(PreparedRequest request) {
+      String method = request.getMethod();
+      if (!("GET".equals(method) || "HEAD".equals(method)) || request.getBody() != null) {
+         return false;
+      }
+      for (String name : BYPASS_HEADERS) {
+         if (request.getHeader(name) != null) {
+            return false;
+         }
+      }
+      return !CacheControl.parse(request.getHeader("Cache-Control")).has("no-store");
+   }
+
+   //Whether a stored response may be used without revalidating it
+   private static boolean isUsable(CacheEntry entry, CacheControl control, long now) {
+      if (entry.requiresValidation() || control.has("no-cache")) {
+         return false;
+      }
+      long age = entry.age(now);
+      long maxAge = control.seconds("max-age");
+      if (maxAge >= 0 && age > maxAge * 1000) {
+         return false;
+      }
+      return age < entry.freshnessLifetime();
+   }
+
+   //Whether a stale response may be used, if it became stale no more than window seconds ago
+   private static boolean isUsableStale(CacheEntry entry, CacheControl control, long now, long window) {
+      if (window <= 0 || entry.requiresValidation() || entry.getCacheControl().has("must-revalidate") 
+            || control.has("no-cache")) {
+         return false;
+      }
+      long maxAge = control.seconds("max-age");
+      if (maxAge >= 0 && entry.age(now) > maxAge * 1000) {
+         return false;
+      }
+      return entry.staleness(now) <= window * 1000;
+   }
+
+   private static long staleWhileRevalidate(PreparedRequest request, CacheEntry entry) {
+      if (request.getStaleWhileRevalidate() >= 0) {
+         return request.getStaleWhileRevalidate();
+      }
+      return entry.getCacheControl().seconds("stale-while-revalidate");
+   }
+
+   private static long staleIfError(PreparedRequest request, CacheEntry entry) {
+      if (request.getStaleIfError() >= 0) {
+         return request.getStaleIfError();
+      }
+      long seconds = CacheControl.parse(request.getHeader("Cache-Control")).seconds("stale-if-error");
+      return seconds >= 0 ? seconds : entry.getCacheControl().seconds("stale-if-error");
+   }
+
+   private static boolean isStorable(Response response, long maxEntrySize) {
+      Map<String, List<String>> fields = response.getHeaderFields();
+      if (!CACHEABLE_STATUS.contains(response.getResponseCode())) {
+         return false;
+      }
+      CacheControl control = CacheControl.parse(CacheEntry.header(fields, "Cache-Control"));
+      String vary = CacheEntry.header(fields, "Vary");
+      if (control.has("no-store") || (vary != null && vary.contains("*"))) {
+         return false;
+      }
+      if (contentLength(fields) > maxEntrySize) {
+         return false;
+      }
+      return control.has("max-age") || control.has("no-cache") || CacheEntry.header(fields, "Expires") != null 
+            || CacheEntry.header(fields, "ETag") != null || CacheEntry.header(fields, "Last-Modified") != null;
+   }
+
+   private static PreparedRequest conditional(PreparedRequest request, CacheEntry entry) {
+      Map<String, String> headers = new LinkedHashMap<>(request.getHeaders());
+      String etag = entry.getHeader("ETag");
+      if (etag != null) {
+         headers.put("If-None-Match", etag);
+      }
+      String lastModified = entry.getHeader("Last-Modified");
+      if (lastModified != null) {
+         headers.put("If-Modified-Since", lastModified);
+      }
+      return request.withHeaders(headers);
+   }
+
+   private static long contentLength(Map<String, List<String>> fields) {
+      String value = CacheEntry.header(fields, "Content-Length");
+      try {
+         return value == null ? -1 : Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private static void closeQuietly(Closeable closeable) {
+      try {
+         closeable.close();
+      } catch (IOException e) {
+         //Ignore
+      }
+   }
+
+   //The part of an exchange handled by the cache: finding a stored response, and storing the new one
+   private final class Lookup {
+
+      private final PreparedRequest request;
+      private final String key;
+      //Whether this is a background refresh, which nobody is waiting for
+      private final boolean background;
+      private final long start = System.currentTimeMillis();
+      private CacheEntry entry;
+      private PreparedRequest sent;
+      private Response hit;
+      //Holds on to the body of the stored entry, which a disk cache might otherwise evict meanwhile
+      private InputStream pinned;
+      private long requestTime;
+
+      /**
+       * @param request the request
+       * @param executor where a background refresh is run, if one is needed
+       */
+      Lookup(PreparedRequest request, Executor executor) {
+         this.request = request;
+         this.sent = request;
+         this.background = false;
+         key = isCacheable(request) ? key(request.getMethod(), request.getUrl(), request.getRoute()) : null;
+         if (key == null) {
+            return;
+         }
+         CacheEntry stored = cache.get(key);
+         if (stored != null && !stored.matches(request)) {
+            stored = null;
+         }
+         long now = System.currentTimeMillis();
+         CacheControl control = CacheControl.parse(request.getHeader("Cache-Control"));
+         if (stored != null && isUsable(stored, control, now)) {
+            hit = open(stored, now);
+            if (hit != null) {
+               hits.increment();
+               return;
+            }
+            stored = null;
+         } else if (stored != null && isUsableStale(stored, control, now, staleWhileRevalidate(request, stored))) {
+            hit = open(stored, now);
+            if (hit != null) {
+               staleHits.increment();
+               refresh(stored, executor);
+               return;
+            }
+            stored = null;
+         }
+         //The stored entry is kept to answer a 304, or a failure if stale-if-error allows
+         if (stored != null && (pinned = pin(stored)) != null) {
+            entry = stored;
+         }
+         if (entry != null && entry.isValidatable()) {
+            revalidations.increment();
+            sent = conditional(request, entry);
+         } else {
+            misses.increment();
+         }
+         requestTime = System.currentTimeMillis();
+      }
+
+      /**
+       * A background refresh of a stale response
+       * @param request the request, under a Deadline of its own
+       * @param stale the stale response
+       */
+      Lookup(PreparedRequest request, CacheEntry stale) {
+         this.request = request;
+         this.sent = request;
+         this.background = true;
+         key = key(request.getMethod(), request.getUrl(), request.getRoute());
+         if ((pinned = pin(stale)) != null) {
+            entry = stale;
+            if (stale.isValidatable()) {
+               sent = conditional(request, stale);
+            }
+         }
+         requestTime = System.currentTimeMillis();
+      }
+
+      //Refresh a stale response, unless it is already being refreshed
+      private void refresh(CacheEntry stale, Executor executor) {
+         if (!refreshing.add(key)) {
+            return;
+         }
+         refreshes.increment();
+         Deadline deadline = request.getSource().scope(Deadline.none());
+         Lookup refresh = new Lookup(request.withDeadline(deadline), stale);
+         CompletableFuture<Response> cf;
+         try {
+            cf = delegate.executeAsync(refresh.sent, executor).handleAsync(refresh::completed, executor);
+         } catch (RuntimeException e) {
+            cf = new CompletableFuture<>();
+            cf.completeExceptionally(e);
+         }
+         cf.whenComplete((response, failure) -> {
+            refreshing.remove(key);
+            if (response != null) {
+               closeQuietly(response);
+            } else {
+               refresh.release();
+               log.fine(request + ": Background refresh failed: " + failure);
+            }
+            deadline.complete();
+         });
+      }
+
+      Response completed(Response response, Throwable failure) {
+         if (failure == null) {
+            return received(response);
+         }
+         Response stale = failed(failure);
+         if (stale == null) {
+            throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+         }
+         return stale;
+      }
+
+      /**
+       * @param failure why the exchange failed
+       * @return the stored response, if it may be used in place of the failure, or null
+       */
+      Response failed(Throwable failure) {
+         long now = System.currentTimeMillis();
+         //If the request has been cancelled, or has run out of time, nobody is waiting for a response
+         if (entry == null || background || request.getDeadline().getFailure() != null 
+               || !isUsableStale(entry, CacheControl.parse(request.getHeader("Cache-Control")), now, 
+                     staleIfError(request, entry))) {
+            release();
+            return null;
+         }
+         log.fine(request + ": Answered with a stale response after " + failure);
+         staleHits.increment();
+         InputStream is = pinned;
+         pinned = null;
+         return entry.newResponse(request, now, start, is);
+      }
+
+      Response received(Response response) {
+         long responseTime = System.currentTimeMillis();
+         if (key == null) {
+            invalidate(response);
+            return response;
+         }
+         if (entry != null && response.getResponseCode() == 304) {
+            closeQuietly(response);
+            log.fine(request + ": Not modified");
+            CacheEntry updated = entry.revalidated(response, requestTime, responseTime);
+            CacheEntry stored = cache.put(key, updated);
+            if (stored == null) {
+               return updated.newResponse(request, responseTime, start, pinned);
+            }
+            release();
+            return stored.newResponse(request, responseTime, start);
+         }
+         if (entry != null && SERVER_ERRORS.contains(response.getResponseCode())) {
+            //The stored response is kept, and may be used stale if stale-if-error allows
+            Response stale = background ? null : failed(new IOException("Server error " + response.getResponseCode()));
+            if (stale == null) {
+               release();
+               return response;
+            }
+            closeQuietly(response);
+            return stale;
+         }
+         release();
+         if (!isStorable(response, cache.getMaxEntrySize())) {
+            cache.remove(key);
+            return response;
+         }
+         return store(response, responseTime);
+      }
+
+      private Response store(Response response, long responseTime) {
+         Map<String, List<String>> fields = response.getHeaderFields();
+         SpillingInputStreamProvider body;
+         try (Response r = response) {
+            body = new SpillingInputStreamProvider(r.bodyAsStream());
+            body.getContentLength();
+         } catch (IOException e) {
+            throw new RuntimeException(e);
+         }
+         CacheEntry received = new CacheEntry(response.getProtocol(), response.getResponseCode(), 
+               response.getResonseStatus(), fields, varyValues(fields), requestTime, responseTime, body);
+         CacheEntry stored = cache.put(key, received);
+         if (stored == null) {
+            //Not stored, so the body is only needed until the caller has read it
+            Response uncached = received.newResponse(request, responseTime, start);
+            uncached.onComplete(body::close);
+            return uncached;
+         }
+         if (stored.getBody() != body) {
+            body.close();
+         }
+         return stored.newResponse(request, responseTime, start);
+      }
+
+      void release() {
+         if (pinned != null) {
+            closeQuietly(pinned);
+            pinned = null;
+         }
+      }
+
+      //A body that can no longer be read, such as one evicted from a disk cache, makes the entry a miss
+      private Response open(CacheEntry stored, long now) {
+         try {
+            return stored.newResponse(request, now, start);
+         } catch (RuntimeException e) {
+            log.fine(request + ": Cached body unavailable: " + e);
+            return null;
+         }
+      }
+
+      private InputStream pin(CacheEntry stored) {
+         try {
+            return stored.getBody().getInputStream();
+         } catch (RuntimeException e) {
+            log.fine(request + ": Cached body unavailable: " + e);
+            return null;
+         }
+      }
+
+      private Map<String, String> varyValues(Map<String, List<String>> fields) {
+         Map<String, String> values = new HashMap<>();
+         String vary = CacheEntry.header(fields, "Vary");
+         if (vary != null) {
+            for (String name : vary.split(",")) {
+               if (!name.trim().isEmpty()) {
+                  values.put(name.trim().toLowerCase(), request.getHeader(name.trim()));
+               }
+            }
+         }
+         return values;
+      }
+
+      private void invalidate(Response response) {
+         if (!SAFE_METHODS.contains(request.getMethod()) && response.getResponseCode() < 400) {
+            //Only the entries for the request's own Route can be found
+            cache.remove(key("GET", request.getUrl(), request.getRoute()));
+            cache.remove(key("HEAD", request.getUrl(), request.getRoute()));
+         }
+      }
+   }
+}
@@ -30,16 +30,23 @@ package com.ultraspatial.httpsender;
 
 import java.io.File;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -57,6 +64,8 @@ public final class ClientCerts {
 
    private KeyStore keyStore;
    private char[] entryPassword;
+   private volatile SSLSocketFactory socketFactory;
+   private volatile String fingerprint;
    
    private ClientCerts(KeyStore keyStore, String entryPassword) {
       this.keyStore = keyStore;
@@ -64,17 +73,57 @@ public final class ClientCerts {
    }
    
    SSLSocketFactory getSocketFactory() {
+      //Reuse the same factory: the JDK only reuses a kept-alive TLS connection for the factory that created it
+      SSLSocketFactory factory = socketFactory;
+      if (factory == null) {
+         factory = createSocketFactory();
+         socketFactory = factory;
+      }
+      return factory;
+   }
+
+   /**
+    * @return a digest of the certificates, which is the same for any ClientCerts holding the same ones, in
+    *    this JVM or another
+    */
+   String fingerprint() {
+      String f = fingerprint;
+      if (f == null) {
+         try {
+            List<String> digests = new ArrayList<>();
+            for (String alias : Collections.list(keyStore.aliases())) {
+               Certificate cert = keyStore.getCertificate(alias);
+               if (cert != null) {
+                  byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+                  digests.add(Base64.getEncoder().encodeToString(digest));
+               }
+            }
+            Collections.sort(digests);
+            f = String.join(",", digests);
+         } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+         }
+         fingerprint = f;
+      }
+      return f;
+   }
+
+   private SSLSocketFactory createSocketFactory() {
       try {
-         KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm()); 
-         kmf.init(keyStore, entryPassword); 
          SSLContext context = SSLContext.getInstance("TLS");  
-         context.init(kmf.getKeyManagers(), null, null); 
+         context.init(getKeyManagers(), null, null); 
          return context.getSocketFactory();
       } catch (Exception e) {
          return null;
       }
    }
 
+   KeyManager[] getKeyManagers() throws GeneralSecurityException {
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm()); 
+      kmf.init(keyStore, entryPassword); 
+      return kmf.getKeyManagers();
+   }
+
    /**
     * @param keyStore a KeyStore
     * @return a ClientCerts instance backed by the specified KeyStore
@@ -82,13 +82,14 @@ public class CloseTimeAwareInputStream extends InputStream {
       return wrapped.available();
    }
 
+   //Not synchronized: the wrapped stream guards its own state
    @Override
-   public synchronized void mark(int readlimit) {
+   public void mark(int readlimit) {
       wrapped.mark(readlimit);
    }
 
    @Override
-   public synchronized void reset() throws IOException {
+   public void reset() throws IOException {
       wrapped.reset();
    }
 
@@ -0,0 +1,363 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport that coalesces identical GET and HEAD requests that are in flight at the same time,
+ * so that they share a single exchange with the server (sometimes called single-flight). The first 
+ * request originates the exchange through the wrapped Transport, and requests that arrive while it is
+ * in progress wait for its outcome instead of sending their own. Every caller receives its own 
+ * Response with an independently readable copy of the body; if the exchange fails, they all fail.
+ * 
+ * Requests are identical if they have the same method, url, {@link Route} (which covers the proxy and
+ * TLS settings), redirect setting and headers.
+ * Any header may affect the response (through Vary), so all of them are compared, apart from those 
+ * named with {@link #ignoreHeader(String)}. Settings such as timeouts are those of the originating
+ * request. Each caller stops waiting when its own {@link Deadline} ends, but the exchange is only 
+ * aborted once every caller waiting for it has given up.
+ * 
+ * The body of a coalesced response is read in full before any caller receives it: in memory if it 
+ * is small, or in a temporary file otherwise (see {@link SpillingInputStreamProvider}), which is deleted
+ * once every caller has closed its Response. Coalescing is
+ * opt-in: wrap the Transport of the requests that should be coalesced.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class CoalescingTransport implements Transport {
+
+   private final Transport delegate;
+   private final Map<Key, Flight> inFlight = new ConcurrentHashMap<>();
+   private final Set<String> ignoredHeaders = ConcurrentHashMap.newKeySet();
+   private final LongAdder originated = new LongAdder();
+   private final LongAdder coalesced = new LongAdder();
+
+   /**
+    * Create a coalescing Transport
+    * @param delegate the Transport that sends the requests
+    */
+   public CoalescingTransport(Transport delegate) {
+      if (delegate == null) {
+         throw new IllegalArgumentException("Transport may not be null");
+      }
+      this.delegate = delegate;
+   }
+
+   /**
+    * Exclude a header from the comparison of requests, because it does not affect the response 
+    * (a request id, for example).
+    * @param name the header name
+    * @return this (Builder pattern)
+    */
+   public CoalescingTransport ignoreHeader(String name) {
+      ignoredHeaders.add(name.toLowerCase());
+      return this;
+   }
+
+   /**
+    * @return the number of exchanges with the server that coalescable requests originated
+    */
+   public long getOriginated() {
+      return originated.sum();
+   }
+
+   /**
+    * @return the number of requests that shared an exchange originated by another
+    */
+   public long getCoalesced() {
+      return coalesced.sum();
+   }
+
+   @Override
+   public Response execute(PreparedRequest request) throws Exception {
+      Key key = key(request);
+      if (key == null) {
+         return delegate.execute(request);
+      }
+      try {
+         return share(key, request, Executors.defaultExecutor()).join();
+      } catch (CompletionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+   }
+
+   @Override
+   public CompletableFuture<Response> executeAsync(PreparedRequest request, Executor executor) {
+      Key key = key(request);
+      if (key == null) {
+         return delegate.executeAsync(request, executor);
+      }
+      return share(key, request, executor);
+   }
+
+   //Join the exchange in flight for the request, or originate one. Every caller, the originator included, 
+   //waits on a copy of the outcome that fails when its own Deadline ends.
+   private CompletableFuture<Response> share(Key key, PreparedRequest request, Executor executor) {
+      long start = System.currentTimeMillis();
+      Flight mine = new Flight(key);
+      Flight flight = join(mine);
+      if (flight == mine) {
+         originated.increment();
+         delegate.executeAsync(request.withDeadline(mine.deadline), executor).thenApply(Shared::new)
+               .whenComplete((shared, thrown) -> {
+                  inFlight.remove(key, mine);
+                  mine.finish(shared);
+                  if (thrown != null) {
+                     mine.future.completeExceptionally(thrown instanceof CompletionException && thrown.getCause() != null 
+                           ? thrown.getCause() : thrown);
+                  } else {
+                     mine.future.complete(shared);
+                  }
+               });
+      } else {
+         coalesced.increment();
+      }
+      CompletableFuture<Response> result = new CompletableFuture<>();
+      AtomicBoolean left = new AtomicBoolean();
+      Runnable leave = () -> {
+         if (left.compareAndSet(false, true)) {
+            flight.leave();
+         }
+      };
+      flight.future.whenComplete((shared, thrown) -> {
+         if (thrown != null) {
+            result.completeExceptionally(thrown);
+         } else if (!result.isDone()) {
+            Response response = shared.newResponse(request, start);
+            if (response != null && !result.complete(response)) {
+               closeQuietly(response);
+            }
+         }
+         leave.run();
+      });
+      request.getDeadline().onCancel(() -> {
+         result.completeExceptionally(request.getDeadline().getFailure());
+         leave.run();
+      });
+      return result;
+   }
+
+   private static void closeQuietly(Response response) {
+      try {
+         response.close();
+      } catch (IOException e) {
+         //Ignore
+      }
+   }
+
+   //Join the exchange in flight for the same key, or make mine the one in flight
+   private Flight join(Flight mine) {
+      for (;;) {
+         Flight existing = inFlight.putIfAbsent(mine.key, mine);
+         if (existing == null || existing.join()) {
+            return existing == null ? mine : existing;
+         }
+         //Abandoned by all its callers, and about to be removed
+         inFlight.remove(mine.key, existing);
+      }
+   }
+
+   //Null if the request may not be coalesced
+   private Key key(PreparedRequest request) {
+      String method = request.getMethod();
+      if (!("GET".equals(method) || "HEAD".equals(method)) || request.getBody() != null) {
+         return null;
+      }
+      Map<String, String> headers = new TreeMap<>();
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+         String name = header.getKey().toLowerCase();
+         if (!ignoredHeaders.contains(name)) {
+            headers.put(name, header.getValue());
+         }
+      }
+      return new Key(request.getRoute(), method + ' ' + request.getUrl() + ' ' + request.getFollowRedirects() + ' ' + headers);
+   }
+
+   //The Route is compared as well as the request line, so that requests sent with different client certificates
+   //or trust settings never share a response
+   private static final class Key {
+
+      private final Route route;
+      private final String request;
+
+      Key(Route route, String request) {
+         this.route = route;
+         this.request = request;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) obj;
+         return route.equals(other.route) && request.equals(other.request);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * route.hashCode() + request.hashCode();
+      }
+   }
+
+   //An exchange in progress, and the callers waiting for it. The response is held for the callers until the
+   //last of them has taken its copy, or given up.
+   private final class Flight {
+
+      private final Key key;
+      private final CompletableFuture<Shared> future = new CompletableFuture<>();
+      //The exchange runs under a Deadline of its own, as no single caller's may end it
+      private final Deadline deadline = Deadline.none();
+      private final ReentrantLock lock = new ReentrantLock();
+      private int waiters = 1;
+      private boolean abandoned;
+      private boolean finished;
+      private boolean released;
+      private Shared outcome;
+
+      Flight(Key key) {
+         this.key = key;
+      }
+
+      boolean join() {
+         lock.lock();
+         try {
+            if (abandoned || released) {
+               return false;
+            }
+            waiters++;
+            return true;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      //Called by the originator when the exchange is over, before the callers are given the outcome
+      void finish(Shared shared) {
+         lock.lock();
+         try {
+            finished = true;
+            outcome = shared;
+            if (waiters > 0) {
+               return;
+            }
+            released = true;
+         } finally {
+            lock.unlock();
+         }
+         if (shared != null) {
+            shared.release();
+         }
+      }
+
+      void leave() {
+         Shared shared = null;
+         boolean abandon = false;
+         lock.lock();
+         try {
+            if (--waiters > 0 || released) {
+               return;
+            }
+            if (finished) {
+               released = true;
+               shared = outcome;
+            } else {
+               abandoned = abandon = true;
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (shared != null) {
+            shared.release();
+         } else if (abandon) {
+            inFlight.remove(key, this);
+            deadline.cancel();
+         }
+      }
+   }
+
+   //A response whose body has been read, so that it can be handed to any number of callers. The body is
+   //closed when the Flight, and every Response given out, have released it.
+   private static final class Shared {
+
+      private final String protocol;
+      private final int responseCode;
+      private final String responseStatus;
+      private final Map<String, List<String>> headerFields;
+      private final SpillingInputStreamProvider body;
+      private final AtomicInteger references = new AtomicInteger(1);
+
+      Shared(Response response) {
+         try (Response r = response) {
+            protocol = r.getProtocol();
+            responseCode = r.getResponseCode();
+            responseStatus = r.getResonseStatus();
+            headerFields = r.getHeaderFields();
+            body = new SpillingInputStreamProvider(r.bodyAsStream());
+            body.getContentLength();
+         } catch (IOException e) {
+            throw new RuntimeException(e);
+         }
+      }
+
+      //Null if the body has already been released
+      Response newResponse(PreparedRequest request, long start) {
+         int count;
+         do {
+            count = references.get();
+            if (count == 0) {
+               return null;
+            }
+         } while (!references.compareAndSet(count, count + 1));
+         Response response = new Response(request.getSource(), protocol, responseCode, responseStatus, headerFields, 
+               body.getInputStream(), start);
+         response.onComplete(this::release);
+         return response;
+      }
+
+      void release() {
+         if (references.decrementAndGet() == 0) {
+            body.close();
+         }
+      }
+   }
+}
@@ -0,0 +1,56 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a connection to the server could not be established within the request's connect timeout
+ * (see {@link IndividualRequest#timeout(int)}).
+ */
+public class ConnectTimeoutException extends SocketTimeoutException {
+
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * @param message the detail message
+    */
+   public ConnectTimeoutException(String message) {
+      super(message);
+   }
+
+   /**
+    * @param message the detail message
+    * @param cause the exception reported by the underlying transport
+    */
+   public ConnectTimeoutException(String message, Throwable cause) {
+      super(message);
+      initCause(cause);
+   }
+}
@@ -0,0 +1,452 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of keep-alive connections, organised by {@link Route}. A request leases a connection 
+ * for the duration of its exchange with the server and returns it when its Response is closed,
+ * so that the next request on the same Route can reuse it rather than paying for a new TCP 
+ * (and TLS) handshake. 
+ * 
+ * The number of connections leased or idle for any single Route, and in total, is limited. By 
+ * default, a request that cannot obtain a connection within those limits is given a new one
+ * anyway, which is closed rather than pooled when it is returned. If blockWhenExhausted is set,
+ * the request instead waits for a connection to be returned, up to the lease timeout. Idle 
+ * connections that exceed the idle timeout, or that report themselves as stale, are discarded
+ * rather than reused.
+ * 
+ * NioTransport owns its sockets, so for it the pool's limits and statistics count real 
+ * connections. With the default HttpURLConnection engine, the sockets are owned by the JDK's 
+ * keep-alive cache, and the pool only holds a handle for each Route the JDK is expected to have 
+ * a warm socket for. For that engine, the limits bound concurrent leases rather than sockets, 
+ * and {@link PoolStats} counts leases: a lease that creates a handle may still be given a cached 
+ * socket by the JDK, and one that reuses a handle may still cause a new handshake. The JDK keeps 
+ * at most http.maxConnections idle sockets per destination (5 by default), reading the system 
+ * property once. Unless it has been set, it is set to the default maxPerRoute before the first 
+ * request; a pool with a larger maxPerRoute needs it set to match before the first request.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class ConnectionPool {
+
+   static final int DEFAULT_MAX_PER_ROUTE = 50;
+   private static final ConnectionPool DEFAULT = new ConnectionPool();
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition returned = lock.newCondition();
+   private final Map<Route, RouteState> routes = new HashMap<>();
+   private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+   private int maxTotal = 200;
+   private long idleTimeout = 30000;
+   private long leaseTimeout = 30000;
+   private boolean blockWhenExhausted = false;
+   private int totalLeased;
+   private int totalIdle;
+   private int pending;
+   private long created;
+   private long reused;
+   private long evicted;
+   private long lastEviction = System.currentTimeMillis();
+
+   /**
+    * @return the pool shared by all requests that have not been configured with a different one
+    */
+   public static ConnectionPool defaultPool() {
+      return DEFAULT;
+   }
+
+   /**
+    * Set the maximum number of connections (leased plus idle) for any single Route. The default is 50.
+    * @param max the maximum
+    * @return this (Builder pattern)
+    */
+   public ConnectionPool maxPerRoute(int max) {
+      if (max < 1) {
+         throw new IllegalArgumentException("maxPerRoute must be at least 1");
+      }
+      maxPerRoute = max;
+      return this;
+   }
+
+   /**
+    * Set the maximum number of connections (leased plus idle) across all Routes. The default is 200.
+    * @param max the maximum
+    * @return this (Builder pattern)
+    */
+   public ConnectionPool maxTotal(int max) {
+      if (max < 1) {
+         throw new IllegalArgumentException("maxTotal must be at least 1");
+      }
+      maxTotal = max;
+      return this;
+   }
+
+   /**
+    * Set how long in milliseconds a connection may stay idle in the pool before it is discarded.
+    * The default is 30000.
+    * @param ms the idle timeout in milliseconds
+    * @return this (Builder pattern)
+    */
+   public ConnectionPool idleTimeout(long ms) {
+      idleTimeout = ms;
+      return this;
+   }
+
+   /**
+    * Determine what happens when a connection is requested while the pool is at its limits. If
+    * false (the default), a new connection is made anyway, and closed instead of being pooled 
+    * when it is released. If true, the request waits for a connection to be released, up to the 
+    * lease timeout. Note that with blocking enabled, a thread holding unclosed Responses while 
+    * it waits for further ones can deadlock until the lease timeout expires.
+    * @param block true to wait for a connection
+    * @return this (Builder pattern)
+    */
+   public ConnectionPool blockWhenExhausted(boolean block) {
+      blockWhenExhausted = block;
+      return this;
+   }
+
+   /**
+    * Set how long in milliseconds a request will wait for a connection when the pool is at its
+    * limits and blockWhenExhausted is set. The default is 30000.
+    * @param ms the lease timeout in milliseconds
+    * @return this (Builder pattern)
+    */
+   public ConnectionPool leaseTimeout(long ms) {
+      leaseTimeout = ms;
+      return this;
+   }
+
+   /**
+    * Lease a connection for the specified Route. If a usable idle connection is available, the 
+    * Lease will carry it. Otherwise the Lease is a permit to establish a new connection, which 
+    * the caller should then {@link Lease#bind(PooledConnection) bind} to the Lease.
+    * @param route the Route
+    * @return a Lease, which must be released when the exchange is over
+    * @throws TimeoutException if blocking and the pool stayed at its limits for longer than the lease timeout
+    * @throws InterruptedException if interrupted while waiting for a connection
+    */
+   public Lease lease(Route route) throws TimeoutException, InterruptedException {
+      List<PooledConnection> discarded = new ArrayList<>();
+      lock.lock();
+      try {
+         long now = System.currentTimeMillis();
+         evictExpired(now, false, discarded);
+         long remaining = TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+         while (true) {
+            RouteState state = routes.computeIfAbsent(route, r -> new RouteState());
+            IdleConnection idle;
+            while ((idle = state.idle.pollFirst()) != null) {
+               totalIdle--;
+               if (now - idle.since > idleTimeout || idle.connection.isStale()) {
+                  evicted++;
+                  discarded.add(idle.connection);
+               } else {
+                  state.leased++;
+                  totalLeased++;
+                  reused++;
+                  return new Lease(this, route, idle.connection, true);
+               }
+            }
+            if (state.leased < maxPerRoute) {
+               if (totalLeased + totalIdle >= maxTotal) {
+                  evictOldestIdle(discarded);
+               }
+               if (totalLeased + totalIdle < maxTotal) {
+                  state.leased++;
+                  totalLeased++;
+                  return new Lease(this, route, null, false);
+               }
+            }
+            if (!blockWhenExhausted) {
+               state.leased++;
+               totalLeased++;
+               return new Lease(this, route, null, false);
+            }
+            if (remaining <= 0) {
+               removeIfUnused(route, state);
+               throw new TimeoutException("Timed out waiting for a connection to " + route);
+            }
+            pending++;
+            try {
+               remaining = returned.awaitNanos(remaining);
+            } finally {
+               pending--;
+            }
+            now = System.currentTimeMillis();
+         }
+      } finally {
+         lock.unlock();
+         closeAll(discarded);
+      }
+   }
+
+   private void release(Lease lease, boolean reusable) {
+      PooledConnection connection = lease.connection;
+      boolean retain = false;
+      lock.lock();
+      try {
+         RouteState state = routes.get(lease.route);
+         if (state != null) {
+            state.leased--;
+            totalLeased--;
+            if (reusable && connection != null && state.leased + state.idle.size() < maxPerRoute
+                  && totalLeased + totalIdle < maxTotal) {
+               state.idle.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+               totalIdle++;
+               retain = true;
+            } else {
+               removeIfUnused(lease.route, state);
+            }
+         }
+         returned.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      if (!retain && connection != null) {
+         connection.close();
+      }
+   }
+
+   /**
+    * Discard all idle connections that have exceeded the idle timeout or are stale. This is also 
+    * done periodically as connections are leased.
+    */
+   public void evictIdle() {
+      List<PooledConnection> discarded = new ArrayList<>();
+      lock.lock();
+      try {
+         evictExpired(System.currentTimeMillis(), true, discarded);
+      } finally {
+         lock.unlock();
+      }
+      closeAll(discarded);
+   }
+
+   /**
+    * Close and discard all idle connections. Connections currently leased are unaffected.
+    */
+   public void closeIdle() {
+      List<PooledConnection> discarded = new ArrayList<>();
+      lock.lock();
+      try {
+         Iterator<Map.Entry<Route, RouteState>> it = routes.entrySet().iterator();
+         while (it.hasNext()) {
+            RouteState state = it.next().getValue();
+            for (IdleConnection idle : state.idle) {
+               discarded.add(idle.connection);
+            }
+            totalIdle -= state.idle.size();
+            state.idle.clear();
+            if (state.leased == 0) {
+               it.remove();
+            }
+         }
+         returned.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      closeAll(discarded);
+   }
+
+   /**
+    * @return a snapshot of the pool's current state and counters
+    */
+   public PoolStats getStats() {
+      lock.lock();
+      try {
+         return new PoolStats(totalLeased, totalIdle, pending, created, reused, evicted);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   //Must hold lock
+   private void evictExpired(long now, boolean force, List<PooledConnection> discarded) {
+      if (!force && now - lastEviction < idleTimeout / 2) {
+         return;
+      }
+      lastEviction = now;
+      Iterator<Map.Entry<Route, RouteState>> it = routes.entrySet().iterator();
+      while (it.hasNext()) {
+         RouteState state = it.next().getValue();
+         Iterator<IdleConnection> idleIt = state.idle.iterator();
+         while (idleIt.hasNext()) {
+            IdleConnection idle = idleIt.next();
+            if (now - idle.since > idleTimeout || idle.connection.isStale()) {
+               idleIt.remove();
+               totalIdle--;
+               evicted++;
+               discarded.add(idle.connection);
+            }
+         }
+         if (state.leased == 0 && state.idle.isEmpty()) {
+            it.remove();
+         }
+      }
+   }
+
+   //Must hold lock
+   private void evictOldestIdle(List<PooledConnection> discarded) {
+      RouteState oldestState = null;
+      long oldest = Long.MAX_VALUE;
+      for (RouteState state : routes.values()) {
+         IdleConnection idle = state.idle.peekLast();
+         if (idle != null && idle.since < oldest) {
+            oldest = idle.since;
+            oldestState = state;
+         }
+      }
+      if (oldestState != null) {
+         discarded.add(oldestState.idle.pollLast().connection);
+         totalIdle--;
+      }
+   }
+
+   //Must hold lock
+   private void removeIfUnused(Route route, RouteState state) {
+      if (state.leased == 0 && state.idle.isEmpty()) {
+         routes.remove(route);
+      }
+   }
+
+   private void connectionCreated() {
+      lock.lock();
+      try {
+         created++;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private static void closeAll(List<PooledConnection> connections) {
+      for (PooledConnection connection : connections) {
+         connection.close();
+      }
+   }
+
+   private static class RouteState {
+      private final Deque<IdleConnection> idle = new ArrayDeque<>();
+      private int leased;
+   }
+
+   private static class IdleConnection {
+      private final PooledConnection connection;
+      private final long since;
+
+      IdleConnection(PooledConnection connection, long since) {
+         this.connection = connection;
+         this.since = since;
+      }
+   }
+
+   /**
+    * The right to use a connection on a Route for the duration of one exchange. Must be released
+    * exactly once; subsequent calls to release are ignored.
+    */
+   public static final class Lease {
+
+      private final ConnectionPool pool;
+      private final Route route;
+      private final boolean reused;
+      private final AtomicBoolean released = new AtomicBoolean();
+      private volatile PooledConnection connection;
+
+      private Lease(ConnectionPool pool, Route route, PooledConnection connection, boolean reused) {
+         this.pool = pool;
+         this.route = route;
+         this.connection = connection;
+         this.reused = reused;
+      }
+
+      /**
+       * @return the Route this Lease was granted for
+       */
+      public Route getRoute() {
+         return route;
+      }
+
+      /**
+       * @return the leased connection, or null if a new one needs to be established and bound
+       */
+      public PooledConnection getConnection() {
+         return connection;
+      }
+
+      /**
+       * @return true if the connection was taken from the pool's idle connections
+       */
+      public boolean isReused() {
+         return reused;
+      }
+
+      /**
+       * Associate a newly established connection with this Lease.
+       * @param newConnection the connection
+       */
+      public void bind(PooledConnection newConnection) {
+         if (connection != null) {
+            throw new IllegalStateException("Lease already has a connection");
+         }
+         connection = newConnection;
+         pool.connectionCreated();
+      }
+
+      /**
+       * Return the connection to the pool.
+       * @param reusable true if the exchange completed cleanly and the connection can be reused,
+       * false if it should be closed
+       */
+      public void release(boolean reusable) {
+         if (released.compareAndSet(false, true)) {
+            pool.release(this, reusable);
+         }
+      }
+
+      /**
+       * @return whether this Lease has been released
+       */
+      public boolean isReleased() {
+         return released.get();
+      }
+   }
+}
@@ -0,0 +1,352 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.ultraspatial.httpsender;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A time limit for executing a Request, and the means of cancelling it. A Deadline is passed to
+ * {@link Request#execute(Deadline)} or {@link Request#executeAsync(java.util.concurrent.Executor, Deadline)},
+ * and covers everything done on the Request's behalf: every attempt, backoff and nested Request of a 
+ * FallbackRequest, and the reading of the Response body. Each attempt runs under a child of the Deadline, so 
+ * it is only given the time that remains.
+ * 
+ * When a Deadline expires, or is cancelled, so are all its children, and the connections of any exchanges 
+ * still in progress under them are aborted rather than left to finish. A child can be cancelled without 
+ * affecting its parent. Cancelling the {@link ResponseFuture} returned by asynchronous execution cancels the
+ * Deadline the Request runs under.
+ */
+public final class Deadline {
+
+   private static Logger log = Logger.getLogger(Deadline.class.getName());
+   private static final long NONE = Long.MAX_VALUE;
+
+   private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "httpsender-deadline-timer");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   static {
+      //Most deadlines are completed long before they expire, and should not linger in the queue
+      TIMER.setRemoveOnCancelPolicy(true);
+   }
+
+   private final long expiresAt;
+   private final long budget;
+   private final boolean exchange;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Set<Registration> registrations = new LinkedHashSet<>();
+   private volatile Throwable failure;
+   private boolean completed;
+   private ScheduledFuture<?> timer;
+   private Runnable parentRegistration;
+
+   private Deadline(long expiresAt, long budget) {
+      this(expiresAt, budget, false);
+   }
+
+   private Deadline(long expiresAt, long budget, boolean exchange) {
+      this.expiresAt = expiresAt;
+      this.budget = budget;
+      this.exchange = exchange;
+   }
+
+   /**
+    * @return a Deadline that never expires, but can be cancelled
+    */
+   public static Deadline none() {
+      return new Deadline(NONE, 0);
+   }
+
+   /**
+    * @param ms the time limit in milliseconds
+    * @return a Deadline that expires the specified time from now
+    */
+   public static Deadline after(long ms) {
+      if (ms <= 0) {
+         throw new IllegalArgumentException("Time limit must be positive");
+      }
+      Deadline deadline = new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms), ms);
+      deadline.schedule();
+      return deadline;
+   }
+
+   /**
+    * Create a child of this Deadline, which is cancelled when this one is, and expires when this one does or
+    * after its own time limit, whichever is sooner. Cancelling the child does not affect this Deadline. The
+    * child should be completed when the work done under it is over.
+    * @param ms the child's own time limit in milliseconds, or 0 for none
+    * @return the child
+    */
+   public Deadline child(long ms) {
+      return child(ms, false);
+   }
+
+   /**
+    * Create a child of this Deadline for a single exchange, as {@link #child(long)}. If it is the exchange's
+    * own time limit that ends it, rather than this Deadline, it fails with an {@link ExchangeTimeoutException}.
+    * @param ms the time limit for the exchange in milliseconds
+    * @return the child
+    */
+   Deadline exchange(long ms) {
+      return child(ms, true);
+   }
+
+   private Deadline child(long ms, boolean exchange) {
+      long own = ms > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms) : NONE;
+      Deadline child;
+      if (own != NONE && (expiresAt == NONE || own - expiresAt < 0)) {
+         child = new Deadline(own, ms, exchange);
+      } else {
+         child = new Deadline(expiresAt, budget);
+      }
+      //The child keeps its own timer, so that it still expires once this Deadline has been completed
+      child.schedule();
+      child.parentRegistration = onCancel(() -> child.fail(failure));
+      return child;
+   }
+
+   /**
+    * Run a task on the timer that expires Deadlines. The task must not block.
+    * @param delay the delay in nanoseconds
+    * @param task the task
+    * @return a future that can be cancelled
+    */
+   static ScheduledFuture<?> runAfter(long delay, Runnable task) {
+      return TIMER.schedule(task, delay, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @return the time remaining in milliseconds, 0 if the Deadline has expired or been cancelled, or
+    *    Long.MAX_VALUE if it has no time limit
+    */
+   public long remaining() {
+      if (getFailure() != null) {
+         return 0;
+      }
+      if (expiresAt == NONE) {
+         return Long.MAX_VALUE;
+      }
+      return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime() + 999_999));
+   }
+
+   /**
+    * @return whether the Deadline has a time limit
+    */
+   public boolean isBounded() {
+      return expiresAt != NONE;
+   }
+
+   /**
+    * @return whether the Deadline has expired
+    */
+   public boolean isExpired() {
+      return getFailure() instanceof DeadlineExceededException;
+   }
+
+   /**
+    * @return whether the Deadline has expired or been cancelled
+    */
+   public boolean isCancelled() {
+      return getFailure() != null;
+   }
+
+   /**
+    * @return the reason the Deadline was ended - a {@link DeadlineExceededException} if it expired, or a
+    *    CancellationException if it was cancelled - or null if it is still running
+    */
+   public Throwable getFailure() {
+      Throwable f = failure;
+      if (f == null && expiresAt != NONE && System.nanoTime() - expiresAt >= 0) {
+         //The timer may not have caught up yet
+         expire();
+         f = failure;
+      }
+      return f;
+   }
+
+   /**
+    * Explain the failure of an attempt made under this Deadline. If the Deadline has ended, the attempt most
+    * likely failed because its connection was aborted, and the reason the Deadline ended is the more useful
+    * exception to report.
+    * @param cause the exception the attempt failed with
+    * @return cause, or if the Deadline has ended, an exception reporting why, caused by cause
+    */
+   public Throwable explain(Throwable cause) {
+      Throwable f = getFailure();
+      if (f == null || f == cause || cause.getCause() == f) {
+         return cause;
+      }
+      if (f instanceof ExchangeTimeoutException) {
+         return new ExchangeTimeoutException(f.getMessage(), cause);
+      }
+      if (f instanceof DeadlineExceededException) {
+         return new DeadlineExceededException(f.getMessage(), cause);
+      }
+      CancellationException cancelled = new CancellationException(f.getMessage());
+      cancelled.initCause(cause);
+      return cancelled;
+   }
+
+   /**
+    * Cancel the Deadline, and all its children. Exchanges in progress under it are aborted.
+    * @return true if this call cancelled the Deadline, false if it had already ended
+    */
+   public boolean cancel() {
+      return fail(new CancellationException("Request cancelled"));
+   }
+
+   /**
+    * Mark the work done under this Deadline as complete: stop its timer, and detach it from its parent so
+    * that it is no longer cancelled with it. Actions registered with {@link #onCancel(Runnable)} are 
+    * discarded without being run.
+    */
+   public void complete() {
+      Runnable detach;
+      lock.lock();
+      try {
+         if (completed) {
+            return;
+         }
+         completed = true;
+         registrations.clear();
+         if (timer != null) {
+            timer.cancel(false);
+         }
+         detach = parentRegistration;
+      } finally {
+         lock.unlock();
+      }
+      if (detach != null) {
+         detach.run();
+      }
+   }
+
+   /**
+    * Register an action to be run when the Deadline expires or is cancelled: typically, aborting a 
+    * connection. If the Deadline has already ended, the action is run immediately. Actions are run on the 
+    * thread that ends the Deadline, so they should not block for long.
+    * @param action the action
+    * @return a Runnable that deregisters the action, for when it is no longer needed
+    */
+   public Runnable onCancel(Runnable action) {
+      Registration registration = new Registration(action);
+      lock.lock();
+      try {
+         if (failure == null) {
+            if (!completed) {
+               registrations.add(registration);
+            }
+            return registration;
+         }
+      } finally {
+         lock.unlock();
+      }
+      action.run();
+      return registration;
+   }
+
+   private void schedule() {
+      if (expiresAt != NONE) {
+         timer = TIMER.schedule(this::expire, Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+      }
+   }
+
+   private void expire() {
+      if (exchange) {
+         fail(new ExchangeTimeoutException("Exchange timeout of " + budget + " ms exceeded"));
+      } else {
+         fail(new DeadlineExceededException("Deadline of " + budget + " ms exceeded"));
+      }
+   }
+
+   private boolean fail(Throwable reason) {
+      List<Registration> actions;
+      lock.lock();
+      try {
+         if (failure != null || completed) {
+            return false;
+         }
+         failure = reason;
+         actions = new ArrayList<>(registrations);
+         registrations.clear();
+         if (timer != null) {
+            timer.cancel(false);
+         }
+      } finally {
+         lock.unlock();
+      }
+      for (Registration registration : actions) {
+         try {
+            registration.action.run();
+         } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Cancellation action failed", e);
+         }
+      }
+      return true;
+   }
+
+   private final class Registration implements Runnable {
+
+      private final Runnable action;
+
+      Registration(Runnable action) {
+         this.action = action;
+      }
+
+      @Override
+      public void run() {
+         lock.lock();
+         try {
+            registrations.remove(this);
+         } finally {
+            lock.unlock();
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      Throwable f = failure;
+      if (f != null) {
+         return "Deadline[" + f.getMessage() + "]";
+      }
+      return expiresAt == NONE ? "Deadline[none]" : "Deadline[" + remaining() + " ms remaining]";
+   }
+}
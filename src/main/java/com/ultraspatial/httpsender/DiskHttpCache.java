@@ -0,0 +1,812 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link HttpCache} that keeps responses on disk, so that they survive a restart. Responses are appended
+ * to segment files in a directory, and found through a compact index of key hashes to file offsets, which is
+ * a memory-mapped hash table of fixed size. A cached body is read straight from its segment file, as it is
+ * consumed, rather than being loaded onto the heap.
+ * 
+ * The cache is bounded in size. When it grows beyond its budget, the oldest segment is deleted, and with it 
+ * every response it holds: space is reclaimed a segment at a time, oldest first. A segment still being read
+ * from is only deleted once the reads are over.
+ * 
+ * Writes are crash safe: a response is written to its segment file, and forced to disk, before the index
+ * refers to it. Each index slot carries a checksum, and each response is checked against its key and the
+ * checksum of its headers before it is used, so an interrupted write or a torn index slot only ever costs a
+ * cache miss. When the cache is opened, slots that refer to missing or truncated segments are dropped.
+ * 
+ * Only one DiskHttpCache may use a directory at a time: the index file is locked while the cache is open, and
+ * opening a second cache on the same directory fails. Close the cache when it is no longer needed.
+ */
+public class DiskHttpCache implements HttpCache, Closeable {
+
+   private static Logger log = Logger.getLogger(DiskHttpCache.class.getName());
+
+   /**
+    * The default maximum number of entries
+    */
+   public static final int DEFAULT_MAX_ENTRIES = 16384;
+
+   private static final int INDEX_MAGIC = 0x48534349;
+   private static final int INDEX_VERSION = 1;
+   private static final int INDEX_HEADER = 64;
+   private static final int SLOT_SIZE = 32;
+   private static final int EMPTY = 0;
+   private static final int LIVE = 1;
+   private static final int REMOVED = 2;
+   private static final int RECORD_MAGIC = 0x48534352;
+   private static final int RECORD_HEADER = 24;
+   private static final String SEGMENT_SUFFIX = ".seg";
+
+   private final Path directory;
+   private final long maxSize;
+   private final long segmentSize;
+   private final int capacity;
+   private final int maxEntries;
+   private final FileChannel indexChannel;
+   private final FileLock directoryLock;
+   private final MappedByteBuffer index;
+   //Guards the index and the set of segments. Appending to a segment is guarded by appendLock.
+   private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+   private final ReentrantLock appendLock = new ReentrantLock();
+   private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+   private int live;
+   private int removed;
+   private volatile boolean closed;
+
+   /**
+    * Open (or create) a disk cache in a directory, with room for up to 16384 entries.
+    * @param directory the directory, which is created if it does not exist
+    * @param maxSize the budget in bytes
+    * @throws IllegalStateException if another DiskHttpCache, in this process or another, has the directory open
+    */
+   public DiskHttpCache(Path directory, long maxSize) {
+      this(directory, maxSize, DEFAULT_MAX_ENTRIES);
+   }
+
+   /**
+    * Open (or create) a disk cache in a directory. If the directory holds a cache created with a different 
+    * maximum number of entries, that cache is discarded.
+    * @throws IllegalStateException if another DiskHttpCache, in this process or another, has the directory open
+    * @param directory the directory, which is created if it does not exist
+    * @param maxSize the budget in bytes
+    * @param maxEntries the maximum number of entries, which fixes the size of the index
+    */
+   public DiskHttpCache(Path directory, long maxSize, int maxEntries) {
+      if (maxSize < 1024 || maxEntries < 1) {
+         throw new IllegalArgumentException("Cache size must be at least 1024 and entries at least 1");
+      }
+      this.directory = directory;
+      this.maxSize = maxSize;
+      //Small enough that deleting the oldest segment frees only a small part of the cache
+      this.segmentSize = Math.max(512, Math.min(256L * 1024 * 1024, maxSize / 8));
+      this.maxEntries = maxEntries;
+      this.capacity = Integer.highestOneBit(maxEntries * 2 - 1) * 2;
+      try {
+         Files.createDirectories(directory);
+         indexChannel = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE, 
+               StandardOpenOption.READ, StandardOpenOption.WRITE);
+         directoryLock = lock(indexChannel, directory);
+         boolean valid = indexChannel.size() == INDEX_HEADER + (long) capacity * SLOT_SIZE;
+         index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * SLOT_SIZE);
+         valid = valid && index.getInt(0) == INDEX_MAGIC && index.getInt(4) == INDEX_VERSION && index.getInt(8) == capacity;
+         openSegments(!valid);
+         if (valid) {
+            recover();
+         } else {
+            for (int i = INDEX_HEADER; i < index.capacity(); i += 8) {
+               index.putLong(i, 0);
+            }
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, INDEX_VERSION);
+            index.putInt(8, capacity);
+            index.force();
+         }
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   //Held for as long as the cache is open, so that another cache, in this process or another, cannot use the
+   //same directory
+   private static FileLock lock(FileChannel channel, Path directory) throws IOException {
+      FileLock lock;
+      try {
+         lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+         lock = null;
+      }
+      if (lock == null) {
+         channel.close();
+         throw new IllegalStateException("Cache directory " + directory + " is in use by another DiskHttpCache");
+      }
+      return lock;
+   }
+
+   @Override
+   public long getMaxEntrySize() {
+      return segmentSize;
+   }
+
+   /**
+    * @return the budget in bytes
+    */
+   public long getMaxSize() {
+      return maxSize;
+   }
+
+   /**
+    * @return the total size in bytes of the segment files
+    */
+   public long getSize() {
+      indexLock.readLock().lock();
+      try {
+         long size = 0;
+         for (Segment segment : segments.values()) {
+            size += segment.size;
+         }
+         return size;
+      } finally {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * @return the number of entries held
+    */
+   public int getEntryCount() {
+      indexLock.readLock().lock();
+      try {
+         return live;
+      } finally {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public CacheEntry get(String key) {
+      long hash = hash(key);
+      indexLock.readLock().lock();
+      try {
+         if (closed) {
+            return null;
+         }
+         int slot = find(hash);
+         if (slot < 0) {
+            return null;
+         }
+         Segment segment = segments.get(index.getInt(slot + 16));
+         return segment == null ? null : read(segment, index.getLong(slot + 8), index.getInt(slot + 20), key);
+      } catch (IOException e) {
+         log.log(Level.WARNING, "Failed to read cached response for " + key, e);
+         return null;
+      } finally {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public CacheEntry put(String key, CacheEntry entry) {
+      InputStreamProvider body = entry.getBody();
+      if (body.getContentLength() > segmentSize) {
+         remove(key);
+         return null;
+      }
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      byte[] meta;
+      try {
+         meta = encode(entry);
+      } catch (IOException e) {
+         //A header too long to encode
+         remove(key);
+         return null;
+      }
+      appendLock.lock();
+      try {
+         if (closed) {
+            return null;
+         }
+         Segment segment = segmentFor(RECORD_HEADER + keyBytes.length + meta.length + Math.max(0, body.getContentLength()));
+         long offset = segment.size;
+         long length = write(segment, offset, keyBytes, meta, body);
+         if (length < 0) {
+            remove(key);
+            return null;
+         }
+         //Only once the response is safely on disk may the index refer to it
+         segment.channel.force(false);
+         segment.size = offset + length;
+         evict();
+         if (!publish(hash(key), offset, segment.id, (int) length)) {
+            return null;
+         }
+         long bodyLength = length - RECORD_HEADER - keyBytes.length - meta.length;
+         return entry.withBody(new DiskBody(segment, offset + length - bodyLength, bodyLength));
+      } catch (IOException e) {
+         log.log(Level.WARNING, "Failed to cache response for " + key, e);
+         remove(key);
+         return null;
+      } finally {
+         appendLock.unlock();
+      }
+   }
+
+   @Override
+   public void remove(String key) {
+      long hash = hash(key);
+      indexLock.writeLock().lock();
+      try {
+         if (closed) {
+            return;
+         }
+         int slot = find(hash);
+         if (slot >= 0) {
+            writeSlot(slot, hash, 0, 0, 0, REMOVED);
+            live--;
+            removed++;
+         }
+      } finally {
+         indexLock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Close the cache, flushing the index to disk. Bodies still being read remain readable until they are 
+    * closed.
+    */
+   @Override
+   public void close() {
+      appendLock.lock();
+      indexLock.writeLock().lock();
+      try {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         index.force();
+         directoryLock.release();
+         indexChannel.close();
+         for (Segment segment : segments.values()) {
+            segment.release();
+         }
+         segments.clear();
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      } finally {
+         indexLock.writeLock().unlock();
+         appendLock.unlock();
+      }
+   }
+
+   private void openSegments(boolean discard) throws IOException {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+         for (Path file : files) {
+            String name = file.getFileName().toString();
+            int id;
+            try {
+               id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+               continue;
+            }
+            if (discard) {
+               Files.delete(file);
+            } else {
+               segments.put(id, new Segment(id, file));
+            }
+         }
+      }
+      if (segments.isEmpty()) {
+         segments.put(1, new Segment(1, segmentPath(1)));
+      }
+   }
+
+   //Drop the slots that refer to segments that have gone, or to data beyond the end of their segment
+   private void recover() {
+      for (int slot = INDEX_HEADER; slot < index.capacity(); slot += SLOT_SIZE) {
+         int state = slotState(slot);
+         if (state == LIVE) {
+            Segment segment = segments.get(index.getInt(slot + 16));
+            if (segment == null || index.getLong(slot + 8) + index.getInt(slot + 20) > segment.size) {
+               writeSlot(slot, index.getLong(slot), 0, 0, 0, REMOVED);
+               removed++;
+            } else {
+               live++;
+            }
+         } else if (state == REMOVED) {
+            removed++;
+         }
+      }
+   }
+
+   private Path segmentPath(int id) {
+      return directory.resolve(String.format("%010d", id) + SEGMENT_SUFFIX);
+   }
+
+   //The segment to append a record of about the specified length to, starting a new one if the current one is 
+   //full, or if the index is: then the older segments can be deleted to make room
+   private Segment segmentFor(long length) throws IOException {
+      Segment current;
+      boolean full;
+      indexLock.readLock().lock();
+      try {
+         current = segments.lastEntry().getValue();
+         full = live >= maxEntries;
+      } finally {
+         indexLock.readLock().unlock();
+      }
+      if (current.size == 0 || (current.size + length <= segmentSize && !full)) {
+         return current;
+      }
+      Segment next = new Segment(current.id + 1, segmentPath(current.id + 1));
+      indexLock.writeLock().lock();
+      try {
+         segments.put(next.id, next);
+      } finally {
+         indexLock.writeLock().unlock();
+      }
+      return next;
+   }
+
+   //Returns the length of the record, or -1 if the body turned out to be too large
+   private long write(Segment segment, long offset, byte[] key, byte[] meta, InputStreamProvider body) throws IOException {
+      ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER + key.length + meta.length);
+      CRC32 crc = new CRC32();
+      crc.update(key);
+      crc.update(meta);
+      head.putInt(RECORD_MAGIC).putInt(key.length).putInt(meta.length).putLong(0).putInt((int) crc.getValue());
+      head.put(key).put(meta).flip();
+      long position = offset;
+      while (head.hasRemaining()) {
+         position += segment.channel.write(head, position);
+      }
+      long bodyLength = 0;
+      byte[] buffer = new byte[65536];
+      try (InputStream is = body.getInputStream()) {
+         int n;
+         while ((n = is.read(buffer)) >= 0) {
+            bodyLength += n;
+            if (bodyLength > segmentSize) {
+               return -1;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+            while (chunk.hasRemaining()) {
+               position += segment.channel.write(chunk, position);
+            }
+         }
+      }
+      ByteBuffer length = ByteBuffer.allocate(8).putLong(0, bodyLength);
+      segment.channel.write(length, offset + 12);
+      return position - offset;
+   }
+
+   private CacheEntry read(Segment segment, long offset, int length, String key) throws IOException {
+      ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER);
+      readFully(segment.channel, head, offset);
+      head.flip();
+      if (head.getInt() != RECORD_MAGIC) {
+         return null;
+      }
+      int keyLength = head.getInt();
+      int metaLength = head.getInt();
+      long bodyLength = head.getLong();
+      int checksum = head.getInt();
+      if (keyLength < 0 || metaLength < 0 || bodyLength < 0 || RECORD_HEADER + keyLength + metaLength + bodyLength != length) {
+         return null;
+      }
+      ByteBuffer data = ByteBuffer.allocate(keyLength + metaLength);
+      readFully(segment.channel, data, offset + RECORD_HEADER);
+      CRC32 crc = new CRC32();
+      crc.update(data.array());
+      if ((int) crc.getValue() != checksum || !key.equals(new String(data.array(), 0, keyLength, StandardCharsets.UTF_8))) {
+         return null;
+      }
+      return decode(data.array(), keyLength, metaLength, new DiskBody(segment, offset + length - bodyLength, bodyLength));
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         int n = channel.read(buffer, position);
+         if (n < 0) {
+            throw new IOException("Unexpected end of cache segment");
+         }
+         position += n;
+      }
+   }
+
+   private static byte[] encode(CacheEntry entry) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+         writeString(out, entry.getProtocol());
+         out.writeInt(entry.getResponseCode());
+         writeString(out, entry.getResponseStatus());
+         out.writeLong(entry.getRequestTime());
+         out.writeLong(entry.getResponseTime());
+         out.writeInt(entry.getHeaderFields().size());
+         for (Map.Entry<String, List<String>> header : entry.getHeaderFields().entrySet()) {
+            writeString(out, header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+               writeString(out, value);
+            }
+         }
+         out.writeInt(entry.getVaryValues().size());
+         for (Map.Entry<String, String> vary : entry.getVaryValues().entrySet()) {
+            writeString(out, vary.getKey());
+            writeString(out, vary.getValue());
+         }
+      }
+      return bytes.toByteArray();
+   }
+
+   private static CacheEntry decode(byte[] data, int offset, int length, InputStreamProvider body) throws IOException {
+      try (DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(data, offset, length))) {
+         String protocol = readString(in);
+         int responseCode = in.readInt();
+         String responseStatus = readString(in);
+         long requestTime = in.readLong();
+         long responseTime = in.readLong();
+         Map<String, List<String>> headers = new LinkedHashMap<>();
+         for (int i = in.readInt(); i > 0; i--) {
+            String name = readString(in);
+            List<String> values = new ArrayList<>();
+            for (int j = in.readInt(); j > 0; j--) {
+               values.add(readString(in));
+            }
+            headers.put(name, values);
+         }
+         Map<String, String> vary = new HashMap<>();
+         for (int i = in.readInt(); i > 0; i--) {
+            vary.put(readString(in), readString(in));
+         }
+         return new CacheEntry(protocol, responseCode, responseStatus, headers, vary, requestTime, responseTime, body);
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+         out.writeUTF(value);
+      }
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   //FNV-1a, 64 bit: 0 is reserved for empty slots
+   private static long hash(String key) {
+      long hash = 0xcbf29ce484222325L;
+      for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+         hash ^= b & 0xff;
+         hash *= 0x100000001b3L;
+      }
+      return hash == 0 ? 1 : hash;
+   }
+
+   //Slot layout: hash (8), offset (8), segment (4), record length (4), state (4), checksum (4)
+   private int slotState(int slot) {
+      if (slotChecksum(slot) != index.getInt(slot + 28)) {
+         //Never written, or torn by a crash
+         return EMPTY;
+      }
+      return index.getInt(slot + 24);
+   }
+
+   private void writeSlot(int slot, long hash, long offset, int segment, int length, int state) {
+      index.putLong(slot, hash);
+      index.putLong(slot + 8, offset);
+      index.putInt(slot + 16, segment);
+      index.putInt(slot + 20, length);
+      index.putInt(slot + 24, state);
+      index.putInt(slot + 28, slotChecksum(slot));
+   }
+
+   private int slotChecksum(int slot) {
+      ByteBuffer view = index.duplicate();
+      view.position(slot).limit(slot + SLOT_SIZE - 4);
+      CRC32 crc = new CRC32();
+      crc.update(view);
+      return (int) crc.getValue();
+   }
+
+   private int slotFor(long hash, int probe) {
+      return INDEX_HEADER + (int) ((hash + probe) & (capacity - 1)) * SLOT_SIZE;
+   }
+
+   //The slot holding the live entry with the specified hash, or -1
+   private int find(long hash) {
+      for (int probe = 0; probe < capacity; probe++) {
+         int slot = slotFor(hash, probe);
+         int state = slotState(slot);
+         if (state == EMPTY) {
+            return -1;
+         }
+         if (state == LIVE && index.getLong(slot) == hash) {
+            return slot;
+         }
+      }
+      return -1;
+   }
+
+   private boolean publish(long hash, long offset, int segment, int length) {
+      indexLock.writeLock().lock();
+      try {
+         int existing = find(hash);
+         if (existing >= 0) {
+            writeSlot(existing, hash, offset, segment, length, LIVE);
+            return true;
+         }
+         if (live + removed + 1 > capacity * 3 / 4) {
+            rehash();
+         }
+         if (live >= maxEntries) {
+            return false;
+         }
+         for (int probe = 0; probe < capacity; probe++) {
+            int slot = slotFor(hash, probe);
+            if (slotState(slot) != LIVE) {
+               if (slotState(slot) == REMOVED) {
+                  removed--;
+               }
+               writeSlot(slot, hash, offset, segment, length, LIVE);
+               live++;
+               return true;
+            }
+         }
+         return false;
+      } finally {
+         indexLock.writeLock().unlock();
+      }
+   }
+
+   //Rebuild the index without the slots of removed entries, which lengthen the search for live ones
+   private void rehash() {
+      List<long[]> entries = new ArrayList<>();
+      for (int slot = INDEX_HEADER; slot < index.capacity(); slot += SLOT_SIZE) {
+         if (slotState(slot) == LIVE) {
+            entries.add(new long[] { index.getLong(slot), index.getLong(slot + 8), index.getInt(slot + 16), index.getInt(slot + 20) });
+         }
+      }
+      for (int i = INDEX_HEADER; i < index.capacity(); i += 8) {
+         index.putLong(i, 0);
+      }
+      for (long[] entry : entries) {
+         for (int probe = 0; probe < capacity; probe++) {
+            int slot = slotFor(entry[0], probe);
+            if (slotState(slot) == EMPTY) {
+               writeSlot(slot, entry[0], entry[1], (int) entry[2], (int) entry[3], LIVE);
+               break;
+            }
+         }
+      }
+      live = entries.size();
+      removed = 0;
+   }
+
+   //Delete the oldest segments until the cache is within its budget, and has room in the index for another 
+   //entry. Called holding appendLock.
+   private void evict() {
+      indexLock.writeLock().lock();
+      try {
+         long size = 0;
+         for (Segment segment : segments.values()) {
+            size += segment.size;
+         }
+         while ((size > maxSize || live >= maxEntries) && segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            size -= oldest.size;
+            retire(oldest);
+         }
+      } finally {
+         indexLock.writeLock().unlock();
+      }
+   }
+
+   //Drop a segment and the entries it holds. Called holding the index write lock.
+   private void retire(Segment segment) {
+      for (int slot = INDEX_HEADER; slot < index.capacity(); slot += SLOT_SIZE) {
+         if (slotState(slot) == LIVE && index.getInt(slot + 16) == segment.id) {
+            writeSlot(slot, index.getLong(slot), 0, 0, 0, REMOVED);
+            live--;
+            removed++;
+         }
+      }
+      segments.remove(segment.id);
+      segment.deleted = true;
+      segment.release();
+      log.fine("Evicted cache segment " + segment.id);
+   }
+
+   //A segment file, shared by the cache and the bodies being read from it
+   private static final class Segment {
+
+      private final int id;
+      private final Path path;
+      private final FileChannel channel;
+      private final ReentrantLock lock = new ReentrantLock();
+      private volatile long size;
+      private int users = 1;
+      private volatile boolean deleted;
+
+      Segment(int id, Path path) throws IOException {
+         this.id = id;
+         this.path = path;
+         this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+         this.size = channel.size();
+      }
+
+      boolean acquire() {
+         lock.lock();
+         try {
+            if (users == 0) {
+               return false;
+            }
+            users++;
+            return true;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      void release() {
+         lock.lock();
+         try {
+            if (--users > 0) {
+               return;
+            }
+         } finally {
+            lock.unlock();
+         }
+         try {
+            channel.close();
+            if (deleted) {
+               Files.deleteIfExists(path);
+            }
+         } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to delete cache segment " + path, e);
+         }
+      }
+   }
+
+   //A body read straight from its segment file
+   private static final class DiskBody implements InputStreamProvider {
+
+      private final Segment segment;
+      private final long offset;
+      private final long length;
+
+      DiskBody(Segment segment, long offset, long length) {
+         this.segment = segment;
+         this.offset = offset;
+         this.length = length;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         if (!segment.acquire()) {
+            throw new RuntimeException(new IOException("Cached body has been evicted"));
+         }
+         return new SegmentInputStream(segment, offset, offset + length);
+      }
+
+      @Override
+      public long getContentLength() {
+         return length;
+      }
+   }
+
+   private static final class SegmentInputStream extends InputStream {
+
+      private final Segment segment;
+      private final long end;
+      private long position;
+      private boolean closed;
+
+      SegmentInputStream(Segment segment, long start, long end) {
+         this.segment = segment;
+         this.position = start;
+         this.end = end;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] one = new byte[1];
+         return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (closed) {
+            throw new IOException("Stream closed");
+         }
+         if (position >= end) {
+            return -1;
+         }
+         if (len == 0) {
+            return 0;
+         }
+         int n = segment.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+         if (n < 0) {
+            throw new IOException("Unexpected end of cache segment");
+         }
+         position += n;
+         return n;
+      }
+
+      @Override
+      public long skip(long n) {
+         long skipped = Math.max(0, Math.min(n, end - position));
+         position += skipped;
+         return skipped;
+      }
+
+      @Override
+      public int available() {
+         return (int) Math.min(Integer.MAX_VALUE, end - position);
+      }
+
+      @Override
+      public void close() {
+         if (!closed) {
+            closed = true;
+            segment.release();
+         }
+      }
+   }
+}
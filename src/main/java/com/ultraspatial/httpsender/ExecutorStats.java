@@ -0,0 +1,122 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point-in-time snapshot of the activity of a {@link BoundedExecutor}.
+ */
+public final class ExecutorStats {
+
+   private final int activeThreads;
+   private final int threads;
+   private final int queueDepth;
+   private final int queueRemaining;
+   private final long completed;
+   private final long saturated;
+   private final long averageQueueWait;
+   private final long maxQueueWait;
+
+   ExecutorStats(int activeThreads, int threads, int queueDepth, int queueRemaining, long completed, 
+         long saturated, long averageQueueWait, long maxQueueWait) {
+      this.activeThreads = activeThreads;
+      this.threads = threads;
+      this.queueDepth = queueDepth;
+      this.queueRemaining = queueRemaining;
+      this.completed = completed;
+      this.saturated = saturated;
+      this.averageQueueWait = averageQueueWait;
+      this.maxQueueWait = maxQueueWait;
+   }
+
+   /**
+    * @return the approximate number of threads currently running tasks
+    */
+   public int getActiveThreads() {
+      return activeThreads;
+   }
+
+   /**
+    * @return the number of threads currently in the pool, busy or idle
+    */
+   public int getThreads() {
+      return threads;
+   }
+
+   /**
+    * @return the number of tasks waiting in the queue for a thread
+    */
+   public int getQueueDepth() {
+      return queueDepth;
+   }
+
+   /**
+    * @return the number of further tasks the queue can hold
+    */
+   public int getQueueRemaining() {
+      return queueRemaining;
+   }
+
+   /**
+    * @return the approximate total number of tasks that have completed
+    */
+   public long getCompleted() {
+      return completed;
+   }
+
+   /**
+    * @return the total number of tasks submitted while the executor was saturated, and so 
+    *    handled by its saturation policy
+    */
+   public long getSaturated() {
+      return saturated;
+   }
+
+   /**
+    * @return the mean time in milliseconds that tasks have waited in the queue before running
+    */
+   public double getAverageQueueWait() {
+      return averageQueueWait / (double) TimeUnit.MILLISECONDS.toNanos(1);
+   }
+
+   /**
+    * @return the longest time in milliseconds that a task has waited in the queue before running
+    */
+   public double getMaxQueueWait() {
+      return maxQueueWait / (double) TimeUnit.MILLISECONDS.toNanos(1);
+   }
+
+   @Override
+   public String toString() {
+      return String.format("ExecutorStats[active=%d, threads=%d, queued=%d, queueRemaining=%d, completed=%d, "
+            + "saturated=%d, avgQueueWait=%.3fms, maxQueueWait=%.3fms]", activeThreads, threads, queueDepth, 
+            queueRemaining, completed, saturated, getAverageQueueWait(), getMaxQueueWait());
+   }
+}
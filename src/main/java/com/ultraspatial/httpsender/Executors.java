@@ -35,12 +35,65 @@ import java.util.concurrent.ExecutorService;
  */
 public final class Executors {
 
-   private static ExecutorService defaultExecutor = java.util.concurrent.Executors.newCachedThreadPool();
+   /**
+    * System property which, if set to true on Java 21 or later, makes the default Executor start a 
+    * virtual thread for each request.
+    */
+   public static final String VIRTUAL_THREADS_PROPERTY = "httpsender.virtualThreads";
+
+   private static volatile ExecutorService defaultExecutor = 
+         Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && VirtualThreads.isAvailable() 
+            ? VirtualThreads.newExecutor() : new BoundedExecutor();
 
    /**
-    * @return a default thread pool
+    * @return the Executor used for asynchronous requests when none is specified. Unless replaced, this is
+    *    a {@link BoundedExecutor} with its default limits, or a virtual thread Executor if 
+    *    {@link #VIRTUAL_THREADS_PROPERTY} is set.
     */
    public static ExecutorService defaultExecutor() {
       return defaultExecutor;
    }
+
+   /**
+    * Replace the Executor used for asynchronous requests when none is specified. The previous default 
+    * is not shut down.
+    * @param executor the new default Executor
+    */
+   public static void setDefaultExecutor(ExecutorService executor) {
+      if (executor == null) {
+         throw new IllegalArgumentException("Executor may not be null");
+      }
+      defaultExecutor = executor;
+   }
+
+   /**
+    * @return whether virtual threads are available, which requires Java 21 or later
+    */
+   public static boolean virtualThreadsAvailable() {
+      return VirtualThreads.isAvailable();
+   }
+
+   /**
+    * Create an Executor that starts a new virtual thread for each task. Blocking requests then 
+    * hold a virtual thread rather than a platform thread while they wait for the server, so very 
+    * large numbers of them can be in flight at once. The number of requests in flight is not
+    * limited: use a {@link ConnectionPool} that blocks when exhausted to limit connections.
+    * 
+    * The library guards its shared state with {@link java.util.concurrent.locks.ReentrantLock}s rather than
+    * synchronized blocks, and holds no monitor while it blocks on I/O, so a virtual thread waiting inside it
+    * never pins its carrier thread.
+    * @return the Executor
+    * @throws UnsupportedOperationException if virtual threads are not available
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      return VirtualThreads.newExecutor();
+   }
+
+   /**
+    * Make a new virtual thread Executor the default Executor for asynchronous requests.
+    * @throws UnsupportedOperationException if virtual threads are not available
+    */
+   public static void useVirtualThreads() {
+      setDefaultExecutor(newVirtualThreadExecutor());
+   }
 }
@@ -0,0 +1,93 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A provider of a request body read from a file. The file is opened afresh each time the body is
+ * needed, so requests using it can be retried, and its length is known, so the body is sent with
+ * a Content-Length header. Transports that own their sockets send the file with 
+ * FileChannel.transferTo, so the data is copied to the socket by the kernel without passing 
+ * through the JVM's heap.
+ */
+public class FileBodyProvider implements InputStreamProvider {
+
+   private final Path path;
+
+   /**
+    * Construct a provider for the specified file
+    * @param path the file
+    */
+   public FileBodyProvider(Path path) {
+      if (path == null) {
+         throw new IllegalArgumentException("Path may not be null");
+      }
+      this.path = path;
+   }
+
+   /**
+    * @return the file
+    */
+   public Path getPath() {
+      return path;
+   }
+
+   @Override
+   public InputStream getInputStream() {
+      try {
+         return Channels.newInputStream(openChannel());
+      } catch (IOException ioe) {
+         throw new RuntimeException(ioe);
+      }
+   }
+
+   @Override
+   public long getContentLength() {
+      try {
+         return Files.size(path);
+      } catch (IOException ioe) {
+         throw new RuntimeException(ioe);
+      }
+   }
+
+   /**
+    * @return a new FileChannel open for reading the file
+    * @throws IOException if the file can't be opened
+    */
+   FileChannel openChannel() throws IOException {
+      return FileChannel.open(path, StandardOpenOption.READ);
+   }
+}
@@ -30,10 +30,11 @@ package com.ultraspatial.httpsender;
 
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -64,10 +65,14 @@ public class FormPost extends WriteRequest<FormPost> {
     */
    public FormPost(String url) {
       super(url);
+      super.header(CONTENT_TYPE, MIME_TYPE);
    }
 
    private FormPost(FormPost source) {
       super(source);
+      for (Map.Entry<String, List<String>> entry: source.formFields.entrySet()) {
+         formFields.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+      }
    }
 
    /**
@@ -119,6 +124,15 @@ public class FormPost extends WriteRequest<FormPost> {
       throw new UnsupportedOperationException(UNSUPPORTED);
    }
 
+   /**
+    * Not supported for FormPost - use formField() methods to set the content
+    * @param file
+    * @return
+    */
+   public FormPost requestBody(Path file) {
+      throw new UnsupportedOperationException(UNSUPPORTED);
+   }
+
    /**
     * Not supported for FormPost - content type defaults to application/x-www-form-urlencoded
     * @param type
@@ -139,6 +153,7 @@ public class FormPost extends WriteRequest<FormPost> {
 
    @Override
    public FormPost header(String name, String ... values) {
+      checkNotFrozen();
       if (name.equalsIgnoreCase(CONTENT_TYPE)) {
          throw new UnsupportedOperationException(UNSUPPORTED_CT);
       }
@@ -153,6 +168,7 @@ public class FormPost extends WriteRequest<FormPost> {
     * @return this (Builder pattern)
     */
    public FormPost formField(String name, String ... values) {
+      checkNotFrozen();
       List<String> list = formFields.get(name);
       if (list == null) {
          list = new ArrayList<>();
@@ -164,10 +180,23 @@ public class FormPost extends WriteRequest<FormPost> {
       return me();
    }
 
+   @Override
+   public FormPost freeze() {
+      if (!isFrozen()) {
+         Map<String, List<String>> frozenFields = new HashMap<>();
+         for (Map.Entry<String, List<String>> entry: formFields.entrySet()) {
+            frozenFields.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+         }
+         formFields = Collections.unmodifiableMap(frozenFields);
+      }
+      return super.freeze();
+   }
+
    /**
     * Clear all the form fields.
     */
    public void clearFormFields() {
+      checkNotFrozen();
       formFields.clear();
    }
 
@@ -180,11 +209,8 @@ public class FormPost extends WriteRequest<FormPost> {
    }
    
    @Override
-   protected void preObtainResponse(HttpURLConnection conn) throws Exception {
-      super.header(CONTENT_TYPE, MIME_TYPE);
-      String encoded = encodeFormFields();
-      super.requestBody(encoded);
-      super.preObtainResponse(conn);
+   protected InputStreamProvider getRequestBody() {
+      return new RepeatableInputStreamProvider(encodeFormFields());
    }
    
    private String encodeFormFields() {
@@ -47,6 +47,16 @@ public class HeaderValues {
       this.name = name;
    }
 
+   /**
+    * Create header values for a given header name, backed by the supplied list
+    * @param name the name
+    * @param values the values
+    */
+   HeaderValues(String name, List<String> values) {
+      this.name = name;
+      this.values = values;
+   }
+
    /**
     * Add a value to the header
     * @param value the value
@@ -68,4 +78,18 @@ public class HeaderValues {
    public List<String> getValues() {
       return values;
    }
-}
\ No newline at end of file
+
+   @Override
+   public boolean equals(Object obj) {
+      if (!(obj instanceof HeaderValues)) {
+         return false;
+      }
+      HeaderValues other = (HeaderValues) obj;
+      return name.equals(other.name) && values.equals(other.values);
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * name.hashCode() + values.hashCode();
+   }
+}
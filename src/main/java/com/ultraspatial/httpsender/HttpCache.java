@@ -0,0 +1,67 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+/**
+ * Storage for the responses cached by a {@link CachingTransport}. The CachingTransport decides what may be
+ * stored and whether a stored response may be used; an HttpCache only holds the entries, and decides which
+ * to evict when it is full. Implementations must be thread safe.
+ */
+public interface HttpCache {
+
+   /**
+    * @param key the key the entry was stored under
+    * @return the entry, or null if there is none
+    */
+   CacheEntry get(String key);
+
+   /**
+    * Store an entry, replacing any already stored under the same key. The cache may keep the entry's body 
+    * as it is, or read it and keep a copy of its own.
+    * @param key the key
+    * @param entry the entry
+    * @return the entry as stored, whose body should be used from now on, or null if it was not stored (for 
+    *    instance because it is too large)
+    */
+   CacheEntry put(String key, CacheEntry entry);
+
+   /**
+    * Remove the entry stored under a key, if any.
+    * @param key the key
+    */
+   void remove(String key);
+
+   /**
+    * @return the size in bytes of the largest body the cache will store. Responses with larger bodies are 
+    *    passed through without being read in advance.
+    */
+   default long getMaxEntrySize() {
+      return Long.MAX_VALUE;
+   }
+}
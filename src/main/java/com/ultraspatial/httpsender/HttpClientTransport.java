@@ -0,0 +1,553 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Transport that sends requests using java.net.http.HttpClient. HttpClient fixes the proxy, TLS, 
+ * redirect and connect timeout settings when it is built, so one client is kept for each distinct
+ * combination of those settings. Each client manages its own pool of connections.
+ * 
+ * When HTTP/2 is enabled, it is negotiated with the server through ALPN (or an h2c upgrade for 
+ * plain http), falling back to HTTP/1.1 if the server does not support it. HttpClient multiplexes 
+ * all concurrent requests to a server over a single HTTP/2 connection; this Transport limits the
+ * number of concurrent streams on each connection and opens additional connections (each through
+ * a separate client) when that limit is reached. New requests are always packed onto the first
+ * connection with spare capacity, so the number of connections stays as small as possible, and the 
+ * additional connections are discarded once they have been idle for the idle timeout.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class HttpClientTransport implements Transport {
+
+   private static Logger log = Logger.getLogger(HttpClientTransport.class.getName());
+   //Headers that HttpClient sets itself and will not accept from the caller
+   private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+   private final HttpClient.Version version;
+   private final Map<ClientKey, Origin> origins = new ConcurrentHashMap<>();
+   private volatile int maxStreamsPerConnection = 100;
+   private volatile long idleTimeout = 30000;
+
+   /**
+    * Create a Transport that uses HTTP/1.1.
+    */
+   public HttpClientTransport() {
+      this(HttpClient.Version.HTTP_1_1);
+   }
+
+   /**
+    * Create a Transport that uses the specified HTTP version.
+    * @param version HTTP_2 to negotiate HTTP/2 with servers that support it, or HTTP_1_1
+    */
+   public HttpClientTransport(HttpClient.Version version) {
+      this.version = version;
+   }
+
+   /**
+    * Set the maximum number of requests that may be in flight at the same time on a single HTTP/2
+    * connection. Further concurrent requests to the same server are sent over additional
+    * connections. The default is 100. Has no effect for HTTP/1.1.
+    * @param max the maximum number of concurrent streams
+    * @return this (Builder pattern)
+    */
+   public HttpClientTransport maxStreamsPerConnection(int max) {
+      if (max < 1) {
+         throw new IllegalArgumentException("maxStreamsPerConnection must be at least 1");
+      }
+      maxStreamsPerConnection = max;
+      return this;
+   }
+
+   /**
+    * Set how long in milliseconds an additional HTTP/2 connection, opened because the others had reached 
+    * their stream limit, may stay idle before it is discarded. The first connection to each server is 
+    * kept. The default is 30000.
+    * @param ms the idle timeout in milliseconds
+    * @return this (Builder pattern)
+    */
+   public HttpClientTransport idleTimeout(long ms) {
+      if (ms < 0) {
+         throw new IllegalArgumentException("Idle timeout may not be negative");
+      }
+      idleTimeout = ms;
+      return this;
+   }
+
+   /**
+    * @return the HTTP version this Transport requests
+    */
+   public HttpClient.Version getVersion() {
+      return version;
+   }
+
+   /**
+    * Get the number of connections (HTTP/2) currently open, or able to be opened, to the
+    * specified server. For HTTP/1.1 this is always 1, as a single client opens a connection 
+    * for each concurrent request itself.
+    * @param request a request to the server
+    * @return the number of connections
+    */
+   public int getConnectionCount(IndividualRequest<?> request) {
+      try {
+         Origin origin = origins.get(new ClientKey(request.prepare(), version));
+         return origin == null ? 0 : origin.lanes.size();
+      } catch (Exception e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   @Override
+   public Response execute(PreparedRequest request) throws Exception {
+      //Sent asynchronously even so, as only the future of an asynchronous send can abort the exchange
+      try {
+         return executeAsync(request, Runnable::run).get();
+      } catch (ExecutionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+   }
+
+   @Override
+   public CompletableFuture<Response> executeAsync(PreparedRequest request, Executor executor) {
+      long start = System.currentTimeMillis();
+      try {
+         Lane lane = acquire(request);
+         try {
+            Deadline deadline = request.getDeadline();
+            CompletableFuture<HttpResponse<InputStream>> sent = 
+                  lane.client.sendAsync(buildRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+            deadline.onCancel(() -> sent.cancel(true));
+            return sent.handle((response, thrown) -> {
+                     if (thrown != null) {
+                        lane.release();
+                        throw new CompletionException(translate(request, thrown));
+                     }
+                     deadline.onCancel(() -> closeQuietly(response.body()));
+                     return response;
+                  })
+                  .thenApplyAsync(response -> toResponse(request, lane, response, start), executor);
+         } catch (Exception e) {
+            lane.release();
+            throw e;
+         }
+      } catch (Exception e) {
+         CompletableFuture<Response> cf = new CompletableFuture<>();
+         cf.completeExceptionally(e);
+         return cf;
+      }
+   }
+
+   private HttpRequest buildRequest(PreparedRequest request) throws Exception {
+      log.fine("Requesting " + request.getUrl());
+      HttpRequest.Builder builder = HttpRequest.newBuilder(request.getUrl().toURI());
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+         if (RESTRICTED_HEADERS.contains(header.getKey().toLowerCase())) {
+            log.fine("Header " + header.getKey() + " is managed by HttpClient and will not be sent");
+         } else {
+            builder.header(header.getKey(), header.getValue());
+         }
+      }
+      //HttpClient has no read timeout, only a limit on the time to the response headers, which includes 
+      //connecting: allow for both. The body is watched by a ReadTimeoutInputStream.
+      long timeout = Long.MAX_VALUE;
+      if (request.getReadTimeout() > 0) {
+         timeout = Math.max(0, request.getTimeout()) + request.getReadTimeout();
+      }
+      Deadline deadline = request.getDeadline();
+      if (deadline.isBounded()) {
+         //Fails the exchange if the response headers have not arrived before the deadline
+         timeout = Math.min(timeout, Math.max(1, deadline.remaining()));
+      }
+      if (timeout != Long.MAX_VALUE) {
+         builder.timeout(Duration.ofMillis(timeout));
+      }
+      InputStreamProvider body = request.getBody();
+      long length = request.getContentLength();
+      if (body == null || length == 0) {
+         builder.method(request.getMethod(), HttpRequest.BodyPublishers.noBody());
+      } else if (body instanceof FileBodyProvider) {
+         builder.method(request.getMethod(), HttpRequest.BodyPublishers.ofFile(((FileBodyProvider) body).getPath()));
+      } else {
+         HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(body::getInputStream);
+         if (length > 0) {
+            //Sent with a Content-Length rather than chunked
+            publisher = HttpRequest.BodyPublishers.fromPublisher(publisher, length);
+         }
+         builder.method(request.getMethod(), publisher);
+      }
+      return builder.build();
+   }
+
+   private Response toResponse(PreparedRequest request, Lane lane, HttpResponse<InputStream> response, long start) {
+      String protocol;
+      if (response.version() == HttpClient.Version.HTTP_2) {
+         protocol = "HTTP/2";
+      } else {
+         protocol = "HTTP/1.1";
+         lane.origin.http2 = false;
+      }
+      InputStream body = response.body();
+      if (request.getReadTimeout() > 0) {
+         body = new ReadTimeoutInputStream(body, request.getReadTimeout(), () -> closeQuietly(response.body()));
+      }
+      return new Response(request.getSource(), protocol, response.statusCode(), null, response.headers().map(), 
+            new StreamEndInputStream(body, lane), start);
+   }
+
+   //Reports HttpClient's timeouts as the timeouts of the request they enforce
+   private static Throwable translate(PreparedRequest request, Throwable thrown) {
+      Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+      if (cause instanceof HttpConnectTimeoutException) {
+         return new ConnectTimeoutException("Connect timed out after " + request.getTimeout() + " ms", cause);
+      }
+      if (cause instanceof HttpTimeoutException && request.getReadTimeout() > 0) {
+         return new ReadTimeoutException("Read timed out after " + request.getReadTimeout() + " ms", cause);
+      }
+      return cause;
+   }
+
+   private static void closeQuietly(InputStream is) {
+      try {
+         is.close();
+      } catch (IOException e) {
+         //Ignore
+      }
+   }
+
+   private Lane acquire(PreparedRequest request) {
+      ClientKey key = new ClientKey(request, version);
+      Origin origin = origins.get(key);
+      if (origin == null) {
+         origin = origins.computeIfAbsent(key, k -> new Origin());
+      }
+      if (version != HttpClient.Version.HTTP_2 || !origin.http2) {
+         //No stream limit: a single client opens as many HTTP/1.1 connections as it needs
+         return origin.firstLane(this, request);
+      }
+      int max = maxStreamsPerConnection;
+      for (Lane lane : origin.lanes) {
+         if (lane.tryAcquire(max)) {
+            return lane;
+         }
+      }
+      origin.lock.lock();
+      try {
+         for (Lane lane : origin.lanes) {
+            if (lane.tryAcquire(max)) {
+               return lane;
+            }
+         }
+         Lane lane = new Lane(origin, buildClient(request), idleTimeout);
+         lane.inFlight.incrementAndGet();
+         origin.lanes.add(lane);
+         log.fine("Opening HTTP/2 connection " + origin.lanes.size() + " to " + request.getUrl().getAuthority());
+         return lane;
+      } finally {
+         origin.lock.unlock();
+      }
+   }
+
+   private HttpClient buildClient(PreparedRequest request) {
+      HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(version)
+            .connectTimeout(Duration.ofMillis(request.getTimeout()))
+            .followRedirects(request.getFollowRedirects() ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+      java.net.Proxy proxy = request.getProxy();
+      if (proxy == null) {
+         builder.proxy(ProxySelector.getDefault());
+      } else if (proxy.type() == java.net.Proxy.Type.HTTP) {
+         builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+      } else if (proxy.type() == java.net.Proxy.Type.SOCKS) {
+         throw new IllegalArgumentException("SOCKS proxies are not supported by the HttpClient transport");
+      }
+      Authenticator authenticator = Authenticator.getDefault();
+      if (authenticator != null) {
+         builder.authenticator(authenticator);
+      }
+      if (request.getTrustAll() || request.getClientCerts() != null) {
+         try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(request.getClientCerts() == null ? null : request.getClientCerts().getKeyManagers(),
+                  request.getTrustAll() ? new TrustManager[] { new AnyHostnameTrustManager() } : null, null);
+            builder.sslContext(context);
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+      }
+      return builder.build();
+   }
+
+   //Requests sharing a ClientKey go to the same server with the same client settings
+   private static class ClientKey {
+      private final String scheme;
+      private final String authority;
+      private final java.net.Proxy proxy;
+      private final boolean followRedirects;
+      private final boolean trustAll;
+      private final ClientCerts clientCerts;
+      private final int timeout;
+
+      ClientKey(PreparedRequest request, HttpClient.Version version) {
+         if (version == HttpClient.Version.HTTP_2) {
+            scheme = request.getUrl().getProtocol();
+            authority = request.getUrl().getAuthority();
+         } else {
+            scheme = null;
+            authority = null;
+         }
+         proxy = request.getProxy();
+         followRedirects = request.getFollowRedirects();
+         trustAll = request.getTrustAll();
+         clientCerts = request.getClientCerts();
+         timeout = request.getTimeout();
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof ClientKey)) {
+            return false;
+         }
+         ClientKey other = (ClientKey) obj;
+         return followRedirects == other.followRedirects && trustAll == other.trustAll && timeout == other.timeout
+               && clientCerts == other.clientCerts && Objects.equals(proxy, other.proxy) 
+               && Objects.equals(scheme, other.scheme) && Objects.equals(authority, other.authority);
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(scheme, authority, proxy, followRedirects, trustAll, System.identityHashCode(clientCerts), timeout);
+      }
+   }
+
+   //The clients (connections) in use for a ClientKey
+   private static class Origin {
+      private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+      private final ReentrantLock lock = new ReentrantLock();
+      //Assume HTTP/2 until the server responds with HTTP/1.1
+      private volatile boolean http2 = true;
+
+      Lane firstLane(HttpClientTransport transport, PreparedRequest request) {
+         if (lanes.isEmpty()) {
+            lock.lock();
+            try {
+               if (lanes.isEmpty()) {
+                  lanes.add(new Lane(this, transport.buildClient(request), transport.idleTimeout));
+               }
+            } finally {
+               lock.unlock();
+            }
+         }
+         Lane lane = lanes.get(0);
+         lane.inFlight.incrementAndGet();
+         return lane;
+      }
+   }
+
+   //A client, and the number of its requests currently in flight, or RETIRED once it has been discarded
+   private static class Lane {
+      private static final int RETIRED = -1;
+      private final Origin origin;
+      private final HttpClient client;
+      private final long idleTimeout;
+      private final AtomicInteger inFlight = new AtomicInteger();
+      private volatile long idleSince;
+
+      Lane(Origin origin, HttpClient client, long idleTimeout) {
+         this.origin = origin;
+         this.client = client;
+         this.idleTimeout = idleTimeout;
+      }
+
+      boolean tryAcquire(int max) {
+         int current;
+         do {
+            current = inFlight.get();
+            if (current == RETIRED || current >= max) {
+               return false;
+            }
+         } while (!inFlight.compareAndSet(current, current + 1));
+         return true;
+      }
+
+      void release() {
+         if (inFlight.decrementAndGet() == 0 && origin.lanes.get(0) != this) {
+            idleSince = System.nanoTime();
+            Deadline.runAfter(TimeUnit.MILLISECONDS.toNanos(idleTimeout), this::retireIfIdle);
+         }
+      }
+
+      //Discard an additional client that has had nothing in flight for the idle timeout. Once unreferenced, 
+      //the client closes its connections and its selector thread ends.
+      private void retireIfIdle() {
+         if (System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(idleTimeout) 
+               && inFlight.compareAndSet(0, RETIRED)) {
+            origin.lanes.remove(this);
+            log.fine("Closing idle HTTP/2 connection (" + origin.lanes.size() + " remaining)");
+         }
+      }
+   }
+
+   //Releases the request's stream when the body has been read to the end or closed
+   private static class StreamEndInputStream extends FilterInputStream {
+      private final Lane lane;
+      private final AtomicBoolean released = new AtomicBoolean();
+
+      StreamEndInputStream(InputStream in, Lane lane) {
+         super(in);
+         this.lane = lane;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b < 0) {
+            release();
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int count = super.read(b, off, len);
+         if (count < 0) {
+            release();
+         }
+         return count;
+      }
+
+      @Override
+      public void close() throws IOException {
+         try {
+            super.close();
+         } finally {
+            release();
+         }
+      }
+
+      private void release() {
+         if (released.compareAndSet(false, true)) {
+            lane.release();
+         }
+      }
+   }
+
+   //Validates the server's certificate chain with the platform's trust manager, but not the hostname, which is
+   //what trustAll means for HttpURLConnection. HttpClient verifies the hostname in the engine variant of 
+   //checkServerTrusted, so that checks the chain alone.
+   private static class AnyHostnameTrustManager extends X509ExtendedTrustManager {
+
+      private final X509TrustManager platform;
+
+      AnyHostnameTrustManager() throws GeneralSecurityException {
+         TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+         factory.init((KeyStore) null);
+         for (TrustManager manager : factory.getTrustManagers()) {
+            if (manager instanceof X509TrustManager) {
+               platform = (X509TrustManager) manager;
+               return;
+            }
+         }
+         throw new GeneralSecurityException("No X509TrustManager available");
+      }
+
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+         platform.checkClientTrusted(chain, authType);
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+         platform.checkServerTrusted(chain, authType);
+      }
+
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+         platform.checkClientTrusted(chain, authType);
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+         platform.checkServerTrusted(chain, authType);
+      }
+
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+         platform.checkClientTrusted(chain, authType);
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+         platform.checkServerTrusted(chain, authType);
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+         return platform.getAcceptedIssuers();
+      }
+   }
+}
@@ -0,0 +1,326 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental parser for an HTTP/1.1 response. Bytes are fed in as they arrive from the network;
+ * the parser reports the status line and headers, then the body (decoding chunked transfer 
+ * encoding, or delimited by Content-Length or the end of the connection) to a Listener.
+ */
+class HttpResponseParser {
+
+   private static final int MAX_LINE = 8192;
+   private static final int MAX_HEADER_BYTES = 65536;
+
+   /**
+    * Receiver of the parts of the response as they are parsed.
+    */
+   interface Listener {
+
+      void onHeaders(String protocol, int code, String reason, Map<String, List<String>> headers);
+
+      /**
+       * @param data body bytes
+       * @return false to stop parsing until resumed (the remaining input is left in the buffer)
+       */
+      boolean onBody(byte[] data);
+
+      void onComplete();
+   }
+
+   private enum State { STATUS, HEADERS, FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+   private final Listener listener;
+   private final boolean headRequest;
+   private State state = State.STATUS;
+   private byte[] line = new byte[256];
+   private int lineLength;
+   private int headerBytes;
+   private String protocol;
+   private int code;
+   private String reason;
+   private Map<String, List<String>> headers;
+   private long remaining;
+   private boolean keepAlive;
+
+   HttpResponseParser(String method, Listener listener) {
+      this.listener = listener;
+      this.headRequest = "HEAD".equals(method);
+   }
+
+   /**
+    * Consume as much of the buffer as possible.
+    * @param in the input
+    * @return false if the Listener asked for parsing to pause
+    * @throws IOException if the response is malformed
+    */
+   boolean feed(ByteBuffer in) throws IOException {
+      while (in.hasRemaining() && state != State.DONE) {
+         switch (state) {
+         case STATUS:
+            if (readLine(in)) {
+               parseStatusLine();
+            }
+            break;
+         case HEADERS:
+            if (readLine(in)) {
+               parseHeaderLine();
+            }
+            break;
+         case FIXED:
+         case CHUNK_DATA:
+         case UNTIL_CLOSE:
+            int count = state == State.UNTIL_CLOSE ? in.remaining() : (int) Math.min(in.remaining(), remaining);
+            byte[] data = new byte[count];
+            in.get(data);
+            remaining -= count;
+            if (remaining == 0 && state == State.FIXED) {
+               state = State.DONE;
+            } else if (remaining == 0 && state == State.CHUNK_DATA) {
+               state = State.CHUNK_END;
+            }
+            boolean more = listener.onBody(data);
+            if (state == State.DONE) {
+               listener.onComplete();
+            }
+            if (!more) {
+               return false;
+            }
+            break;
+         case CHUNK_SIZE:
+            if (readLine(in)) {
+               parseChunkSize();
+            }
+            break;
+         case CHUNK_END:
+            if (readLine(in)) {
+               if (lineLength != 0) {
+                  throw new IOException("Malformed chunked encoding");
+               }
+               state = State.CHUNK_SIZE;
+            }
+            break;
+         case TRAILERS:
+            if (readLine(in)) {
+               if (lineLength == 0) {
+                  complete();
+               }
+               lineLength = 0;
+            }
+            break;
+         default:
+            break;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Signal that the server has closed the connection.
+    * @throws IOException if the response was incomplete
+    */
+   void endOfInput() throws IOException {
+      if (state == State.UNTIL_CLOSE) {
+         complete();
+      } else if (state != State.DONE) {
+         throw new IOException("Connection closed before the response was complete");
+      }
+   }
+
+   /**
+    * @return true once the whole response has been parsed
+    */
+   boolean isComplete() {
+      return state == State.DONE;
+   }
+
+   /**
+    * @return true if any part of the response has been received
+    */
+   boolean hasStarted() {
+      return state != State.STATUS || lineLength > 0;
+   }
+
+   /**
+    * @return whether the connection can be reused once the response is complete
+    */
+   boolean isKeepAlive() {
+      return keepAlive;
+   }
+
+   private boolean readLine(ByteBuffer in) throws IOException {
+      while (in.hasRemaining()) {
+         byte b = in.get();
+         if (state == State.STATUS || state == State.HEADERS || state == State.TRAILERS) {
+            if (++headerBytes > MAX_HEADER_BYTES) {
+               throw new IOException("Response headers too large");
+            }
+         }
+         if (b == '\n') {
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+               lineLength--;
+            }
+            return true;
+         }
+         if (lineLength == line.length) {
+            if (lineLength >= MAX_LINE) {
+               throw new IOException("Response line too long");
+            }
+            byte[] bigger = new byte[line.length * 2];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+         }
+         line[lineLength++] = b;
+      }
+      return false;
+   }
+
+   private String takeLine() {
+      String str = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+      lineLength = 0;
+      return str;
+   }
+
+   private void parseStatusLine() throws IOException {
+      String status = takeLine();
+      if (status.isEmpty()) {
+         //Tolerate a stray CRLF before the status line
+         return;
+      }
+      String[] parts = status.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+         throw new IOException("Malformed status line: " + status);
+      }
+      try {
+         code = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+         throw new IOException("Malformed status line: " + status);
+      }
+      protocol = parts[0];
+      reason = parts.length > 2 ? parts[2] : "";
+      headers = new LinkedHashMap<>();
+      state = State.HEADERS;
+   }
+
+   private void parseHeaderLine() throws IOException {
+      if (lineLength == 0) {
+         headersComplete();
+         return;
+      }
+      String header = takeLine();
+      int colon = header.indexOf(':');
+      if (colon <= 0) {
+         throw new IOException("Malformed header: " + header);
+      }
+      String name = header.substring(0, colon).trim();
+      String value = header.substring(colon + 1).trim();
+      headers.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+   }
+
+   private void headersComplete() throws IOException {
+      if (code >= 100 && code < 200) {
+         //Interim response (e.g. 100 Continue): the real one follows
+         state = State.STATUS;
+         headerBytes = 0;
+         return;
+      }
+      String connection = headerValue("Connection");
+      keepAlive = protocol.equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connection) 
+            : "keep-alive".equalsIgnoreCase(connection);
+      listener.onHeaders(protocol, code, reason, headers);
+      String transferEncoding = headerValue("Transfer-Encoding");
+      String contentLength = headerValue("Content-Length");
+      if (headRequest || code == 204 || code == 304) {
+         complete();
+      } else if (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked")) {
+         state = State.CHUNK_SIZE;
+      } else if (contentLength != null) {
+         try {
+            remaining = Long.parseLong(contentLength.trim());
+         } catch (NumberFormatException e) {
+            throw new IOException("Malformed Content-Length: " + contentLength);
+         }
+         if (remaining < 0) {
+            throw new IOException("Malformed Content-Length: " + contentLength);
+         }
+         if (remaining == 0) {
+            complete();
+         } else {
+            state = State.FIXED;
+         }
+      } else {
+         keepAlive = false;
+         state = State.UNTIL_CLOSE;
+      }
+   }
+
+   private void parseChunkSize() throws IOException {
+      String sizeLine = takeLine();
+      int semi = sizeLine.indexOf(';');
+      if (semi >= 0) {
+         sizeLine = sizeLine.substring(0, semi);
+      }
+      try {
+         remaining = Long.parseLong(sizeLine.trim(), 16);
+      } catch (NumberFormatException e) {
+         throw new IOException("Malformed chunk size: " + sizeLine);
+      }
+      if (remaining < 0) {
+         throw new IOException("Malformed chunk size: " + sizeLine);
+      }
+      if (remaining == 0) {
+         state = State.TRAILERS;
+      } else {
+         state = State.CHUNK_DATA;
+      }
+   }
+
+   private void complete() {
+      state = State.DONE;
+      listener.onComplete();
+   }
+
+   private String headerValue(String name) {
+      for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+         if (entry.getKey().equalsIgnoreCase(name)) {
+            List<String> values = entry.getValue();
+            return values.get(values.size() - 1);
+         }
+      }
+      return null;
+   }
+}
@@ -28,26 +28,22 @@
 
 package com.ultraspatial.httpsender;
 
+import java.io.IOException;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
-import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 import java.util.function.Consumer;
-import java.util.logging.Logger;
-
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocketFactory;
 
 /**
  * A single configurable HTTP Request of any type. Follows the Builder pattern to allow chaining
@@ -57,18 +53,24 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public abstract class IndividualRequest<T extends IndividualRequest<?>> implements Request {
 
-   private static Logger log = Logger.getLogger(IndividualRequest.class.getName());
-   private static final HttpURLConnectionFactory INTERNAL_FACTORY = new InternalConnectionFactory();
+   static final int DEFAULT_CHUNK_SIZE = 8192;
+
    protected URL url;
    boolean trustAll = false;
    Proxy proxy;
    boolean followRedirects = true;
    int timeout = 30000;
+   int readTimeout;
+   long exchangeTimeout;
+   int staleWhileRevalidate = -1;
+   int staleIfError = -1;
    ClientCerts clientCerts;
    Map<String, HeaderValues> headers = new HashMap<>();
    Map<String, List<String>> queryParams = new HashMap<>();
    Map<String, String> placeholders = new HashMap<>();
-   private HttpURLConnectionFactory connectionFactory = INTERNAL_FACTORY;
+   ConnectionPool connectionPool = ConnectionPool.defaultPool();
+   Transport transport;
+   private volatile boolean frozen;
 
    /**
     * Create a request
@@ -85,7 +87,8 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
    protected abstract T me();
    
    /**
-    * Copy constructor. Construct a new instance identical to the one supplied
+    * Copy constructor. Construct a new instance identical to the one supplied. The copy is never
+    * frozen, even if the source is.
     * @param source the request to copy
     */
    IndividualRequest(T source) {
@@ -93,11 +96,72 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
       this.trustAll = source.trustAll;
       this.proxy = source.proxy;
       this.followRedirects = source.followRedirects;
-      this.headers = new HashMap<>(source.headers);
-      this.queryParams = new HashMap<>(source.queryParams);
+      for (Map.Entry<String, HeaderValues> entry : source.headers.entrySet()) {
+         HeaderValues hv = new HeaderValues(entry.getValue().getName());
+         for (String value : entry.getValue().getValues()) {
+            hv.add(value);
+         }
+         this.headers.put(entry.getKey(), hv);
+      }
+      for (Map.Entry<String, List<String>> entry : source.queryParams.entrySet()) {
+         this.queryParams.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+      }
       this.placeholders = new HashMap<>(source.placeholders);
       this.timeout = source.timeout;
+      this.readTimeout = source.readTimeout;
+      this.exchangeTimeout = source.exchangeTimeout;
+      this.staleWhileRevalidate = source.staleWhileRevalidate;
+      this.staleIfError = source.staleIfError;
       this.clientCerts = source.clientCerts;
+      this.connectionPool = source.connectionPool;
+      this.transport = source.transport;
+   }
+
+   /**
+    * Make this request immutable. Once frozen, every configuration method throws 
+    * IllegalStateException, and the request can be shared and executed by any number of threads 
+    * at once without copying. A Response to a frozen request refers to it directly rather than to a
+    * copy of it. Use {@link #copy()} to obtain a modifiable request from a frozen one.
+    * <p>
+    * The request must be frozen before it is handed to other threads. Freezing does not make 
+    * a request body that can only be read once repeatable.
+    * @return this (Builder pattern)
+    */
+   public T freeze() {
+      if (!frozen) {
+         Map<String, HeaderValues> frozenHeaders = new HashMap<>();
+         for (Map.Entry<String, HeaderValues> entry : headers.entrySet()) {
+            HeaderValues hv = entry.getValue();
+            frozenHeaders.put(entry.getKey(), 
+                  new HeaderValues(hv.getName(), Collections.unmodifiableList(new ArrayList<>(hv.getValues()))));
+         }
+         Map<String, List<String>> frozenParams = new HashMap<>();
+         for (Map.Entry<String, List<String>> entry : queryParams.entrySet()) {
+            frozenParams.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+         }
+         headers = Collections.unmodifiableMap(frozenHeaders);
+         queryParams = Collections.unmodifiableMap(frozenParams);
+         placeholders = Collections.unmodifiableMap(new HashMap<>(placeholders));
+         frozen = true;
+      }
+      return me();
+   }
+
+   /**
+    * @return whether this request has been frozen
+    * @see #freeze()
+    */
+   public boolean isFrozen() {
+      return frozen;
+   }
+
+   /**
+    * @throws IllegalStateException if this request has been frozen
+    */
+   void checkNotFrozen() {
+      if (frozen) {
+         throw new IllegalStateException("Request is frozen - use copy() to obtain a modifiable request");
+      }
    }
 
    /**
@@ -114,6 +178,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T header(String name, String... values) {
+      checkNotFrozen();
       String lookup = name.toLowerCase();
       HeaderValues hv = headers.get(lookup);
       if (hv == null) {
@@ -142,6 +207,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T placeholder(String name, String value) {
+      checkNotFrozen();
       if (name.contains("{") || name.contains("}") || value.contains("{") || value.contains("}")) {
          throw new IllegalArgumentException("Placholders may not contain curly brace {} characters");
       }
@@ -169,6 +235,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T clearPlaceholders() {
+      checkNotFrozen();
       placeholders.clear();
       return me();
    }
@@ -182,6 +249,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T proxy(Proxy proxy, String user, String password) {
+      checkNotFrozen();
       this.proxy = proxy;
       Authenticator authenticator = new Authenticator() {
          public PasswordAuthentication getPasswordAuthentication() {
@@ -198,6 +266,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T proxy(Proxy proxy) {
+      checkNotFrozen();
       this.proxy = proxy;
       return me();
    }
@@ -215,6 +284,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T trustAll(boolean trust) {
+      checkNotFrozen();
       trustAll = trust;
       return me();
    }
@@ -232,6 +302,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T followRedirects(boolean follow) {
+      checkNotFrozen();
       this.followRedirects = follow;
       return me();
    }
@@ -251,6 +322,7 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T queryParam(String name, String ... values) {
+      checkNotFrozen();
       List<String> list = queryParams.get(name);
       if (list == null) {
          list = new ArrayList<>();
@@ -274,17 +346,19 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T clearQueryParams() {
+      checkNotFrozen();
       queryParams.clear();
       return me();
    }
    
    /**
-    * Set the timeout in milliseconds to use when attempting to connect to a server
-    * The default value is 30000. 
+    * Set the timeout in milliseconds to use when attempting to connect to a server. If it passes, the
+    * request fails with a {@link ConnectTimeoutException}. The default value is 30000. 
     * @param timeout the timeout in milliseconds
     * @return this (Builder pattern)
     */
    public T timeout(int timeout) {
+      checkNotFrozen();
       this.timeout = timeout;
       return me();
    }
@@ -296,6 +370,107 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
       return timeout;
    }
 
+   /**
+    * Set the read timeout in milliseconds: how long the server may send nothing, once the request has been
+    * sent, before the exchange is abandoned. It applies while waiting for the response headers and to each
+    * read of the body, so a server that stalls part way through a response cannot hold the reading thread
+    * indefinitely. If it passes, the request (or the read) fails with a {@link ReadTimeoutException}. The
+    * default is 0, for no read timeout.
+    * @param timeout the timeout in milliseconds, or 0 for none
+    * @return this (Builder pattern)
+    */
+   public T readTimeout(int timeout) {
+      checkNotFrozen();
+      if (timeout < 0) {
+         throw new IllegalArgumentException("Read timeout may not be negative");
+      }
+      this.readTimeout = timeout;
+      return me();
+   }
+
+   /**
+    * @return the read timeout set for this request, or 0 if there is none
+    */
+   public int getReadTimeout() {
+      return readTimeout;
+   }
+
+   /**
+    * Set the exchange timeout in milliseconds: the longest a single attempt at the request may take, from 
+    * connecting to the closing of the response body. A server that trickles its response a byte at a time
+    * never trips the read timeout, but it does trip this one. When it passes, the connection is aborted, even
+    * part way through the body, and the request (or the read) fails with an {@link ExchangeTimeoutException}.
+    * It is enforced by the same timer as a {@link Deadline}, and like one, it is shortened to fit any Deadline
+    * the request is executed under. The default is 0, for no exchange timeout.
+    * @param timeout the timeout in milliseconds, or 0 for none
+    * @return this (Builder pattern)
+    */
+   public T exchangeTimeout(long timeout) {
+      checkNotFrozen();
+      if (timeout < 0) {
+         throw new IllegalArgumentException("Exchange timeout may not be negative");
+      }
+      this.exchangeTimeout = timeout;
+      return me();
+   }
+
+   /**
+    * @return the exchange timeout set for this request, or 0 if there is none
+    */
+   public long getExchangeTimeout() {
+      return exchangeTimeout;
+   }
+
+   /**
+    * Set how long, in seconds, after a cached response becomes stale a {@link CachingTransport} may still 
+    * answer this request with it, while it refreshes the response in the background. This overrides the 
+    * stale-while-revalidate directive (RFC 5861) of the cached response, and has no effect on requests that 
+    * are not sent through a CachingTransport. 
+    * @param seconds the window in seconds, or 0 to always wait for a stale response to be refreshed
+    * @return this (Builder pattern)
+    */
+   public T staleWhileRevalidate(int seconds) {
+      checkNotFrozen();
+      if (seconds < 0) {
+         throw new IllegalArgumentException("Stale-while-revalidate may not be negative");
+      }
+      this.staleWhileRevalidate = seconds;
+      return me();
+   }
+
+   /**
+    * @return the stale-while-revalidate window in seconds set for this request, or -1 to use that of the 
+    *    cached response
+    */
+   public int getStaleWhileRevalidate() {
+      return staleWhileRevalidate;
+   }
+
+   /**
+    * Set how long, in seconds, after a cached response becomes stale a {@link CachingTransport} may still 
+    * answer this request with it if the server cannot be reached or answers with a 500, 502, 503 or 504 
+    * error. This overrides the stale-if-error directive (RFC 5861) of the request and the cached response, 
+    * and has no effect on requests that are not sent through a CachingTransport. 
+    * @param seconds the window in seconds, or 0 to never answer with a stale response on error
+    * @return this (Builder pattern)
+    */
+   public T staleIfError(int seconds) {
+      checkNotFrozen();
+      if (seconds < 0) {
+         throw new IllegalArgumentException("Stale-if-error may not be negative");
+      }
+      this.staleIfError = seconds;
+      return me();
+   }
+
+   /**
+    * @return the stale-if-error window in seconds set for this request, or -1 to use that of the request's 
+    *    or the cached response's Cache-Control header
+    */
+   public int getStaleIfError() {
+      return staleIfError;
+   }
+
    /**
     * For an Https request, specifies a set of one or more client-side certificates that the
     *  system can use to satisfy a client certificate request by the remote server during a TLS
@@ -304,29 +479,72 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     * @return this (Builder pattern)
     */
    public T useClientCerts(ClientCerts cert) {
+      checkNotFrozen();
       this.clientCerts = cert;
       return me();
    }   
    
+   /**
+    * Set the pool that this request leases its connection from. Connections are returned to the pool
+    * for reuse when the Response is closed. By default, all requests share
+    * {@link ConnectionPool#defaultPool()}. Setting null disables pooling: the connection is then 
+    * disconnected when the Response is closed. Only used by Transports that manage their own 
+    * connections through a ConnectionPool.
+    * @param pool the pool, or null
+    * @return this (Builder pattern)
+    */
+   public T connectionPool(ConnectionPool pool) {
+      checkNotFrozen();
+      this.connectionPool = pool;
+      return me();
+   }
+
+   /**
+    * @return the pool this request leases its connection from (may be null)
+    */
+   public ConnectionPool getConnectionPool() {
+      return connectionPool;
+   }
+
+   /**
+    * Set the Transport used to send this request. If none is set, 
+    * {@link Transports#defaultTransport()} is used.
+    * @param transport the Transport
+    * @return this (Builder pattern)
+    */
+   public T transport(Transport transport) {
+      checkNotFrozen();
+      this.transport = transport;
+      return me();
+   }
+
+   /**
+    * @return the Transport used to send this request
+    */
+   public Transport getTransport() {
+      return transport == null ? Transports.defaultTransport() : transport;
+   }
+
    /**
     * {@inheritDoc}
     */
    @Override
    public Response execute() {
-      long start = System.currentTimeMillis();
-      HttpURLConnection conn = null;
+      return execute(Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute(Deadline deadline) {
+      Deadline scope = scope(deadline);
       try {
-         URL assembledUrl = new URL(assembleUrl());
-         log.fine("Requesting " + assembledUrl.toString());
-         conn = connectionFactory.build(assembledUrl, proxy);
-         preRequestConfig(conn);
-         if (conn instanceof HttpsURLConnection) {
-            preRequestConfigHttps((HttpsURLConnection) conn);
-         }
-         preObtainResponse(conn);
-         return new Response(this, conn, start);
+         return send(getTransport(), prepare(scope));
       } catch (Exception e) {
-         throw new RuntimeException(e);
+         Throwable cause = scope.explain(e);
+         scope.complete();
+         throw new RuntimeException(cause);
       }
    }
    
@@ -343,50 +561,124 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
     */
    @Override
    public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
-      executor.execute(() -> {
-         try {
-            Response response = this.execute();
-            consumer.accept(response);
-         } catch (Throwable thrown) {
+      executeAsync(executor).whenComplete((response, thrown) -> {
+         if (thrown != null) {
             error.accept(thrown);
+         } else {
+            consumer.accept(response);
          }
       });
    }
 
    /**
-    * {@inheritDoc}
+    * {@inheritDoc} Cancelling the returned future aborts the request.
     */
    @Override
-   public CompletableFuture<Response> executeAsync(Executor executor) {
-      CompletableFuture<Response> cf = new CompletableFuture<>();
-      executor.execute(() -> {
-         try {
-            Response response = this.execute();
-            cf.complete(response);
-         } catch (Throwable thrown) {
-            cf.completeExceptionally(thrown);
-         }
-         
-      });
-      return cf;
+   public ResponseFuture executeAsync(Executor executor) {
+      return executeAsync(executor, Deadline.none());
    }
 
    /**
-    * {@inheritDoc}
+    * {@inheritDoc} Cancelling the returned future aborts the request.
     */
    @Override
-   public CompletableFuture<Response> executeAsync() {
+   public ResponseFuture executeAsync(Executor executor, Deadline deadline) {
+      Deadline scope = scope(deadline);
+      ResponseFuture result = new ResponseFuture(scope);
+      try {
+         sendAsync(getTransport(), prepare(scope), executor, result);
+      } catch (Exception e) {
+         scope.complete();
+         result.completeExceptionally(new RuntimeException(e));
+      }
+      return result;
+   }
+
+   /**
+    * {@inheritDoc} Cancelling the returned future aborts the request.
+    */
+   @Override
+   public ResponseFuture executeAsync() {
       return executeAsync(Executors.defaultExecutor());
    }
 
-   private void preRequestConfig(HttpURLConnection conn) throws ProtocolException {
-      conn.setRequestMethod(getMethodName());
-      setHeaderValues(conn);
-      conn.setInstanceFollowRedirects(followRedirects);
-      conn.setConnectTimeout(timeout);
+   /**
+    * @param deadline the Deadline the request is executed under
+    * @return the Deadline for a single exchange: a child of deadline, limited by the exchange timeout if set
+    */
+   Deadline scope(Deadline deadline) {
+      return exchangeTimeout > 0 ? deadline.exchange(exchangeTimeout) : deadline.child(0);
+   }
+
+   /**
+    * Send a prepared request, completing its Deadline when the Response body has been closed.
+    * @param transport the Transport to send it with
+    * @param request the prepared request
+    * @return the Response
+    * @throws Exception if the request failed, or its Deadline had already ended
+    */
+   static Response send(Transport transport, PreparedRequest request) throws Exception {
+      Deadline deadline = request.getDeadline();
+      Throwable failure = deadline.getFailure();
+      if (failure != null) {
+         throw (Exception) failure;
+      }
+      Response response = transport.execute(request);
+      response.runUnder(deadline);
+      return response;
    }
 
-   private void setHeaderValues(HttpURLConnection conn) {
+   /**
+    * Send a prepared request asynchronously, completing its Deadline when the Response body has been closed.
+    * @param transport the Transport to send it with
+    * @param request the prepared request
+    * @param executor the Executor to send it with
+    * @param result the future to complete with the Response, which runs under the request's Deadline
+    */
+   static void sendAsync(Transport transport, PreparedRequest request, Executor executor, ResponseFuture result) {
+      Deadline deadline = request.getDeadline();
+      if (deadline.isCancelled()) {
+         //The result has already failed
+         return;
+      }
+      transport.executeAsync(request, executor).whenComplete((response, thrown) -> {
+         if (thrown != null) {
+            Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+            result.completeExceptionally(deadline.explain(cause));
+            deadline.complete();
+         } else {
+            response.runUnder(deadline);
+            if (!result.complete(response)) {
+               //Cancelled, or the Deadline expired, just as the Response arrived
+               try {
+                  response.close();
+               } catch (IOException e) {
+                  //Ignore
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Take a snapshot of this request, with placeholders substituted, ready to be sent by a Transport.
+    * @return the prepared request
+    * @throws MalformedURLException if the assembled url is not valid
+    */
+   PreparedRequest prepare() throws MalformedURLException {
+      return prepare(Deadline.none());
+   }
+
+   /**
+    * Take a snapshot of this request, with placeholders substituted, ready to be sent by a Transport under a 
+    * Deadline.
+    * @param deadline the Deadline the exchange must complete by
+    * @return the prepared request
+    * @throws MalformedURLException if the assembled url is not valid
+    */
+   PreparedRequest prepare(Deadline deadline) throws MalformedURLException {
+      URL assembledUrl = new URL(assembleUrl());
+      Map<String, String> headerValues = new LinkedHashMap<>();
       for (HeaderValues hv : headers.values()) {
          StringBuilder sb = new StringBuilder();
          boolean comma = false;
@@ -397,24 +689,23 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
             sb.append(item);
             comma = true;
          }
-         conn.setRequestProperty(processPlaceholders(hv.getName()), processPlaceholders(sb.toString()));
+         headerValues.put(processPlaceholders(hv.getName()), processPlaceholders(sb.toString()));
       }
+      return new PreparedRequest(this, getMethodName(), assembledUrl, headerValues, getRequestBody(), deadline);
    }
-   
-   private void preRequestConfigHttps(HttpsURLConnection conn) {
-      if (trustAll) {
-         conn.setHostnameVerifier(new HostnameVerifier() {
-            public boolean verify(String name, SSLSession session) {
-               return true;
-            }
-         });
-      }
-      if (clientCerts != null) {
-         SSLSocketFactory factory = clientCerts.getSocketFactory();
-         if (factory != null) {
-            conn.setSSLSocketFactory(factory);
-         }
-      }
+
+   /**
+    * @return the provider of the body to send with this request, or null if it has none
+    */
+   protected InputStreamProvider getRequestBody() {
+      return null;
+   }
+
+   /**
+    * @return the size of the chunks a body of unknown length is sent in
+    */
+   protected int getChunkSize() {
+      return DEFAULT_CHUNK_SIZE;
    }
 
    private String assembleUrl() {
@@ -484,6 +775,12 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
       return pathBuilder.toString();
    }
 
+   /**
+    * Hook called by the HttpURLConnection Transport once the connection has been configured and 
+    * before the request body is written.
+    * @param conn the connection
+    * @throws Exception if the request cannot proceed
+    */
    protected void preObtainResponse(HttpURLConnection conn) throws Exception {
    }
 
@@ -500,27 +797,16 @@ public abstract class IndividualRequest<T extends IndividualRequest<?>> implemen
    }
 
    /**
-    * @return an independent copy of this request
+    * @return an independent, modifiable copy of this request
     */
    public abstract IndividualRequest<?> copy();
    
    //For testing purposes - package private
    void setConnectionFactory(HttpURLConnectionFactory factory) {
+      checkNotFrozen();
       if (factory == null) {
          throw new IllegalArgumentException("Factory may not be null");
       }
-      connectionFactory = factory;
-   }
-   
-   private static class InternalConnectionFactory implements HttpURLConnectionFactory {
-
-      @Override
-      public HttpURLConnection build(URL url, java.net.Proxy proxy) throws Exception {
-         if (proxy != null) {
-            return (HttpURLConnection) url.openConnection(proxy);
-         } else {
-            return (HttpURLConnection) url.openConnection();
-         }
-      }
+      transport = new UrlConnectionTransport(factory);
    }
 }
@@ -39,4 +39,12 @@ public interface InputStreamProvider {
     * @return an InputStream
     */
    InputStream getInputStream();
+
+   /**
+    * @return the number of bytes the InputStream will return, or -1 if not known in advance. When the
+    * length is known the body is streamed with a Content-Length header; otherwise it is sent in chunks.
+    */
+   default long getContentLength() {
+      return -1;
+   }
 }
@@ -0,0 +1,85 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+/**
+ * Pool handle for a connection made through HttpURLConnection. The socket itself is owned by
+ * the JDK's keep-alive cache, which hands it to the next HttpURLConnection opened on the same
+ * Route as long as the previous response was closed rather than disconnected. This handle 
+ * tracks how long the server is prepared to keep that socket open, so that the pool's view of 
+ * which Routes have a warm connection matches the JDK's.
+ */
+class KeepAliveConnection implements PooledConnection {
+
+   //The JDK's default keep-alive time when the server does not specify one
+   static final long DEFAULT_KEEP_ALIVE = 5000;
+
+   private final Route route;
+   private volatile long expiry = Long.MAX_VALUE;
+
+   KeepAliveConnection(Route route) {
+      this.route = route;
+   }
+
+   /**
+    * Record that the connection has been returned after a response carrying the specified 
+    * Keep-Alive header value (may be null).
+    * @param keepAliveHeader the value of the server's Keep-Alive header
+    */
+   void returned(String keepAliveHeader) {
+      long keepAlive = DEFAULT_KEEP_ALIVE;
+      if (keepAliveHeader != null) {
+         for (String item : keepAliveHeader.split(",")) {
+            String[] keyAndValue = item.trim().split("=");
+            if (keyAndValue.length == 2 && keyAndValue[0].trim().equalsIgnoreCase("timeout")) {
+               try {
+                  keepAlive = Long.parseLong(keyAndValue[1].trim()) * 1000;
+               } catch (NumberFormatException e) {
+               }
+            }
+         }
+      }
+      expiry = System.currentTimeMillis() + keepAlive;
+   }
+
+   @Override
+   public Route getRoute() {
+      return route;
+   }
+
+   @Override
+   public boolean isStale() {
+      return System.currentTimeMillis() >= expiry;
+   }
+
+   @Override
+   public void close() {
+      //The socket belongs to the JDK keep-alive cache, which closes it on expiry
+   }
+}
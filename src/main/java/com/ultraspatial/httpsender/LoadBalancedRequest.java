@@ -0,0 +1,548 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+/**
+ * A LoadBalancedRequest sends a request to one of a set of equivalent endpoints, choosing a different one
+ * for each execution. It is built from a template request and the base urls of the endpoints: each endpoint 
+ * is sent a copy of the template with the scheme, host and port of its base url, and the path of its base url
+ * (if any) in front of the template's path. 
+ * <pre>
+ * LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/items/42"), 
+ *       "http://10.0.0.1:8080", "http://10.0.0.2:8080", "http://10.0.0.3:8080");
+ * Response response = request.execute();
+ * </pre>
+ * Each endpoint is chosen by the "power of two choices": two endpoints are picked at random, and the 
+ * request is sent to the one with the lower cost. By default the cost is the peak-EWMA latency of the 
+ * endpoint - an exponentially weighted moving average of its recent latencies that jumps up at once to a 
+ * slower one - multiplied by the number of requests outstanding to it plus one. It can be the number of 
+ * outstanding requests alone instead. Comparing two random endpoints, rather than all of them, is nearly 
+ * as good at avoiding slow and busy endpoints, and does not send every request to the same one while its
+ * statistics catch up.
+ * 
+ * A failed attempt can be retried, as determined by a {@link RetryStrategy}: by default it is not. A retry 
+ * is never sent to the endpoint whose attempt has just failed, if there is another. Only a thrown 
+ * exception is a failure, unless retryOnErrorResponse is set, when so is a Response with a status of 400 or 
+ * more.
+ * 
+ * The outcome of each attempt is also reported to an {@link OutlierDetector} - by default, the one shared by
+ * all requests in the JVM - and endpoints it has ejected are left out of the choice, unless there is no other.
+ * 
+ * The statistics of the endpoints are kept in lock-free counters, across executions. A LoadBalancedRequest 
+ * is intended to be executed many times, and may be executed by many threads at once, once configured.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class LoadBalancedRequest implements Request {
+
+   private static Logger log = Logger.getLogger(LoadBalancedRequest.class.getName());
+
+   /**
+    * The default time over which the weight of a latency in the moving average decays, in milliseconds
+    */
+   public static final long DEFAULT_DECAY_TIME = 10000;
+
+   //The cost of an endpoint with requests outstanding but no latency measured yet: high, so that a new
+   //endpoint is not sent a burst of requests before anything is known about it
+   private static final double PENALTY = 1e12;
+
+   /**
+    * How to compare two endpoints
+    */
+   public enum Policy {
+      /**
+       * Prefer the endpoint with fewer requests outstanding
+       */
+      LEAST_OUTSTANDING,
+      /**
+       * Prefer the endpoint with the lower peak-EWMA latency multiplied by its requests outstanding plus one
+       */
+      PEAK_EWMA
+   }
+
+   private final List<Endpoint> endpoints;
+   private final List<String> keys;
+   private final String method;
+   private Policy policy = Policy.PEAK_EWMA;
+   private long decayTime = DEFAULT_DECAY_TIME;
+   private RetryStrategy retryStrategy = RetryStrategy.maxTotalTries(1);
+   private boolean retryOnErrorResponse;
+   private OutlierDetector outlierDetector = OutlierDetector.shared();
+
+   /**
+    * Create a load balanced request
+    * @param template the request to send, whose scheme, host and port are replaced by those of each endpoint.
+    *    It is copied, so later changes to it have no effect.
+    * @param baseUrls the base urls of the endpoints, at least one
+    */
+   public LoadBalancedRequest(IndividualRequest<?> template, String... baseUrls) {
+      if (baseUrls.length == 0) {
+         throw new IllegalArgumentException("At least one endpoint is required");
+      }
+      List<Endpoint> list = new ArrayList<>();
+      List<String> keyList = new ArrayList<>();
+      for (String baseUrl : baseUrls) {
+         Endpoint endpoint = new Endpoint(baseUrl, rebase(template, baseUrl));
+         list.add(endpoint);
+         keyList.add(endpoint.key);
+      }
+      endpoints = Collections.unmodifiableList(list);
+      keys = Collections.unmodifiableList(keyList);
+      method = template.getMethodName();
+   }
+
+   private static IndividualRequest<?> rebase(IndividualRequest<?> template, String baseUrl) {
+      try {
+         URL base = new URL(baseUrl);
+         String path = base.getPath().endsWith("/") ? base.getPath().substring(0, base.getPath().length() - 1) : base.getPath();
+         IndividualRequest<?> copy = template.copy();
+         copy.url = new URL(base.getProtocol(), base.getHost(), base.getPort(), path + template.url.getFile());
+         return copy.freeze();
+      } catch (MalformedURLException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Set how to compare the two endpoints picked for each execution. The default is PEAK_EWMA.
+    * @param policy the policy
+    * @return this (Builder pattern)
+    */
+   public LoadBalancedRequest policy(Policy policy) {
+      if (policy == null) {
+         throw new IllegalArgumentException("Policy may not be null");
+      }
+      this.policy = policy;
+      return this;
+   }
+
+   /**
+    * Set the time over which the weight of a latency in the moving average decays to 1/e: a longer time 
+    * smooths out more noise, a shorter one reacts faster. The latency of an endpoint that is not being used 
+    * decays towards 0 over the same time, so that it is tried again. The default is 10 seconds.
+    * @param ms the decay time in milliseconds
+    * @return this (Builder pattern)
+    */
+   public LoadBalancedRequest decayTime(long ms) {
+      if (ms < 1) {
+         throw new IllegalArgumentException("Decay time must be at least 1 ms");
+      }
+      decayTime = ms;
+      return this;
+   }
+
+   /**
+    * Set whether and how often a failed attempt is retried, on another endpoint. The default is no retries.
+    * @param retryStrategy determines whether to retry
+    * @return this (Builder pattern)
+    */
+   public LoadBalancedRequest retryStrategy(RetryStrategy retryStrategy) {
+      if (retryStrategy == null) {
+         throw new IllegalArgumentException("RetryStrategy may not be null");
+      }
+      this.retryStrategy = retryStrategy;
+      return this;
+   }
+
+   /**
+    * @param retryOnErrorResponse if set to true, an error Response (one with a status of 400 or more) is 
+    *    treated as a failure for the purposes of retrying. If false, the default, only a thrown exception is.
+    * @return this (Builder pattern)
+    */
+   public LoadBalancedRequest retryOnErrorResponse(boolean retryOnErrorResponse) {
+      this.retryOnErrorResponse = retryOnErrorResponse;
+      return this;
+   }
+
+   /**
+    * Set the OutlierDetector that the outcome of each attempt is reported to, and that decides which 
+    * endpoints are ejected. The default is {@link OutlierDetector#shared()}.
+    * @param outlierDetector the detector, or null to choose from all the endpoints regardless of their health
+    * @return this (Builder pattern)
+    */
+   public LoadBalancedRequest outlierDetector(OutlierDetector outlierDetector) {
+      this.outlierDetector = outlierDetector;
+      return this;
+   }
+
+   /**
+    * @return the endpoints, in the order their base urls were given
+    */
+   public List<Endpoint> getEndpoints() {
+      return endpoints;
+   }
+
+   //Power of two choices, among the endpoints that are not ejected, avoiding the one that has just failed if 
+   //there is another
+   Endpoint choose(Endpoint avoid) {
+      List<Endpoint> candidates = endpoints;
+      OutlierDetector detector = outlierDetector;
+      if (detector != null) {
+         List<Endpoint> healthy = new ArrayList<>(endpoints.size());
+         for (Endpoint endpoint : endpoints) {
+            if (!detector.isEjected(endpoint.key)) {
+               healthy.add(endpoint);
+            }
+         }
+         if (healthy.size() > 1 || (healthy.size() == 1 && healthy.get(0) != avoid)) {
+            candidates = healthy;
+         }
+      }
+      int n = candidates.size();
+      if (n == 1) {
+         return candidates.get(0);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int a = random.nextInt(n);
+      int b = random.nextInt(n - 1);
+      if (b >= a) {
+         b++;
+      }
+      Endpoint first = candidates.get(a);
+      Endpoint second = candidates.get(b);
+      if (first == avoid) {
+         return second;
+      }
+      if (second == avoid) {
+         return first;
+      }
+      long now = System.nanoTime();
+      return first.cost(now) <= second.cost(now) ? first : second;
+   }
+
+   private boolean isFailure(Response response) {
+      return retryOnErrorResponse && response.getResponseCode() >= 400;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute() {
+      return execute(Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute(Deadline deadline) {
+      Deadline scope = deadline.child(0);
+      try {
+         Endpoint avoid = null;
+         for (int attemptNo = 1; ; attemptNo++) {
+            Throwable ended = scope.getFailure();
+            if (ended != null) {
+               throw new RuntimeException(ended);
+            }
+            Endpoint endpoint = choose(avoid);
+            long start = endpoint.begin();
+            Response response;
+            try {
+               response = endpoint.request.execute(scope);
+            } catch (RuntimeException e) {
+               endpoint.failed(start, e, scope);
+               if (scope.isCancelled() || !retryStrategy.shouldRetry(attemptNo, e)) {
+                  throw e;
+               }
+               log.fine(endpoint + ": Attempt failed with " + e + " - retrying on another endpoint");
+               avoid = endpoint;
+               continue;
+            }
+            endpoint.responded(start, response, isFailure(response));
+            if (!isFailure(response) || !retryStrategy.shouldRetry(attemptNo)) {
+               return response;
+            }
+            log.fine(endpoint + ": Response was an error (status " + response.getResponseCode() + ") - retrying on another endpoint");
+            closeQuietly(response);
+            avoid = endpoint;
+         }
+      } finally {
+         scope.complete();
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+      executeAsync(consumer, error, Executors.defaultExecutor());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+      executeAsync(executor).whenComplete((response, thrown) -> {
+         if (thrown != null) {
+            error.accept(thrown);
+         } else {
+            consumer.accept(response);
+         }
+      });
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync() {
+      return executeAsync(Executors.defaultExecutor());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync(Executor executor) {
+      return executeAsync(executor, Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync(Executor executor, Deadline deadline) {
+      Deadline scope = deadline.child(0);
+      ResponseFuture result = new ResponseFuture(scope);
+      result.whenComplete((response, thrown) -> scope.complete());
+      attempt(executor, scope, result, null, 1);
+      return result;
+   }
+
+   private void attempt(Executor executor, Deadline scope, ResponseFuture result, Endpoint avoid, int attemptNo) {
+      Throwable ended = scope.getFailure();
+      if (ended != null) {
+         result.completeExceptionally(ended);
+         return;
+      }
+      Endpoint endpoint = choose(avoid);
+      long start = endpoint.begin();
+      CompletableFuture<Response> cf;
+      try {
+         cf = endpoint.request.executeAsync(executor, scope);
+      } catch (RuntimeException e) {
+         cf = new CompletableFuture<>();
+         cf.completeExceptionally(e);
+      }
+      cf.whenComplete((response, thrown) -> {
+         Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+         boolean retry;
+         if (cause != null) {
+            endpoint.failed(start, cause, scope);
+            retry = !scope.isCancelled() && retryStrategy.shouldRetry(attemptNo, cause);
+         } else {
+            endpoint.responded(start, response, isFailure(response));
+            retry = isFailure(response) && retryStrategy.shouldRetry(attemptNo);
+         }
+         if (retry) {
+            log.fine(endpoint + ": Attempt failed - retrying on another endpoint");
+            closeQuietly(response);
+            attempt(executor, scope, result, endpoint, attemptNo + 1);
+         } else if (cause != null) {
+            result.completeExceptionally(cause);
+         } else if (!result.complete(response)) {
+            closeQuietly(response);
+         }
+      });
+   }
+
+   private static void closeQuietly(Response response) {
+      if (response != null) {
+         try {
+            response.close();
+         } catch (IOException e) {
+            //Ignore
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return method + " " + endpoints.get(0).request.url.getFile() + " on " + endpoints.size() + " endpoints";
+   }
+
+   /**
+    * One of the endpoints of a LoadBalancedRequest, and its statistics
+    */
+   public final class Endpoint {
+
+      private final String baseUrl;
+      private final IndividualRequest<?> request;
+      private final String key;
+      private final AtomicInteger outstanding = new AtomicInteger();
+      private final LongAdder requests = new LongAdder();
+      private final LongAdder failures = new LongAdder();
+      private final AtomicReference<Ewma> latency = new AtomicReference<>();
+
+      private Endpoint(String baseUrl, IndividualRequest<?> request) {
+         this.baseUrl = baseUrl;
+         this.request = request;
+         this.key = OutlierDetector.endpointOf(request.url);
+      }
+
+      /**
+       * @return the base url
+       */
+      public String getBaseUrl() {
+         return baseUrl;
+      }
+
+      /**
+       * @return the number of requests sent to the endpoint that have not yet been answered
+       */
+      public int getOutstanding() {
+         return outstanding.get();
+      }
+
+      /**
+       * @return the number of requests sent to the endpoint
+       */
+      public long getRequests() {
+         return requests.sum();
+      }
+
+      /**
+       * @return the number of requests sent to the endpoint that failed
+       */
+      public long getFailures() {
+         return failures.sum();
+      }
+
+      /**
+       * @return the peak-EWMA latency of the endpoint in milliseconds, or 0 if none has been measured
+       */
+      public double getLatency() {
+         return latency(System.nanoTime()) / 1e6;
+      }
+
+      long begin() {
+         requests.increment();
+         outstanding.incrementAndGet();
+         return System.nanoTime();
+      }
+
+      void failed(long start, Throwable failure, Deadline scope) {
+         outstanding.decrementAndGet();
+         failures.increment();
+         OutlierDetector detector = outlierDetector;
+         if (detector != null) {
+            detector.recordFailure(key, failure, scope, System.nanoTime() - start);
+         }
+      }
+
+      void responded(long start, Response response, boolean failure) {
+         long now = System.nanoTime();
+         outstanding.decrementAndGet();
+         if (failure) {
+            failures.increment();
+         }
+         observe(now - start, now);
+         OutlierDetector detector = outlierDetector;
+         if (detector != null) {
+            detector.record(key, response, now - start);
+            detector.compareLatencies(keys);
+         }
+      }
+
+      private void observe(long rtt, long now) {
+         Ewma current;
+         Ewma next;
+         do {
+            current = latency.get();
+            double value;
+            if (current == null || rtt > current.value) {
+               //Peak sensitive: a slower response is taken at once
+               value = rtt;
+            } else {
+               double weight = Math.exp(-(now - current.stamp) / (decayTime * 1e6));
+               value = current.value * weight + rtt * (1 - weight);
+            }
+            next = new Ewma(value, Math.max(now, current == null ? now : current.stamp));
+         } while (!latency.compareAndSet(current, next));
+      }
+
+      //The moving average in nanoseconds, decayed towards 0 for the time since it was last updated
+      private double latency(long now) {
+         Ewma current = latency.get();
+         if (current == null) {
+            return 0;
+         }
+         return current.value * Math.exp(-Math.max(0, now - current.stamp) / (decayTime * 1e6));
+      }
+
+      double cost(long now) {
+         int pending = outstanding.get();
+         if (policy == Policy.LEAST_OUTSTANDING) {
+            return pending;
+         }
+         if (latency.get() == null) {
+            return pending == 0 ? 0 : PENALTY + pending;
+         }
+         return latency(now) * (pending + 1);
+      }
+
+      @Override
+      public String toString() {
+         return baseUrl;
+      }
+   }
+
+   //An immutable moving average and when it was last updated, so that both can be replaced atomically
+   private static final class Ewma {
+
+      private final double value;
+      private final long stamp;
+
+      Ewma(double value, long stamp) {
+         this.value = value;
+         this.stamp = stamp;
+      }
+   }
+}
@@ -0,0 +1,264 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@link HttpCache} that holds responses on the heap, up to a budget in bytes, evicting the least 
+ * recently used entries to make room for new ones. The size of an entry is the size of its body plus an
+ * estimate of the size of its headers.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class MemoryHttpCache implements HttpCache {
+
+   /**
+    * The default budget (32MB)
+    */
+   public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+   private final long maxSize;
+   private volatile long maxEntrySize;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final LinkedHashMap<String, Stored> entries = new LinkedHashMap<>(16, 0.75f, true);
+   private final LongAdder evictions = new LongAdder();
+   private long size;
+
+   /**
+    * Create a cache with a budget of 32MB
+    */
+   public MemoryHttpCache() {
+      this(DEFAULT_MAX_SIZE);
+   }
+
+   /**
+    * Create a cache with the specified budget. No single entry may take more than an eighth of it, unless
+    * {@link #maxEntrySize(long)} says otherwise.
+    * @param maxSize the budget in bytes
+    */
+   public MemoryHttpCache(long maxSize) {
+      if (maxSize < 1) {
+         throw new IllegalArgumentException("Cache size must be at least 1");
+      }
+      this.maxSize = maxSize;
+      this.maxEntrySize = Math.max(1, maxSize / 8);
+   }
+
+   /**
+    * Set the size of the largest body that will be stored.
+    * @param max the size in bytes, which may not be larger than the budget
+    * @return this (Builder pattern)
+    */
+   public MemoryHttpCache maxEntrySize(long max) {
+      if (max < 0 || max > maxSize) {
+         throw new IllegalArgumentException("Entry size must be between 0 and the cache size");
+      }
+      maxEntrySize = max;
+      return this;
+   }
+
+   @Override
+   public long getMaxEntrySize() {
+      return maxEntrySize;
+   }
+
+   /**
+    * @return the budget in bytes
+    */
+   public long getMaxSize() {
+      return maxSize;
+   }
+
+   /**
+    * @return the total size in bytes of the entries held
+    */
+   public long getSize() {
+      lock.lock();
+      try {
+         return size;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of entries held
+    */
+   public int getEntryCount() {
+      lock.lock();
+      try {
+         return entries.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of entries evicted to make room for others
+    */
+   public long getEvictions() {
+      return evictions.sum();
+   }
+
+   @Override
+   public CacheEntry get(String key) {
+      lock.lock();
+      try {
+         Stored stored = entries.get(key);
+         return stored == null ? null : stored.entry;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public CacheEntry put(String key, CacheEntry entry) {
+      InputStreamProvider body = entry.getBody();
+      if (!(body instanceof Body)) {
+         //Read outside the lock
+         byte[] bytes = read(body, maxEntrySize);
+         if (bytes == null) {
+            remove(key);
+            return null;
+         }
+         entry = entry.withBody(new Body(bytes));
+      }
+      Stored stored = new Stored(entry, weigh(key, entry));
+      lock.lock();
+      try {
+         Stored previous = entries.put(key, stored);
+         if (previous != null) {
+            size -= previous.size;
+         }
+         size += stored.size;
+         Iterator<Stored> eldest = entries.values().iterator();
+         while (size > maxSize && eldest.hasNext()) {
+            Stored victim = eldest.next();
+            if (victim == stored) {
+               continue;
+            }
+            eldest.remove();
+            size -= victim.size;
+            evictions.increment();
+         }
+      } finally {
+         lock.unlock();
+      }
+      return entry;
+   }
+
+   @Override
+   public void remove(String key) {
+      lock.lock();
+      try {
+         Stored previous = entries.remove(key);
+         if (previous != null) {
+            size -= previous.size;
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Remove every entry.
+    */
+   public void clear() {
+      lock.lock();
+      try {
+         entries.clear();
+         size = 0;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   //Null if the body is larger than max
+   private static byte[] read(InputStreamProvider body, long max) {
+      long length = body.getContentLength();
+      if (length > max) {
+         return null;
+      }
+      try (InputStream is = body.getInputStream()) {
+         byte[] bytes = is.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, max + 1));
+         return bytes.length > max ? null : bytes;
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   private static long weigh(String key, CacheEntry entry) {
+      long weight = key.length() + ((Body) entry.getBody()).bytes.length;
+      for (Map.Entry<String, List<String>> header : entry.getHeaderFields().entrySet()) {
+         weight += header.getKey() == null ? 0 : header.getKey().length();
+         for (String value : header.getValue()) {
+            weight += value.length() + 4;
+         }
+      }
+      return weight;
+   }
+
+   private static final class Stored {
+      private final CacheEntry entry;
+      private final long size;
+
+      Stored(CacheEntry entry, long size) {
+         this.entry = entry;
+         this.size = size;
+      }
+   }
+
+   //A body held by this cache, which need not be copied again when the entry is updated
+   private static final class Body implements InputStreamProvider {
+      private final byte[] bytes;
+
+      Body(byte[] bytes) {
+         this.bytes = bytes;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return new ByteArrayInputStream(bytes);
+      }
+
+      @Override
+      public long getContentLength() {
+         return bytes.length;
+      }
+   }
+}
@@ -0,0 +1,209 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The body of a response received by the NIO Transport. The event loop appends data as it
+ * arrives and the caller reads it, blocking if none is available yet. When more than a high
+ * water mark of unread data is queued, the loop stops reading from the socket until the caller
+ * has caught up.
+ */
+class NioBodyInputStream extends InputStream {
+
+   static final int HIGH_WATER = 262144;
+   private static final int LOW_WATER = 65536;
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition available = lock.newCondition();
+   private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+   private final NioExchange exchange;
+   private int position;
+   private long queued;
+   private boolean paused;
+   private boolean complete;
+   private boolean closed;
+   private IOException failure;
+
+   NioBodyInputStream(NioExchange exchange) {
+      this.exchange = exchange;
+   }
+
+   /**
+    * Append data. Called on the loop thread.
+    * @param data the data
+    * @return false if the loop should stop reading until the caller has caught up
+    */
+   boolean offer(byte[] data) {
+      lock.lock();
+      try {
+         if (closed) {
+            return true;
+         }
+         if (data.length > 0) {
+            chunks.add(data);
+            queued += data.length;
+            available.signalAll();
+         }
+         if (queued >= HIGH_WATER) {
+            paused = true;
+            return false;
+         }
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Signal that all the data has arrived. Called on the loop thread.
+    */
+   void complete() {
+      lock.lock();
+      try {
+         complete = true;
+         available.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Signal that the response could not be read in full. Called on the loop thread.
+    * @param e the cause
+    */
+   void fail(IOException e) {
+      lock.lock();
+      try {
+         if (!complete) {
+            failure = e;
+            available.signalAll();
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int read() throws IOException {
+      byte[] single = new byte[1];
+      int count = read(single, 0, 1);
+      return count < 0 ? -1 : single[0] & 0xff;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+         return 0;
+      }
+      boolean resume = false;
+      int count = 0;
+      lock.lock();
+      try {
+         while (chunks.isEmpty()) {
+            if (closed) {
+               throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+               if (failure instanceof ReadTimeoutException) {
+                  throw new ReadTimeoutException(failure.getMessage(), failure);
+               }
+               throw new IOException(failure.getMessage(), failure);
+            }
+            if (complete) {
+               return -1;
+            }
+            try {
+               available.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while reading response body", e);
+            }
+         }
+         while (count < len && !chunks.isEmpty()) {
+            byte[] chunk = chunks.peek();
+            int n = Math.min(len - count, chunk.length - position);
+            System.arraycopy(chunk, position, b, off + count, n);
+            count += n;
+            position += n;
+            if (position == chunk.length) {
+               chunks.poll();
+               position = 0;
+            }
+         }
+         queued -= count;
+         if (paused && queued < LOW_WATER) {
+            paused = false;
+            resume = true;
+         }
+      } finally {
+         lock.unlock();
+      }
+      if (resume) {
+         exchange.resumeReading();
+      }
+      return count;
+   }
+
+   @Override
+   public int available() {
+      lock.lock();
+      try {
+         return (int) Math.min(Integer.MAX_VALUE, queued);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public void close() {
+      boolean abort;
+      lock.lock();
+      try {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         abort = !complete && failure == null;
+         chunks.clear();
+         queued = 0;
+      } finally {
+         lock.unlock();
+      }
+      if (abort) {
+         //The rest of the response will never be read, so the connection can't be reused
+         exchange.abort(new IOException("Response body closed before it was fully read"));
+      }
+   }
+}
@@ -0,0 +1,323 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking HTTP/1.1 connection served by an {@link NioEventLoop}. The connection carries
+ * one {@link NioExchange} at a time; between exchanges it sits in a ConnectionPool, still 
+ * registered for reads so that a close by the server is noticed.
+ */
+class NioConnection implements PooledConnection {
+
+   private final NioEventLoop loop;
+   private final Route route;
+   private final InetSocketAddress address;
+   private SocketChannel channel;
+   private SelectionKey key;
+   private NioEventLoop.Timer connectTimer;
+   private NioEventLoop.Timer readTimer;
+   private long lastActivity;
+   private NioExchange exchange;
+   private ByteBuffer pending;
+   private boolean paused;
+   private volatile boolean closed;
+
+   NioConnection(NioEventLoop loop, Route route, InetSocketAddress address) {
+      this.loop = loop;
+      this.route = route;
+      this.address = address;
+   }
+
+   @Override
+   public Route getRoute() {
+      return route;
+   }
+
+   @Override
+   public boolean isStale() {
+      return closed || (channel != null && !channel.isOpen());
+   }
+
+   @Override
+   public void close() {
+      closed = true;
+      if (channel != null) {
+         try {
+            channel.close();
+         } catch (IOException e) {
+         }
+      }
+   }
+
+   /**
+    * Start an exchange on this connection, opening it first if necessary.
+    * @param ex the exchange
+    */
+   void start(NioExchange ex) {
+      loop.execute(() -> begin(ex));
+   }
+
+   /**
+    * Let the loop know there is request data to write.
+    * @param ex the exchange that queued the data
+    */
+   void wantWrite(NioExchange ex) {
+      loop.execute(() -> {
+         if (exchange == ex && key != null && key.isValid() && channel.isConnected()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+         }
+      });
+   }
+
+   /**
+    * Start reading again once the caller has consumed enough of the response body.
+    * @param ex the exchange whose body was paused
+    */
+   void resumeReading(NioExchange ex) {
+      loop.execute(() -> {
+         if (exchange != ex || !paused) {
+            return;
+         }
+         paused = false;
+         try {
+            if (pending != null) {
+               ByteBuffer buffer = pending;
+               pending = null;
+               feed(buffer);
+            }
+            //The server was not idle while we were not reading
+            lastActivity = System.currentTimeMillis();
+            if (!paused && exchange == ex && key.isValid()) {
+               key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+         } catch (IOException e) {
+            fail(ex, e);
+         }
+      });
+   }
+
+   /**
+    * Abandon an exchange, closing the connection.
+    * @param ex the exchange
+    * @param e the reason
+    */
+   void abort(NioExchange ex, IOException e) {
+      loop.execute(() -> fail(ex, e));
+   }
+
+   private void begin(NioExchange ex) {
+      exchange = ex;
+      paused = false;
+      pending = null;
+      try {
+         if (closed) {
+            throw new IOException("Connection closed");
+         }
+         if (channel == null) {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (channel.connect(address)) {
+               key = channel.register(loop.selector(), SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            } else {
+               key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+               int timeout = ex.getTimeout();
+               if (timeout > 0) {
+                  connectTimer = loop.schedule(timeout, () -> 
+                        fail(ex, new ConnectTimeoutException("Connect timed out after " + timeout + " ms")));
+               }
+            }
+         } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+         }
+         if (ex.getReadTimeout() > 0) {
+            lastActivity = System.currentTimeMillis();
+            watchReads(ex, ex.getReadTimeout());
+         }
+      } catch (IOException e) {
+         fail(ex, e);
+      }
+   }
+
+   /**
+    * Handle readiness reported by the selector.
+    * @param ops the ready operations
+    */
+   void ready(int ops) {
+      NioExchange ex = exchange;
+      try {
+         if ((ops & SelectionKey.OP_CONNECT) != 0) {
+            channel.finishConnect();
+            if (connectTimer != null) {
+               connectTimer.cancel();
+               connectTimer = null;
+            }
+            lastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+         }
+         if (ex == null) {
+            //Anything arriving on an idle connection means the server has closed it (or broken it)
+            close();
+            return;
+         }
+         if ((ops & SelectionKey.OP_WRITE) != 0) {
+            write(ex);
+         }
+         if ((ops & SelectionKey.OP_READ) != 0 && exchange == ex && !paused) {
+            read(ex);
+         }
+      } catch (IOException e) {
+         if (ex != null) {
+            fail(ex, e);
+         } else {
+            close();
+         }
+      }
+   }
+
+   private void write(NioExchange ex) throws IOException {
+      ByteBuffer buffer;
+      while ((buffer = ex.outbound.peek()) != null) {
+         int count = channel.write(buffer);
+         ex.written(count);
+         lastActivity = System.currentTimeMillis();
+         if (buffer.hasRemaining()) {
+            return;
+         }
+         ex.outbound.poll();
+      }
+      NioExchange.FileRegion file = ex.getFileBody();
+      if (file != null && !file.isDone()) {
+         //Copied from the file to the socket by the kernel
+         file.transferTo(channel);
+         if (!file.isDone()) {
+            return;
+         }
+      }
+      //Nothing more to write for now: the body pump asks for OP_WRITE again when it queues more
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+   }
+
+   private void read(NioExchange ex) throws IOException {
+      ByteBuffer buffer = loop.readBuffer();
+      buffer.clear();
+      int count = channel.read(buffer);
+      if (count < 0) {
+         ex.parser.endOfInput();
+         if (ex.isResponseComplete()) {
+            finish(ex, false);
+         }
+         return;
+      }
+      lastActivity = System.currentTimeMillis();
+      buffer.flip();
+      feed(buffer);
+   }
+
+   //Fails the exchange if the server sends nothing for its read timeout. The timer fires once per timeout
+   //period rather than being reset by every read. Time spent connecting, sending the request or paused for
+   //the caller to catch up with the body does not count.
+   private void watchReads(NioExchange ex, long delay) {
+      readTimer = loop.schedule(delay, () -> {
+         if (exchange != ex) {
+            return;
+         }
+         long now = System.currentTimeMillis();
+         if (paused || !channel.isConnected() || !ex.isRequestWritten()) {
+            lastActivity = now;
+         }
+         long idle = now - lastActivity;
+         if (idle >= ex.getReadTimeout()) {
+            fail(ex, new ReadTimeoutException("Read timed out after " + ex.getReadTimeout() + " ms"));
+         } else {
+            watchReads(ex, ex.getReadTimeout() - idle);
+         }
+      });
+   }
+
+   private void cancelTimers() {
+      if (connectTimer != null) {
+         connectTimer.cancel();
+         connectTimer = null;
+      }
+      if (readTimer != null) {
+         readTimer.cancel();
+         readTimer = null;
+      }
+   }
+
+   private void feed(ByteBuffer buffer) throws IOException {
+      NioExchange ex = exchange;
+      boolean more = ex.parser.feed(buffer);
+      if (ex.isResponseComplete()) {
+         //Any bytes beyond the end of the response mean the connection is out of step
+         finish(ex, !buffer.hasRemaining());
+      } else if (!more) {
+         paused = true;
+         key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+         if (buffer.hasRemaining()) {
+            //The loop's read buffer is reused for the next read, so keep our own copy
+            pending = ByteBuffer.allocate(buffer.remaining());
+            pending.put(buffer).flip();
+         }
+      }
+   }
+
+   private void finish(NioExchange ex, boolean clean) {
+      exchange = null;
+      cancelTimers();
+      boolean reusable = clean && !closed && ex.parser.isKeepAlive() && ex.isRequestWritten();
+      if (reusable) {
+         key.interestOps(SelectionKey.OP_READ);
+      } else {
+         close();
+      }
+      ex.lease.release(reusable);
+      ex.finished(null);
+   }
+
+   private void fail(NioExchange ex, IOException e) {
+      if (exchange != ex) {
+         return;
+      }
+      exchange = null;
+      cancelTimers();
+      close();
+      ex.finished(e);
+      ex.lease.release(false);
+   }
+}
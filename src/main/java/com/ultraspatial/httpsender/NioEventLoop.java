@@ -0,0 +1,181 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread that owns a Selector and performs all I/O for the connections registered with it.
+ * Other threads hand work to the loop with {@link #execute(Runnable)}. Everything else in this
+ * class, and in the connections it serves, must only be called on the loop thread.
+ */
+class NioEventLoop implements Runnable {
+
+   private static Logger log = Logger.getLogger(NioEventLoop.class.getName());
+
+   private final Selector selector;
+   private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+   private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+   private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+   private final Thread thread;
+   private volatile boolean shutdown;
+
+   NioEventLoop(String name) throws IOException {
+      selector = Selector.open();
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Run a task on the loop thread.
+    * @param task the task
+    */
+   void execute(Runnable task) {
+      tasks.add(task);
+      if (Thread.currentThread() != thread) {
+         selector.wakeup();
+      }
+   }
+
+   boolean inLoop() {
+      return Thread.currentThread() == thread;
+   }
+
+   Selector selector() {
+      return selector;
+   }
+
+   //Shared by all connections on this loop: only valid until the next read
+   ByteBuffer readBuffer() {
+      return readBuffer;
+   }
+
+   /**
+    * Run a task on the loop thread after a delay. Must be called on the loop thread.
+    * @param delay the delay in milliseconds
+    * @param task the task
+    * @return a Timer that can be cancelled
+    */
+   Timer schedule(long delay, Runnable task) {
+      Timer timer = new Timer(System.currentTimeMillis() + delay, task);
+      timers.add(timer);
+      return timer;
+   }
+
+   void shutdown() {
+      shutdown = true;
+      selector.wakeup();
+   }
+
+   @Override
+   public void run() {
+      while (!shutdown) {
+         try {
+            long wait = runTimers();
+            if (tasks.isEmpty()) {
+               selector.select(wait);
+            } else {
+               selector.selectNow();
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+               SelectionKey key = it.next();
+               it.remove();
+               NioConnection connection = (NioConnection) key.attachment();
+               if (key.isValid()) {
+                  connection.ready(key.readyOps());
+               }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+               task.run();
+            }
+         } catch (Throwable t) {
+            log.log(Level.WARNING, "Unexpected error in event loop", t);
+         }
+      }
+      for (SelectionKey key : selector.keys()) {
+         ((NioConnection) key.attachment()).close();
+      }
+      try {
+         selector.close();
+      } catch (IOException e) {
+      }
+   }
+
+   //Returns how long the selector may wait before the next timer is due (0 = indefinitely)
+   private long runTimers() {
+      long now = System.currentTimeMillis();
+      Timer timer;
+      while ((timer = timers.peek()) != null) {
+         if (timer.cancelled) {
+            timers.poll();
+         } else if (timer.due <= now) {
+            timers.poll();
+            timer.task.run();
+         } else {
+            return timer.due - now;
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * A task scheduled to run on the loop thread at a particular time.
+    */
+   static class Timer implements Comparable<Timer> {
+      private final long due;
+      private final Runnable task;
+      private boolean cancelled;
+
+      Timer(long due, Runnable task) {
+         this.due = due;
+         this.task = task;
+      }
+
+      void cancel() {
+         cancelled = true;
+      }
+
+      @Override
+      public int compareTo(Timer other) {
+         return Long.compare(due, other.due);
+      }
+   }
+}
@@ -0,0 +1,355 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single request/response exchange on an {@link NioConnection}. The request head and body are
+ * queued here by the calling thread and written to the socket by the event loop; the response 
+ * is parsed on the event loop and handed back through the future and the body stream.
+ */
+class NioExchange implements HttpResponseParser.Listener {
+
+   private static final int MAX_OUTBOUND = 262144;
+   private static final int BUFFER_SIZE = 16384;
+   private static final byte[] CRLF = { '\r', '\n' };
+   private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+   final CompletableFuture<Response> future = new CompletableFuture<>();
+   final HttpResponseParser parser;
+   final NioBodyInputStream body;
+   final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+   final ConnectionPool.Lease lease;
+   private final PreparedRequest request;
+   private final NioConnection connection;
+   private final boolean reused;
+   private final boolean chunked;
+   private final long contentLength;
+   private final long start;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition drained = lock.newCondition();
+   private long outboundPending;
+   private volatile boolean bodyQueued;
+   private volatile FileRegion fileBody;
+   private boolean responseComplete;
+   private boolean finished;
+   private IOException failure;
+
+   NioExchange(PreparedRequest request, ConnectionPool.Lease lease, NioConnection connection, boolean reused, 
+         boolean viaProxy, long start) {
+      this.request = request;
+      this.lease = lease;
+      this.connection = connection;
+      this.reused = reused;
+      this.start = start;
+      parser = new HttpResponseParser(request.getMethod(), this);
+      body = new NioBodyInputStream(this);
+      boolean hasLength = false;
+      for (String name : request.getHeaders().keySet()) {
+         hasLength |= name.equalsIgnoreCase("Content-Length");
+      }
+      //A Content-Length set explicitly by the caller takes precedence over the body's own length
+      contentLength = hasLength || request.getBody() == null ? -1 : request.getContentLength();
+      chunked = request.getBody() != null && !hasLength && contentLength < 0;
+      outbound.add(encodeHead(viaProxy));
+      bodyQueued = request.getBody() == null;
+   }
+
+   private ByteBuffer encodeHead(boolean viaProxy) {
+      URL url = request.getUrl();
+      StringBuilder head = new StringBuilder(256);
+      head.append(request.getMethod()).append(' ');
+      if (viaProxy) {
+         head.append(url.toExternalForm());
+      } else {
+         head.append(url.getFile().isEmpty() ? "/" : url.getFile());
+      }
+      head.append(" HTTP/1.1\r\n");
+      boolean hasHost = false;
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+         hasHost |= header.getKey().equalsIgnoreCase("Host");
+         head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      }
+      if (!hasHost) {
+         head.append("Host: ").append(url.getHost());
+         if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+         }
+         head.append("\r\n");
+      }
+      if (chunked) {
+         head.append("Transfer-Encoding: chunked\r\n");
+      } else if (contentLength >= 0) {
+         head.append("Content-Length: ").append(contentLength).append("\r\n");
+      }
+      head.append("\r\n");
+      return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+   }
+
+   /**
+    * Read the request body from its provider and queue it for writing, blocking while too much 
+    * is already waiting to be written. Called on the thread sending the request.
+    */
+   void writeBody() {
+      if (request.getBody() instanceof FileBodyProvider && !chunked) {
+         //Left to the loop to send straight from the file with transferTo
+         try {
+            fileBody = new FileRegion(((FileBodyProvider) request.getBody()).openChannel());
+         } catch (IOException e) {
+            abort(e);
+            return;
+         }
+         bodyQueued = true;
+         connection.wantWrite(this);
+         return;
+      }
+      try (InputStream is = request.getBody().getInputStream()) {
+         byte[] buffer = new byte[chunked ? request.getChunkSize() : BUFFER_SIZE];
+         int len;
+         while ((len = is.read(buffer)) != -1) {
+            if (len > 0) {
+               enqueue(frame(buffer, len));
+            }
+         }
+         if (chunked) {
+            enqueue(ByteBuffer.wrap(LAST_CHUNK));
+         }
+         bodyQueued = true;
+         connection.wantWrite(this);
+      } catch (IOException e) {
+         abort(e);
+      }
+   }
+
+   private ByteBuffer frame(byte[] buffer, int len) {
+      if (!chunked) {
+         ByteBuffer bb = ByteBuffer.allocate(len);
+         bb.put(buffer, 0, len).flip();
+         return bb;
+      }
+      byte[] size = Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1);
+      ByteBuffer bb = ByteBuffer.allocate(size.length + len + 4);
+      bb.put(size).put(CRLF).put(buffer, 0, len).put(CRLF).flip();
+      return bb;
+   }
+
+   private void enqueue(ByteBuffer bb) throws IOException {
+      lock.lock();
+      try {
+         while (outboundPending >= MAX_OUTBOUND && failure == null && !finished) {
+            try {
+               drained.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while writing request body", e);
+            }
+         }
+         if (failure != null) {
+            throw failure;
+         }
+         if (finished) {
+            throw new IOException("Response received before the request body was sent");
+         }
+         outbound.add(bb);
+         outboundPending += bb.remaining();
+      } finally {
+         lock.unlock();
+      }
+      connection.wantWrite(this);
+   }
+
+   /**
+    * Record that bytes have been written to the socket. Called on the loop thread.
+    * @param count the number of bytes
+    */
+   void written(long count) {
+      if (count == 0) {
+         return;
+      }
+      lock.lock();
+      try {
+         outboundPending -= count;
+         drained.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return true once the whole request has been written to the socket
+    */
+   boolean isRequestWritten() {
+      FileRegion file = fileBody;
+      return bodyQueued && outbound.isEmpty() && (file == null || file.isDone());
+   }
+
+   /**
+    * @return the file the body is to be sent from, or null if it is queued in outbound
+    */
+   FileRegion getFileBody() {
+      return fileBody;
+   }
+
+   boolean isResponseComplete() {
+      return responseComplete;
+   }
+
+   /**
+    * @return the request's connect timeout in milliseconds, reduced to the time remaining before its deadline
+    */
+   int getTimeout() {
+      return request.getConnectTimeout();
+   }
+
+   /**
+    * @return the request's read timeout in milliseconds, or 0 for none
+    */
+   int getReadTimeout() {
+      return request.getReadTimeout();
+   }
+
+   void resumeReading() {
+      connection.resumeReading(this);
+   }
+
+   void abort(IOException e) {
+      connection.abort(this, e);
+   }
+
+   /**
+    * The exchange is over, successfully or not. Called on the loop thread.
+    * @param e the cause of failure, or null if the response was received in full
+    */
+   void finished(IOException e) {
+      lock.lock();
+      try {
+         finished = true;
+         failure = e;
+         drained.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      if (fileBody != null) {
+         fileBody.close();
+      }
+      if (e == null) {
+         body.complete();
+      } else {
+         if (reused && !parser.hasStarted() && request.getBody() == null && !(e instanceof ReadTimeoutException)) {
+            //The server closed the pooled connection before we used it: safe to retry
+            future.completeExceptionally(new StaleConnectionException(e));
+         } else {
+            future.completeExceptionally(e);
+         }
+         body.fail(e);
+      }
+   }
+
+   @Override
+   public void onHeaders(String protocol, int code, String reason, Map<String, List<String>> headers) {
+      future.complete(new Response(request.getSource(), protocol, code, reason, headers, body, start));
+   }
+
+   @Override
+   public boolean onBody(byte[] data) {
+      return body.offer(data);
+   }
+
+   @Override
+   public void onComplete() {
+      //The body is completed in finished(), once the connection has been returned to the pool
+      responseComplete = true;
+   }
+
+   /**
+    * The part of a file still to be written to the socket.
+    */
+   static class FileRegion {
+
+      private final FileChannel channel;
+      private final long end;
+      private long position;
+
+      FileRegion(FileChannel channel) throws IOException {
+         this.channel = channel;
+         this.end = channel.size();
+      }
+
+      /**
+       * Transfer as much of the file as the socket will currently accept.
+       * @param target the socket
+       * @throws IOException if the transfer fails, or the file is shorter than it was
+       */
+      void transferTo(WritableByteChannel target) throws IOException {
+         long count = channel.transferTo(position, end - position, target);
+         if (count == 0 && channel.size() <= position) {
+            throw new IOException("Request body file was truncated while being sent");
+         }
+         position += count;
+      }
+
+      boolean isDone() {
+         return position >= end;
+      }
+
+      void close() {
+         try {
+            channel.close();
+         } catch (IOException e) {
+         }
+      }
+   }
+
+   /**
+    * Thrown when a pooled connection turns out to have been closed by the server before the
+    * request could be sent.
+    */
+   static class StaleConnectionException extends IOException {
+
+      private static final long serialVersionUID = 1L;
+
+      StaleConnectionException(IOException cause) {
+         super(cause.getMessage(), cause);
+      }
+   }
+}
@@ -0,0 +1,199 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport that sends HTTP/1.1 requests over non-blocking SocketChannels. A small, fixed number 
+ * of event loop threads perform all the network I/O, so an asynchronous request does not hold a
+ * thread while it waits for the server: thousands of requests can be in flight at once. Response
+ * bodies are buffered as they arrive, up to a limit, after which reading from the connection 
+ * pauses until the caller catches up.
+ * 
+ * Connections are kept alive and pooled in the ConnectionPool supplied when the Transport is 
+ * created; the pool configured on individual requests is not used. A request that fails because
+ * the server closed a pooled connection before it was used is retried once on a new connection,
+ * provided it has no body.
+ * 
+ * https and SOCKS proxies are not supported by this Transport. HTTP proxies are.
+ */
+public class NioTransport implements Transport, Closeable {
+
+   private final NioEventLoop[] loops;
+   private final AtomicInteger next = new AtomicInteger();
+   private final ConnectionPool connectionPool;
+
+   /**
+    * Create a Transport with one event loop per available processor.
+    */
+   public NioTransport() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * Create a Transport with the specified number of event loops.
+    * @param eventLoops the number of event loop threads
+    */
+   public NioTransport(int eventLoops) {
+      this(eventLoops, new ConnectionPool());
+   }
+
+   /**
+    * Create a Transport with the specified number of event loops, pooling its connections in the
+    * specified ConnectionPool.
+    * @param eventLoops the number of event loop threads
+    * @param connectionPool the ConnectionPool
+    */
+   public NioTransport(int eventLoops, ConnectionPool connectionPool) {
+      if (eventLoops < 1) {
+         throw new IllegalArgumentException("eventLoops must be at least 1");
+      }
+      if (connectionPool == null) {
+         throw new IllegalArgumentException("ConnectionPool may not be null");
+      }
+      this.connectionPool = connectionPool;
+      loops = new NioEventLoop[eventLoops];
+      try {
+         for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new NioEventLoop("httpsender-nio-" + i);
+         }
+      } catch (IOException e) {
+         close();
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * @return the ConnectionPool holding this Transport's idle connections
+    */
+   public ConnectionPool getConnectionPool() {
+      return connectionPool;
+   }
+
+   @Override
+   public Response execute(PreparedRequest request) throws Exception {
+      try {
+         return send(request, null).get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof NioExchange.StaleConnectionException) {
+            try {
+               return send(request, null).get();
+            } catch (ExecutionException retryFailure) {
+               throw unwrap(retryFailure);
+            }
+         }
+         throw unwrap(e);
+      }
+   }
+
+   @Override
+   public CompletableFuture<Response> executeAsync(PreparedRequest request, Executor executor) {
+      //Complete on the executor so that callers' continuations never run on an event loop
+      return send(request, executor).handleAsync((response, thrown) -> {
+         if (thrown instanceof NioExchange.StaleConnectionException) {
+            return send(request, executor);
+         }
+         return thrown == null ? CompletableFuture.completedFuture(response) 
+               : CompletableFuture.<Response>failedFuture(thrown);
+      }, executor).thenCompose(f -> f);
+   }
+
+   /**
+    * Stop the event loops, closing all their connections.
+    */
+   @Override
+   public void close() {
+      for (NioEventLoop loop : loops) {
+         if (loop != null) {
+            loop.shutdown();
+         }
+      }
+      connectionPool.closeIdle();
+   }
+
+   //The body is written on the calling thread if bodyExecutor is null
+   private CompletableFuture<Response> send(PreparedRequest request, Executor bodyExecutor) {
+      long start = System.currentTimeMillis();
+      try {
+         Route route = request.getRoute();
+         if (route.isSecure()) {
+            throw new IllegalArgumentException("NioTransport does not support https");
+         }
+         java.net.Proxy proxy = request.getProxy();
+         if (proxy != null && proxy.type() == java.net.Proxy.Type.SOCKS) {
+            throw new IllegalArgumentException("NioTransport does not support SOCKS proxies");
+         }
+         boolean viaProxy = proxy != null && proxy.type() == java.net.Proxy.Type.HTTP;
+         ConnectionPool.Lease lease = connectionPool.lease(route);
+         NioConnection connection = (NioConnection) lease.getConnection();
+         boolean reused = connection != null;
+         if (connection == null) {
+            InetSocketAddress address = viaProxy ? (InetSocketAddress) proxy.address() 
+                  : new InetSocketAddress(route.getHost(), route.getPort());
+            if (address.isUnresolved()) {
+               lease.release(false);
+               throw new UnknownHostException(address.getHostString());
+            }
+            connection = new NioConnection(nextLoop(), route, address);
+            lease.bind(connection);
+         }
+         NioExchange exchange = new NioExchange(request, lease, connection, reused, viaProxy, start);
+         connection.start(exchange);
+         request.getDeadline().onCancel(() -> exchange.abort(new IOException("Exchange aborted")));
+         if (request.getBody() != null) {
+            if (bodyExecutor == null) {
+               exchange.writeBody();
+            } else {
+               bodyExecutor.execute(exchange::writeBody);
+            }
+         }
+         return exchange.future;
+      } catch (Exception e) {
+         return CompletableFuture.failedFuture(e);
+      }
+   }
+
+   private NioEventLoop nextLoop() {
+      return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+   }
+
+   private static Exception unwrap(ExecutionException e) {
+      Throwable cause = e.getCause();
+      return cause instanceof Exception ? (Exception) cause : e;
+   }
+}
@@ -0,0 +1,439 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Passive health tracking of endpoints (servers, identified by scheme, host and port), from the outcomes of 
+ * the requests sent to them. An endpoint is ejected - left out when a {@link com.ultraspatial.httpsender.fallback.FallbackRequest}
+ * or a {@link LoadBalancedRequest} chooses where to send a request - when it fails too many times in a row, 
+ * when too large a share of its recent requests fail, or when its latency is an outlier among the endpoints 
+ * it is an alternative to. A failure is an exception, or a Response with a status of 500 or more. A request 
+ * that fails because its own Deadline ended, or because it was cancelled, is no fault of the endpoint, and is 
+ * not counted: of timeouts, only those of the exchange itself count (see {@link #recordFailure}).
+ * 
+ * An ejected endpoint is returned to use once its ejection time has passed, and is then judged afresh. The 
+ * ejection time doubles each time an endpoint is ejected again, up to a maximum, and goes back to the base 
+ * time once the endpoint has stayed healthy for the maximum ejection time. If every alternative is ejected,
+ * the ejected ones are used anyway: ejection only ever steers requests towards healthier endpoints.
+ * An endpoint that has been neither ejected nor sent a request for the maximum ejection time is forgotten.
+ * 
+ * The {@link #shared()} detector is used by default, so what one request learns about an endpoint benefits 
+ * every other request in the JVM. Its state is kept in lock-free counters. Follows the Builder pattern to allow
+ * chaining of calls to configuration methods, which should be made before it is used.
+ */
+public final class OutlierDetector {
+
+   private static Logger log = Logger.getLogger(OutlierDetector.class.getName());
+
+   private static final OutlierDetector SHARED = new OutlierDetector();
+
+   //Weight of the latest outcome in the moving failure rate and latency: roughly the last 10 requests count
+   private static final double ALPHA = 0.1;
+
+   private final ConcurrentMap<String, Health> endpoints = new ConcurrentHashMap<>();
+   private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+   private volatile int consecutiveFailures = 5;
+   private volatile double failureRate = 0.5;
+   private volatile int minRequests = 20;
+   private volatile double latencyFactor = 3;
+   private volatile long minLatencyExcess = TimeUnit.MILLISECONDS.toNanos(50);
+   private volatile long baseEjectionTime = TimeUnit.SECONDS.toNanos(30);
+   private volatile long maxEjectionTime = TimeUnit.MINUTES.toNanos(5);
+
+   /**
+    * @return the detector shared by all requests in the JVM, used by default
+    */
+   public static OutlierDetector shared() {
+      return SHARED;
+   }
+
+   /**
+    * @param request a Request
+    * @return the endpoint the request is sent to, as scheme://host:port, or null if it cannot be told - if 
+    *    the request is itself a FallbackRequest or LoadBalancedRequest, for example
+    */
+   public static String endpointOf(Request request) {
+      try {
+         if (request instanceof IndividualRequest) {
+            return endpointOf(((IndividualRequest<?>) request).url());
+         }
+         if (request instanceof RequestTemplate.Bound) {
+            return endpointOf(new URL(((RequestTemplate.Bound) request).renderUrl()));
+         }
+      } catch (MalformedURLException e) {
+         //Not yet a valid url: placeholders in the host, for example
+      }
+      return null;
+   }
+
+   static String endpointOf(URL url) {
+      int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+      return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+   }
+
+   /**
+    * Set how many failures in a row eject an endpoint. The default is 5.
+    * @param failures the number of failures, or 0 to not eject endpoints for consecutive failures
+    * @return this (Builder pattern)
+    */
+   public OutlierDetector consecutiveFailures(int failures) {
+      if (failures < 0) {
+         throw new IllegalArgumentException("Consecutive failures may not be negative");
+      }
+      consecutiveFailures = failures;
+      return this;
+   }
+
+   /**
+    * Set the failure rate that ejects an endpoint. The rate is a moving average, in which roughly the last 10 
+    * requests count. The default is 0.5 once there have been at least 20 requests.
+    * @param rate the failure rate, between 0 and 1, or 0 to not eject endpoints for their failure rate
+    * @param minRequests the number of requests an endpoint must have been sent (since it was last ejected, if
+    *    it has been) before its failure rate is judged
+    * @return this (Builder pattern)
+    */
+   public OutlierDetector failureRate(double rate, int minRequests) {
+      if (rate < 0 || rate > 1 || minRequests < 1) {
+         throw new IllegalArgumentException("Failure rate must be between 0 and 1, and minimum requests at least 1");
+      }
+      failureRate = rate;
+      this.minRequests = minRequests;
+      return this;
+   }
+
+   /**
+    * Set when latency makes an endpoint an outlier: when its moving average latency is more than factor times 
+    * the median of those of its alternatives, and more than minExcess ms above it. At least three of the 
+    * alternatives must have a measured latency. The default is a factor of 3 and 50 ms.
+    * @param factor the factor, or 0 to not eject endpoints for their latency
+    * @param minExcess the minimum excess over the median in milliseconds
+    * @return this (Builder pattern)
+    */
+   public OutlierDetector latencyOutliers(double factor, long minExcess) {
+      if (factor < 0 || minExcess < 0) {
+         throw new IllegalArgumentException("Latency factor and minimum excess may not be negative");
+      }
+      latencyFactor = factor;
+      minLatencyExcess = TimeUnit.MILLISECONDS.toNanos(minExcess);
+      return this;
+   }
+
+   /**
+    * Set how long an endpoint is ejected for. The time doubles with each repeated ejection, up to the maximum. 
+    * The default is 30 seconds, up to 5 minutes.
+    * @param base the ejection time for a first ejection in milliseconds
+    * @param max the maximum ejection time in milliseconds
+    * @return this (Builder pattern)
+    */
+   public OutlierDetector ejectionTime(long base, long max) {
+      if (base < 1 || max < base) {
+         throw new IllegalArgumentException("Ejection time must be at least 1 ms, and no more than the maximum");
+      }
+      baseEjectionTime = TimeUnit.MILLISECONDS.toNanos(base);
+      maxEjectionTime = TimeUnit.MILLISECONDS.toNanos(max);
+      return this;
+   }
+
+   /**
+    * @param endpoint an endpoint, as scheme://host:port
+    * @return the health of the endpoint, which is tracked from then on if it was not already
+    */
+   public Health health(String endpoint) {
+      return endpoints.computeIfAbsent(endpoint, Health::new);
+   }
+
+   /**
+    * @param endpoint an endpoint, as scheme://host:port, or null
+    * @return whether the endpoint is currently ejected
+    */
+   public boolean isEjected(String endpoint) {
+      Health health = endpoint == null ? null : endpoints.get(endpoint);
+      return health != null && health.isEjected();
+   }
+
+   /**
+    * Record the outcome of a request
+    * @param endpoint the endpoint it was sent to, or null if not known
+    * @param failed whether it failed
+    * @param latency how long it took in nanoseconds
+    */
+   public void record(String endpoint, boolean failed, long latency) {
+      if (endpoint != null) {
+         health(endpoint).record(failed, latency);
+         forgetIdle();
+      }
+   }
+
+   /**
+    * Record the outcome of a request
+    * @param endpoint the endpoint it was sent to, or null if not known
+    * @param response the Response, or null if the request failed with an exception
+    * @param latency how long it took in nanoseconds
+    */
+   public void record(String endpoint, Response response, long latency) {
+      record(endpoint, response == null || response.getResponseCode() >= 500, latency);
+   }
+
+   /**
+    * Record a request that failed with an exception, unless the failure was no fault of the endpoint: the 
+    * request was cancelled, or the Deadline it was executed under ended. A timeout counts only if it was 
+    * the exchange's own: a {@link ConnectTimeoutException}, {@link ReadTimeoutException} or 
+    * {@link ExchangeTimeoutException}.
+    * @param endpoint the endpoint it was sent to, or null if not known
+    * @param failure the exception
+    * @param scope the Deadline the request was executed under
+    * @param latency how long it took in nanoseconds
+    */
+   public void recordFailure(String endpoint, Throwable failure, Deadline scope, long latency) {
+      for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+         if (cause instanceof ConnectTimeoutException || cause instanceof ReadTimeoutException 
+               || cause instanceof ExchangeTimeoutException) {
+            record(endpoint, true, latency);
+            return;
+         }
+         if (cause instanceof DeadlineExceededException || cause instanceof CancellationException) {
+            return;
+         }
+      }
+      if (!scope.isCancelled()) {
+         record(endpoint, true, latency);
+      }
+   }
+
+   /**
+    * @return the number of endpoints whose health is being tracked
+    */
+   int size() {
+      return endpoints.size();
+   }
+
+   //Every so often, drop the endpoints that have been neither used nor ejected for the maximum ejection time, 
+   //so that the endpoints of a long running JVM do not accumulate. A Health dropped while a request to it is 
+   //in flight misses the outcome of that request.
+   private void forgetIdle() {
+      long now = System.nanoTime();
+      long last = lastSweep.get();
+      long idle = maxEjectionTime;
+      if (now - last < idle || !lastSweep.compareAndSet(last, now)) {
+         return;
+      }
+      endpoints.values().removeIf(health -> health.isIdle(now, idle));
+   }
+
+   /**
+    * Eject any of a set of alternative endpoints whose latency is an outlier among them
+    * @param alternatives the endpoints
+    */
+   public void compareLatencies(Collection<String> alternatives) {
+      double factor = latencyFactor;
+      if (factor == 0 || alternatives.size() < 3) {
+         return;
+      }
+      List<Health> measured = new ArrayList<>(alternatives.size());
+      for (String endpoint : alternatives) {
+         Health health = endpoint == null ? null : endpoints.get(endpoint);
+         if (health != null && !health.isEjected() && health.latency() > 0) {
+            measured.add(health);
+         }
+      }
+      if (measured.size() < 3) {
+         return;
+      }
+      double[] latencies = new double[measured.size()];
+      for (int i = 0; i < latencies.length; i++) {
+         latencies[i] = measured.get(i).latency();
+      }
+      Arrays.sort(latencies);
+      int n = latencies.length;
+      double median = (latencies[(n - 1) / 2] + latencies[n / 2]) / 2;
+      for (Health health : measured) {
+         double latency = health.latency();
+         if (latency > factor * median && latency - median > minLatencyExcess) {
+            health.eject(String.format("latency of %.1f ms against a median of %.1f ms", latency / 1e6, median / 1e6));
+         }
+      }
+   }
+
+   /**
+    * The health of one endpoint
+    */
+   public final class Health {
+
+      private final String endpoint;
+      private final AtomicInteger consecutive = new AtomicInteger();
+      private final AtomicInteger requests = new AtomicInteger();
+      //Moving averages, as the bits of doubles
+      private final AtomicLong failureRateBits = new AtomicLong();
+      private final AtomicLong latencyBits = new AtomicLong();
+      private final AtomicInteger ejections = new AtomicInteger();
+      private final AtomicLong ejectedUntil = new AtomicLong(System.nanoTime());
+      private volatile long lastUsed = System.nanoTime();
+
+      private Health(String endpoint) {
+         this.endpoint = endpoint;
+      }
+
+      /**
+       * @return the endpoint, as scheme://host:port
+       */
+      public String getEndpoint() {
+         return endpoint;
+      }
+
+      /**
+       * @return the number of failures in a row since the last success
+       */
+      public int getConsecutiveFailures() {
+         return consecutive.get();
+      }
+
+      /**
+       * @return the moving average of the failure rate, between 0 and 1
+       */
+      public double getFailureRate() {
+         return Double.longBitsToDouble(failureRateBits.get());
+      }
+
+      /**
+       * @return the moving average of the latency of successful requests in milliseconds, or 0 if none has
+       *    been measured since the endpoint was last ejected
+       */
+      public double getLatency() {
+         return latency() / 1e6;
+      }
+
+      /**
+       * @return the number of times the endpoint has been ejected since it was last healthy for the maximum 
+       *    ejection time, which sets how long its next ejection will be
+       */
+      public int getEjections() {
+         return ejections.get();
+      }
+
+      /**
+       * @return whether the endpoint is currently ejected
+       */
+      public boolean isEjected() {
+         return ejectedUntil.get() - System.nanoTime() > 0;
+      }
+
+      /**
+       * @return the time remaining until the endpoint is returned to use in milliseconds, or 0 if it is not ejected
+       */
+      public long getEjectionRemaining() {
+         return Math.max(0, TimeUnit.NANOSECONDS.toMillis(ejectedUntil.get() - System.nanoTime()));
+      }
+
+      double latency() {
+         return Double.longBitsToDouble(latencyBits.get());
+      }
+
+      boolean isIdle(long now, long time) {
+         return now - lastUsed > time && now - ejectedUntil.get() > time;
+      }
+
+      void record(boolean failed, long latency) {
+         long now = System.nanoTime();
+         lastUsed = now;
+         int n = requests.incrementAndGet();
+         double rate = update(failureRateBits, failed ? 1 : 0, n == 1);
+         if (failed) {
+            int inARow = consecutive.incrementAndGet();
+            int limit = consecutiveFailures;
+            if (limit > 0 && inARow >= limit) {
+               eject(inARow + " consecutive failures");
+            } else if (failureRate > 0 && n >= minRequests && rate >= failureRate) {
+               eject(String.format("failure rate of %.2f", rate));
+            }
+            return;
+         }
+         consecutive.set(0);
+         update(latencyBits, latency, latency() == 0);
+         int streak = ejections.get();
+         if (streak > 0 && now - ejectedUntil.get() > maxEjectionTime) {
+            //Healthy for long enough that a new ejection starts again from the base time
+            ejections.compareAndSet(streak, 0);
+         }
+      }
+
+      private double update(AtomicLong bits, double sample, boolean first) {
+         long current;
+         double next;
+         do {
+            current = bits.get();
+            next = first ? sample : Double.longBitsToDouble(current) * (1 - ALPHA) + sample * ALPHA;
+         } while (!bits.compareAndSet(current, Double.doubleToLongBits(next)));
+         return next;
+      }
+
+      void eject(String reason) {
+         long now = System.nanoTime();
+         long until = ejectedUntil.get();
+         if (until - now > 0) {
+            return;
+         }
+         int count = ejections.get() + 1;
+         long time = baseEjectionTime << Math.min(count - 1, 30);
+         if (time <= 0 || time > maxEjectionTime) {
+            time = maxEjectionTime;
+         }
+         if (!ejectedUntil.compareAndSet(until, now + time)) {
+            //Ejected by another thread
+            return;
+         }
+         ejections.set(count);
+         //Judged afresh on return
+         consecutive.set(0);
+         requests.set(0);
+         failureRateBits.set(0);
+         latencyBits.set(0);
+         log.info("Ejecting " + endpoint + " for " + TimeUnit.NANOSECONDS.toMillis(time) + " ms after " + reason);
+      }
+
+      @Override
+      public String toString() {
+         return endpoint;
+      }
+   }
+}
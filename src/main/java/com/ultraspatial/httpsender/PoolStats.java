@@ -0,0 +1,100 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+/**
+ * A point-in-time snapshot of the activity of a {@link ConnectionPool}. With the HttpURLConnection 
+ * engine, the counts are of pooled handles rather than sockets: see {@link ConnectionPool}.
+ */
+public final class PoolStats {
+
+   private final int leased;
+   private final int idle;
+   private final int pending;
+   private final long created;
+   private final long reused;
+   private final long evicted;
+
+   PoolStats(int leased, int idle, int pending, long created, long reused, long evicted) {
+      this.leased = leased;
+      this.idle = idle;
+      this.pending = pending;
+      this.created = created;
+      this.reused = reused;
+      this.evicted = evicted;
+   }
+
+   /**
+    * @return the number of connections currently leased to requests
+    */
+   public int getLeased() {
+      return leased;
+   }
+
+   /**
+    * @return the number of connections currently held idle in the pool
+    */
+   public int getIdle() {
+      return idle;
+   }
+
+   /**
+    * @return the number of requests currently waiting for a connection
+    */
+   public int getPending() {
+      return pending;
+   }
+
+   /**
+    * @return the total number of new connections that have been established
+    */
+   public long getCreated() {
+      return created;
+   }
+
+   /**
+    * @return the total number of leases that were satisfied by an idle connection
+    */
+   public long getReused() {
+      return reused;
+   }
+
+   /**
+    * @return the total number of idle connections discarded because they timed out or were stale
+    */
+   public long getEvicted() {
+      return evicted;
+   }
+
+   @Override
+   public String toString() {
+      return "PoolStats[leased=" + leased + ", idle=" + idle + ", pending=" + pending + ", created=" + created 
+            + ", reused=" + reused + ", evicted=" + evicted + "]";
+   }
+}
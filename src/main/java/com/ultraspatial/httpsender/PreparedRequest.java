@@ -0,0 +1,241 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of an {@link IndividualRequest}, ready to be sent by a {@link Transport}: placeholders
+ * have been substituted, query parameters merged into the url and header values combined.
+ */
+public final class PreparedRequest {
+
+   private final IndividualRequest<?> source;
+   private final String method;
+   private final URL url;
+   private final Map<String, String> headers;
+   private final InputStreamProvider body;
+   private final Deadline deadline;
+
+   PreparedRequest(IndividualRequest<?> source, String method, URL url, Map<String, String> headers, 
+         InputStreamProvider body, Deadline deadline) {
+      this.source = source;
+      this.method = method;
+      this.url = url;
+      this.headers = Collections.unmodifiableMap(headers);
+      this.body = body;
+      this.deadline = deadline;
+   }
+
+   private PreparedRequest(PreparedRequest request, Map<String, String> headers, Deadline deadline) {
+      this.source = request.source;
+      this.method = request.method;
+      this.url = request.url;
+      this.headers = headers;
+      this.body = request.body;
+      this.deadline = deadline;
+   }
+
+   /**
+    * @param deadline a Deadline
+    * @return a copy of this request to be sent under a different Deadline
+    */
+   PreparedRequest withDeadline(Deadline deadline) {
+      return new PreparedRequest(this, headers, deadline);
+   }
+
+   /**
+    * @param headers the headers to send
+    * @return a copy of this request with different headers
+    */
+   PreparedRequest withHeaders(Map<String, String> headers) {
+      return new PreparedRequest(this, Collections.unmodifiableMap(headers), deadline);
+   }
+
+   /**
+    * @param name a header name, in any case
+    * @return the value of the header, or null if the request does not have it
+    */
+   String getHeader(String name) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+         if (header.getKey().equalsIgnoreCase(name)) {
+            return header.getValue();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @return the request this was prepared from
+    */
+   public IndividualRequest<?> getSource() {
+      return source;
+   }
+
+   /**
+    * @return the HTTP verb
+    */
+   public String getMethod() {
+      return method;
+   }
+
+   /**
+    * @return the fully assembled url
+    */
+   public URL getUrl() {
+      return url;
+   }
+
+   /**
+    * @return the request headers, each mapped to its combined (comma separated) value
+    */
+   public Map<String, String> getHeaders() {
+      return headers;
+   }
+
+   /**
+    * @return the provider of the request body, or null if the request has no body
+    */
+   public InputStreamProvider getBody() {
+      return body;
+   }
+
+   /**
+    * @return the length of the request body, or -1 if it has no body or the length is not known
+    */
+   public long getContentLength() {
+      return body == null ? -1 : body.getContentLength();
+   }
+
+   /**
+    * @return the size of the chunks a body of unknown length should be sent in
+    */
+   public int getChunkSize() {
+      return source.getChunkSize();
+   }
+
+   /**
+    * @return the connect timeout in milliseconds
+    */
+   public int getTimeout() {
+      return source.timeout;
+   }
+
+   /**
+    * @return the connect timeout in milliseconds, reduced to the time remaining before the deadline if 
+    *    that is shorter
+    */
+   public int getConnectTimeout() {
+      long remaining = deadline.remaining();
+      if (remaining == Long.MAX_VALUE) {
+         return source.timeout;
+      }
+      int limit = (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+      return source.timeout <= 0 ? limit : Math.min(source.timeout, limit);
+   }
+
+   /**
+    * @return the read timeout in milliseconds, or 0 for none
+    */
+   public int getReadTimeout() {
+      return source.readTimeout;
+   }
+
+   /**
+    * @return the stale-while-revalidate window in seconds, or -1 to use that of the cached response
+    */
+   public int getStaleWhileRevalidate() {
+      return source.staleWhileRevalidate;
+   }
+
+   /**
+    * @return the stale-if-error window in seconds, or -1 to use that of the Cache-Control headers
+    */
+   public int getStaleIfError() {
+      return source.staleIfError;
+   }
+
+   /**
+    * The Deadline that the exchange must complete by. Transports register an action with 
+    * {@link Deadline#onCancel(Runnable)} to abort the exchange if it ends first.
+    * @return the Deadline
+    */
+   public Deadline getDeadline() {
+      return deadline;
+   }
+
+   /**
+    * @return whether redirects should be followed
+    */
+   public boolean getFollowRedirects() {
+      return source.followRedirects;
+   }
+
+   /**
+    * @return the proxy, or null if none
+    */
+   public java.net.Proxy getProxy() {
+      return source.proxy;
+   }
+
+   /**
+    * @return whether server certificate validation is disabled
+    */
+   public boolean getTrustAll() {
+      return source.trustAll;
+   }
+
+   /**
+    * @return the client certificates, or null if none
+    */
+   public ClientCerts getClientCerts() {
+      return source.clientCerts;
+   }
+
+   /**
+    * @return the connection pool to lease from, or null if pooling is disabled
+    */
+   public ConnectionPool getConnectionPool() {
+      return source.connectionPool;
+   }
+
+   /**
+    * @return the Route for this request
+    */
+   public Route getRoute() {
+      return Route.of(url, source.proxy, source.clientCerts, source.trustAll);
+   }
+
+   @Override
+   public String toString() {
+      return method + " " + url;
+   }
+}
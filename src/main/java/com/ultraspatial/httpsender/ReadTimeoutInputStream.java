@@ -0,0 +1,207 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An InputStream that reports a read that times out as a {@link ReadTimeoutException}. Where the socket 
+ * beneath has a read timeout of its own, that is all it does. Given the means to abort the stream, it 
+ * enforces the timeout itself: a read that has been blocked for longer than the timeout is aborted from the
+ * timer that expires {@link Deadline}s. The timer checks each stream once per timeout period, rather than 
+ * once per read, until the stream reaches its end, fails or is closed. The timer holds the stream weakly, 
+ * so a stream abandoned without being closed can still be garbage collected.
+ */
+class ReadTimeoutInputStream extends FilterInputStream {
+
+   private final int timeout;
+   private final long timeoutNanos;
+   private final Runnable abort;
+   private final ReentrantLock lock = new ReentrantLock();
+   private volatile boolean reading;
+   private volatile long readStarted;
+   private volatile boolean timedOut;
+   private boolean done;
+   private ScheduledFuture<?> watchdog;
+
+   /**
+    * Wrap a stream whose socket enforces the read timeout itself.
+    * @param in the stream
+    * @param timeout the read timeout in milliseconds, for reporting
+    */
+   ReadTimeoutInputStream(InputStream in, int timeout) {
+      this(in, timeout, null);
+   }
+
+   /**
+    * Wrap a stream, enforcing the read timeout.
+    * @param in the stream
+    * @param timeout the read timeout in milliseconds, or 0 for none
+    * @param abort aborts the stream, so that a blocked read fails, or null if the socket enforces the timeout
+    */
+   ReadTimeoutInputStream(InputStream in, int timeout, Runnable abort) {
+      super(in);
+      this.timeout = timeout;
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+      this.abort = abort;
+      if (abort != null && timeout > 0) {
+         watch(timeoutNanos);
+      }
+   }
+
+   @Override
+   public int read() throws IOException {
+      begin();
+      try {
+         int result = super.read();
+         if (result < 0) {
+            stopWatching();
+         }
+         return result;
+      } catch (IOException e) {
+         stopWatching();
+         throw translate(e);
+      } finally {
+         reading = false;
+      }
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      begin();
+      try {
+         int result = super.read(b, off, len);
+         if (result < 0) {
+            stopWatching();
+         }
+         return result;
+      } catch (IOException e) {
+         stopWatching();
+         throw translate(e);
+      } finally {
+         reading = false;
+      }
+   }
+
+   @Override
+   public long skip(long n) throws IOException {
+      begin();
+      try {
+         return super.skip(n);
+      } catch (IOException e) {
+         stopWatching();
+         throw translate(e);
+      } finally {
+         reading = false;
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      stopWatching();
+      super.close();
+   }
+
+   private void stopWatching() {
+      lock.lock();
+      try {
+         done = true;
+         if (watchdog != null) {
+            watchdog.cancel(false);
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void begin() {
+      readStarted = System.nanoTime();
+      reading = true;
+   }
+
+   private IOException translate(IOException e) {
+      if (e instanceof ReadTimeoutException) {
+         return e;
+      }
+      if (timedOut || e instanceof SocketTimeoutException) {
+         return new ReadTimeoutException("Read timed out after " + timeout + " ms", e);
+      }
+      return e;
+   }
+
+   private void watch(long delay) {
+      lock.lock();
+      try {
+         if (!done) {
+            watchdog = Deadline.runAfter(delay, new Watchdog(this));
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void check() {
+      long now = System.nanoTime();
+      if (!reading) {
+         watch(timeoutNanos);
+         return;
+      }
+      long blocked = now - readStarted;
+      if (blocked < timeoutNanos) {
+         watch(timeoutNanos - blocked);
+         return;
+      }
+      timedOut = true;
+      abort.run();
+   }
+
+   private static final class Watchdog implements Runnable {
+
+      private final WeakReference<ReadTimeoutInputStream> stream;
+
+      Watchdog(ReadTimeoutInputStream stream) {
+         this.stream = new WeakReference<>(stream);
+      }
+
+      @Override
+      public void run() {
+         ReadTimeoutInputStream s = stream.get();
+         if (s != null) {
+            s.check();
+         }
+      }
+   }
+}
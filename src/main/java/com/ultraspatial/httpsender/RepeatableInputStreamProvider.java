@@ -88,6 +88,12 @@ public class RepeatableInputStreamProvider implements InputStreamProvider {
       } 
       return new ByteArrayInputStream(data);
    }
+
+   @Override
+   public long getContentLength() {
+      //Not known until the InputStream has been read
+      return inputStream == null ? data.length : -1;
+   }
       
    private void readBytes() {
       try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -85,4 +85,40 @@ public interface Request {
     * @return a CompletableFuture representing the completion of the request.
     */
 	CompletableFuture<Response> executeAsync(Executor executor);
+
+   /**
+    * Execute the request on the current thread, giving up if it has not completed when the Deadline expires
+    * or is cancelled. The Deadline also covers reading the body of the Response. Requests that do not 
+    * support deadlines only check that the Deadline has not ended before starting.
+    * @param deadline the Deadline
+    * @throws RuntimeException if the request failed, caused by a {@link DeadlineExceededException} if the 
+    *    Deadline expired.
+    * @return the server response
+    */
+   default Response execute(Deadline deadline) {
+      Throwable failure = deadline.getFailure();
+      if (failure != null) {
+         throw new RuntimeException(failure);
+      }
+      return execute();
+   }
+
+   /**
+    * Execute the request asynchronously under a Deadline, using the specified Executor. If the Deadline
+    * expires or is cancelled before the request completes, the returned future fails with a 
+    * {@link DeadlineExceededException} or CancellationException. Requests that do not support deadlines only
+    * check that the Deadline has not ended before starting.
+    * @param executor the Executor to use to make the Request
+    * @param deadline the Deadline
+    * @return a CompletableFuture representing the completion of the request.
+    */
+   default CompletableFuture<Response> executeAsync(Executor executor, Deadline deadline) {
+      Throwable failure = deadline.getFailure();
+      if (failure != null) {
+         CompletableFuture<Response> cf = new CompletableFuture<>();
+         cf.completeExceptionally(failure);
+         return cf;
+      }
+      return executeAsync(executor);
+   }
 }
\ No newline at end of file
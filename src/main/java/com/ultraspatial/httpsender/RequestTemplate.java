@@ -0,0 +1,392 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A request whose url (including query parameters), headers and form fields have been parsed once
+ * into literal text and placeholders, so that it can be sent many times with different placeholder
+ * values without searching for and replacing each placeholder on every execution. Each placeholder
+ * is resolved to a numbered slot when the template is compiled, and rendering a request is a single
+ * pass over each part, appending literals and slot values.
+ * 
+ * A RequestTemplate is immutable and may be shared between threads. Values are supplied through a 
+ * {@link Bound} request obtained from one of the bind() methods:
+ * <pre>
+ * RequestTemplate template = RequestTemplate.compile(new Get("https://{host}/items/{id}").header("X-Trace", "{trace}"));
+ * Response response = template.bind().set("host", "example.com").set("id", "42").set("trace", "abc").execute();
+ * </pre>
+ * Placeholder values set on the original request act as defaults. As for an ordinary request, a 
+ * placeholder with no value is left in place.
+ */
+public final class RequestTemplate {
+
+   private final IndividualRequest<?> source;
+   private final String method;
+   private final Map<String, Integer> slots = new LinkedHashMap<>();
+   private final String[] defaults;
+   private final Template url;
+   private final Template[] headerNames;
+   private final Template[] headerValues;
+   private final Template[] fieldNames;
+   private final Template[] fieldValues;
+   private final InputStreamProvider body;
+
+   private RequestTemplate(IndividualRequest<?> request) {
+      source = request.copy().freeze();
+      method = source.getMethodName();
+      url = parse(rawUrl());
+      headerNames = new Template[source.headers.size()];
+      headerValues = new Template[source.headers.size()];
+      int i = 0;
+      for (HeaderValues hv : source.headers.values()) {
+         headerNames[i] = parse(hv.getName());
+         headerValues[i] = parse(String.join(", ", hv.getValues()));
+         i++;
+      }
+      if (source instanceof FormPost) {
+         List<Template> names = new ArrayList<>();
+         List<Template> values = new ArrayList<>();
+         for (Map.Entry<String, List<String>> entry : ((FormPost) source).getFormFields().entrySet()) {
+            Template name = parse(entry.getKey());
+            for (String value : entry.getValue()) {
+               names.add(name);
+               values.add(parse(value));
+            }
+         }
+         fieldNames = names.toArray(new Template[0]);
+         fieldValues = values.toArray(new Template[0]);
+         body = null;
+      } else {
+         fieldNames = null;
+         fieldValues = null;
+         body = source.getRequestBody();
+      }
+      defaults = new String[slots.size()];
+      for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+         defaults[slot.getValue()] = source.placeholders.get(slot.getKey());
+      }
+   }
+
+   /**
+    * Compile a request into a template. The request is copied, so later changes to it do not 
+    * affect the template.
+    * @param request the request
+    * @return the template
+    */
+   public static RequestTemplate compile(IndividualRequest<?> request) {
+      return new RequestTemplate(request);
+   }
+
+   /**
+    * @return the names of the placeholders in this template
+    */
+   public Set<String> getPlaceholderNames() {
+      return Collections.unmodifiableSet(slots.keySet());
+   }
+
+   /**
+    * @return a request from this template, with no placeholder values set other than the defaults
+    */
+   public Bound bind() {
+      return new Bound();
+   }
+
+   /**
+    * @param values placeholder values, by name. Names not used in the template are ignored.
+    * @return a request from this template with the specified placeholder values
+    */
+   public Bound bind(Map<String, String> values) {
+      Bound bound = new Bound();
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+         bound.set(entry.getKey(), entry.getValue());
+      }
+      return bound;
+   }
+
+   /**
+    * Send a request from this template with the specified placeholder values.
+    * @param values placeholder values, by name
+    * @return the server response
+    */
+   public Response execute(Map<String, String> values) {
+      return bind(values).execute();
+   }
+
+   //The url as assembled by IndividualRequest, before placeholders are substituted
+   private String rawUrl() {
+      URL base = source.url;
+      StringBuilder sb = new StringBuilder();
+      sb.append(base.getProtocol()).append("://").append(base.getHost());
+      if (base.getPort() >= 0) {
+         sb.append(':').append(base.getPort());
+      }
+      sb.append(base.getPath());
+      boolean and = base.getQuery() != null;
+      if (and) {
+         sb.append('?').append(base.getQuery());
+      }
+      for (Map.Entry<String, List<String>> entry : source.queryParams.entrySet()) {
+         for (String value : entry.getValue()) {
+            sb.append(and ? '&' : '?').append(entry.getKey()).append('=').append(value);
+            and = true;
+         }
+      }
+      return sb.toString();
+   }
+
+   private Template parse(String text) {
+      List<String> literals = new ArrayList<>();
+      List<Integer> vars = new ArrayList<>();
+      List<String> names = new ArrayList<>();
+      int literalStart = 0;
+      int open = text.indexOf('{');
+      while (open >= 0) {
+         int close = text.indexOf('}', open + 1);
+         if (close < 0) {
+            break;
+         }
+         int nested = text.indexOf('{', open + 1);
+         if (nested >= 0 && nested < close) {
+            //Not a placeholder: the brace is literal text
+            open = nested;
+            continue;
+         }
+         String name = text.substring(open + 1, close);
+         Integer slot = slots.get(name);
+         if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+         }
+         literals.add(text.substring(literalStart, open));
+         vars.add(slot);
+         names.add(name);
+         literalStart = close + 1;
+         open = text.indexOf('{', literalStart);
+      }
+      literals.add(text.substring(literalStart));
+      int[] slotArray = new int[vars.size()];
+      for (int i = 0; i < slotArray.length; i++) {
+         slotArray[i] = vars.get(i);
+      }
+      return new Template(literals.toArray(new String[0]), slotArray, names.toArray(new String[0]));
+   }
+
+   PreparedRequest prepare(String[] values, Deadline deadline) throws MalformedURLException {
+      URL assembledUrl = new URL(url.render(values));
+      Map<String, String> headers = new LinkedHashMap<>(headerNames.length * 2);
+      for (int i = 0; i < headerNames.length; i++) {
+         headers.put(headerNames[i].render(values), headerValues[i].render(values));
+      }
+      InputStreamProvider requestBody = body;
+      if (fieldNames != null) {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < fieldNames.length; i++) {
+            if (i > 0) {
+               sb.append('&');
+            }
+            sb.append(URLEncoder.encode(fieldNames[i].render(values), StandardCharsets.UTF_8));
+            sb.append('=');
+            sb.append(URLEncoder.encode(fieldValues[i].render(values), StandardCharsets.UTF_8));
+         }
+         requestBody = new RepeatableInputStreamProvider(sb.toString());
+      }
+      return new PreparedRequest(source, method, assembledUrl, headers, requestBody, deadline);
+   }
+
+   /**
+    * A piece of text split into literals and placeholder slots: literal[0] slot[0] literal[1] ... 
+    */
+   private static final class Template {
+
+      private final String[] literals;
+      private final int[] slots;
+      private final String[] names;
+      private final int literalLength;
+
+      Template(String[] literals, int[] slots, String[] names) {
+         this.literals = literals;
+         this.slots = slots;
+         this.names = names;
+         int length = 0;
+         for (String literal : literals) {
+            length += literal.length();
+         }
+         literalLength = length;
+      }
+
+      String render(String[] values) {
+         if (slots.length == 0) {
+            return literals[0];
+         }
+         StringBuilder sb = new StringBuilder(literalLength + 16 * slots.length);
+         for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]);
+            String value = values[slots[i]];
+            if (value == null) {
+               sb.append('{').append(names[i]).append('}');
+            } else {
+               sb.append(value);
+            }
+         }
+         sb.append(literals[slots.length]);
+         return sb.toString();
+      }
+   }
+
+   /**
+    * A request from a RequestTemplate together with values for its placeholders. Follows the Builder
+    * pattern to allow chaining of calls to set().
+    */
+   public final class Bound implements Request {
+
+      private final String[] values = defaults.clone();
+
+      private Bound() {
+      }
+
+      /**
+       * Set the value of a placeholder. Names not used in the template are ignored.
+       * @param name the name of the placeholder
+       * @param value the value to be substituted
+       * @return this (Builder pattern)
+       */
+      public Bound set(String name, String value) {
+         if (value.contains("{") || value.contains("}")) {
+            throw new IllegalArgumentException("Placholders may not contain curly brace {} characters");
+         }
+         Integer slot = slots.get(name);
+         if (slot != null) {
+            values[slot] = value;
+         }
+         return this;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public Response execute() {
+         return execute(Deadline.none());
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public Response execute(Deadline deadline) {
+         Deadline scope = source.scope(deadline);
+         try {
+            return IndividualRequest.send(source.getTransport(), prepare(values, scope));
+         } catch (Exception e) {
+            Throwable cause = scope.explain(e);
+            scope.complete();
+            throw new RuntimeException(cause);
+         }
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+         executeAsync(consumer, error, Executors.defaultExecutor());
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+         executeAsync(executor).whenComplete((response, thrown) -> {
+            if (thrown != null) {
+               error.accept(thrown);
+            } else {
+               consumer.accept(response);
+            }
+         });
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public ResponseFuture executeAsync() {
+         return executeAsync(Executors.defaultExecutor());
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public ResponseFuture executeAsync(Executor executor) {
+         return executeAsync(executor, Deadline.none());
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public ResponseFuture executeAsync(Executor executor, Deadline deadline) {
+         Deadline scope = source.scope(deadline);
+         ResponseFuture result = new ResponseFuture(scope);
+         try {
+            IndividualRequest.sendAsync(source.getTransport(), prepare(values, scope), executor, result);
+         } catch (Exception e) {
+            scope.complete();
+            result.completeExceptionally(new RuntimeException(e));
+         }
+         return result;
+      }
+
+      /**
+       * @return the url, with the placeholder values substituted
+       */
+      String renderUrl() {
+         return url.render(values);
+      }
+
+      @Override
+      public String toString() {
+         return method + " " + url.render(values);
+      }
+   }
+}
@@ -30,56 +30,169 @@ package com.ultraspatial.httpsender;
 
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.ref.Cleaner;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A Response to an  Http Request
  */
 public class Response implements Closeable {
 
+   private static final Cleaner CLEANER = Cleaner.create();
+   private static final int TRANSFER_BUFFER_SIZE = 262144;
+
    private IndividualRequest<?> request;
    private HttpURLConnection conn;
+   private ConnectionPool.Lease lease;
    private Map<String, HeaderValues> headers = new HashMap<>();
    private InputStream responseBodyStream = new ByteArrayInputStream(new byte[] {});
    private int responseCode;
+   private String protocol;
    private String responseStatus;
    private long start = -1L;
-   private long finish = -1L;
+   private volatile long finish = -1L;
+   private final AtomicReference<Runnable> completion = new AtomicReference<>();
    
    Response(IndividualRequest<?> request, HttpURLConnection conn, long start) {
+      this(request, conn, null, start);
+   }
+
+   Response(IndividualRequest<?> request, HttpURLConnection conn, ConnectionPool.Lease lease, long start) {
       try {
-         this.request = request.copy();
+         this.request = request.isFrozen() ? request : request.copy();
          this.conn = conn;
+         this.lease = lease;
          this.start = start;
          responseCode = conn.getResponseCode();
-         InputStream errorStream = conn.getErrorStream();
-         if (errorStream != null) {
-            responseBodyStream = new CloseTimeAwareInputStream(errorStream, end -> {finish = end;});
-         } else {
-            InputStream is = conn.getInputStream();
-            if (is != null) {
-               responseBodyStream = new CloseTimeAwareInputStream(is, end -> {finish = end;});
-            } else {
-               finish = System.currentTimeMillis();
-            }
+         String statusLine = conn.getHeaderField(0);
+         if (statusLine != null && statusLine.startsWith("HTTP/")) {
+            int space = statusLine.indexOf(' ');
+            protocol = space > 0 ? statusLine.substring(0, space) : statusLine;
          }
          populateHeaders(conn.getHeaderFields());
          responseStatus = conn.getResponseMessage();
+         InputStream is = conn.getErrorStream();
+         if (is == null && responseCode < 400) {
+            //For an error with no body, getInputStream() would throw rather than return an empty stream
+            is = conn.getInputStream();
+         }
+         if (is != null) {
+            //HttpURLConnection enforces the read timeout itself: it only needs reporting as a ReadTimeoutException
+            responseBodyStream = new CloseTimeAwareInputStream(new ReadTimeoutInputStream(is, request.readTimeout), 
+                  this::bodyClosed);
+            if (lease != null) {
+               //If the body stream is abandoned without being closed, don't leak the lease
+               CLEANER.register(responseBodyStream, new Abandoned(conn, lease));
+            }
+         } else {
+            bodyClosed(System.currentTimeMillis());
+         }
       } catch (IOException ioe) {
          throw new RuntimeException(ioe);
       }
    }
 
+   /**
+    * Construct a Response from its constituent parts. For use by {@link Transport} implementations.
+    * @param request the request that elicited this Response
+    * @param protocol the protocol the response was received over, e.g. HTTP/1.1 or HTTP/2 (may be null)
+    * @param responseCode the HTTP status code
+    * @param responseStatus the status message (may be null)
+    * @param headerFields the response headers
+    * @param body the response body (may be null if there is no body)
+    * @param start the time the request was started, in milliseconds since the epoch
+    */
+   public Response(IndividualRequest<?> request, String protocol, int responseCode, String responseStatus, 
+         Map<String, List<String>> headerFields, InputStream body, long start) {
+      this.request = request.isFrozen() ? request : request.copy();
+      this.protocol = protocol;
+      this.start = start;
+      this.responseCode = responseCode;
+      this.responseStatus = responseStatus;
+      populateHeaders(headerFields);
+      if (body != null) {
+         responseBodyStream = new CloseTimeAwareInputStream(body, this::bodyClosed);
+      } else {
+         bodyClosed(System.currentTimeMillis());
+      }
+   }
+
+   private void bodyClosed(long end) {
+      finish = end;
+      //Before the connection can be reused, so that a late abort cannot affect another exchange
+      runCompletion();
+      if (lease != null) {
+         HeaderValues connection = getHeaders("Connection");
+         if (connection != null) {
+            for (String value : connection.getValues()) {
+               if ("close".equalsIgnoreCase(value.trim())) {
+                  lease.release(false);
+                  return;
+               }
+            }
+         }
+         PooledConnection pooled = lease.getConnection();
+         if (pooled instanceof KeepAliveConnection) {
+            HeaderValues keepAlive = getHeaders("Keep-Alive");
+            ((KeepAliveConnection) pooled).returned(keepAlive == null ? null : keepAlive.getValues().get(0));
+         }
+         lease.release(true);
+      }
+   }
+
+   /**
+    * Run an action when the body has been closed, or now if it already has been, after any actions set 
+    * previously.
+    * @param action the action
+    */
+   void onComplete(Runnable action) {
+      completion.accumulateAndGet(action, (previous, next) -> previous == null ? next : () -> {
+         previous.run();
+         next.run();
+      });
+      if (finish >= 0) {
+         runCompletion();
+      }
+   }
+
+   /**
+    * Tie the Response to the Deadline its request was sent under. The Deadline is completed when the body 
+    * has been closed, and a read of the body that fails because the Deadline ended (and aborted the 
+    * connection) reports why it ended, rather than just that the connection was closed.
+    * @param deadline the Deadline
+    */
+   void runUnder(Deadline deadline) {
+      if (finish < 0) {
+         responseBodyStream = new ExplainingInputStream(responseBodyStream, deadline);
+      }
+      onComplete(deadline::complete);
+   }
+
+   private void runCompletion() {
+      Runnable action = completion.getAndSet(null);
+      if (action != null) {
+         action.run();
+      }
+   }
+
    private void populateHeaders(Map<String, List<String>> headerFields) {
       for (Map.Entry<String, List<String>> entry: headerFields.entrySet()) {
          HeaderValues hv = new HeaderValues(entry.getKey());
@@ -92,7 +205,18 @@ public class Response implements Closeable {
    }
 
    /**
-    * @return a copy of the request that elicited this Response.
+    * @return all the Response headers, keyed by name as received
+    */
+   Map<String, List<String>> getHeaderFields() {
+      Map<String, List<String>> fields = new HashMap<>();
+      for (HeaderValues hv : headers.values()) {
+         fields.put(hv.getName(), new ArrayList<>(hv.getValues()));
+      }
+      return fields;
+   }
+
+   /**
+    * @return the request that elicited this Response if it is frozen, otherwise a copy of it.
     */
    public IndividualRequest<?> getRequest() {
       return this.request;
@@ -129,6 +253,54 @@ public class Response implements Closeable {
       }
    }
    
+   /**
+    * Write the entire Response body to a file, replacing any existing content. The response InputStream
+    * will be closed by this call.
+    * @param file the file to write to
+    * @return the number of bytes written
+    */
+   public long bodyToFile(Path file) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+         return transferTo(channel);
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Write the entire Response body to a channel, in large blocks. The response InputStream will be 
+    * closed by this call; the channel will not.
+    * @param target the channel to write to
+    * @return the number of bytes written
+    */
+   public long transferTo(WritableByteChannel target) {
+      try (InputStream is = responseBodyStream) {
+         byte[] block = new byte[TRANSFER_BUFFER_SIZE];
+         long total = 0;
+         int len;
+         while ((len = readBlock(is, block)) > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, len);
+            while (buffer.hasRemaining()) {
+               total += target.write(buffer);
+            }
+         }
+         return total;
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   //Fill as much of the block as possible, so that each write to the channel is a large one
+   private static int readBlock(InputStream is, byte[] block) throws IOException {
+      int count = 0;
+      int len;
+      while (count < block.length && (len = is.read(block, count, block.length - count)) != -1) {
+         count += len;
+      }
+      return count;
+   }
+   
    /**
     * @return the InputStream for the Response.
     */
@@ -150,6 +322,14 @@ public class Response implements Closeable {
       return responseCode;
    }
    
+   /**
+    * @return the protocol that the response was received over, e.g. HTTP/1.1 or HTTP/2. May be null
+    * if this could not be determined.
+    */
+   public String getProtocol() {
+      return protocol;
+   }
+   
    /**
     * @return the response's status message
     */
@@ -209,18 +389,89 @@ public class Response implements Closeable {
    }
 
    /**
-    * Close the underlying InputStream and clean up any resources.
+    * Close the underlying InputStream and clean up any resources. If the request was made through
+    * a {@link ConnectionPool}, the connection is returned to the pool for reuse.
     */
    @Override
    public void close() throws IOException {
+      boolean clean = true;
       if (responseBodyStream != null) {
          try {   
             responseBodyStream.close();
          } catch(IOException ioe) {
+            clean = false;
          }
       }
-      if (conn != null) {
+      if (conn != null && (lease == null || !clean)) {
          conn.disconnect();
       }
+      if (lease != null && !clean) {
+         lease.release(false);
+      }
+      if (!clean) {
+         runCompletion();
+      }
+   }
+
+   //Reports failed reads of the body in terms of the Deadline that aborted them
+   private static class ExplainingInputStream extends FilterInputStream {
+
+      private final Deadline deadline;
+
+      ExplainingInputStream(InputStream in, Deadline deadline) {
+         super(in);
+         this.deadline = deadline;
+      }
+
+      @Override
+      public int read() throws IOException {
+         try {
+            return super.read();
+         } catch (IOException e) {
+            throw explain(e);
+         }
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         try {
+            return super.read(b, off, len);
+         } catch (IOException e) {
+            throw explain(e);
+         }
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         try {
+            return super.skip(n);
+         } catch (IOException e) {
+            throw explain(e);
+         }
+      }
+
+      private IOException explain(IOException e) {
+         Throwable cause = deadline.explain(e);
+         return cause instanceof IOException ? (IOException) cause : e;
+      }
+   }
+
+   private static class Abandoned implements Runnable {
+
+      private final HttpURLConnection conn;
+      private final ConnectionPool.Lease lease;
+
+      Abandoned(HttpURLConnection conn, ConnectionPool.Lease lease) {
+         this.conn = conn;
+         this.lease = lease;
+      }
+
+      @Override
+      public void run() {
+         if (!lease.isReleased()) {
+            conn.disconnect();
+            lease.release(false);
+         }
+      }
    }
 }
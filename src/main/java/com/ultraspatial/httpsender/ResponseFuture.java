@@ -0,0 +1,75 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.ultraspatial.httpsender;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The future result of executing a Request asynchronously, which can be used to cancel it. Cancelling the
+ * future cancels the {@link Deadline} the Request runs under, aborting any exchange in progress. If the 
+ * Deadline expires or is cancelled first, the future fails with the reason. Futures derived from this one 
+ * (with thenApply and so on) are ordinary CompletableFutures, and cancelling them does not cancel the Request.
+ */
+public class ResponseFuture extends CompletableFuture<Response> {
+
+   private final Deadline deadline;
+
+   /**
+    * @param deadline the Deadline the Request runs under
+    */
+   public ResponseFuture(Deadline deadline) {
+      this.deadline = deadline;
+      deadline.onCancel(() -> completeExceptionally(deadline.getFailure()));
+   }
+
+   /**
+    * @return the Deadline the Request runs under
+    */
+   public Deadline getDeadline() {
+      return deadline;
+   }
+
+   /**
+    * Cancel the Request, aborting any exchange in progress
+    * @param mayInterruptIfRunning ignored: threads are not interrupted, but connections are aborted
+    * @return true if the future was cancelled
+    */
+   @Override
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+         deadline.cancel();
+      }
+      return cancelled;
+   }
+
+   @Override
+   public <U> CompletableFuture<U> newIncompleteFuture() {
+      return new CompletableFuture<>();
+   }
+}
@@ -0,0 +1,207 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the body of a GET request to a file, resuming where it left off if the connection is
+ * lost part way through. A resumed request asks only for the missing part of the body, with a
+ * Range header, and carries an If-Range header with the ETag (or Last-Modified date) of the 
+ * original response, so that the server sends the whole body again if it has changed in the 
+ * meantime. Servers that ignore the Range header are handled in the same way.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class ResumableDownload {
+
+   private static Logger log = Logger.getLogger(ResumableDownload.class.getName());
+
+   private final Get request;
+   private final Path file;
+   private int maxResumes = 5;
+   private int resumes;
+
+   /**
+    * Create a download
+    * @param request the request for the content. It is copied for each attempt, and is not modified.
+    * @param file the file to write the content to. Any existing content is replaced.
+    */
+   public ResumableDownload(Get request, Path file) {
+      this.request = request;
+      this.file = file;
+   }
+
+   /**
+    * Set the maximum number of times the download may be resumed after a failure. Default is 5.
+    * @param max the maximum number of resumes
+    * @return this (Builder pattern)
+    */
+   public ResumableDownload maxResumes(int max) {
+      if (max < 0) {
+         throw new IllegalArgumentException("maxResumes may not be negative");
+      }
+      maxResumes = max;
+      return this;
+   }
+
+   /**
+    * @return the number of times the last execution was resumed
+    */
+   public int getResumes() {
+      return resumes;
+   }
+
+   /**
+    * Download the content to the file.
+    * @return the number of bytes in the file
+    * @throws RuntimeException if the download fails, including with an error Response
+    */
+   public long execute() {
+      resumes = 0;
+      String validator = null;
+      try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (true) {
+            long written = out.size();
+            Get attempt = request.copy();
+            if (written > 0) {
+               attempt.header("Range", "bytes=" + written + "-");
+               if (validator != null) {
+                  attempt.header("If-Range", validator);
+               }
+               log.fine("Resuming download of " + request + " at byte " + written);
+            }
+            long expected = -1;
+            try {
+               Response response = attempt.execute();
+               int code = response.getResponseCode();
+               if (code == 206 && written > 0 && rangeStart(response) == written) {
+                  expected = contentLength(response) < 0 ? -1 : written + contentLength(response);
+               } else if (code == 200) {
+                  //A fresh copy of the whole body: either the first attempt, or the content changed
+                  if (written > 0) {
+                     log.fine("Server sent the whole of " + request + " again, restarting");
+                  }
+                  out.truncate(0);
+                  validator = validator(response);
+                  expected = contentLength(response);
+               } else if (code == 206) {
+                  response.close();
+                  throw new IOException("Response to " + request + " has an unexpected Content-Range");
+               } else {
+                  response.close();
+                  throw new DownloadFailedException(response);
+               }
+               out.position(out.size());
+               response.transferTo(out);
+               if (expected < 0 || out.size() >= expected) {
+                  return out.size();
+               }
+               throw new IOException("Connection closed after " + out.size() + " of " + expected + " bytes");
+            } catch (DownloadFailedException e) {
+               throw e;
+            } catch (Exception e) {
+               boolean canResume = validator != null && out.size() > 0;
+               if (resumes >= maxResumes) {
+                  throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+               }
+               resumes++;
+               log.log(Level.FINE, "Download of " + request + " interrupted", e);
+               if (!canResume) {
+                  //Without a validator there is no way to be sure the rest matches what we already have
+                  out.truncate(0);
+               }
+            }
+         }
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   //A strong ETag, or failing that Last-Modified, to send with If-Range
+   static String validator(Response response) {
+      HeaderValues etag = response.getHeaders("ETag");
+      if (etag != null && !etag.getValues().isEmpty() && !etag.getValues().get(0).startsWith("W/")) {
+         return etag.getValues().get(0);
+      }
+      HeaderValues lastModified = response.getHeaders("Last-Modified");
+      if (lastModified != null && !lastModified.getValues().isEmpty()) {
+         return lastModified.getValues().get(0);
+      }
+      return null;
+   }
+
+   private static long contentLength(Response response) {
+      HeaderValues length = response.getHeaders("Content-Length");
+      if (length == null || length.getValues().isEmpty()) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(length.getValues().get(0).trim());
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   //The first byte position in a Content-Range header: "bytes 1000-1999/2000"
+   static long rangeStart(Response response) {
+      HeaderValues range = response.getHeaders("Content-Range");
+      if (range == null || range.getValues().isEmpty()) {
+         return -1;
+      }
+      String value = range.getValues().get(0).trim();
+      int dash = value.indexOf('-');
+      if (!value.startsWith("bytes ") || dash < 0) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(value.substring(6, dash).trim());
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   /**
+    * Thrown when the server responds with an error, which is not worth retrying.
+    */
+   private static class DownloadFailedException extends RuntimeException {
+
+      private static final long serialVersionUID = 1L;
+
+      DownloadFailedException(Response response) {
+         super("Download of " + response.getRequest() + " failed with status " + response.getResponseCode());
+      }
+   }
+}
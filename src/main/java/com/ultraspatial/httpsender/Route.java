@@ -0,0 +1,147 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.net.URL;
+import java.util.Objects;
+
+/**
+ * Identifies the set of requests that can share a connection: the scheme, host and port of the
+ * target server, together with the proxy and TLS settings used to reach it. Connections are 
+ * only ever reused between requests with equal Routes.
+ */
+public final class Route {
+
+   private final String scheme;
+   private final String host;
+   private final int port;
+   private final java.net.Proxy proxy;
+   private final ClientCerts clientCerts;
+   private final boolean trustAll;
+
+   private Route(String scheme, String host, int port, java.net.Proxy proxy, ClientCerts clientCerts, boolean trustAll) {
+      this.scheme = scheme;
+      this.host = host;
+      this.port = port;
+      this.proxy = proxy;
+      this.clientCerts = clientCerts;
+      this.trustAll = trustAll;
+   }
+
+   /**
+    * Create the Route for a request.
+    * @param url the (fully assembled) url of the request
+    * @param proxy the (optional) proxy
+    * @param clientCerts the (optional) client certificates
+    * @param trustAll whether server certificate validation is disabled
+    * @return the Route
+    */
+   public static Route of(URL url, java.net.Proxy proxy, ClientCerts clientCerts, boolean trustAll) {
+      String scheme = url.getProtocol().toLowerCase();
+      int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+      return new Route(scheme, url.getHost().toLowerCase(), port, proxy, clientCerts, trustAll);
+   }
+
+   /**
+    * @return the scheme (http or https)
+    */
+   public String getScheme() {
+      return scheme;
+   }
+
+   /**
+    * @return the host name
+    */
+   public String getHost() {
+      return host;
+   }
+
+   /**
+    * @return the port, with the scheme's default port filled in if none was specified.
+    */
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * @return the proxy, or null if none
+    */
+   public java.net.Proxy getProxy() {
+      return proxy;
+   }
+
+   /**
+    * @return the client certificates, or null if none
+    */
+   public ClientCerts getClientCerts() {
+      return clientCerts;
+   }
+
+   /**
+    * @return whether server certificate validation is disabled
+    */
+   public boolean isTrustAll() {
+      return trustAll;
+   }
+
+   /**
+    * @return true if this is an https Route
+    */
+   public boolean isSecure() {
+      return "https".equals(scheme);
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj) {
+         return true;
+      }
+      if (!(obj instanceof Route)) {
+         return false;
+      }
+      Route other = (Route) obj;
+      return port == other.port && trustAll == other.trustAll && scheme.equals(other.scheme)
+            && host.equals(other.host) && Objects.equals(proxy, other.proxy) && clientCerts == other.clientCerts;
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hash(scheme, host, port, proxy, System.identityHashCode(clientCerts), trustAll);
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder builder = new StringBuilder();
+      builder.append(scheme).append("://").append(host).append(':').append(port);
+      if (proxy != null) {
+         builder.append(" via ").append(proxy);
+      }
+      return builder.toString();
+   }
+}
@@ -0,0 +1,426 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ultraspatial.httpsender.fallback.BackoffStrategy;
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+/**
+ * Downloads the body of a GET request to a file as several byte ranges fetched in parallel, which
+ * can be much faster than a single connection when the latency to the server is high. A first
+ * request for one byte finds out the size of the content and whether the server supports range
+ * requests at all; if it doesn't, the content is downloaded with a single request instead.
+ * 
+ * Each segment is written straight to its place in the file as it arrives. A segment that fails
+ * is retried according to a RetryStrategy and BackoffStrategy, asking only for the part of the 
+ * segment not yet received. If the content changes on the server part way through (detected with
+ * If-Range), the download fails.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class SegmentedDownload {
+
+   private static Logger log = Logger.getLogger(SegmentedDownload.class.getName());
+   private static final int BUFFER_SIZE = 65536;
+
+   private final Get request;
+   private final Path file;
+   private int segments = 4;
+   private long minSegmentSize = 1024 * 1024;
+   private RetryStrategy retryStrategy = RetryStrategy.maxTotalTries(3);
+   private BackoffStrategy backoffStrategy = BackoffStrategy.none();
+   private Executor executor = Executors.defaultExecutor();
+   private final AtomicLong downloaded = new AtomicLong();
+   private final AtomicInteger retries = new AtomicInteger();
+   private volatile boolean failed;
+
+   /**
+    * Create a download
+    * @param request the request for the content. It is copied for each segment, and is not modified.
+    * @param file the file to write the content to. Any existing content is replaced.
+    */
+   public SegmentedDownload(Get request, Path file) {
+      this.request = request;
+      this.file = file;
+   }
+
+   /**
+    * Set the number of segments to download in parallel. Default is 4.
+    * @param count the number of segments
+    * @return this (Builder pattern)
+    */
+   public SegmentedDownload segments(int count) {
+      if (count < 1) {
+         throw new IllegalArgumentException("There must be at least 1 segment");
+      }
+      segments = count;
+      return this;
+   }
+
+   /**
+    * Set the smallest size of segment worth fetching separately: small content is split into fewer
+    * segments. Default is 1MB.
+    * @param size the size in bytes
+    * @return this (Builder pattern)
+    */
+   public SegmentedDownload minSegmentSize(long size) {
+      if (size < 1) {
+         throw new IllegalArgumentException("minSegmentSize must be at least 1");
+      }
+      minSegmentSize = size;
+      return this;
+   }
+
+   /**
+    * Set the RetryStrategy applied to each segment. Default is a maximum of 3 tries.
+    * @param strategy the RetryStrategy
+    * @return this (Builder pattern)
+    */
+   public SegmentedDownload retryStrategy(RetryStrategy strategy) {
+      retryStrategy = strategy;
+      return this;
+   }
+
+   /**
+    * Set the BackoffStrategy applied to each segment. Default is to retry immediately.
+    * @param strategy the BackoffStrategy
+    * @return this (Builder pattern)
+    */
+   public SegmentedDownload backoffStrategy(BackoffStrategy strategy) {
+      backoffStrategy = strategy;
+      return this;
+   }
+
+   /**
+    * Set the Executor that segments are downloaded on. Default is {@link Executors#defaultExecutor()}.
+    * @param executor the Executor
+    * @return this (Builder pattern)
+    */
+   public SegmentedDownload executor(Executor executor) {
+      this.executor = executor;
+      return this;
+   }
+
+   /**
+    * @return the number of bytes written to the file so far, for reporting progress
+    */
+   public long getBytesDownloaded() {
+      return downloaded.get();
+   }
+
+   /**
+    * Download the content to the file, waiting until it is complete.
+    * @return the outcome of the download
+    * @throws RuntimeException if the download fails
+    */
+   public Result execute() {
+      try {
+         return begin().join();
+      } catch (CompletionException e) {
+         throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+   }
+
+   /**
+    * Download the content to the file asynchronously. The segments themselves are always downloaded on 
+    * this download's Executor, and no thread waits for them.
+    * @param executor the Executor to coordinate the download on
+    * @return a CompletableFuture that completes when the download is complete
+    */
+   public CompletableFuture<Result> executeAsync(Executor executor) {
+      return CompletableFuture.supplyAsync(this::begin, executor).thenCompose(Function.identity());
+   }
+
+   //Probe the content, and start downloading its segments: the future completes when the last of them does
+   private CompletableFuture<Result> begin() {
+      long start = System.currentTimeMillis();
+      downloaded.set(0);
+      retries.set(0);
+      failed = false;
+      FileChannel channel;
+      try {
+         channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+               StandardOpenOption.TRUNCATE_EXISTING);
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+      try {
+         Response probe = request.copy().header("Range", "bytes=0-0").execute();
+         long total = totalLength(probe);
+         String validator = ResumableDownload.validator(probe);
+         if (probe.getResponseCode() >= 400) {
+            probe.close();
+            throw new RuntimeException("Download of " + request + " failed with status " + probe.getResponseCode());
+         }
+         if (probe.getResponseCode() != 206) {
+            //The server ignored the Range header and is sending the whole body
+            log.fine(request + " does not support range requests, downloading in a single request");
+            return CompletableFuture.completedFuture(single(probe, channel, start));
+         }
+         probe.close();
+         if (total < 0) {
+            return CompletableFuture.completedFuture(single(request.copy().execute(), channel, start));
+         }
+         int count = (int) Math.max(1, Math.min(segments, total / minSegmentSize));
+         if (total > 0) {
+            //Allocate the whole file up front, so each segment can be written at its own position
+            channel.write(ByteBuffer.wrap(new byte[1]), total - 1);
+         }
+         CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+         long size = total / count;
+         for (int i = 0; i < count; i++) {
+            long first = i * size;
+            long last = i == count - 1 ? total - 1 : first + size - 1;
+            Segment segment = new Segment(channel, first, last, validator);
+            futures[i] = segment.done;
+            segment.submit();
+         }
+         return CompletableFuture.allOf(futures).handle((v, thrown) -> {
+            closeQuietly(channel);
+            if (thrown != null) {
+               Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+               throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+            return new Result(total, count, retries.get(), System.currentTimeMillis() - start);
+         });
+      } catch (IOException e) {
+         closeQuietly(channel);
+         throw new RuntimeException(e);
+      } catch (RuntimeException e) {
+         closeQuietly(channel);
+         throw e;
+      }
+   }
+
+   private Result single(Response response, FileChannel channel, long start) {
+      try {
+         long size = response.transferTo(channel);
+         downloaded.set(size);
+         return new Result(size, 1, 0, System.currentTimeMillis() - start);
+      } finally {
+         closeQuietly(channel);
+      }
+   }
+
+   private static void closeQuietly(FileChannel channel) {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         //Ignore
+      }
+   }
+
+   //Fetches bytes first to last (inclusive) of the content, retrying from where it stopped if it fails. Each
+   //attempt runs on the Executor; the backoff before a retry is waited out on the timer, not on a pool thread.
+   private final class Segment implements Runnable {
+
+      private final FileChannel channel;
+      private final long first;
+      private final long last;
+      private final String validator;
+      private final CompletableFuture<Void> done = new CompletableFuture<>();
+      private long position;
+      private int attemptNo;
+
+      Segment(FileChannel channel, long first, long last, String validator) {
+         this.channel = channel;
+         this.first = first;
+         this.last = last;
+         this.validator = validator;
+         position = first;
+      }
+
+      void submit() {
+         try {
+            executor.execute(this);
+         } catch (RejectedExecutionException e) {
+            failed = true;
+            done.completeExceptionally(e);
+         }
+      }
+
+      @Override
+      public void run() {
+         attemptNo++;
+         try {
+            Get get = request.copy().header("Range", "bytes=" + position + "-" + last);
+            if (validator != null) {
+               get.header("If-Range", validator);
+            }
+            try (Response response = get.execute()) {
+               int code = response.getResponseCode();
+               if (code == 200 || (code == 206 && ResumableDownload.rangeStart(response) != position)) {
+                  //If-Range didn't match, so the server sent the whole of a newer version
+                  failed = true;
+                  throw new ContentChangedException(request + " changed while it was being downloaded");
+               }
+               if (code != 206) {
+                  throw new IOException("Segment request failed with status " + code);
+               }
+               position = copy(response.bodyAsStream(), channel, position, last);
+            }
+            if (position > last) {
+               done.complete(null);
+               return;
+            }
+            throw new IOException("Connection closed " + (last + 1 - position) + " bytes before the end of a segment");
+         } catch (ContentChangedException e) {
+            done.completeExceptionally(e);
+         } catch (Exception e) {
+            if (failed || !retryStrategy.shouldRetry(attemptNo, e)) {
+               failed = true;
+               done.completeExceptionally(e instanceof RuntimeException ? e : new RuntimeException(e));
+               return;
+            }
+            retries.incrementAndGet();
+            log.log(Level.FINE, "Segment " + first + "-" + last + " of " + request + " failed, retrying", e);
+            long backoff = backoffStrategy.getBackoff(attemptNo);
+            if (backoff > 0) {
+               Deadline.runAfter(TimeUnit.MILLISECONDS.toNanos(backoff), this::submit);
+            } else {
+               submit();
+            }
+         }
+      }
+   }
+
+   //Returns the position after the last byte written
+   private long copy(InputStream is, FileChannel channel, long position, long last) throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int len;
+      while (position <= last && !failed && (len = is.read(buffer, 0, (int) Math.min(buffer.length, last + 1 - position))) != -1) {
+         ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+         while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+         }
+         downloaded.addAndGet(len);
+      }
+      return position;
+   }
+
+   //The complete length from a Content-Range header: "bytes 0-0/2000"
+   private static long totalLength(Response response) {
+      HeaderValues range = response.getHeaders("Content-Range");
+      if (range == null || range.getValues().isEmpty()) {
+         return -1;
+      }
+      String value = range.getValues().get(0);
+      int slash = value.indexOf('/');
+      try {
+         return slash < 0 ? -1 : Long.parseLong(value.substring(slash + 1).trim());
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   /**
+    * The outcome of a completed download.
+    */
+   public static final class Result {
+
+      private final long bytes;
+      private final int segments;
+      private final int retries;
+      private final long elapsed;
+
+      Result(long bytes, int segments, int retries, long elapsed) {
+         this.bytes = bytes;
+         this.segments = segments;
+         this.retries = retries;
+         this.elapsed = elapsed;
+      }
+
+      /**
+       * @return the size of the content in bytes
+       */
+      public long getBytes() {
+         return bytes;
+      }
+
+      /**
+       * @return the number of segments the content was downloaded in
+       */
+      public int getSegments() {
+         return segments;
+      }
+
+      /**
+       * @return the number of times a segment was retried
+       */
+      public int getRetries() {
+         return retries;
+      }
+
+      /**
+       * @return how long the download took, in milliseconds
+       */
+      public long getElapsed() {
+         return elapsed;
+      }
+
+      /**
+       * @return the aggregate throughput of all the segments, in bytes per second
+       */
+      public double getThroughput() {
+         return bytes * 1000.0 / Math.max(1, elapsed);
+      }
+
+      @Override
+      public String toString() {
+         return "Result[bytes=" + bytes + ", segments=" + segments + ", retries=" + retries 
+               + ", elapsed=" + elapsed + "ms, throughput=" + (long) getThroughput() + "B/s]";
+      }
+   }
+
+   private static class ContentChangedException extends RuntimeException {
+
+      private static final long serialVersionUID = 1L;
+
+      ContentChangedException(String message) {
+         super(message);
+      }
+   }
+}
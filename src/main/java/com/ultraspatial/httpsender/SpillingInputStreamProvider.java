@@ -0,0 +1,227 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A provider that returns an InputStream which returns the same data every time it is called, 
+ * read once from an InputStream. Small bodies are held in memory; once a body grows beyond a 
+ * threshold, it is written to a temporary file instead and every InputStream is read back from
+ * that file. This allows a request with a large body to be retried (for instance by a 
+ * FallbackRequest) without holding the whole body on the heap.
+ * 
+ * The temporary file is deleted when the provider is closed, or failing that when the provider
+ * is garbage collected. A body held in memory is unaffected by close(), and can still be replayed.
+ */
+public class SpillingInputStreamProvider implements InputStreamProvider, Closeable {
+
+   /**
+    * The default size, in bytes, above which a body is written to a temporary file (1MB)
+    */
+   public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+   private static final Cleaner CLEANER = Cleaner.create();
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final int threshold;
+   private InputStream inputStream;
+   private byte[] data;
+   private long length = -1;
+   private TempFile tempFile;
+   private Cleaner.Cleanable cleanable;
+   private boolean closed;
+
+   /**
+    * Construct a provider that reads its data from the specified InputStream, writing it to a 
+    * temporary file if it is larger than 1MB.
+    * @param is an InputStream that provides the underlying data
+    */
+   public SpillingInputStreamProvider(InputStream is) {
+      this(is, DEFAULT_THRESHOLD);
+   }
+
+   /**
+    * Construct a provider that reads its data from the specified InputStream, writing it to a 
+    * temporary file if it is larger than the specified threshold.
+    * @param is an InputStream that provides the underlying data
+    * @param threshold the size in bytes above which the data is written to a temporary file
+    */
+   public SpillingInputStreamProvider(InputStream is, int threshold) {
+      if (threshold < 0) {
+         throw new IllegalArgumentException("Threshold may not be negative");
+      }
+      this.inputStream = is;
+      this.threshold = threshold;
+   }
+
+   @Override
+   public InputStream getInputStream() {
+      load();
+      if (data != null) {
+         return new ByteArrayInputStream(data);
+      }
+      try {
+         return Channels.newInputStream(FileChannel.open(tempFile.path, StandardOpenOption.READ));
+      } catch (IOException ioe) {
+         throw new RuntimeException(ioe);
+      }
+   }
+
+   /**
+    * Reads the underlying InputStream if that has not already been done, so that the length is 
+    * known and the body can be sent with a Content-Length header.
+    */
+   @Override
+   public long getContentLength() {
+      load();
+      return length;
+   }
+
+   /**
+    * @return true if the data has been read and was written to a temporary file
+    */
+   public boolean isSpilled() {
+      lock.lock();
+      try {
+         return tempFile != null;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Delete the temporary file, if any. A provider whose body was written to a temporary file may not be 
+    * used after it has been closed; one whose body is held in memory (or has not been read yet) is unaffected.
+    */
+   @Override
+   public void close() {
+      lock.lock();
+      try {
+         if (cleanable != null) {
+            closed = true;
+            cleanable.clean();
+            cleanable = null;
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void load() {
+      lock.lock();
+      try {
+         if (closed) {
+            throw new IllegalStateException("Provider has been closed, and its temporary file deleted");
+         }
+         if (length >= 0) {
+            return;
+         }
+         try (InputStream is = inputStream) {
+            byte[] buffer = new byte[Math.min(threshold, 65536) + 1];
+            int count = 0;
+            int len;
+            while (count <= threshold && (len = is.read(buffer, count, buffer.length - count)) != -1) {
+               count += len;
+               if (count == buffer.length && count <= threshold) {
+                  buffer = Arrays.copyOf(buffer, Math.min(threshold + 1, buffer.length * 2));
+               }
+            }
+            if (count <= threshold) {
+               data = Arrays.copyOf(buffer, count);
+               length = count;
+            } else {
+               spill(buffer, count, is);
+            }
+         } finally {
+            inputStream = null;
+         }
+      } catch (IOException ioe) {
+         throw new RuntimeException(ioe);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void spill(byte[] buffer, int count, InputStream is) throws IOException {
+      TempFile file = new TempFile(Files.createTempFile("httpsender", ".body"));
+      Cleaner.Cleanable registration = CLEANER.register(this, file);
+      try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.WRITE)) {
+         long written = write(channel, buffer, count);
+         byte[] copyBuffer = new byte[65536];
+         int len;
+         while ((len = is.read(copyBuffer)) != -1) {
+            written += write(channel, copyBuffer, len);
+         }
+         tempFile = file;
+         cleanable = registration;
+         length = written;
+      } catch (IOException e) {
+         registration.clean();
+         throw e;
+      }
+   }
+
+   private static long write(FileChannel channel, byte[] bytes, int len) throws IOException {
+      ByteBuffer bb = ByteBuffer.wrap(bytes, 0, len);
+      while (bb.hasRemaining()) {
+         channel.write(bb);
+      }
+      return len;
+   }
+
+   //Must not refer to the provider, or the provider would never become unreachable
+   private static class TempFile implements Runnable {
+
+      private final Path path;
+
+      TempFile(Path path) {
+         this.path = path;
+      }
+
+      @Override
+      public void run() {
+         try {
+            Files.deleteIfExists(path);
+         } catch (IOException e) {
+         }
+      }
+   }
+}
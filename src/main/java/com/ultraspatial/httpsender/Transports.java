@@ -0,0 +1,89 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+/**
+ * Utility class providing the available Transports.
+ */
+public final class Transports {
+
+   private static final Transport URL_CONNECTION = new UrlConnectionTransport();
+   private static final Transport HTTP_CLIENT = new HttpClientTransport();
+   private static final Transport HTTP_2 = new HttpClientTransport(java.net.http.HttpClient.Version.HTTP_2);
+   private static volatile Transport defaultTransport = URL_CONNECTION;
+
+   private Transports() {
+   }
+
+   /**
+    * @return a Transport that uses Http(s)URLConnection. Supports connection pooling through 
+    * {@link ConnectionPool}, but holds a thread for the duration of each request, including
+    * asynchronous ones. This is the default Transport.
+    */
+   public static Transport urlConnection() {
+      return URL_CONNECTION;
+   }
+
+   /**
+    * @return a Transport that uses java.net.http.HttpClient. Asynchronous requests do not hold a
+    * thread while waiting for the server. HttpClient manages its own connections, so a request's
+    * ConnectionPool is not used. SOCKS proxies are not supported.
+    */
+   public static Transport httpClient() {
+      return HTTP_CLIENT;
+   }
+
+   /**
+    * @return a Transport that uses java.net.http.HttpClient and negotiates HTTP/2 with servers that
+    * support it, falling back to HTTP/1.1 with those that don't. Concurrent requests to the same 
+    * server are multiplexed over a single connection, up to 100 at a time on each connection. Use
+    * {@link HttpClientTransport} directly to configure a different limit.
+    */
+   public static Transport http2() {
+      return HTTP_2;
+   }
+
+   /**
+    * @return the Transport used by requests that have not been configured with a different one
+    */
+   public static Transport defaultTransport() {
+      return defaultTransport;
+   }
+
+   /**
+    * Set the Transport used by requests that have not been configured with a different one.
+    * @param transport the Transport
+    */
+   public static void setDefaultTransport(Transport transport) {
+      if (transport == null) {
+         throw new IllegalArgumentException("Transport may not be null");
+      }
+      defaultTransport = transport;
+   }
+}
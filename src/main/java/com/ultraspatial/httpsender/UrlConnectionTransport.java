@@ -0,0 +1,190 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport that sends requests using Http(s)URLConnection.
+ */
+class UrlConnectionTransport implements Transport {
+
+   private static Logger log = Logger.getLogger(UrlConnectionTransport.class.getName());
+   private static final HostnameVerifier TRUST_ALL_VERIFIER = (name, session) -> true;
+
+   static {
+      //The JDK's keep-alive cache holds the sockets, and keeps only http.maxConnections idle ones per destination
+      if (System.getProperty("http.maxConnections") == null) {
+         System.setProperty("http.maxConnections", String.valueOf(ConnectionPool.DEFAULT_MAX_PER_ROUTE));
+      }
+   }
+
+   private final HttpURLConnectionFactory connectionFactory;
+
+   UrlConnectionTransport() {
+      this(new InternalConnectionFactory());
+   }
+
+   UrlConnectionTransport(HttpURLConnectionFactory connectionFactory) {
+      this.connectionFactory = connectionFactory;
+   }
+
+   @Override
+   public Response execute(PreparedRequest request) throws Exception {
+      long start = System.currentTimeMillis();
+      HttpURLConnection conn = null;
+      ConnectionPool.Lease lease = null;
+      ConnectionPool pool = request.getConnectionPool();
+      try {
+         log.fine("Requesting " + request.getUrl());
+         if (pool != null) {
+            lease = pool.lease(request.getRoute());
+            if (lease.getConnection() == null) {
+               lease.bind(new KeepAliveConnection(lease.getRoute()));
+            }
+         }
+         conn = connectionFactory.build(request.getUrl(), request.getProxy());
+         //Closes the socket from under a thread blocked reading the response
+         request.getDeadline().onCancel(conn::disconnect);
+         preRequestConfig(conn, request);
+         if (conn instanceof HttpsURLConnection) {
+            preRequestConfigHttps((HttpsURLConnection) conn, request);
+         }
+         request.getSource().preObtainResponse(conn);
+         if (request.getBody() != null) {
+            conn.setDoOutput(true);
+            //Stream the body rather than letting HttpURLConnection buffer all of it to find its length
+            long length = request.getContentLength();
+            if (length >= 0) {
+               conn.setFixedLengthStreamingMode(length);
+            } else {
+               conn.setChunkedStreamingMode(request.getChunkSize());
+            }
+         }
+         try {
+            conn.connect();
+         } catch (SocketTimeoutException e) {
+            throw new ConnectTimeoutException("Connect timed out after " + request.getConnectTimeout() + " ms", e);
+         }
+         //Cancelled while connecting, before there was a socket for disconnect() to close
+         Throwable failure = request.getDeadline().getFailure();
+         if (failure != null) {
+            throw (Exception) failure;
+         }
+         if (request.getBody() != null) {
+            writeRequestBody(conn, request.getBody());
+         }
+         try {
+            //Read here, where a timeout can be reported as such: the Response reads the status code again
+            conn.getResponseCode();
+         } catch (SocketTimeoutException e) {
+            throw new ReadTimeoutException("Read timed out after " + request.getReadTimeout() + " ms", e);
+         }
+         return new Response(request.getSource(), conn, lease, start);
+      } catch (Exception e) {
+         if (lease != null) {
+            if (conn != null) {
+               conn.disconnect();
+            }
+            lease.release(false);
+         }
+         throw e;
+      }
+   }
+
+   @Override
+   public CompletableFuture<Response> executeAsync(PreparedRequest request, Executor executor) {
+      CompletableFuture<Response> cf = new CompletableFuture<>();
+      executor.execute(() -> {
+         try {
+            cf.complete(execute(request));
+         } catch (Throwable thrown) {
+            cf.completeExceptionally(thrown);
+         }
+      });
+      return cf;
+   }
+
+   private void preRequestConfig(HttpURLConnection conn, PreparedRequest request) throws Exception {
+      conn.setRequestMethod(request.getMethod());
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+         conn.setRequestProperty(header.getKey(), header.getValue());
+      }
+      conn.setInstanceFollowRedirects(request.getFollowRedirects());
+      conn.setConnectTimeout(request.getConnectTimeout());
+      conn.setReadTimeout(request.getReadTimeout());
+   }
+
+   private void preRequestConfigHttps(HttpsURLConnection conn, PreparedRequest request) {
+      if (request.getTrustAll()) {
+         conn.setHostnameVerifier(TRUST_ALL_VERIFIER);
+      }
+      if (request.getClientCerts() != null) {
+         SSLSocketFactory factory = request.getClientCerts().getSocketFactory();
+         if (factory != null) {
+            conn.setSSLSocketFactory(factory);
+         }
+      }
+   }
+
+   private void writeRequestBody(HttpURLConnection conn, InputStreamProvider body) throws Exception {
+      try(OutputStream os = conn.getOutputStream();
+          InputStream is = body.getInputStream();) {
+         byte[] buffer = new byte[10000];
+         int len;
+         while ((len = is.read(buffer)) != -1) {
+            os.write(buffer, 0, len);
+         }
+      }
+   }
+
+   private static class InternalConnectionFactory implements HttpURLConnectionFactory {
+
+      @Override
+      public HttpURLConnection build(URL url, java.net.Proxy proxy) throws Exception {
+         if (proxy != null) {
+            return (HttpURLConnection) url.openConnection(proxy);
+         } else {
+            return (HttpURLConnection) url.openConnection();
+         }
+      }
+   }
+}
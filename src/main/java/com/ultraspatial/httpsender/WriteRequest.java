@@ -28,11 +28,9 @@
 
 package com.ultraspatial.httpsender;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 
 /**
  * Common superclass for an Http write request (put, post, delete ...)
@@ -42,6 +40,7 @@ import java.nio.charset.Charset;
 public abstract class WriteRequest<T extends WriteRequest<?>> extends IndividualRequest<T> {
 
    private InputStreamProvider inputStreamProvider;
+   private int chunkSize = DEFAULT_CHUNK_SIZE;
 
    /**
     * Construct a write request
@@ -54,12 +53,35 @@ public abstract class WriteRequest<T extends WriteRequest<?>> extends Individual
    
    protected WriteRequest(T source) {
       super(source);
+      inputStreamProvider = ((WriteRequest<?>) source).inputStreamProvider;
+      chunkSize = ((WriteRequest<?>) source).chunkSize;
    }
    
    @Override
-   protected void preObtainResponse(HttpURLConnection conn) throws Exception {
-      conn.setDoOutput(true);
-      writeRequestBody(conn);
+   protected InputStreamProvider getRequestBody() {
+      return inputStreamProvider;
+   }
+
+   @Override
+   protected int getChunkSize() {
+      return chunkSize;
+   }
+
+   /**
+    * Set the size of the chunks in which a request body of unknown length is sent. Bodies whose 
+    * length is known (Strings, byte[]s and providers that report a length) are streamed with a 
+    * Content-Length header instead. Either way the body is never buffered in full before sending.
+    * Default is 8192.
+    * @param size the chunk size in bytes
+    * @return this (Builder pattern)
+    */
+   public T chunkSize(int size) {
+      checkNotFrozen();
+      if (size < 1) {
+         throw new IllegalArgumentException("Chunk size must be at least 1");
+      }
+      chunkSize = size;
+      return (T) this;
    }
 
    /**
@@ -68,6 +90,7 @@ public abstract class WriteRequest<T extends WriteRequest<?>> extends Individual
     * @return this (Builder pattern)
     */
    public T requestBody(String body) {
+      checkNotFrozen();
       inputStreamProvider = new RepeatableInputStreamProvider(body);
       return (T) this;
    }
@@ -78,17 +101,36 @@ public abstract class WriteRequest<T extends WriteRequest<?>> extends Individual
     * @return this (Builder pattern)
     */
    public T requestBody(byte[] bytes) {
+      checkNotFrozen();
       inputStreamProvider = new RepeatableInputStreamProvider(bytes);
       return (T) this;
    }
 
    /**
-    * Set the request body for this write request
+    * Set the request body for this write request. The InputStream is read once, and kept so that
+    * the request can be repeated: in memory for small bodies, or in a temporary file for bodies larger
+    * than {@link SpillingInputStreamProvider#DEFAULT_THRESHOLD}. The body is shared with copies of the request, 
+    * and any temporary file is deleted once neither the request nor any copy of it is reachable. To delete it 
+    * sooner, pass a {@link SpillingInputStreamProvider} to {@link #requestBody(InputStreamProvider)} and close 
+    * it when the request is no longer needed.
     * @param body an InputStream that the body can be read from
     * @return this (Builder pattern)
     */
    public T requestBody(InputStream body) {
-      inputStreamProvider = new RepeatableInputStreamProvider(body);
+      checkNotFrozen();
+      inputStreamProvider = new SpillingInputStreamProvider(body);
+      return (T) this;
+   }
+
+   /**
+    * Set the request body for this write request to the contents of a file. The file is read each 
+    * time the request is sent, so it can be retried.
+    * @param file the file containing the body
+    * @return this (Builder pattern)
+    */
+   public T requestBody(Path file) {
+      checkNotFrozen();
+      inputStreamProvider = new FileBodyProvider(file);
       return (T) this;
    }
 
@@ -98,6 +140,7 @@ public abstract class WriteRequest<T extends WriteRequest<?>> extends Individual
     * @return this (Builder pattern)
     */
    public T requestBody(InputStreamProvider provider) {
+      checkNotFrozen();
       inputStreamProvider = provider;
       return (T) this;
    }
@@ -121,16 +164,4 @@ public abstract class WriteRequest<T extends WriteRequest<?>> extends Individual
       header("Content-Type", type + "; charset=" + charset.name());
       return (T) this;
    }
-   
-   private void writeRequestBody(HttpURLConnection conn) throws IOException {
-      
-      try(OutputStream os = conn.getOutputStream();
-          InputStream is = inputStreamProvider.getInputStream();) {
-         byte[] buffer = new byte[10000];
-         int len;
-         while ((len = is.read(buffer)) != -1) {
-            os.write(buffer, 0, len);
-         }
-      }
-   }
 }
@@ -28,14 +28,28 @@
 
 package com.ultraspatial.httpsender.fallback;
 
+import com.ultraspatial.httpsender.Deadline;
 import com.ultraspatial.httpsender.Executors;
+import com.ultraspatial.httpsender.OutlierDetector;
 import com.ultraspatial.httpsender.Request;
 import com.ultraspatial.httpsender.Response;
+import com.ultraspatial.httpsender.ResponseFuture;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,6 +63,19 @@ import java.util.logging.Logger;
  * Request is made available exactly as for a simple request. If the FallbackRequest finally fails, then the last 
  * exception or error response encountered is passed back to the caller.
  * 
+ * When a FallbackRequest is executed asynchronously, no thread is held while it backs off: the next attempt is
+ * scheduled on a timer shared by all requests, and started when the backoff expires.
+ * 
+ * In race mode (see {@link #race(int)}), the Requests are tried in parallel rather than one after another.
+ * 
+ * A FallbackRequest executed under a {@link Deadline}, or given one of its own with {@link #deadline(long)}, 
+ * hands the time that remains down to each attempt, including those of nested FallbackRequests, and aborts
+ * the attempt in progress when the Deadline expires. Cancelling the future returned by asynchronous execution
+ * does the same.
+ * 
+ * The outcome of each attempt is reported to an {@link OutlierDetector} - by default, the one shared by all
+ * requests in the JVM - and Requests to endpoints it has ejected are left out, unless all of them are.
+ * 
  * @author Alasdair Gilmour
  */
 public class FallbackRequest implements Request {
@@ -56,6 +83,9 @@ public class FallbackRequest implements Request {
    private static Logger log = Logger.getLogger(FallbackRequest.class.getName());
 
    private List<RequestHolder> requests = new ArrayList<>();
+   private int raceWidth;
+   private long deadline;
+   private OutlierDetector outlierDetector = OutlierDetector.shared();
 
    /**
     * Add a Request to be tried
@@ -117,33 +147,112 @@ public class FallbackRequest implements Request {
       return this;
    }
 
+   /**
+    * Try all the Requests in parallel. See {@link #race(int)}.
+    * @return this (Builder pattern)
+    */
+   public FallbackRequest race() {
+      return race(Integer.MAX_VALUE);
+   }
+
+   /**
+    * Try the Requests in parallel, up to the specified number at a time, rather than one after another. The 
+    * first Requests are started together, each with its own RetryStrategy and BackoffStrategy, and whenever 
+    * one of them finally fails the next Request is started in its place. The first acceptable Response wins,
+    * judged by the retryOnErrorResponse setting of the Request that produced it. The other Requests are then
+    * abandoned: they are not retried, and Responses that arrive from them are closed. If all the Requests fail,
+    * the last error Response or exception is passed back to the caller, as in sequential mode.
+    * @param width the maximum number of Requests to try at once
+    * @return this (Builder pattern)
+    */
+   public FallbackRequest race(int width) {
+      if (width < 1) {
+         throw new IllegalArgumentException("Race width must be at least 1");
+      }
+      raceWidth = width;
+      return this;
+   }
+
+   /**
+    * Limit each execution of this FallbackRequest, including all its attempts, backoffs and nested Requests, 
+    * to the specified time. When the time is up, the attempt in progress is aborted, and the execution fails 
+    * with a {@link com.ultraspatial.httpsender.DeadlineExceededException}. Under any Deadline, a retry whose
+    * backoff would not end before the Deadline is skipped, and the next Request is tried instead. By default,
+    * the only limit is the Deadline the FallbackRequest is executed under, if any.
+    * @param ms the time limit in milliseconds, or 0 for none
+    * @return this (Builder pattern)
+    */
+   public FallbackRequest deadline(long ms) {
+      if (ms < 0) {
+         throw new IllegalArgumentException("Deadline may not be negative");
+      }
+      deadline = ms;
+      return this;
+   }
+
+   /**
+    * Set the OutlierDetector that the outcome of each attempt is reported to, and that decides which 
+    * endpoints are ejected. The default is {@link OutlierDetector#shared()}.
+    * @param outlierDetector the detector, or null to try every Request regardless of the health of its endpoint
+    * @return this (Builder pattern)
+    */
+   public FallbackRequest outlierDetector(OutlierDetector outlierDetector) {
+      this.outlierDetector = outlierDetector;
+      return this;
+   }
 
    /**
     * {@inheritDoc}
     */
    @Override
    public Response execute() {
-      return execute(new FallbackSession());
+      return execute(Deadline.none());
    }
 
-   private Response execute(FallbackSession session) {
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute(Deadline deadline) {
+      return execute(new FallbackSession(), deadline);
+   }
+
+   private Response execute(FallbackSession session, Deadline parent) {
+      Deadline scope = parent.child(deadline);
+      try {
+         if (raceWidth > 0) {
+            return await(new Race(Executors.defaultExecutor(), scope).start());
+         }
+         return executeInSequence(session, scope);
+      } finally {
+         scope.complete();
+      }
+   }
+
+   private Response executeInSequence(FallbackSession session, Deadline scope) {
       Response lastResponse = null;
       Exception lastException = null;
       boolean retry;
       session.beginTryRequest();
-      for (RequestHolder holder: requests) {
+      for (RequestHolder holder: candidates()) {
          session.incrementTryRequest();
          do {
+            Throwable failure = scope.getFailure();
+            if (failure != null) {
+               throw new RuntimeException(failure);
+            }
             session.incrementAttemptNo();
             Request request = null;
+            long start = System.nanoTime();
             try {
                request = holder.getRequest();
                lastResponse = null;
                if (request instanceof FallbackRequest) {
-                  lastResponse = ((FallbackRequest) request).execute(session);
+                  lastResponse = ((FallbackRequest) request).execute(session, scope);
                } else {
                   log.fine("Attempt no. " + session.getNestedAttemptDescription() + " ...");
-                  lastResponse = holder.getRequest().execute();
+                  lastResponse = holder.getRequest().execute(scope);
+                  record(request, lastResponse, null, start, scope);
                }
                boolean retryOnErrorResponse = holder.isRetryOnErrorResponse();
                if (!retryOnErrorResponse || (retryOnErrorResponse && lastResponse.getResponseCode() < 400)) {
@@ -154,20 +263,31 @@ public class FallbackRequest implements Request {
                   retry = holder.getRetryStrategy().shouldRetry(session.getAttemptNo());
                }
             } catch(Exception e) {
+               if (request != null) {
+                  record(request, null, e, start, scope);
+               }
+               if (scope.isCancelled()) {
+                  throw new RuntimeException(scope.explain(e));
+               }
                if (!(request instanceof FallbackRequest)) {
                   log.log(Level.WARNING, request + ": Attempt failed with Exception", e);
                }
                lastException = e;
-               retry = holder.getRetryStrategy().shouldRetry(session.getAttemptNo());
+               retry = holder.getRetryStrategy().shouldRetry(session.getAttemptNo(), e);
             }
             log.fine("RetryStrategy decision: " + retry);
             if (retry) {
                long backoff = holder.getBackoffStrategy().getBackoff(session.getAttemptNo());
-               if (backoff > 0) {
+               if (backoff >= scope.remaining()) {
+                  log.fine("Backoff of " + backoff + " ms would pass the deadline - not retrying");
+                  retry = false;
+               } else if (backoff > 0) {
                   try {
                      log.fine("Backing off for " + backoff + " ms");
                      Thread.sleep(backoff);   
                   } catch (InterruptedException ie) {
+                     Thread.currentThread().interrupt();
+                     throw new RuntimeException(ie);
                   }
                }
             }
@@ -196,12 +316,11 @@ public class FallbackRequest implements Request {
     */
    @Override
    public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
-      executor.execute(() -> {
-         try {
-            Response response = this.execute();
-            consumer.accept(response);
-         } catch (Throwable thrown) {
+      executeAsync(executor).whenComplete((response, thrown) -> {
+         if (thrown != null) {
             error.accept(thrown);
+         } else {
+            consumer.accept(response);
          }
       });
    }
@@ -210,20 +329,387 @@ public class FallbackRequest implements Request {
     * {@inheritDoc}
     */
    @Override
-   public CompletableFuture<Response> executeAsync(Executor executor) {
-      CompletableFuture<Response> cf = new CompletableFuture<>();
-      executor.execute(() -> {
-         Response response = this.execute();
-         cf.complete(response);
-      });
-      return cf;
+   public ResponseFuture executeAsync(Executor executor) {
+      return executeAsync(executor, Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync(Executor executor, Deadline deadline) {
+      return executeAsync(new FallbackSession(), executor, deadline);
+   }
+
+   private ResponseFuture executeAsync(FallbackSession session, Executor executor, Deadline parent) {
+      Deadline scope = parent.child(deadline);
+      if (raceWidth > 0) {
+         return new Race(executor, scope).start();
+      }
+      AsyncExecution execution = new AsyncExecution(session, executor, scope, candidates().iterator());
+      execution.run(execution::nextRequest);
+      return execution.result;
+   }
+
+   //The Requests to try, leaving out those to ejected endpoints, unless that would leave none
+   private List<RequestHolder> candidates() {
+      OutlierDetector detector = outlierDetector;
+      if (detector == null) {
+         return requests;
+      }
+      List<RequestHolder> healthy = new ArrayList<>(requests.size());
+      for (RequestHolder holder : requests) {
+         if (detector.isEjected(OutlierDetector.endpointOf(holder.getRequest()))) {
+            log.fine(holder.getRequest() + ": Endpoint is ejected - not trying");
+         } else {
+            healthy.add(holder);
+         }
+      }
+      return healthy.isEmpty() ? requests : healthy;
+   }
+
+   //Report how an attempt went, unless it failed through no fault of the endpoint
+   private void record(Request request, Response response, Throwable failure, long start, Deadline scope) {
+      OutlierDetector detector = outlierDetector;
+      if (detector == null || request instanceof FallbackRequest) {
+         return;
+      }
+      String endpoint = OutlierDetector.endpointOf(request);
+      if (endpoint == null) {
+         return;
+      }
+      if (response == null) {
+         detector.recordFailure(endpoint, failure, scope, System.nanoTime() - start);
+         return;
+      }
+      detector.record(endpoint, response, System.nanoTime() - start);
+      if (response.getResponseCode() < 500) {
+         List<String> alternatives = new ArrayList<>(requests.size());
+         for (RequestHolder holder : requests) {
+            alternatives.add(OutlierDetector.endpointOf(holder.getRequest()));
+         }
+         detector.compareLatencies(alternatives);
+      }
+   }
+
+   private static Response await(CompletableFuture<Response> future) {
+      try {
+         return future.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw new RuntimeException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         future.cancel(false);
+         throw new RuntimeException(e);
+      }
+   }
+
+   private static void closeQuietly(Response response) {
+      if (response != null) {
+         try {
+            response.close();
+         } catch (IOException e) {
+            //Ignore
+         }
+      }
    }
 
    /**
     * {@inheritDoc}
     */
    @Override
-   public CompletableFuture<Response> executeAsync() {
+   public ResponseFuture executeAsync() {
       return executeAsync(Executors.defaultExecutor());
    }
+
+   /**
+    * The asynchronous equivalent of execute(FallbackSession). Each attempt is started 
+    * when the previous one completes, or when its backoff expires on the shared timer, so that no thread is 
+    * held between attempts. An attempt due when a backoff expires is handed from the timer to the executor, and 
+    * fails with a RejectedExecutionException if the executor is saturated. Attempts run under the execution's 
+    * Deadline: if it ends (or the result is cancelled, which cancels it), the attempt in progress is aborted, 
+    * and no more are made.
+    */
+   private class AsyncExecution {
+
+      private final ResponseFuture result;
+      private final Queue<Runnable> steps = new ConcurrentLinkedQueue<>();
+      private final AtomicInteger pendingSteps = new AtomicInteger();
+      private final FallbackSession session;
+      private final Executor executor;
+      private final Deadline deadline;
+      private final Iterator<RequestHolder> holders;
+      private RequestHolder holder;
+      private Response lastResponse;
+      private Exception lastException;
+      private volatile ScheduledFuture<?> backoff;
+
+      AsyncExecution(FallbackSession session, Executor executor, Deadline deadline, Iterator<RequestHolder> holders) {
+         this.session = session;
+         this.executor = executor;
+         this.deadline = deadline;
+         this.holders = holders;
+         result = new ResponseFuture(deadline);
+         deadline.onCancel(() -> {
+            ScheduledFuture<?> pending = backoff;
+            if (pending != null) {
+               pending.cancel(false);
+            }
+         });
+         result.whenComplete((response, thrown) -> deadline.complete());
+         session.beginTryRequest();
+      }
+
+      /**
+       * Stop trying: cancel the result, and with it any pending backoff and the attempt in progress
+       */
+      void abandon() {
+         result.cancel(false);
+      }
+
+      //Steps run one at a time, in a loop rather than recursively, so that attempts that complete 
+      //synchronously cannot overflow the stack
+      void run(Runnable step) {
+         steps.add(step);
+         if (pendingSteps.getAndIncrement() == 0) {
+            do {
+               steps.poll().run();
+            } while (pendingSteps.decrementAndGet() != 0);
+         }
+      }
+
+      void nextRequest() {
+         if (!holders.hasNext()) {
+            session.endTryRequest();
+            if (lastResponse == null) {
+               log.fine("Rethrowing exception from last try.");
+               result.completeExceptionally(new RuntimeException(lastException));
+            } else {
+               log.fine("Returning response from last try.");
+               result.complete(lastResponse);
+            }
+            return;
+         }
+         holder = holders.next();
+         session.incrementTryRequest();
+         attempt();
+      }
+
+      void attempt() {
+         if (result.isDone()) {
+            return;
+         }
+         if (Scheduler.onTimer()) {
+            //After a backoff: starting the attempt may block, so it is handed to the executor
+            Scheduler.dispatch(executor, () -> run(this::send), e -> run(() -> rejected(e)));
+         } else {
+            send();
+         }
+      }
+
+      void send() {
+         if (result.isDone()) {
+            return;
+         }
+         session.incrementAttemptNo();
+         Request request = holder.getRequest();
+         lastResponse = null;
+         long start = System.nanoTime();
+         CompletableFuture<Response> future;
+         try {
+            if (request instanceof FallbackRequest) {
+               future = ((FallbackRequest) request).executeAsync(session, executor, deadline);
+            } else {
+               log.fine("Attempt no. " + session.getNestedAttemptDescription() + " ...");
+               future = request.executeAsync(executor, deadline);
+            }
+         } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+         }
+         future.whenComplete((response, thrown) -> run(() -> completed(request, start, response, thrown)));
+      }
+
+      //The executor could not take the attempt, which therefore fails without reaching the server
+      void rejected(RejectedExecutionException e) {
+         if (result.isDone()) {
+            return;
+         }
+         session.incrementAttemptNo();
+         lastResponse = null;
+         settle(holder.getRequest(), null, e);
+      }
+
+      void completed(Request request, long start, Response response, Throwable thrown) {
+         record(request, response, thrown, start, deadline);
+         settle(request, response, thrown);
+      }
+
+      void settle(Request request, Response response, Throwable thrown) {
+         if (result.isDone()) {
+            closeQuietly(response);
+            return;
+         }
+         boolean retry;
+         if (thrown == null) {
+            lastResponse = response;
+            boolean retryOnErrorResponse = holder.isRetryOnErrorResponse();
+            if (!retryOnErrorResponse || response.getResponseCode() < 400) {
+               if (!result.complete(response)) {
+                  closeQuietly(response);
+               }
+               return;
+            }
+            log.fine(request + ": Response was an error (status " + response.getResponseCode() + ") and retryOnErrorResponse is set"); 
+            response.bodyAsString(); //Force close of InputStream
+            retry = holder.getRetryStrategy().shouldRetry(session.getAttemptNo());
+         } else {
+            Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+            if (!(request instanceof FallbackRequest)) {
+               log.log(Level.WARNING, request + ": Attempt failed with Exception", cause);
+            }
+            lastException = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            retry = holder.getRetryStrategy().shouldRetry(session.getAttemptNo(), cause);
+         }
+         log.fine("RetryStrategy decision: " + retry);
+         if (!retry) {
+            nextRequest();
+            return;
+         }
+         long backoff = holder.getBackoffStrategy().getBackoff(session.getAttemptNo());
+         if (backoff >= deadline.remaining()) {
+            log.fine("Backoff of " + backoff + " ms would pass the deadline - not retrying");
+            nextRequest();
+         } else if (backoff > 0) {
+            log.fine("Backing off for " + backoff + " ms");
+            this.backoff = Scheduler.schedule(() -> run(this::attempt), backoff);
+         } else {
+            attempt();
+         }
+      }
+   }
+
+   /**
+    * The Requests of a FallbackRequest in race mode. Each Request runs in its own lane: an AsyncExecution of that 
+    * Request alone, with its own session, under its own child of the race's Deadline.
+    */
+   private class Race {
+
+      private final ResponseFuture result;
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Executor executor;
+      private final Deadline deadline;
+      private final Iterator<RequestHolder> pending = candidates().iterator();
+      private final List<AsyncExecution> lanes = new ArrayList<>();
+      private boolean finished;
+      private Response lastResponse;
+      private Throwable lastError;
+
+      Race(Executor executor, Deadline deadline) {
+         this.executor = executor;
+         this.deadline = deadline;
+         result = new ResponseFuture(deadline);
+      }
+
+      ResponseFuture start() {
+         List<AsyncExecution> started = new ArrayList<>();
+         lock.lock();
+         try {
+            while (started.size() < raceWidth && pending.hasNext()) {
+               started.add(newLane(pending.next()));
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (started.isEmpty()) {
+            result.completeExceptionally(new RuntimeException("No requests to try"));
+         }
+         deadline.onCancel(this::abandonAll);
+         result.whenComplete((response, thrown) -> deadline.complete());
+         for (AsyncExecution lane : started) {
+            launch(lane);
+         }
+         return result;
+      }
+
+      private void abandonAll() {
+         List<AsyncExecution> abandoned;
+         lock.lock();
+         try {
+            finished = true;
+            abandoned = new ArrayList<>(lanes);
+         } finally {
+            lock.unlock();
+         }
+         for (AsyncExecution lane : abandoned) {
+            lane.abandon();
+         }
+      }
+
+      //Must hold the lock
+      private AsyncExecution newLane(RequestHolder holder) {
+         AsyncExecution lane = new AsyncExecution(new FallbackSession(), executor, deadline.child(0), 
+               Collections.singletonList(holder).iterator());
+         lanes.add(lane);
+         return lane;
+      }
+
+      private void launch(AsyncExecution lane) {
+         lane.run(lane::nextRequest);
+         lane.result.whenComplete((response, thrown) -> laneCompleted(lane, response, thrown));
+      }
+
+      private void laneCompleted(AsyncExecution lane, Response response, Throwable thrown) {
+         List<AsyncExecution> losers = null;
+         AsyncExecution next = null;
+         boolean failed = false;
+         lock.lock();
+         try {
+            lanes.remove(lane);
+            if (finished) {
+               closeQuietly(response);
+               return;
+            }
+            if (thrown == null && (!lane.holder.isRetryOnErrorResponse() || response.getResponseCode() < 400)) {
+               finished = true;
+               losers = new ArrayList<>(lanes);
+            } else {
+               if (thrown == null) {
+                  lastResponse = response;
+               } else {
+                  lastResponse = null;
+                  lastError = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+               }
+               if (pending.hasNext()) {
+                  next = newLane(pending.next());
+               } else if (lanes.isEmpty()) {
+                  finished = failed = true;
+               }
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (losers != null) {
+            for (AsyncExecution loser : losers) {
+               loser.abandon();
+            }
+            if (!result.complete(response)) {
+               closeQuietly(response);
+            }
+         } else if (next != null) {
+            launch(next);
+         } else if (failed) {
+            if (lastResponse != null) {
+               log.fine("Returning response from last try to complete.");
+               result.complete(lastResponse);
+            } else {
+               log.fine("Rethrowing exception from last try to complete.");
+               result.completeExceptionally(lastError);
+            }
+         }
+      }
+   }
 }
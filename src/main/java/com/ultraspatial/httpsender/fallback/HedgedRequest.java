@@ -0,0 +1,428 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender.fallback;
+
+import com.ultraspatial.httpsender.Deadline;
+import com.ultraspatial.httpsender.Executors;
+import com.ultraspatial.httpsender.Request;
+import com.ultraspatial.httpsender.Response;
+import com.ultraspatial.httpsender.ResponseFuture;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * A HedgedRequest sends a primary Request and, if no Response has arrived within the hedge delay, sends 
+ * a backup Request as well: either the same Request again, or an alternative (another replica of the 
+ * service, for example). The first Response to arrive is returned, and the other Request is cancelled,
+ * aborting its exchange. This cuts tail latency caused by occasional slow servers, at the cost of some extra load. If 
+ * the primary fails before the hedge delay, the backup is sent straight away.
+ * 
+ * The hedge delay can be fixed, or adapt to a percentile of the recently observed latency of the primary,
+ * so that only requests that are already slower than usual are hedged. The extra load is limited by a 
+ * hedge budget: the fraction of requests that may send a backup, 5% by default. The budget accumulates 
+ * as requests are made, so hedges that are not needed for a while can be spent in a short burst.
+ * 
+ * A Response with an error status counts as a Response: only a thrown exception is a failure. A 
+ * HedgedRequest is intended to be executed many times, and keeps its statistics across executions. It may
+ * be executed by many threads at once, once configured.
+ * 
+ * Follows the Builder pattern to allow chaining of calls to configuration methods.
+ */
+public class HedgedRequest implements Request {
+
+   private static Logger log = Logger.getLogger(HedgedRequest.class.getName());
+
+   private static final int SAMPLES = 1024;
+   private static final int MIN_SAMPLES = 32;
+   private static final int RECALCULATE_EVERY = 64;
+   private static final long TOKEN = 1000;
+   private static final long MAX_TOKENS = 10 * TOKEN;
+
+   private final Request primary;
+   private Request backup;
+   private long hedgeDelay = 100;
+   private double percentile;
+   private long budgetPerRequest = TOKEN / 20;
+   private final AtomicLong tokens = new AtomicLong();
+   private final LongAdder executed = new LongAdder();
+   private final LongAdder hedgesFired = new LongAdder();
+   private final LongAdder hedgesWon = new LongAdder();
+   private final ReentrantLock samplesLock = new ReentrantLock();
+   private final long[] samples = new long[SAMPLES];
+   private long sampleCount;
+   private volatile long adaptiveDelay = -1;
+
+   /**
+    * Create a hedged request that backs the primary up with the same Request
+    * @param primary the primary Request
+    */
+   public HedgedRequest(Request primary) {
+      this.primary = primary;
+      this.backup = primary;
+   }
+
+   /**
+    * Set the Request sent as a backup. The default is the primary Request itself.
+    * @param backup the backup Request
+    * @return this (Builder pattern)
+    */
+   public HedgedRequest backup(Request backup) {
+      this.backup = backup;
+      return this;
+   }
+
+   /**
+    * Set how long to wait for the primary to respond before sending the backup. The default is 100ms.
+    * If an adaptive delay is set, this is used until enough latencies have been observed.
+    * @param ms the delay in milliseconds
+    * @return this (Builder pattern)
+    */
+   public HedgedRequest hedgeDelay(long ms) {
+      if (ms < 0) {
+         throw new IllegalArgumentException("Hedge delay may not be negative");
+      }
+      hedgeDelay = ms;
+      return this;
+   }
+
+   /**
+    * Set the hedge delay to a percentile of the latencies observed for the primary over recent
+    * requests: 0.95 sends a backup for requests that are slower than 95% of recent ones, for example.
+    * @param percentile the percentile, between 0 and 1 exclusive, or 0 to use the fixed delay
+    * @return this (Builder pattern)
+    */
+   public HedgedRequest adaptiveDelay(double percentile) {
+      if (percentile < 0 || percentile >= 1) {
+         throw new IllegalArgumentException("Percentile must be at least 0 and less than 1");
+      }
+      this.percentile = percentile;
+      return this;
+   }
+
+   /**
+    * Set the fraction of requests that may send a backup. The default is 0.05 (5% extra load).
+    * @param fraction the fraction, between 0 and 1
+    * @return this (Builder pattern)
+    */
+   public HedgedRequest hedgeBudget(double fraction) {
+      if (fraction < 0 || fraction > 1) {
+         throw new IllegalArgumentException("Hedge budget must be between 0 and 1");
+      }
+      budgetPerRequest = Math.round(fraction * TOKEN);
+      return this;
+   }
+
+   /**
+    * @return the number of times this request has been executed
+    */
+   public long getExecuted() {
+      return executed.sum();
+   }
+
+   /**
+    * @return the number of backup requests sent
+    */
+   public long getHedgesFired() {
+      return hedgesFired.sum();
+   }
+
+   /**
+    * @return the number of times the backup request responded first
+    */
+   public long getHedgesWon() {
+      return hedgesWon.sum();
+   }
+
+   /**
+    * @return the delay in milliseconds after which the next execution will send a backup
+    */
+   public long getCurrentDelay() {
+      long adaptive = adaptiveDelay;
+      return percentile > 0 && adaptive >= 0 ? adaptive : hedgeDelay;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute() {
+      return execute(Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Response execute(Deadline deadline) {
+      ResponseFuture future = executeAsync(Executors.defaultExecutor(), deadline);
+      try {
+         return future.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw new RuntimeException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         future.cancel(false);
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+      executeAsync(consumer, error, Executors.defaultExecutor());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+      executeAsync(executor).whenComplete((response, thrown) -> {
+         if (thrown != null) {
+            error.accept(thrown);
+         } else {
+            consumer.accept(response);
+         }
+      });
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync() {
+      return executeAsync(Executors.defaultExecutor());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync(Executor executor) {
+      return executeAsync(executor, Deadline.none());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ResponseFuture executeAsync(Executor executor, Deadline deadline) {
+      executed.increment();
+      tokens.accumulateAndGet(budgetPerRequest, (current, more) -> Math.min(MAX_TOKENS, current + more));
+      Race race = new Race(executor, deadline.child(0));
+      long start = System.nanoTime();
+      race.timer = Scheduler.schedule(race::hedge, getCurrentDelay());
+      start(primary, executor, race.primaryDeadline).whenComplete((response, thrown) -> {
+         if (thrown == null) {
+            sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+         }
+         race.completed(response, thrown, false);
+      });
+      return race.result;
+   }
+
+   private static CompletableFuture<Response> start(Request request, Executor executor, Deadline deadline) {
+      try {
+         return request.executeAsync(executor, deadline);
+      } catch (RuntimeException e) {
+         CompletableFuture<Response> failed = new CompletableFuture<>();
+         failed.completeExceptionally(e);
+         return failed;
+      }
+   }
+
+   private boolean acquireToken() {
+      long current;
+      do {
+         current = tokens.get();
+         if (current < TOKEN) {
+            return false;
+         }
+      } while (!tokens.compareAndSet(current, current - TOKEN));
+      return true;
+   }
+
+   private void sample(long latency) {
+      if (percentile == 0) {
+         return;
+      }
+      samplesLock.lock();
+      try {
+         samples[(int) (sampleCount++ % SAMPLES)] = latency;
+         if (sampleCount >= MIN_SAMPLES && sampleCount % RECALCULATE_EVERY == 0 || sampleCount == MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(sampleCount, SAMPLES));
+            Arrays.sort(sorted);
+            adaptiveDelay = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+         }
+      } finally {
+         samplesLock.unlock();
+      }
+   }
+
+   private static void closeQuietly(Response response) {
+      if (response != null) {
+         try {
+            response.close();
+         } catch (IOException e) {
+            //Ignore
+         }
+      }
+   }
+
+   //The primary and (possibly) the backup for one execution, each under its own child of the execution's Deadline
+   private final class Race {
+
+      private final ResponseFuture result;
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Executor executor;
+      private final Deadline deadline;
+      private final Deadline primaryDeadline;
+      private Deadline backupDeadline;
+      private volatile ScheduledFuture<?> timer;
+      private int running = 1;
+      private boolean hedged;
+      private boolean finished;
+      private Throwable error;
+
+      Race(Executor executor, Deadline deadline) {
+         this.executor = executor;
+         this.deadline = deadline;
+         primaryDeadline = deadline.child(0);
+         result = new ResponseFuture(deadline);
+         deadline.onCancel(this::cancelTimer);
+         result.whenComplete((response, thrown) -> deadline.complete());
+      }
+
+      private void cancelTimer() {
+         ScheduledFuture<?> t = timer;
+         if (t != null) {
+            t.cancel(false);
+         }
+      }
+
+      //Called when the delay expires, or the primary fails
+      void hedge() {
+         boolean fail = false;
+         Deadline fire = null;
+         lock.lock();
+         try {
+            if (finished || hedged || result.isDone()) {
+               return;
+            }
+            hedged = true;
+            if (!acquireToken()) {
+               log.fine("Hedge budget exhausted - not sending backup for " + primary);
+               fail = finished = running == 0;
+            } else {
+               running++;
+               fire = backupDeadline = deadline.child(0);
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (fail) {
+            result.completeExceptionally(error);
+         } else if (fire != null) {
+            hedgesFired.increment();
+            log.fine("No response yet from " + primary + " - sending backup " + backup);
+            Deadline backupScope = fire;
+            if (Scheduler.onTimer()) {
+               //Starting the backup may block, so it is handed to the executor
+               Scheduler.dispatch(executor, () -> startBackup(backupScope), e -> completed(null, e, true));
+            } else {
+               startBackup(backupScope);
+            }
+         }
+      }
+
+      private void startBackup(Deadline scope) {
+         start(backup, executor, scope).whenComplete((response, thrown) -> completed(response, thrown, true));
+      }
+
+      void completed(Response response, Throwable thrown, boolean isBackup) {
+         Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+         boolean won = false;
+         boolean fail = false;
+         boolean tryHedge = false;
+         Deadline loser = null;
+         lock.lock();
+         try {
+            running--;
+            if (!finished) {
+               if (cause == null) {
+                  won = finished = true;
+                  loser = isBackup ? primaryDeadline : backupDeadline;
+               } else {
+                  error = cause;
+                  tryHedge = !hedged;
+                  fail = finished = hedged && running == 0;
+               }
+            }
+         } finally {
+            lock.unlock();
+         }
+         if (won) {
+            cancelTimer();
+            if (loser != null) {
+               loser.cancel();
+            }
+            if (isBackup) {
+               hedgesWon.increment();
+            }
+            if (!result.complete(response)) {
+               closeQuietly(response);
+            }
+         } else if (fail) {
+            result.completeExceptionally(cause);
+         } else if (tryHedge) {
+            hedge();
+         } else {
+            //Lost the race
+            closeQuietly(response);
+         }
+      }
+   }
+}
@@ -44,6 +44,20 @@ public interface RetryStrategy {
     */
    boolean shouldRetry(int attemptNo);
 
+   /**
+    * Decide if a request should be retried after an attempt that failed with an exception. By default the
+    * exception is not considered. The exception is usually a RuntimeException wrapping the real cause - a
+    * {@link com.ultraspatial.httpsender.ConnectTimeoutException}, say, which is safe to retry because the 
+    * request never reached the server, or a {@link com.ultraspatial.httpsender.ReadTimeoutException}, which
+    * may not be.
+    * @param attemptNo the attempt number
+    * @param failure the exception the attempt failed with
+    * @return true to retry the request, false to stop
+    */
+   default boolean shouldRetry(int attemptNo, Throwable failure) {
+      return shouldRetry(attemptNo);
+   }
+
    /**
     * Keep retrying the request until it succeeds. 
     * @return a RetryStrategy that retries until successful
@@ -60,4 +74,35 @@ public interface RetryStrategy {
    public static RetryStrategy maxTotalTries(final int max) {
       return attemptNo -> attemptNo < max;
    }
+
+   /**
+    * Retry a request that failed with an exception only if one of the specified types is found among the 
+    * exception and its causes, and the supplied RetryStrategy agrees. Error responses are retried as the 
+    * supplied RetryStrategy decides.
+    * @param strategy the RetryStrategy to consult for failures of the specified types
+    * @param types the types of exception that may be retried
+    * @return a RetryStrategy that only retries the specified types of exception
+    */
+   @SafeVarargs
+   public static RetryStrategy onlyOn(final RetryStrategy strategy, final Class<? extends Throwable>... types) {
+      return new RetryStrategy() {
+
+         @Override
+         public boolean shouldRetry(int attemptNo) {
+            return strategy.shouldRetry(attemptNo);
+         }
+
+         @Override
+         public boolean shouldRetry(int attemptNo, Throwable failure) {
+            for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+               for (Class<? extends Throwable> type : types) {
+                  if (type.isInstance(t)) {
+                     return strategy.shouldRetry(attemptNo, failure);
+                  }
+               }
+            }
+            return false;
+         }
+      };
+   }
 }
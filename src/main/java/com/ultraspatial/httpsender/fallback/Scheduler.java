@@ -0,0 +1,101 @@
+/*
+ *    888    888 888    888              .d8888b.                         888
+ *    888    888 888    888             d88P  Y88b                        888
+ *    888    888 888    888             Y88b.                             888
+ *    8888888888 888888 888888 88888b.   "Y888b.    .d88b.  88888b.   .d88888  .d88b.  888d888
+ *    888    888 888    888    888 "88b     "Y88b. d8P  Y8b 888 "88b d88" 888 d8P  Y8b 888P"
+ *    888    888 888    888    888  888       "888 88888888 888  888 888  888 88888888 888
+ *    888    888 Y88b.  Y88b.  888 d88P Y88b  d88P Y8b.     888  888 Y88b 888 Y8b.     888
+ *    888    888  "Y888  "Y888 88888P"   "Y8888P"   "Y8888  888  888  "Y88888  "Y8888  888
+ *                             888
+ *                             888
+ *                             888
+ *
+ * Copyright 2017 Alasdair Gilmour
+ * -------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ *     The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ *     The Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.ultraspatial.httpsender.fallback;
+
+import com.ultraspatial.httpsender.BoundedExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A single timer thread shared by all requests in this package, for starting attempts after a delay
+ * without holding a thread while waiting. Scheduled tasks run on the timer thread, so they must not 
+ * block: they hand any work that might to an Executor with {@link #dispatch}.
+ */
+final class Scheduler {
+
+   private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, TimerThread::new);
+
+   static {
+      //Cancelled tasks (hedges that were not needed) should not linger in the queue until their delay expires
+      TIMER.setRemoveOnCancelPolicy(true);
+   }
+
+   private Scheduler() {
+   }
+
+   /**
+    * Run a task after a delay
+    * @param task the task, which must not block
+    * @param delay the delay in milliseconds
+    * @return a Future that can be used to cancel the task
+    */
+   static ScheduledFuture<?> schedule(Runnable task, long delay) {
+      return TIMER.schedule(task, delay, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * @return true if the current thread is the timer thread
+    */
+   static boolean onTimer() {
+      return Thread.currentThread() instanceof TimerThread;
+   }
+
+   /**
+    * Hand a task from the timer thread to an Executor. A {@link BoundedExecutor} that is saturated rejects 
+    * the task rather than applying its SaturationPolicy, so that the timer thread neither waits for room 
+    * nor runs the task itself. A rejected task is not run, and the handler is given the rejection instead.
+    * @param executor the Executor
+    * @param task the task
+    * @param rejected the handler for a task that could not be run
+    */
+   static void dispatch(Executor executor, Runnable task, Consumer<RejectedExecutionException> rejected) {
+      try {
+         if (executor instanceof BoundedExecutor) {
+            ((BoundedExecutor) executor).executeOrReject(task);
+         } else {
+            executor.execute(task);
+         }
+      } catch (RejectedExecutionException e) {
+         rejected.accept(e);
+      }
+   }
+
+   private static final class TimerThread extends Thread {
+
+      TimerThread(Runnable r) {
+         super(r, "httpsender-fallback-timer");
+         setDaemon(true);
+      }
+   }
+}
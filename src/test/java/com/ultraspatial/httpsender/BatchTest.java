@@ -0,0 +1,173 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.ultraspatial.httpsender.Batch.ErrorMode;
+import com.ultraspatial.httpsender.Batch.Outcome;
+
+public class BatchTest {
+
+   private static class StubRequest implements Request {
+
+      private final CompletableFuture<Response> future = new CompletableFuture<>();
+      private volatile boolean started;
+
+      void succeed() {
+         future.complete(new Response(new Get("http://test.only.com"), "HTTP/1.1", 200, "OK", 
+               Collections.emptyMap(), new ByteArrayInputStream(new byte[0]), System.currentTimeMillis()));
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync(Executor executor) {
+         started = true;
+         return future;
+      }
+
+      @Override
+      public Response execute() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   private static List<StubRequest> stubs(int count) {
+      List<StubRequest> stubs = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+         stubs.add(new StubRequest());
+      }
+      return stubs;
+   }
+
+   private static long started(List<StubRequest> stubs) {
+      return stubs.stream().filter(s -> s.started).count();
+   }
+
+   @Test
+   public void testConcurrencyIsLimitedAndOutcomesArriveInCompletionOrder() {
+      List<StubRequest> stubs = stubs(10);
+      try (Batch.Results results = Batch.executeAll(stubs, 3)) {
+         assertEquals(3, started(stubs));
+         stubs.get(2).succeed();
+         Outcome first = results.next();
+         assertSame(stubs.get(2), first.getRequest());
+         assertTrue(first.isSuccess());
+         assertEquals(200, first.getResponse().getResponseCode());
+         assertEquals(4, started(stubs));
+         for (int i = stubs.size() - 1; i >= 0; i--) {
+            stubs.get(i).succeed();
+         }
+         int count = 1;
+         while (results.hasNext()) {
+            assertTrue(results.next().isSuccess());
+            count++;
+         }
+         assertEquals(10, count);
+      }
+   }
+
+   @Test
+   public void testUntakenResponsesCountTowardsConcurrency() {
+      List<StubRequest> stubs = stubs(6);
+      try (Batch.Results results = Batch.executeAll(stubs, 2)) {
+         stubs.get(0).succeed();
+         stubs.get(1).succeed();
+         //Both Responses are waiting to be taken, and hold their connections
+         assertEquals(2, started(stubs));
+         assertSame(stubs.get(0), results.next().getRequest());
+         assertEquals(3, started(stubs));
+         //A failed Outcome holds no connection, so it makes room without being taken
+         stubs.get(2).future.completeExceptionally(new IllegalStateException("failed"));
+         assertEquals(4, started(stubs));
+      }
+   }
+
+   @Test
+   public void testFailFastStopsAtFirstFailure() {
+      List<StubRequest> stubs = stubs(5);
+      Batch.Results results = new Batch(stubs).maxConcurrency(2).errorMode(ErrorMode.FAIL_FAST).execute();
+      stubs.get(1).future.completeExceptionally(new IllegalStateException("failed"));
+      Outcome outcome = results.next();
+      assertFalse(outcome.isSuccess());
+      assertTrue(outcome.getError() instanceof IllegalStateException);
+      stubs.get(0).succeed();
+      assertFalse(results.hasNext());
+      assertEquals(2, started(stubs));
+   }
+
+   @Test
+   public void testDeadlineTimesOutUnfinishedRequests() {
+      List<StubRequest> stubs = stubs(4);
+      List<Outcome> outcomes = new Batch(stubs).maxConcurrency(2).deadline(100).stream().collect(Collectors.toList());
+      assertEquals(4, outcomes.size());
+      for (Outcome outcome : outcomes) {
+         assertTrue(outcome.getError() instanceof TimeoutException);
+      }
+      assertEquals(2, started(stubs));
+   }
+
+   @Test
+   public void testPublisherRespectsDemand() throws Exception {
+      List<StubRequest> stubs = stubs(5);
+      stubs.forEach(StubRequest::succeed);
+      List<Outcome> received = Collections.synchronizedList(new ArrayList<>());
+      CountDownLatch complete = new CountDownLatch(1);
+      new Batch(stubs).maxConcurrency(2).publisher().subscribe(new Flow.Subscriber<Outcome>() {
+         private Flow.Subscription subscription;
+
+         @Override
+         public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            s.request(1);
+         }
+
+         @Override
+         public void onNext(Outcome item) {
+            received.add(item);
+            subscription.request(1);
+         }
+
+         @Override
+         public void onError(Throwable throwable) {
+         }
+
+         @Override
+         public void onComplete() {
+            complete.countDown();
+         }
+      });
+      assertTrue(complete.await(5, TimeUnit.SECONDS));
+      assertEquals(5, received.size());
+   }
+}
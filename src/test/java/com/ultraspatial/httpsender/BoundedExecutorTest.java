@@ -0,0 +1,111 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ultraspatial.httpsender.BoundedExecutor.SaturationPolicy;
+import com.ultraspatial.httpsender.fallback.FallbackRequest;
+
+public class BoundedExecutorTest {
+
+   private final CountDownLatch release = new CountDownLatch(1);
+   private BoundedExecutor executor;
+
+   @After
+   public void tearDown() {
+      release.countDown();
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void testFailFast() throws Exception {
+      executor = saturate(SaturationPolicy.FAIL_FAST);
+      try {
+         executor.execute(() -> {});
+         fail("Accepted a task when saturated");
+      } catch (RejectedExecutionException e) {
+         //Success
+      }
+      CompletableFuture<Response> cf = new FallbackRequest().tryRequest(new Get("http://test.only.com")).executeAsync(executor);
+      try {
+         cf.get(5, TimeUnit.SECONDS);
+         fail("Request completed on a saturated executor");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         while (cause != null && !(cause instanceof RejectedExecutionException)) {
+            cause = cause.getCause();
+         }
+         assertTrue(cause instanceof RejectedExecutionException);
+      }
+      ExecutorStats stats = executor.getStats();
+      assertEquals(2, stats.getSaturated());
+      assertEquals(1, stats.getActiveThreads());
+      assertEquals(1, stats.getQueueDepth());
+      assertEquals(0, stats.getQueueRemaining());
+   }
+
+   @Test
+   public void testCallerRuns() throws Exception {
+      executor = saturate(SaturationPolicy.CALLER_RUNS);
+      Thread[] ranOn = new Thread[1];
+      executor.execute(() -> ranOn[0] = Thread.currentThread());
+      assertSame(Thread.currentThread(), ranOn[0]);
+      assertEquals(1, executor.getStats().getSaturated());
+   }
+
+   @Test
+   public void testExecuteOrRejectIgnoresPolicy() throws Exception {
+      executor = saturate(SaturationPolicy.CALLER_RUNS);
+      try {
+         executor.executeOrReject(() -> fail("Ran on the submitting thread"));
+         fail("Accepted a task when saturated");
+      } catch (RejectedExecutionException e) {
+         //Success
+      }
+      assertEquals(1, executor.getStats().getSaturated());
+   }
+
+   @Test
+   public void testBlockWaitsForRoom() throws Exception {
+      executor = saturate(SaturationPolicy.BLOCK);
+      CountDownLatch ran = new CountDownLatch(1);
+      Thread submitter = new Thread(() -> executor.execute(ran::countDown));
+      submitter.start();
+      submitter.join(200);
+      assertTrue(submitter.isAlive());
+      release.countDown();
+      assertTrue(ran.await(5, TimeUnit.SECONDS));
+      submitter.join(5000);
+      ExecutorStats stats = executor.getStats();
+      assertEquals(1, stats.getSaturated());
+      assertTrue(stats.getMaxQueueWait() >= 200);
+   }
+
+   //One thread busy until released, and one task filling the queue
+   private BoundedExecutor saturate(SaturationPolicy policy) throws InterruptedException {
+      BoundedExecutor bounded = new BoundedExecutor(1, 1, policy);
+      CountDownLatch started = new CountDownLatch(1);
+      bounded.execute(() -> {
+         started.countDown();
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+      started.await();
+      bounded.execute(() -> {});
+      return bounded;
+   }
+}
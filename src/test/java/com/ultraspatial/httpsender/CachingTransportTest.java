@@ -0,0 +1,284 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class CachingTransportTest {
+
+   private static final String LAST_MODIFIED = "Mon, 05 Oct 2026 10:00:00 GMT";
+
+   private final AtomicInteger hits = new AtomicInteger();
+   private final AtomicInteger notModified = new AtomicInteger();
+   private final CountDownLatch release = new CountDownLatch(1);
+   private HttpServer server;
+   private CachingTransport transport;
+   private String base;
+
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/fresh", exchange -> {
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+         respond(exchange, "fresh " + hits.incrementAndGet());
+      });
+      server.createContext("/etag", exchange -> {
+         hits.incrementAndGet();
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+         exchange.getResponseHeaders().add("ETag", "\"v1\"");
+         if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+         } else {
+            respond(exchange, "tagged");
+         }
+      });
+      server.createContext("/modified", exchange -> {
+         hits.incrementAndGet();
+         exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+         exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+         if (LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+         } else {
+            respond(exchange, "modified");
+         }
+      });
+      server.createContext("/nostore", exchange -> {
+         exchange.getResponseHeaders().add("Cache-Control", "no-store, max-age=60");
+         respond(exchange, "nostore " + hits.incrementAndGet());
+      });
+      server.createContext("/vary", exchange -> {
+         hits.incrementAndGet();
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+         exchange.getResponseHeaders().add("Vary", "Accept-Language");
+         respond(exchange, "hello " + exchange.getRequestHeaders().getFirst("Accept-Language"));
+      });
+      server.createContext("/swr", exchange -> {
+         int n = hits.incrementAndGet();
+         if (n == 2) {
+            //Hold up the first refresh
+            try {
+               release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=0, stale-while-revalidate=60");
+         respond(exchange, "swr " + n);
+      });
+      server.createContext("/flaky", exchange -> {
+         if (hits.incrementAndGet() == 1) {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=0, stale-if-error=60");
+            respond(exchange, "flaky");
+         } else {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+         }
+      });
+      server.createContext("/stale", exchange -> {
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+         respond(exchange, "stale " + hits.incrementAndGet());
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+      transport = new CachingTransport(Transports.urlConnection());
+   }
+
+   @After
+   public void tearDown() {
+      release.countDown();
+      server.stop(0);
+   }
+
+   private static void respond(HttpExchange exchange, String body) throws java.io.IOException {
+      byte[] out = body.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, out.length);
+      exchange.getResponseBody().write(out);
+      exchange.close();
+   }
+
+   private String get(String path) {
+      return new Get(base + path).transport(transport).execute().bodyAsString();
+   }
+
+   @Test
+   public void testFreshResponseServedFromCache() throws Exception {
+      assertEquals("fresh 1", get("/fresh"));
+      Response response = new Get(base + "/fresh").transport(transport).execute();
+      assertEquals(200, response.getResponseCode());
+      assertNotNull(response.getHeaders("Age"));
+      assertEquals("fresh 1", response.bodyAsString());
+      assertEquals("fresh 1", new Get(base + "/fresh").transport(transport).executeAsync().get().bodyAsString());
+      assertEquals(1, hits.get());
+      assertEquals(2, transport.getHits());
+      assertEquals(1, transport.getMisses());
+   }
+
+   @Test
+   public void testStaleResponseRevalidatedWithETag() throws Exception {
+      assertEquals("tagged", get("/etag"));
+      Response response = new Get(base + "/etag").transport(transport).execute();
+      assertEquals(200, response.getResponseCode());
+      assertEquals("tagged", response.bodyAsString());
+      assertEquals("tagged", get("/etag"));
+      assertEquals(3, hits.get());
+      assertEquals(2, notModified.get());
+      assertEquals(2, transport.getRevalidations());
+      assertEquals(0, transport.getHits());
+   }
+
+   @Test
+   public void testNoCacheRevalidatedWithLastModified() throws Exception {
+      assertEquals("modified", get("/modified"));
+      assertEquals("modified", new Get(base + "/modified").transport(transport).executeAsync().get().bodyAsString());
+      assertEquals(2, hits.get());
+      assertEquals(1, notModified.get());
+      assertEquals(1, transport.getRevalidations());
+   }
+
+   @Test
+   public void testNoStoreIsNotCached() throws Exception {
+      assertEquals("nostore 1", get("/nostore"));
+      assertEquals("nostore 2", get("/nostore"));
+      assertEquals(2, transport.getMisses());
+   }
+
+   @Test
+   public void testRequestNoCacheGoesToServer() throws Exception {
+      get("/fresh");
+      String body = new Get(base + "/fresh").header("Cache-Control", "no-cache").transport(transport).execute().bodyAsString();
+      assertEquals("fresh 2", body);
+      assertEquals("fresh 2", get("/fresh"));
+   }
+
+   @Test
+   public void testVaryingHeadersAreCompared() throws Exception {
+      assertEquals("hello en", new Get(base + "/vary").header("Accept-Language", "en").transport(transport).execute().bodyAsString());
+      assertEquals("hello en", new Get(base + "/vary").header("Accept-Language", "en").transport(transport).execute().bodyAsString());
+      assertEquals("hello fr", new Get(base + "/vary").header("Accept-Language", "fr").transport(transport).execute().bodyAsString());
+      assertEquals(2, hits.get());
+      assertEquals(1, transport.getHits());
+   }
+
+   @Test
+   public void testResponsesAreNotSharedAcrossRoutes() throws Exception {
+      assertEquals("fresh 1", get("/fresh"));
+      assertEquals("fresh 2", new Get(base + "/fresh").trustAll(true).transport(transport).execute().bodyAsString());
+      assertEquals("fresh 2", new Get(base + "/fresh").trustAll(true).transport(transport).execute().bodyAsString());
+      assertEquals("fresh 1", get("/fresh"));
+      assertEquals(2, hits.get());
+   }
+
+   @Test
+   public void testUnsafeRequestInvalidates() throws Exception {
+      get("/fresh");
+      new Post(base + "/fresh").requestBody("x").transport(transport).execute().bodyAsString();
+      assertEquals("fresh 3", get("/fresh"));
+   }
+
+   @Test
+   public void testStaleWhileRevalidateRefreshesOnceInBackground() throws Exception {
+      assertEquals("swr 1", get("/swr"));
+      //The refresh is held up by the server, but the stale response is returned at once
+      for (int i = 0; i < 5; i++) {
+         assertEquals("swr 1", get("/swr"));
+      }
+      assertEquals("swr 1", new Get(base + "/swr").transport(transport).executeAsync().get().bodyAsString());
+      assertEquals(1, transport.getRefreshes());
+      assertEquals(6, transport.getStaleHits());
+      release.countDown();
+      long until = System.currentTimeMillis() + 5000;
+      String body = get("/swr");
+      while (body.equals("swr 1") && System.currentTimeMillis() < until) {
+         Thread.sleep(20);
+         body = get("/swr");
+      }
+      assertEquals("swr 2", body);
+      assertEquals(1, transport.getMisses());
+   }
+
+   @Test
+   public void testRequestOverridesStaleWhileRevalidate() throws Exception {
+      assertEquals("stale 1", get("/stale"));
+      assertEquals("stale 1", new Get(base + "/stale").staleWhileRevalidate(60).transport(transport).execute().bodyAsString());
+      assertEquals(1, transport.getStaleHits());
+      //Without the override the stale response is not used
+      assertNotEquals("stale 1", get("/stale"));
+      assertEquals(1, transport.getStaleHits());
+   }
+
+   @Test
+   public void testStaleIfErrorOnServerError() throws Exception {
+      assertEquals("flaky", get("/flaky"));
+      Response response = new Get(base + "/flaky").transport(transport).execute();
+      assertEquals(200, response.getResponseCode());
+      assertEquals("flaky", response.bodyAsString());
+      assertEquals("flaky", new Get(base + "/flaky").transport(transport).executeAsync().get().bodyAsString());
+      assertEquals(2, transport.getStaleHits());
+      response = new Get(base + "/flaky").staleIfError(0).transport(transport).execute();
+      assertEquals(503, response.getResponseCode());
+      response.close();
+      //The failure leaves the stored response in place
+      assertEquals("flaky", get("/flaky"));
+   }
+
+   @Test
+   public void testStaleIfErrorWhenServerUnreachable() throws Exception {
+      assertEquals("stale 1", get("/stale"));
+      server.stop(0);
+      assertEquals("stale 1", new Get(base + "/stale").staleIfError(60).transport(transport).execute().bodyAsString());
+      assertEquals("stale 1", new Get(base + "/stale").header("Cache-Control", "stale-if-error=60").transport(transport)
+            .executeAsync().get().bodyAsString());
+      try {
+         get("/stale");
+         fail("Expected the request to fail");
+      } catch (RuntimeException e) {
+         //Expected
+      }
+   }
+
+   private static CacheEntry entry(int size) {
+      Map<String, List<String>> headers = new HashMap<>();
+      return new CacheEntry("HTTP/1.1", 200, "OK", headers, new HashMap<>(), 0, 0,
+            new RepeatableInputStreamProvider(new ByteArrayInputStream(new byte[size])));
+   }
+
+   @Test
+   public void testLeastRecentlyUsedEntryEvicted() throws Exception {
+      MemoryHttpCache cache = new MemoryHttpCache(1000).maxEntrySize(500);
+      cache.put("a", entry(300));
+      cache.put("b", entry(300));
+      cache.put("c", entry(300));
+      assertNotNull(cache.get("a"));
+      cache.put("d", entry(300));
+      assertNull(cache.get("b"));
+      assertNotNull(cache.get("a"));
+      assertNotNull(cache.get("c"));
+      assertNotNull(cache.get("d"));
+      assertEquals(1, cache.getEvictions());
+      assertNull(cache.put("e", entry(600)));
+      assertEquals(3, cache.getEntryCount());
+   }
+}
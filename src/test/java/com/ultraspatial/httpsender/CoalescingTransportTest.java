@@ -0,0 +1,127 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class CoalescingTransportTest {
+
+   private final CountDownLatch release = new CountDownLatch(1);
+   private final AtomicInteger hits = new AtomicInteger();
+   private HttpServer server;
+   private CoalescingTransport transport;
+   private String base;
+
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.createContext("/slow", exchange -> {
+         hits.incrementAndGet();
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         String lang = exchange.getRequestHeaders().getFirst("Accept-Language");
+         byte[] out = ("hello " + lang).getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+      transport = new CoalescingTransport(Transports.urlConnection()).ignoreHeader("X-Request-Id");
+   }
+
+   @After
+   public void tearDown() {
+      release.countDown();
+      server.stop(0);
+   }
+
+   @Test
+   public void testIdenticalRequestsShareOneExchange() throws Exception {
+      List<CompletableFuture<Response>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+         Get get = new Get(base + "/slow").header("Accept-Language", "en").header("X-Request-Id", "id" + i)
+               .transport(transport);
+         futures.add(get.executeAsync());
+      }
+      awaitRequests(20);
+      release.countDown();
+      for (CompletableFuture<Response> future : futures) {
+         Response response = future.get();
+         assertEquals(200, response.getResponseCode());
+         assertEquals("hello en", response.bodyAsString());
+      }
+      assertEquals(1, hits.get());
+      assertEquals(1, transport.getOriginated());
+      assertEquals(19, transport.getCoalesced());
+   }
+
+   @Test
+   public void testDifferentHeadersAreNotCoalesced() throws Exception {
+      CompletableFuture<Response> en = new Get(base + "/slow").header("Accept-Language", "en").transport(transport).executeAsync();
+      CompletableFuture<Response> fr = new Get(base + "/slow").header("Accept-Language", "fr").transport(transport).executeAsync();
+      awaitRequests(2);
+      release.countDown();
+      assertEquals("hello en", en.get().bodyAsString());
+      assertEquals("hello fr", fr.get().bodyAsString());
+      assertEquals(2, hits.get());
+      assertEquals(0, transport.getCoalesced());
+   }
+
+   @Test
+   public void testDifferentTrustSettingsAreNotCoalesced() throws Exception {
+      CompletableFuture<Response> trusting = new Get(base + "/slow").trustAll(true).transport(transport).executeAsync();
+      CompletableFuture<Response> checking = new Get(base + "/slow").transport(transport).executeAsync();
+      awaitRequests(2);
+      release.countDown();
+      assertEquals(200, trusting.get().getResponseCode());
+      assertEquals(200, checking.get().getResponseCode());
+      assertEquals(2, hits.get());
+      assertEquals(0, transport.getCoalesced());
+   }
+
+   @Test
+   public void testOriginatorStopsWaitingAtItsDeadline() throws Exception {
+      CompletableFuture<Response> originator = CompletableFuture.supplyAsync(
+            () -> new Get(base + "/slow").transport(transport).execute(Deadline.after(300)));
+      awaitRequests(1);
+      CompletableFuture<Response> joiner = new Get(base + "/slow").transport(transport).executeAsync();
+      awaitRequests(2);
+      try {
+         originator.get(3, TimeUnit.SECONDS);
+         fail("Expected the deadline to expire");
+      } catch (ExecutionException e) {
+         //Expected
+      }
+      assertTrue(!joiner.isDone());
+      release.countDown();
+      assertEquals("hello null", joiner.get().bodyAsString());
+      assertEquals(1, hits.get());
+   }
+
+   private void awaitRequests(int count) throws InterruptedException {
+      while (transport.getOriginated() + transport.getCoalesced() < count) {
+         Thread.sleep(10);
+      }
+   }
+}
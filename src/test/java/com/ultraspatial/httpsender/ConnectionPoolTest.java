@@ -0,0 +1,191 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+   private static Route route(String url) throws Exception {
+      return Route.of(new URL(url), null, null, false);
+   }
+
+   @Test
+   public void testReleasedConnectionIsReused() throws Exception {
+      ConnectionPool pool = new ConnectionPool();
+      Route route = route("http://test.only.com/a");
+      ConnectionPool.Lease lease = pool.lease(route);
+      assertNull(lease.getConnection());
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      lease.release(true);
+      lease.release(true);
+      
+      ConnectionPool.Lease second = pool.lease(route("http://TEST.only.com:80/b"));
+      assertTrue(second.isReused());
+      assertSame(conn, second.getConnection());
+      PoolStats stats = pool.getStats();
+      assertEquals(1, stats.getLeased());
+      assertEquals(0, stats.getIdle());
+      assertEquals(1, stats.getCreated());
+      assertEquals(1, stats.getReused());
+   }
+
+   @Test
+   public void testRoutesAreSeparate() throws Exception {
+      ConnectionPool pool = new ConnectionPool();
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      lease.bind(new TestConnection(route));
+      lease.release(true);
+      
+      assertNull(pool.lease(route("https://test.only.com")).getConnection());
+      assertNull(pool.lease(Route.of(new URL("http://test.only.com"), null, null, true)).getConnection());
+      assertEquals(1, pool.getStats().getIdle());
+   }
+
+   @Test
+   public void testNonReusableConnectionIsClosed() throws Exception {
+      ConnectionPool pool = new ConnectionPool();
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      lease.release(false);
+      assertTrue(conn.closed);
+      assertEquals(0, pool.getStats().getIdle());
+   }
+
+   @Test
+   public void testStaleConnectionIsEvicted() throws Exception {
+      ConnectionPool pool = new ConnectionPool();
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      lease.release(true);
+      conn.stale = true;
+      
+      ConnectionPool.Lease second = pool.lease(route);
+      assertFalse(second.isReused());
+      assertNull(second.getConnection());
+      assertTrue(conn.closed);
+      assertEquals(1, pool.getStats().getEvicted());
+   }
+
+   @Test
+   public void testIdleTimeout() throws Exception {
+      ConnectionPool pool = new ConnectionPool().idleTimeout(0);
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      lease.release(true);
+      Thread.sleep(5);
+      pool.evictIdle();
+      assertTrue(conn.closed);
+      assertEquals(0, pool.getStats().getIdle());
+   }
+
+   @Test
+   public void testMaxPerRoute() throws Exception {
+      ConnectionPool pool = new ConnectionPool().maxPerRoute(1).blockWhenExhausted(true).leaseTimeout(10);
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      try {
+         pool.lease(route);
+         fail("Exceeded maxPerRoute");
+      } catch (TimeoutException e) {
+         //Success
+      }
+      pool.lease(route("http://other.only.com"));
+      lease.release(false);
+      pool.lease(route);
+   }
+
+   @Test
+   public void testMaxTotalEvictsIdleFromOtherRoutes() throws Exception {
+      ConnectionPool pool = new ConnectionPool().maxTotal(1).blockWhenExhausted(true).leaseTimeout(10);
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      lease.release(true);
+      
+      ConnectionPool.Lease other = pool.lease(route("http://other.only.com"));
+      assertTrue(conn.closed);
+      try {
+         pool.lease(route);
+         fail("Exceeded maxTotal");
+      } catch (TimeoutException e) {
+         //Success
+      }
+      other.release(false);
+   }
+
+   @Test
+   public void testOverflowConnectionIsNotPooled() throws Exception {
+      ConnectionPool pool = new ConnectionPool().maxPerRoute(1);
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease first = pool.lease(route);
+      first.bind(new TestConnection(route));
+      ConnectionPool.Lease overflow = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      overflow.bind(conn);
+      assertEquals(2, pool.getStats().getLeased());
+      overflow.release(true);
+      assertTrue(conn.closed);
+      first.release(true);
+      assertEquals(1, pool.getStats().getIdle());
+   }
+
+   @Test
+   public void testWaitingLeaseIsGrantedOnRelease() throws Exception {
+      ConnectionPool pool = new ConnectionPool().maxPerRoute(1).blockWhenExhausted(true).leaseTimeout(5000);
+      Route route = route("http://test.only.com");
+      ConnectionPool.Lease lease = pool.lease(route);
+      TestConnection conn = new TestConnection(route);
+      lease.bind(conn);
+      new Thread(() -> {
+         try {
+            Thread.sleep(50);
+         } catch (InterruptedException e) {
+         }
+         lease.release(true);
+      }).start();
+      assertSame(conn, pool.lease(route).getConnection());
+   }
+
+   private static class TestConnection implements PooledConnection {
+      private final Route route;
+      private volatile boolean stale;
+      private volatile boolean closed;
+
+      TestConnection(Route route) {
+         this.route = route;
+      }
+
+      @Override
+      public Route getRoute() {
+         return route;
+      }
+
+      @Override
+      public boolean isStale() {
+         return stale;
+      }
+
+      @Override
+      public void close() {
+         closed = true;
+      }
+   }
+}
@@ -0,0 +1,146 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeadlineTest {
+
+   private ServerSocket server;
+   private CountDownLatch accepted;
+   private CountDownLatch abandoned;
+   private String url;
+
+   //Accepts connections and reads requests, but never responds: counts down when the client gives up
+   @Before
+   public void setUp() throws Exception {
+      server = new ServerSocket(0);
+      accepted = new CountDownLatch(1);
+      abandoned = new CountDownLatch(1);
+      url = "http://127.0.0.1:" + server.getLocalPort() + "/silent";
+      Thread acceptor = new Thread(() -> {
+         try (Socket socket = server.accept()) {
+            accepted.countDown();
+            InputStream in = socket.getInputStream();
+            while (in.read() >= 0) {
+               //Discard the request, and wait for the client to close
+            }
+         } catch (Exception e) {
+            //Closed or reset by the client
+         }
+         abandoned.countDown();
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      server.close();
+   }
+
+   private static Throwable rootCause(Throwable t) {
+      while (t.getCause() != null && !(t instanceof DeadlineExceededException)) {
+         t = t.getCause();
+      }
+      return t;
+   }
+
+   @Test
+   public void testExpiredDeadlineAbortsExchange() throws Exception {
+      long start = System.nanoTime();
+      try {
+         new Get(url).execute(Deadline.after(300));
+         fail("Expected the deadline to expire");
+      } catch (RuntimeException e) {
+         assertTrue(rootCause(e) instanceof DeadlineExceededException);
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("Took " + elapsed + " ms", elapsed < 3000);
+      assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testExpiredDeadlineAbortsNioExchange() throws Exception {
+      try (NioTransport transport = new NioTransport()) {
+         try {
+            new Get(url).transport(transport).execute(Deadline.after(300));
+            fail("Expected the deadline to expire");
+         } catch (RuntimeException e) {
+            assertTrue(rootCause(e) instanceof DeadlineExceededException);
+         }
+         assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+      }
+   }
+
+   @Test
+   public void testExpiredDeadlineAbortsHttpClientExchange() throws Exception {
+      try {
+         //Long enough for the first HttpClient to be built
+         new Get(url).transport(new HttpClientTransport()).execute(Deadline.after(2000));
+         fail("Expected the deadline to expire");
+      } catch (RuntimeException e) {
+         assertTrue(rootCause(e) instanceof DeadlineExceededException);
+      }
+      assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testCancellingFutureAbortsExchange() throws Exception {
+      ResponseFuture future = new Get(url).executeAsync();
+      assertTrue(accepted.await(5, TimeUnit.SECONDS));
+      assertTrue(future.cancel(true));
+      assertTrue(future.getDeadline().isCancelled());
+      assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testChildEndsWithParent() throws Exception {
+      Deadline parent = Deadline.none();
+      Deadline child = parent.child(0);
+      Deadline grandchild = child.child(10000);
+      assertEquals(Long.MAX_VALUE, child.remaining());
+      assertTrue(grandchild.remaining() <= 10000);
+      grandchild.cancel();
+      assertFalse(child.isCancelled());
+      Deadline other = child.child(0);
+      parent.cancel();
+      assertTrue(other.isCancelled());
+      assertTrue(other.getFailure() instanceof CancellationException);
+      assertEquals(0, other.remaining());
+   }
+
+   @Test
+   public void testCompletedChildIsDetached() throws Exception {
+      Deadline parent = Deadline.after(100);
+      Deadline child = parent.child(0);
+      child.complete();
+      parent.cancel();
+      assertFalse(child.isCancelled());
+   }
+
+   @Test
+   public void testFutureFailsWhenDeadlineExpires() throws Exception {
+      ResponseFuture future = new Get(url).executeAsync(Executors.defaultExecutor(), Deadline.after(200));
+      try {
+         future.get(5, TimeUnit.SECONDS);
+         fail("Expected the deadline to expire");
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof DeadlineExceededException);
+      }
+      assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+   }
+}
@@ -0,0 +1,227 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class DiskHttpCacheTest {
+
+   private Path directory;
+
+   @Before
+   public void setUp() throws Exception {
+      directory = Files.createTempDirectory("httpsender-cache");
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      List<Path> files = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+         stream.forEach(files::add);
+      }
+      for (Path file : files) {
+         Files.delete(file);
+      }
+      Files.delete(directory);
+   }
+
+   private static CacheEntry entry(byte[] body) {
+      Map<String, List<String>> headers = new LinkedHashMap<>();
+      headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+      headers.put("Cache-Control", Collections.singletonList("max-age=60"));
+      headers.put("Set-Cookie", List.of("a=1", "b=2"));
+      Map<String, String> vary = new HashMap<>();
+      vary.put("accept-language", "en");
+      vary.put("accept", null);
+      return new CacheEntry("HTTP/1.1", 200, "OK", headers, vary, 1000, 2000, 
+            new RepeatableInputStreamProvider(new ByteArrayInputStream(body)));
+   }
+
+   private static byte[] read(CacheEntry entry) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream is = entry.getBody().getInputStream()) {
+         is.transferTo(out);
+      }
+      return out.toByteArray();
+   }
+
+   private Path segment() throws Exception {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+         return stream.iterator().next();
+      }
+   }
+
+   @Test
+   public void testEntriesSurviveRestart() throws Exception {
+      byte[] body = "persistent body".getBytes(StandardCharsets.UTF_8);
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         CacheEntry stored = cache.put("GET http://example.com/", entry(body));
+         assertArrayEquals(body, read(stored));
+      }
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         CacheEntry entry = cache.get("GET http://example.com/");
+         assertNotNull(entry);
+         assertEquals(200, entry.getResponseCode());
+         assertEquals("OK", entry.getResponseStatus());
+         assertEquals(1000, entry.getRequestTime());
+         assertEquals(2000, entry.getResponseTime());
+         assertEquals(List.of("a=1", "b=2"), entry.getHeaderFields().get("Set-Cookie"));
+         assertEquals("HTTP/1.1 200 OK", entry.getHeaderFields().get(null).get(0));
+         assertEquals("en", entry.getVaryValues().get("accept-language"));
+         assertTrue(entry.getVaryValues().containsKey("accept"));
+         assertEquals(body.length, entry.getBody().getContentLength());
+         assertArrayEquals(body, read(entry));
+         assertNull(cache.get("GET http://example.com/other"));
+         cache.remove("GET http://example.com/");
+         assertNull(cache.get("GET http://example.com/"));
+      }
+   }
+
+   @Test
+   public void testOldestSegmentsEvicted() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 4096)) {
+         for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, entry(new byte[300]));
+         }
+         assertTrue("Size " + cache.getSize(), cache.getSize() <= cache.getMaxSize());
+         assertNull(cache.get("key0"));
+         assertNotNull(cache.get("key39"));
+         assertTrue(cache.getEntryCount() < 40);
+         assertNull(cache.put("large", entry(new byte[(int) cache.getMaxEntrySize() + 1])));
+      }
+   }
+
+   @Test
+   public void testEntryLimitEvicts() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024, 4)) {
+         for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, entry(new byte[10000]));
+            cache.put("key" + i, entry(new byte[10000]));
+         }
+         assertTrue(cache.getEntryCount() <= 4);
+         assertNotNull(cache.get("key199"));
+      }
+   }
+
+   @Test
+   public void testEvictedBodyStillReadableWhileOpen() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 4096)) {
+         byte[] body = new byte[300];
+         body[299] = 42;
+         cache.put("first", entry(body));
+         InputStream is = cache.get("first").getBody().getInputStream();
+         for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, entry(new byte[300]));
+         }
+         assertNull(cache.get("first"));
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         is.transferTo(out);
+         is.close();
+         assertArrayEquals(body, out.toByteArray());
+      }
+   }
+
+   @Test
+   public void testDirectoryCanOnlyBeOpenedOnce() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         cache.put("first", entry(new byte[100]));
+         try {
+            new DiskHttpCache(directory, 1024 * 1024);
+            fail("Expected the directory to be locked");
+         } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("in use"));
+         }
+         assertNotNull(cache.get("first"));
+      }
+      //Closing the cache releases the directory
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         assertNotNull(cache.get("first"));
+      }
+   }
+
+   @Test
+   public void testTruncatedSegmentIsAMiss() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         cache.put("first", entry(new byte[100]));
+         cache.put("second", entry(new byte[100]));
+      }
+      //As if the process had died part way through writing the second entry
+      try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+         channel.truncate(channel.size() - 10);
+      }
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         assertNotNull(cache.get("first"));
+         assertNull(cache.get("second"));
+         assertEquals(1, cache.getEntryCount());
+      }
+   }
+
+   @Test
+   public void testCorruptRecordIsAMiss() throws Exception {
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         cache.put("first", entry(new byte[100]));
+      }
+      try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+         channel.write(java.nio.ByteBuffer.wrap(new byte[] { 'x', 'x' }), 30);
+      }
+      try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+         assertNull(cache.get("first"));
+      }
+   }
+
+   @Test
+   public void testCachingTransportServesFromDiskAfterRestart() throws Exception {
+      AtomicInteger hits = new AtomicInteger();
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/", exchange -> {
+         byte[] out = ("body " + hits.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.start();
+      try {
+         String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+         try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+            CachingTransport transport = new CachingTransport(Transports.urlConnection(), cache);
+            assertEquals("body 1", new Get(url).transport(transport).execute().bodyAsString());
+         }
+         try (DiskHttpCache cache = new DiskHttpCache(directory, 1024 * 1024)) {
+            CachingTransport transport = new CachingTransport(Transports.urlConnection(), cache);
+            assertEquals("body 1", new Get(url).transport(transport).execute().bodyAsString());
+            assertEquals(1, transport.getHits());
+         }
+         assertEquals(1, hits.get());
+      } finally {
+         server.stop(0);
+      }
+   }
+}
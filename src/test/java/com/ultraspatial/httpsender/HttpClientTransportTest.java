@@ -0,0 +1,231 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+public class HttpClientTransportTest {
+
+   private final CountDownLatch release = new CountDownLatch(1);
+   private final AtomicInteger arrived = new AtomicInteger();
+   private HttpServer server;
+   private String base;
+
+   //An HTTP/1.1 server, so HTTP/2 is never negotiated
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.createContext("/hello", exchange -> {
+         byte[] out = "hello".getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.createContext("/echo", exchange -> {
+         byte[] in = exchange.getRequestBody().readAllBytes();
+         byte[] out = (exchange.getRequestMethod() + ":" + new String(in, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.createContext("/slow", exchange -> {
+         arrived.incrementAndGet();
+         try {
+            release.await(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         byte[] out = "slow".getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   @After
+   public void tearDown() {
+      release.countDown();
+      server.stop(0);
+   }
+
+   @Test
+   public void testHttp11() throws Exception {
+      HttpClientTransport transport = new HttpClientTransport();
+      try (Response response = new Get(base + "/hello").transport(transport).execute()) {
+         assertEquals(200, response.getResponseCode());
+         assertEquals("HTTP/1.1", response.getProtocol());
+         assertEquals("hello", response.bodyAsString());
+      }
+      assertEquals(1, transport.getConnectionCount(new Get(base + "/hello")));
+   }
+
+   @Test
+   public void testRequestBodies() throws Exception {
+      HttpClientTransport transport = new HttpClientTransport();
+      assertEquals("POST:abc", new Post(base + "/echo").requestBody("abc").transport(transport).execute().bodyAsString());
+      String streamed = new Put(base + "/echo").requestBody(new ByteArrayInputStream("def".getBytes(StandardCharsets.UTF_8)))
+            .transport(transport).executeAsync().get().bodyAsString();
+      assertEquals("PUT:def", streamed);
+   }
+
+   @Test
+   public void testStreamLimitSpillsOverUntilServerTurnsOutToBeHttp11() throws Exception {
+      HttpClientTransport transport = new HttpClientTransport(HttpClient.Version.HTTP_2)
+            .maxStreamsPerConnection(2).idleTimeout(100);
+      Get get = new Get(base + "/slow");
+      //Until a response shows otherwise, the server is assumed to speak HTTP/2
+      List<CompletableFuture<Response>> futures = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+         futures.add(get.copy().transport(transport).executeAsync());
+      }
+      assertEquals(3, transport.getConnectionCount(get));
+      long until = System.currentTimeMillis() + 5000;
+      while (arrived.get() < 5 && System.currentTimeMillis() < until) {
+         Thread.sleep(10);
+      }
+      release.countDown();
+      for (CompletableFuture<Response> future : futures) {
+         try (Response response = future.get()) {
+            assertEquals("HTTP/1.1", response.getProtocol());
+            assertEquals("slow", response.bodyAsString());
+         }
+      }
+      //The additional clients are discarded once idle
+      until = System.currentTimeMillis() + 5000;
+      while (transport.getConnectionCount(get) > 1 && System.currentTimeMillis() < until) {
+         Thread.sleep(20);
+      }
+      assertEquals(1, transport.getConnectionCount(get));
+      //Having fallen back to HTTP/1.1, there is no stream limit, so everything goes through the first client
+      futures.clear();
+      for (int i = 0; i < 5; i++) {
+         futures.add(new Get(base + "/hello").transport(transport).executeAsync());
+      }
+      for (CompletableFuture<Response> future : futures) {
+         assertEquals("hello", future.get().bodyAsString());
+      }
+      assertEquals(1, transport.getConnectionCount(get));
+   }
+
+   @Test
+   public void testTrustAllStillRejectsUntrustedCertificate() throws Exception {
+      Path keyStore = selfSignedKeyStore();
+      HttpsServer https = httpsServer(keyStore);
+      try {
+         Get get = new Get("https://127.0.0.1:" + https.getAddress().getPort() + "/hello")
+               .transport(new HttpClientTransport()).trustAll(true);
+         try {
+            get.execute();
+            fail("Expected the self-signed certificate to be rejected");
+         } catch (RuntimeException e) {
+            assertTrue(hasCause(e, SSLException.class));
+         }
+      } finally {
+         https.stop(0);
+         Files.delete(keyStore);
+      }
+   }
+
+   @Test
+   public void testTrustAllSkipsHostnameVerification() throws Exception {
+      //The certificate is for localhost, and is made trusted, but the server is addressed as 127.0.0.1
+      Path keyStore = selfSignedKeyStore();
+      HttpsServer https = httpsServer(keyStore);
+      String[] properties = { "javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword", "javax.net.ssl.trustStoreType" };
+      String[] saved = new String[properties.length];
+      for (int i = 0; i < properties.length; i++) {
+         saved[i] = System.getProperty(properties[i]);
+      }
+      System.setProperty("javax.net.ssl.trustStore", keyStore.toString());
+      System.setProperty("javax.net.ssl.trustStorePassword", "password");
+      System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+      try {
+         Get get = new Get("https://127.0.0.1:" + https.getAddress().getPort() + "/hello")
+               .transport(new HttpClientTransport()).trustAll(true);
+         assertEquals("hello", get.execute().bodyAsString());
+      } finally {
+         for (int i = 0; i < properties.length; i++) {
+            if (saved[i] == null) {
+               System.clearProperty(properties[i]);
+            } else {
+               System.setProperty(properties[i], saved[i]);
+            }
+         }
+         https.stop(0);
+         Files.delete(keyStore);
+      }
+   }
+
+   private static boolean hasCause(Throwable t, Class<? extends Throwable> type) {
+      for (; t != null; t = t.getCause()) {
+         if (type.isInstance(t)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static Path selfSignedKeyStore() throws Exception {
+      Path keyStore = Files.createTempFile("httpclienttest", ".p12");
+      Files.delete(keyStore);
+      Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+            "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-alias", "server", "-dname", "CN=localhost",
+            "-ext", "SAN=dns:localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+            "-storepass", "password", "-keypass", "password").redirectErrorStream(true).start();
+      keytool.getInputStream().readAllBytes();
+      assertEquals(0, keytool.waitFor());
+      return keyStore;
+   }
+
+   private static HttpsServer httpsServer(Path keyStore) throws Exception {
+      KeyStore ks = KeyStore.getInstance("PKCS12");
+      try (InputStream in = Files.newInputStream(keyStore)) {
+         ks.load(in, "password".toCharArray());
+      }
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(ks, "password".toCharArray());
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(kmf.getKeyManagers(), null, null);
+      HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+      https.setHttpsConfigurator(new HttpsConfigurator(context));
+      https.createContext("/hello", exchange -> {
+         byte[] out = "hello".getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      https.start();
+      return https;
+   }
+}
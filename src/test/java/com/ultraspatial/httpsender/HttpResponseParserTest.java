@@ -0,0 +1,79 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HttpResponseParserTest {
+
+   private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+   private int code;
+   private boolean complete;
+
+   private final HttpResponseParser parser = new HttpResponseParser("GET", new HttpResponseParser.Listener() {
+
+      @Override
+      public void onHeaders(String protocol, int code, String reason, Map<String, List<String>> headers) {
+         HttpResponseParserTest.this.code = code;
+      }
+
+      @Override
+      public boolean onBody(byte[] data) {
+         body.write(data, 0, data.length);
+         return true;
+      }
+
+      @Override
+      public void onComplete() {
+         complete = true;
+      }
+   });
+
+   private void feed(String response) throws IOException {
+      parser.feed(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+   }
+
+   private void assertMalformed(String response, String message) {
+      try {
+         feed(response);
+         fail("Expected the response to be rejected");
+      } catch (IOException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+      }
+      assertTrue(!complete);
+   }
+
+   @Test
+   public void testFixedLengthBody() throws Exception {
+      feed("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+      assertEquals(200, code);
+      assertEquals("hello", body.toString("US-ASCII"));
+      assertTrue(complete);
+   }
+
+   @Test
+   public void testChunkedBody() throws Exception {
+      feed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+      assertEquals("hello world", body.toString("US-ASCII"));
+      assertTrue(complete);
+   }
+
+   @Test
+   public void testNegativeContentLengthRejected() throws Exception {
+      assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\nhello", "Malformed Content-Length");
+   }
+
+   @Test
+   public void testNegativeChunkSizeRejected() throws Exception {
+      assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-1\r\nhello\r\n0\r\n\r\n", "Malformed chunk size");
+   }
+}
@@ -3,6 +3,7 @@ package com.ultraspatial.httpsender;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -10,9 +11,11 @@ import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 //import static org.mockito.Mockito.times;
-//import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.util.ArrayList;
@@ -84,6 +87,35 @@ public class IndividualRequestTest {
       assertEquals(get.url(), get2.url());
    }
    
+   @Test
+   public void testFrozenRequestIsShared() throws Exception {
+      when(conn.getResponseCode()).thenReturn(200);
+      Get get = new Get("http://test.only.com").header("x", "x1").queryParam("q", "q1");
+      get.setConnectionFactory(new TestingHttpUrlConnectionFactory(conn));
+      get.freeze();
+      assertTrue(get.isFrozen());
+      try {
+         get.header("y", "y1");
+         fail("Modified a frozen request");
+      } catch (IllegalStateException e) {
+         //Success
+      }
+      try {
+         get.getHeaders().get("x").add("x2");
+         fail("Modified a frozen request's header values");
+      } catch (UnsupportedOperationException e) {
+         //Success
+      }
+      assertSame(get, get.execute().getRequest());
+
+      Get modifiable = get.copy();
+      assertFalse(modifiable.isFrozen());
+      modifiable.header("x", "x2").queryParam("q", "q2");
+      assertEquals(1, get.getHeaders().get("x").getValues().size());
+      assertEquals(1, get.getQueryParams().get("q").size());
+      assertNotSame(modifiable, modifiable.execute().getRequest());
+   }
+
    @Test
    public void testFollowRedirects() {
       Get get = new Get("http://test.only.com");
@@ -348,4 +380,29 @@ public class IndividualRequestTest {
      req.execute();
      assertTrue(called[0]);
    }
+
+   @Test
+   public void testBodyOfKnownLengthIsStreamed() throws Exception {
+      when(conn.getResponseCode()).thenReturn(200);
+      ByteArrayOutputStream sent = new ByteArrayOutputStream();
+      when(conn.getOutputStream()).thenReturn(sent);
+      Put put = new Put("http://test.only.com").requestBody("hello");
+      put.setConnectionFactory(new TestingHttpUrlConnectionFactory(conn));
+      put.execute();
+      verify(conn).setFixedLengthStreamingMode(5L);
+      assertEquals("hello", sent.toString("UTF-8"));
+   }
+   
+   @Test
+   public void testBodyOfUnknownLengthIsChunked() throws Exception {
+      when(conn.getResponseCode()).thenReturn(200);
+      ByteArrayOutputStream sent = new ByteArrayOutputStream();
+      when(conn.getOutputStream()).thenReturn(sent);
+      InputStreamProvider provider = () -> new ByteArrayInputStream(new byte[] {1, 2, 3});
+      Post post = new Post("http://test.only.com").requestBody(provider).chunkSize(1024);
+      post.setConnectionFactory(new TestingHttpUrlConnectionFactory(conn));
+      post.execute();
+      verify(conn).setChunkedStreamingMode(1024);
+      assertEquals(3, sent.size());
+   }
 }
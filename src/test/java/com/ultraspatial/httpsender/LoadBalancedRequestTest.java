@@ -0,0 +1,131 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+public class LoadBalancedRequestTest {
+
+   private final List<HttpServer> servers = new ArrayList<>();
+
+   @After
+   public void tearDown() {
+      for (HttpServer server : servers) {
+         server.stop(0);
+      }
+   }
+
+   //A server that answers with the specified status after the specified delay, counting the requests it receives
+   private String serve(int status, long delay, AtomicInteger count) throws Exception {
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/", exchange -> {
+         count.incrementAndGet();
+         try {
+            Thread.sleep(delay);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         byte[] out = exchange.getRequestURI().toString().getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(status, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.start();
+      servers.add(server);
+      return "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   private static String unreachable() throws Exception {
+      try (ServerSocket socket = new ServerSocket(0)) {
+         return "http://127.0.0.1:" + socket.getLocalPort();
+      }
+   }
+
+   @Test
+   public void testRequestsSpreadAcrossEndpoints() throws Exception {
+      AtomicInteger[] counts = { new AtomicInteger(), new AtomicInteger(), new AtomicInteger() };
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/items?id=1"), 
+            serve(200, 0, counts[0]), serve(200, 0, counts[1]), serve(200, 0, counts[2]) + "/api/")
+            .policy(LoadBalancedRequest.Policy.LEAST_OUTSTANDING);
+      for (int i = 0; i < 60; i++) {
+         String body = request.execute().bodyAsString();
+         assertTrue(body, body.equals("/items?id=1") || body.equals("/api/items?id=1"));
+      }
+      for (AtomicInteger count : counts) {
+         assertTrue("Count " + count, count.get() > 0);
+      }
+      long total = 0;
+      for (LoadBalancedRequest.Endpoint endpoint : request.getEndpoints()) {
+         assertEquals(0, endpoint.getOutstanding());
+         total += endpoint.getRequests();
+      }
+      assertEquals(60, total);
+   }
+
+   @Test
+   public void testPeakEwmaPrefersFasterEndpoint() throws Exception {
+      AtomicInteger slow = new AtomicInteger();
+      AtomicInteger fast = new AtomicInteger();
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/"), serve(200, 100, slow), serve(200, 0, fast));
+      for (int i = 0; i < 40; i++) {
+         request.execute().close();
+      }
+      assertTrue("Slow " + slow + ", fast " + fast, fast.get() > 3 * slow.get());
+      assertTrue(request.getEndpoints().get(0).getLatency() > request.getEndpoints().get(1).getLatency());
+   }
+
+   @Test
+   public void testRetryOnErrorResponseUsesAnotherEndpoint() throws Exception {
+      AtomicInteger failing = new AtomicInteger();
+      AtomicInteger healthy = new AtomicInteger();
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/"), serve(503, 0, failing), serve(200, 0, healthy))
+            .retryOnErrorResponse(true)
+            .retryStrategy(RetryStrategy.maxTotalTries(2));
+      for (int i = 0; i < 20; i++) {
+         assertEquals(200, request.execute().getResponseCode());
+         assertEquals(200, request.executeAsync().get().getResponseCode());
+      }
+      assertEquals(40, healthy.get());
+      assertEquals(failing.get(), request.getEndpoints().get(0).getFailures());
+   }
+
+   @Test
+   public void testRetryAfterExceptionUsesAnotherEndpoint() throws Exception {
+      AtomicInteger healthy = new AtomicInteger();
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/"), unreachable(), serve(200, 0, healthy))
+            .retryStrategy(RetryStrategy.maxTotalTries(2));
+      for (int i = 0; i < 10; i++) {
+         assertEquals(200, request.execute().getResponseCode());
+         assertEquals(200, request.executeAsync().get().getResponseCode());
+      }
+      assertEquals(20, healthy.get());
+      LoadBalancedRequest.Endpoint dead = request.getEndpoints().get(0);
+      assertEquals(dead.getRequests(), dead.getFailures());
+   }
+
+   @Test
+   public void testFailureWithoutRetry() throws Exception {
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/"), unreachable());
+      try {
+         request.execute();
+         fail("Expected the request to fail");
+      } catch (RuntimeException e) {
+         //Expected
+      }
+      assertEquals(1, request.getEndpoints().get(0).getFailures());
+      assertEquals(0, request.getEndpoints().get(0).getOutstanding());
+   }
+}
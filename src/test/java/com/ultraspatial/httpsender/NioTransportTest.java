@@ -0,0 +1,131 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class NioTransportTest {
+
+   private HttpServer server;
+   private NioTransport transport;
+   private String base;
+
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.createContext("/echo", exchange -> {
+         byte[] in = exchange.getRequestBody().readAllBytes();
+         byte[] out = (exchange.getRequestMethod() + ":" + new String(in, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+         exchange.sendResponseHeaders(200, out.length);
+         exchange.getResponseBody().write(out);
+         exchange.close();
+      });
+      server.createContext("/chunked", exchange -> {
+         exchange.sendResponseHeaders(200, 0);
+         try (OutputStream os = exchange.getResponseBody()) {
+            for (int i = 0; i < 1000; i++) {
+               os.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+               os.flush();
+            }
+         }
+      });
+      server.createContext("/large", exchange -> {
+         byte[] block = new byte[8192];
+         exchange.sendResponseHeaders(200, block.length * 256L);
+         try (OutputStream os = exchange.getResponseBody()) {
+            for (int i = 0; i < 256; i++) {
+               os.write(block);
+            }
+         }
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+      transport = new NioTransport(2);
+   }
+
+   @After
+   public void tearDown() {
+      transport.close();
+      server.stop(0);
+   }
+
+   @Test
+   public void testGet() throws Exception {
+      Response response = new Get(base + "/echo").transport(transport).execute();
+      assertEquals(200, response.getResponseCode());
+      assertEquals("HTTP/1.1", response.getProtocol());
+      assertEquals("GET:", response.bodyAsString());
+   }
+
+   @Test
+   public void testPostBodyIsSent() throws Exception {
+      Response response = new Post(base + "/echo").requestBody("hello").transport(transport).execute();
+      assertEquals("POST:hello", response.bodyAsString());
+   }
+
+   @Test
+   public void testChunkedResponse() throws Exception {
+      String body = new Get(base + "/chunked").transport(transport).execute().bodyAsString();
+      assertTrue(body.startsWith("line 0\n"));
+      assertTrue(body.endsWith("line 999\n"));
+   }
+
+   @Test
+   public void testLargeResponseIsReadInFull() throws Exception {
+      Response response = new Get(base + "/large").transport(transport).execute();
+      assertEquals(8192 * 256, IOUtil.readStreamFully(response.bodyAsStream()).length);
+   }
+
+   @Test
+   public void testConnectionIsReused() throws Exception {
+      for (int i = 0; i < 10; i++) {
+         new Get(base + "/echo").transport(transport).execute().bodyAsString();
+      }
+      PoolStats stats = transport.getConnectionPool().getStats();
+      assertEquals(1, stats.getCreated());
+      assertEquals(9, stats.getReused());
+   }
+
+   @Test
+   public void testConcurrentAsyncRequests() throws Exception {
+      List<CompletableFuture<Response>> futures = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+         futures.add(new Post(base + "/echo").requestBody("n" + i).transport(transport).executeAsync());
+      }
+      for (int i = 0; i < futures.size(); i++) {
+         assertEquals("POST:n" + i, futures.get(i).get().bodyAsString());
+      }
+   }
+
+   @Test
+   public void testFileBodyIsSent() throws Exception {
+      Path file = Files.createTempFile("niotest", ".txt");
+      try {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < 100000; i++) {
+            sb.append(i).append(',');
+         }
+         Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+         Put put = new Put(base + "/echo").requestBody(file).transport(transport);
+         assertEquals("PUT:" + sb, put.execute().bodyAsString());
+         assertEquals("PUT:" + sb, put.execute().bodyAsString());
+      } finally {
+         Files.delete(file);
+      }
+   }
+}
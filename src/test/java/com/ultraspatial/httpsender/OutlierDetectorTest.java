@@ -0,0 +1,222 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.ultraspatial.httpsender.fallback.FallbackRequest;
+
+public class OutlierDetectorTest {
+
+   private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private final List<HttpServer> servers = new ArrayList<>();
+
+   @After
+   public void tearDown() {
+      for (HttpServer server : servers) {
+         server.stop(0);
+      }
+   }
+
+   //A server that answers with the specified status, counting the requests it receives
+   private String serve(int status, AtomicInteger count) throws Exception {
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/", exchange -> {
+         count.incrementAndGet();
+         exchange.sendResponseHeaders(status, -1);
+         exchange.close();
+      });
+      server.start();
+      servers.add(server);
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   @Test
+   public void testEndpointOf() throws Exception {
+      assertEquals("http://example.com:80", OutlierDetector.endpointOf(new Get("http://Example.com/a?b=c")));
+      assertEquals("https://example.com:8443", OutlierDetector.endpointOf(new Get("https://example.com:8443/")));
+      RequestTemplate template = RequestTemplate.compile(new Get("http://{host}/items"));
+      assertEquals("http://a.example.com:80", OutlierDetector.endpointOf(template.bind().set("host", "a.example.com")));
+      assertEquals(null, OutlierDetector.endpointOf(new FallbackRequest()));
+   }
+
+   @Test
+   public void testConsecutiveFailuresEjectForGrowingTime() throws Exception {
+      OutlierDetector detector = new OutlierDetector().consecutiveFailures(3).ejectionTime(200, 10000);
+      String endpoint = "http://a:80";
+      detector.record(endpoint, true, MS);
+      detector.record(endpoint, true, MS);
+      detector.record(endpoint, false, MS);
+      detector.record(endpoint, true, MS);
+      detector.record(endpoint, true, MS);
+      assertFalse(detector.isEjected(endpoint));
+      detector.record(endpoint, true, MS);
+      assertTrue(detector.isEjected(endpoint));
+      assertEquals(1, detector.health(endpoint).getEjections());
+      assertEquals(0, detector.health(endpoint).getConsecutiveFailures());
+      long until = System.currentTimeMillis() + 5000;
+      while (detector.isEjected(endpoint) && System.currentTimeMillis() < until) {
+         Thread.sleep(20);
+      }
+      assertFalse(detector.isEjected(endpoint));
+      for (int i = 0; i < 3; i++) {
+         detector.record(endpoint, true, MS);
+      }
+      assertTrue(detector.isEjected(endpoint));
+      assertEquals(2, detector.health(endpoint).getEjections());
+      assertTrue(detector.health(endpoint).getEjectionRemaining() > 200);
+   }
+
+   @Test
+   public void testFailureRateEjects() throws Exception {
+      OutlierDetector detector = new OutlierDetector().consecutiveFailures(0).failureRate(0.4, 10);
+      String endpoint = "http://a:80";
+      for (int i = 0; i < 9; i++) {
+         detector.record(endpoint, i % 2 == 0, MS);
+      }
+      assertFalse(detector.isEjected(endpoint));
+      for (int i = 0; i < 20 && !detector.isEjected(endpoint); i++) {
+         detector.record(endpoint, i % 3 != 0, MS);
+      }
+      assertTrue(detector.isEjected(endpoint));
+   }
+
+   @Test
+   public void testLatencyOutlierEjected() throws Exception {
+      OutlierDetector detector = new OutlierDetector().latencyOutliers(3, 10);
+      List<String> alternatives = List.of("http://a:80", "http://b:80", "http://c:80", "http://d:80");
+      for (int i = 0; i < 5; i++) {
+         detector.record("http://a:80", false, 5 * MS);
+         detector.record("http://b:80", false, 6 * MS);
+         detector.record("http://c:80", false, 7 * MS);
+         detector.record("http://d:80", false, 300 * MS);
+      }
+      detector.compareLatencies(alternatives.subList(0, 2));
+      assertFalse(detector.isEjected("http://d:80"));
+      detector.compareLatencies(alternatives);
+      assertTrue(detector.isEjected("http://d:80"));
+      assertFalse(detector.isEjected("http://a:80"));
+      assertFalse(detector.isEjected("http://c:80"));
+   }
+
+   @Test
+   public void testFallbackRequestSkipsEjectedEndpoint() throws Exception {
+      AtomicInteger primary = new AtomicInteger();
+      AtomicInteger backup = new AtomicInteger();
+      String primaryUrl = serve(503, primary);
+      String backupUrl = serve(200, backup);
+      //Not the shared detector, whose ejections would outlast the test
+      OutlierDetector detector = new OutlierDetector();
+      //Ejection is shared by separate requests
+      for (int i = 0; i < 10; i++) {
+         FallbackRequest request = new FallbackRequest()
+               .tryRequest(new Get(primaryUrl), true)
+               .tryRequest(new Get(backupUrl))
+               .outlierDetector(detector);
+         Response response = i % 2 == 0 ? request.execute() : request.executeAsync().get();
+         assertEquals(200, response.getResponseCode());
+      }
+      assertEquals(5, primary.get());
+      assertEquals(10, backup.get());
+      assertTrue(detector.isEjected(OutlierDetector.endpointOf(new Get(primaryUrl))));
+      assertFalse(OutlierDetector.shared().isEjected(OutlierDetector.endpointOf(new Get(primaryUrl))));
+      //With every alternative ejected, they are tried anyway
+      Response response = new FallbackRequest().tryRequest(new Get(primaryUrl)).outlierDetector(detector).execute();
+      assertEquals(503, response.getResponseCode());
+      assertEquals(6, primary.get());
+   }
+
+   @Test
+   public void testLoadBalancedRequestSkipsEjectedEndpoint() throws Exception {
+      AtomicInteger failing = new AtomicInteger();
+      AtomicInteger healthy = new AtomicInteger();
+      String failingUrl = serve(503, failing);
+      String healthyUrl = serve(200, healthy);
+      OutlierDetector detector = new OutlierDetector().consecutiveFailures(2);
+      LoadBalancedRequest request = new LoadBalancedRequest(new Get("http://backend/"), failingUrl, healthyUrl)
+            .outlierDetector(detector);
+      for (int i = 0; i < 40; i++) {
+         request.execute().close();
+      }
+      assertEquals(2, failing.get());
+      assertEquals(38, healthy.get());
+      assertTrue(detector.isEjected(OutlierDetector.endpointOf(new Get(failingUrl))));
+   }
+
+   @Test
+   public void testOnlyTheExchangesOwnTimeoutsCount() throws Exception {
+      OutlierDetector detector = new OutlierDetector().consecutiveFailures(2);
+      String endpoint = "http://a:80";
+      Deadline expired = Deadline.after(1);
+      Thread.sleep(20);
+      assertTrue(expired.isExpired());
+      Deadline cancelled = Deadline.none().child(0);
+      cancelled.cancel();
+      for (int i = 0; i < 3; i++) {
+         detector.recordFailure(endpoint, new RuntimeException(new DeadlineExceededException("Deadline exceeded")), expired, MS);
+         detector.recordFailure(endpoint, new IOException("Socket closed"), expired, MS);
+         detector.recordFailure(endpoint, new IOException("Socket closed"), cancelled, MS);
+      }
+      assertFalse(detector.isEjected(endpoint));
+      detector.recordFailure(endpoint, new RuntimeException(new ReadTimeoutException("Read timed out")), expired, MS);
+      detector.recordFailure(endpoint, new ExchangeTimeoutException("Exchange timed out"), Deadline.none(), MS);
+      assertTrue(detector.isEjected(endpoint));
+   }
+
+   @Test
+   public void testCallerDeadlineDoesNotEjectEndpoint() throws Exception {
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/", exchange -> {
+         try {
+            Thread.sleep(300);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         exchange.sendResponseHeaders(200, -1);
+         exchange.close();
+      });
+      server.start();
+      servers.add(server);
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+      OutlierDetector detector = new OutlierDetector().consecutiveFailures(2);
+      LoadBalancedRequest balanced = new LoadBalancedRequest(new Get("http://backend/"), url).outlierDetector(detector);
+      FallbackRequest fallback = new FallbackRequest().tryRequest(new Get(url)).outlierDetector(detector);
+      for (int i = 0; i < 3; i++) {
+         for (Request request : new Request[] { balanced, fallback }) {
+            try {
+               request.execute(Deadline.after(20)).close();
+               fail("Expected the deadline to expire");
+            } catch (RuntimeException e) {
+               //Expected
+            }
+         }
+      }
+      assertFalse(detector.isEjected(OutlierDetector.endpointOf(new Get(url))));
+      assertEquals(0, detector.health(OutlierDetector.endpointOf(new Get(url))).getConsecutiveFailures());
+   }
+
+   @Test
+   public void testIdleEndpointsAreForgotten() throws Exception {
+      OutlierDetector detector = new OutlierDetector().ejectionTime(1, 20);
+      detector.record("http://a:80", false, MS);
+      detector.record("http://b:80", true, MS);
+      assertEquals(2, detector.size());
+      Thread.sleep(50);
+      detector.record("http://c:80", false, MS);
+      assertEquals(1, detector.size());
+      assertEquals(0, detector.health("http://a:80").getConsecutiveFailures());
+   }
+}
@@ -0,0 +1,87 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+public class RequestTemplateTest {
+
+   @Mock private HttpURLConnection conn;
+   private Map<String, String> passedHeaders = new HashMap<>();
+   private String[] passedUrl = new String[1];
+
+   @Before
+   public void setUp() throws Exception {
+      MockitoAnnotations.initMocks(this);
+      when(conn.getResponseCode()).thenReturn(200);
+      Mockito.doAnswer(invocation -> {
+         passedHeaders.put(invocation.getArgument(0), invocation.getArgument(1));
+         return null;
+      }).when(conn).setRequestProperty(anyString(), anyString());
+   }
+
+   private <T extends IndividualRequest<?>> T withTestConnection(T request) {
+      request.setConnectionFactory(new TestingHttpUrlConnectionFactory(conn, url -> passedUrl[0] = url.toString()));
+      return request;
+   }
+
+   @Test
+   public void testRendersSameAsPlaceholders() throws Exception {
+      Get get = withTestConnection(new Get("http://test.{one}.com/{one}/{two}?abc={three}&{three}=yes"));
+      get.header("h1", "{one}").header("h2", "xx{two}xx").header("h3-{three}", "{three}");
+      RequestTemplate template = RequestTemplate.compile(get);
+
+      template.bind().set("one", "ONE").set("two", "TWO").set("three", "THREE").execute();
+      assertEquals("http://test.ONE.com/ONE/TWO?abc=THREE&THREE=yes", passedUrl[0]);
+      assertEquals("ONE", passedHeaders.get("h1"));
+      assertEquals("xxTWOxx", passedHeaders.get("h2"));
+      assertEquals("THREE", passedHeaders.get("h3-THREE"));
+
+      get.placeholder("one", "ONE").placeholder("two", "TWO").placeholder("three", "THREE").execute();
+      assertEquals("http://test.ONE.com/ONE/TWO?abc=THREE&THREE=yes", passedUrl[0]);
+   }
+
+   @Test
+   public void testDefaultsAndUnboundPlaceholders() throws Exception {
+      Get get = withTestConnection(new Get("http://test.only.com/{a}/{b}/{c"));
+      get.placeholder("a", "A").queryParam("q", "{b}");
+      RequestTemplate template = RequestTemplate.compile(get);
+      assertEquals(2, template.getPlaceholderNames().size());
+
+      template.bind().execute();
+      assertEquals("http://test.only.com/A/{b}/{c?q={b}", passedUrl[0]);
+      Map<String, String> values = new HashMap<>();
+      values.put("a", "x");
+      values.put("b", "y");
+      values.put("unused", "z");
+      template.execute(values);
+      assertTrue(passedUrl[0].startsWith("http://test.only.com/x/y/"));
+      assertTrue(passedUrl[0].endsWith("?q=y"));
+   }
+
+   @Test
+   public void testTemplateIsIndependentOfRequest() throws Exception {
+      Get get = withTestConnection(new Get("http://test.only.com/{id}"));
+      RequestTemplate template = RequestTemplate.compile(get);
+      get.header("late", "x");
+      template.bind().set("id", "1").execute();
+      assertEquals("http://test.only.com/1", passedUrl[0]);
+      assertTrue(passedHeaders.isEmpty());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testBracesInValuesAreRejected() {
+      RequestTemplate.compile(new Get("http://test.only.com/{id}")).bind().set("id", "{x}");
+   }
+}
@@ -0,0 +1,140 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResumableDownloadTest {
+
+   private static final byte[] CONTENT = new byte[1000000];
+   private ServerSocket server;
+   private String url;
+   private Path file;
+   private final AtomicInteger requests = new AtomicInteger();
+   private volatile int dropAfter = 300000;
+   private volatile String etag = "\"v1\"";
+   private volatile boolean changeAfterFirst;
+   private volatile int status = 200;
+
+   static {
+      new Random(1).nextBytes(CONTENT);
+   }
+
+   @Before
+   public void setUp() throws Exception {
+      server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      Thread acceptor = new Thread(() -> {
+         try {
+            while (true) {
+               try (Socket socket = server.accept()) {
+                  serve(socket);
+               }
+            }
+         } catch (IOException e) {
+         }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+      url = "http://127.0.0.1:" + server.getLocalPort() + "/content";
+      file = Files.createTempFile("download", ".bin");
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      server.close();
+      Files.deleteIfExists(file);
+   }
+
+   //Serves one request per connection, dropping the connection part way through the first response
+   private void serve(Socket socket) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+      Map<String, String> headers = new HashMap<>();
+      reader.readLine();
+      String line;
+      while ((line = reader.readLine()) != null && !line.isEmpty()) {
+         int colon = line.indexOf(':');
+         headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+      }
+      boolean first = requests.getAndIncrement() == 0;
+      if (!first && changeAfterFirst) {
+         etag = "\"v2\"";
+      }
+      OutputStream os = socket.getOutputStream();
+      if (status != 200) {
+         os.write(("HTTP/1.1 " + status + " Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+         return;
+      }
+      String range = headers.get("range");
+      int start = 0;
+      StringBuilder head = new StringBuilder();
+      if (range != null && etag.equals(headers.get("if-range"))) {
+         start = Integer.parseInt(range.substring(6, range.length() - 1));
+         head.append("HTTP/1.1 206 Partial Content\r\n");
+         head.append("Content-Range: bytes " + start + "-" + (CONTENT.length - 1) + "/" + CONTENT.length + "\r\n");
+      } else {
+         head.append("HTTP/1.1 200 OK\r\n");
+      }
+      head.append("Content-Length: " + (CONTENT.length - start) + "\r\n");
+      head.append("ETag: " + etag + "\r\nConnection: close\r\n\r\n");
+      os.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+      int end = first && dropAfter > 0 ? Math.min(CONTENT.length, start + dropAfter) : CONTENT.length;
+      os.write(CONTENT, start, end - start);
+      os.flush();
+   }
+
+   @Test
+   public void testBodyToFile() throws Exception {
+      dropAfter = 0;
+      long count = new Get(url).execute().bodyToFile(file);
+      assertEquals(CONTENT.length, count);
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testDroppedDownloadIsResumed() throws Exception {
+      ResumableDownload download = new ResumableDownload(new Get(url), file);
+      assertEquals(CONTENT.length, download.execute());
+      assertEquals(1, download.getResumes());
+      assertEquals(2, requests.get());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testChangedContentIsDownloadedAgain() throws Exception {
+      changeAfterFirst = true;
+      ResumableDownload download = new ResumableDownload(new Get(url), file);
+      assertEquals(CONTENT.length, download.execute());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testErrorResponseIsNotRetried() throws Exception {
+      status = 404;
+      try {
+         new ResumableDownload(new Get(url), file).execute();
+         fail("Expected an exception");
+      } catch (RuntimeException e) {
+         assertEquals(1, requests.get());
+         assertEquals(0, Files.size(file));
+      }
+   }
+}
@@ -0,0 +1,143 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.ultraspatial.httpsender.fallback.BackoffStrategy;
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+public class SegmentedDownloadTest {
+
+   private static final byte[] CONTENT = new byte[1000003];
+   private HttpServer server;
+   private String base;
+   private Path file;
+   private final AtomicInteger rangeRequests = new AtomicInteger();
+   private final AtomicInteger failures = new AtomicInteger();
+
+   static {
+      new Random(2).nextBytes(CONTENT);
+   }
+
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.createContext("/ranges", exchange -> {
+         String range = exchange.getRequestHeaders().getFirst("Range");
+         exchange.getResponseHeaders().add("ETag", "\"abc\"");
+         if (range != null && !range.equals("bytes=0-0") && failures.getAndDecrement() > 0) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+         }
+         int first = 0;
+         int last = CONTENT.length - 1;
+         if (range != null) {
+            rangeRequests.incrementAndGet();
+            String[] bounds = range.substring(6).split("-");
+            first = Integer.parseInt(bounds[0]);
+            last = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + CONTENT.length);
+            exchange.sendResponseHeaders(206, last + 1 - first);
+         } else {
+            exchange.sendResponseHeaders(200, CONTENT.length);
+         }
+         try (OutputStream os = exchange.getResponseBody()) {
+            os.write(CONTENT, first, last + 1 - first);
+         }
+      });
+      server.createContext("/whole", exchange -> {
+         exchange.sendResponseHeaders(200, CONTENT.length);
+         try (OutputStream os = exchange.getResponseBody()) {
+            os.write(CONTENT);
+         }
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+      file = Files.createTempFile("segmented", ".bin");
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      server.stop(0);
+      Files.deleteIfExists(file);
+   }
+
+   @Test
+   public void testSegmentsAreAssembled() throws Exception {
+      SegmentedDownload.Result result = new SegmentedDownload(new Get(base + "/ranges"), file)
+            .segments(4).minSegmentSize(1000).execute();
+      assertEquals(4, result.getSegments());
+      assertEquals(CONTENT.length, result.getBytes());
+      assertEquals(5, rangeRequests.get());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testFailedSegmentIsRetried() throws Exception {
+      failures.set(1);
+      SegmentedDownload.Result result = new SegmentedDownload(new Get(base + "/ranges"), file)
+            .segments(3).minSegmentSize(1000).execute();
+      assertEquals(1, result.getRetries());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testAsyncDownloadSharingOneThread() throws Exception {
+      failures.set(2);
+      ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(1);
+      try {
+         //Coordinating the download must not hold the only thread that its segments, and their retries, run on
+         SegmentedDownload.Result result = new SegmentedDownload(new Get(base + "/ranges"), file)
+               .segments(3).minSegmentSize(1000).executor(pool).backoffStrategy(BackoffStrategy.specified(50))
+               .executeAsync(pool).get(10, TimeUnit.SECONDS);
+         assertEquals(2, result.getRetries());
+         assertArrayEquals(CONTENT, Files.readAllBytes(file));
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testRetryStrategySeesFailure() throws Exception {
+      failures.set(1);
+      SegmentedDownload download = new SegmentedDownload(new Get(base + "/ranges"), file).segments(3).minSegmentSize(1000)
+            .retryStrategy(RetryStrategy.onlyOn(RetryStrategy.maxTotalTries(3), ConnectTimeoutException.class));
+      try {
+         download.execute();
+         fail("Expected the download to fail");
+      } catch (RuntimeException e) {
+         //The server error is not one the strategy retries
+      }
+   }
+
+   @Test
+   public void testServerWithoutRangeSupport() throws Exception {
+      SegmentedDownload.Result result = new SegmentedDownload(new Get(base + "/whole"), file).execute();
+      assertEquals(1, result.getSegments());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+
+   @Test
+   public void testSmallContentUsesFewerSegments() throws Exception {
+      SegmentedDownload.Result result = new SegmentedDownload(new Get(base + "/ranges"), file).segments(8).execute();
+      assertEquals(1, result.getSegments());
+      assertArrayEquals(CONTENT, Files.readAllBytes(file));
+   }
+}
@@ -0,0 +1,140 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.ultraspatial.httpsender.fallback.FallbackRequest;
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+public class SpillingInputStreamProviderTest {
+
+   private static final int LARGE = SpillingInputStreamProvider.DEFAULT_THRESHOLD + 1000;
+
+   private final AtomicInteger received = new AtomicInteger();
+   private HttpServer server;
+   private String base;
+
+   //Responds with the size of the body it received, failing the first request to /flaky
+   @Before
+   public void setUp() throws Exception {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+      server.createContext("/", exchange -> {
+         byte[] in = exchange.getRequestBody().readAllBytes();
+         if (received.incrementAndGet() == 1 && exchange.getRequestURI().getPath().equals("/flaky")) {
+            exchange.sendResponseHeaders(503, -1);
+         } else {
+            byte[] out = String.valueOf(in.length).getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, out.length);
+            exchange.getResponseBody().write(out);
+         }
+         exchange.close();
+      });
+      server.start();
+      base = "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   @After
+   public void tearDown() {
+      server.stop(0);
+   }
+
+   private static byte[] data(int size) {
+      byte[] bytes = new byte[size];
+      new Random(size).nextBytes(bytes);
+      return bytes;
+   }
+
+   @Test
+   public void testSmallBodyIsKeptInMemory() throws Exception {
+      byte[] bytes = data(1000);
+      SpillingInputStreamProvider provider = new SpillingInputStreamProvider(new ByteArrayInputStream(bytes), 1000);
+      assertEquals(1000, provider.getContentLength());
+      assertFalse(provider.isSpilled());
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+   }
+
+   @Test
+   public void testLargeBodyIsSpilledAndReplayed() throws Exception {
+      byte[] bytes = data(300000);
+      SpillingInputStreamProvider provider = new SpillingInputStreamProvider(new ByteArrayInputStream(bytes), 1000);
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+      assertTrue(provider.isSpilled());
+      assertEquals(300000, provider.getContentLength());
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+      provider.close();
+      try {
+         provider.getInputStream();
+         fail("Expected IllegalStateException");
+      } catch (IllegalStateException e) {
+      }
+   }
+
+   @Test
+   public void testEmptyBody() throws Exception {
+      SpillingInputStreamProvider provider = new SpillingInputStreamProvider(new ByteArrayInputStream(new byte[0]), 0);
+      assertEquals(0, provider.getContentLength());
+      assertFalse(provider.isSpilled());
+   }
+
+   @Test
+   public void testCloseKeepsBodyInMemory() throws Exception {
+      byte[] bytes = data(1000);
+      SpillingInputStreamProvider provider = new SpillingInputStreamProvider(new ByteArrayInputStream(bytes), 1000);
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+      provider.close();
+      assertArrayEquals(bytes, IOUtil.readStreamFully(provider.getInputStream()));
+   }
+
+   @Test
+   public void testRequestExecutedTwice() throws Exception {
+      Post post = new Post(base + "/echo").requestBody(new ByteArrayInputStream(data(1000)));
+      assertEquals("1000", post.execute().bodyAsString());
+      assertEquals("1000", post.execute().bodyAsString());
+      Put put = new Put(base + "/echo").requestBody(new ByteArrayInputStream(data(LARGE)));
+      assertEquals(String.valueOf(LARGE), put.execute().bodyAsString());
+      assertEquals(String.valueOf(LARGE), put.executeAsync().get().bodyAsString());
+      assertTrue(((SpillingInputStreamProvider) put.getRequestBody()).isSpilled());
+   }
+
+   @Test
+   public void testCopiesShareBody() throws Exception {
+      Post template = new Post(base + "/echo").requestBody(new ByteArrayInputStream(data(LARGE)));
+      assertEquals(String.valueOf(LARGE), template.execute().bodyAsString());
+      assertEquals(String.valueOf(LARGE), template.copy().execute().bodyAsString());
+      assertEquals(String.valueOf(LARGE), template.execute().bodyAsString());
+   }
+
+   @Test
+   public void testRequestBodyKeptForRetries() throws Exception {
+      Post post = new Post(base + "/flaky").requestBody(new ByteArrayInputStream(data(LARGE)));
+      Response response = new FallbackRequest()
+            .tryRequest(post, true, RetryStrategy.maxTotalTries(2))
+            .outlierDetector(null)
+            .execute();
+      assertEquals(String.valueOf(LARGE), response.bodyAsString());
+      assertEquals(2, received.get());
+      assertEquals(String.valueOf(LARGE), post.execute().bodyAsString());
+   }
+
+   @Test
+   public void testFrozenRequestKeepsBody() throws Exception {
+      Post post = new Post(base + "/echo").requestBody(new ByteArrayInputStream(data(LARGE))).freeze();
+      assertEquals(String.valueOf(LARGE), post.execute().bodyAsString());
+      assertEquals(String.valueOf(LARGE), post.execute().bodyAsString());
+      assertTrue(((SpillingInputStreamProvider) post.getRequestBody()).isSpilled());
+   }
+}
@@ -0,0 +1,269 @@
+package com.ultraspatial.httpsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.ultraspatial.httpsender.fallback.FallbackRequest;
+import com.ultraspatial.httpsender.fallback.RetryStrategy;
+
+public class TimeoutTest {
+
+   private static final String HEAD = "HTTP/1.1 200 OK\r\nContent-Length: 1000\r\nContent-Type: text/plain\r\n\r\n";
+
+   private ServerSocket server;
+   private final AtomicInteger connections = new AtomicInteger();
+   private final List<Socket> sockets = new ArrayList<>();
+
+   @After
+   public void tearDown() throws Exception {
+      for (Socket socket : sockets) {
+         socket.close();
+      }
+      if (server != null) {
+         server.close();
+      }
+   }
+
+   private interface Behaviour {
+      void respond(OutputStream out) throws Exception;
+   }
+
+   //Reads the request head, then responds as instructed, and holds the connection open until the client closes it
+   private String serve(Behaviour behaviour) throws Exception {
+      server = new ServerSocket(0);
+      Thread acceptor = new Thread(() -> {
+         while (!server.isClosed()) {
+            try {
+               Socket socket = server.accept();
+               connections.incrementAndGet();
+               Thread handler = new Thread(() -> {
+                  try (Socket s = socket) {
+                     InputStream in = s.getInputStream();
+                     int matched = 0;
+                     while (matched < 4) {
+                        int b = in.read();
+                        if (b < 0) {
+                           return;
+                        }
+                        matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+                     }
+                     behaviour.respond(s.getOutputStream());
+                     while (in.read() >= 0) {
+                        //Wait for the client to give up
+                     }
+                  } catch (Exception e) {
+                     //Closed by the client
+                  }
+               });
+               handler.setDaemon(true);
+               handler.start();
+            } catch (Exception e) {
+               return;
+            }
+         }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+      return "http://127.0.0.1:" + server.getLocalPort() + "/slow";
+   }
+
+   private static void stall() throws InterruptedException {
+      Thread.sleep(10000);
+   }
+
+   //Sends the head and a few bytes of the body, then stalls
+   private String stallMidBody() throws Exception {
+      return serve(out -> {
+         out.write((HEAD + "partial").getBytes(StandardCharsets.US_ASCII));
+         out.flush();
+         stall();
+      });
+   }
+
+   //Sends the head, then the body one byte every 20 ms
+   private String trickle() throws Exception {
+      return serve(out -> {
+         out.write(HEAD.getBytes(StandardCharsets.US_ASCII));
+         out.flush();
+         for (int i = 0; i < 1000; i++) {
+            Thread.sleep(20);
+            out.write('x');
+            out.flush();
+         }
+      });
+   }
+
+   private static <T extends Throwable> T find(Throwable t, Class<T> type) {
+      for (; t != null; t = t.getCause()) {
+         if (type.isInstance(t)) {
+            return type.cast(t);
+         }
+      }
+      return null;
+   }
+
+   private static void assertBodyFails(Response response, Class<? extends Throwable> type) {
+      long start = System.nanoTime();
+      try {
+         response.bodyAsString();
+         fail("Expected the body to fail");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, type));
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("Took " + elapsed + " ms", elapsed < 5000);
+   }
+
+   @Test
+   public void testReadTimeoutWaitingForHeaders() throws Exception {
+      String url = serve(out -> stall());
+      try {
+         new Get(url).readTimeout(300).execute();
+         fail("Expected the read to time out");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ReadTimeoutException.class));
+      }
+   }
+
+   @Test
+   public void testReadTimeoutMidBody() throws Exception {
+      String url = stallMidBody();
+      try (Response response = new Get(url).readTimeout(300).execute()) {
+         assertEquals(200, response.getResponseCode());
+         assertBodyFails(response, ReadTimeoutException.class);
+      }
+   }
+
+   @Test
+   public void testReadTimeoutMidBodyNio() throws Exception {
+      String url = stallMidBody();
+      try (NioTransport transport = new NioTransport();
+            Response response = new Get(url).transport(transport).readTimeout(300).execute()) {
+         assertEquals(200, response.getResponseCode());
+         assertBodyFails(response, ReadTimeoutException.class);
+      }
+   }
+
+   @Test
+   public void testReadTimeoutWaitingForHeadersNio() throws Exception {
+      String url = serve(out -> stall());
+      try (NioTransport transport = new NioTransport()) {
+         new Get(url).transport(transport).readTimeout(300).execute();
+         fail("Expected the read to time out");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ReadTimeoutException.class));
+      }
+   }
+
+   @Test
+   public void testReadTimeoutMidBodyHttpClient() throws Exception {
+      String url = stallMidBody();
+      try (Response response = new Get(url).transport(new HttpClientTransport()).readTimeout(300).execute()) {
+         assertEquals(200, response.getResponseCode());
+         assertBodyFails(response, ReadTimeoutException.class);
+      }
+   }
+
+   @Test
+   public void testTricklingServerTripsExchangeTimeout() throws Exception {
+      String url = trickle();
+      try (Response response = new Get(url).readTimeout(1000).exchangeTimeout(500).execute()) {
+         assertEquals(200, response.getResponseCode());
+         assertBodyFails(response, ExchangeTimeoutException.class);
+      }
+   }
+
+   @Test
+   public void testTricklingServerTripsExchangeTimeoutNio() throws Exception {
+      String url = trickle();
+      try (NioTransport transport = new NioTransport();
+            Response response = new Get(url).transport(transport).readTimeout(1000).exchangeTimeout(500).execute()) {
+         assertBodyFails(response, ExchangeTimeoutException.class);
+      }
+   }
+
+   @Test
+   public void testExchangeTimeoutWaitingForHeaders() throws Exception {
+      String url = serve(out -> stall());
+      try {
+         new Get(url).exchangeTimeout(300).execute();
+         fail("Expected the exchange to time out");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ExchangeTimeoutException.class));
+      }
+   }
+
+   @Test
+   public void testConnectTimeout() throws Exception {
+      //Fill the accept queue of a server that never accepts, so that further connection attempts go unanswered
+      server = new ServerSocket();
+      server.bind(new InetSocketAddress("127.0.0.1", 0), 1);
+      InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+      boolean full = false;
+      for (int i = 0; i < 8 && !full; i++) {
+         Socket socket = new Socket();
+         sockets.add(socket);
+         try {
+            socket.connect(address, 200);
+         } catch (Exception e) {
+            full = true;
+         }
+      }
+      Assume.assumeTrue("Accept queue could not be filled", full);
+      String url = "http://127.0.0.1:" + server.getLocalPort() + "/";
+      try {
+         new Get(url).timeout(300).execute();
+         fail("Expected the connect to time out");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ConnectTimeoutException.class));
+      }
+      try (NioTransport transport = new NioTransport()) {
+         new Get(url).transport(transport).timeout(300).execute();
+         fail("Expected the connect to time out");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ConnectTimeoutException.class));
+      }
+   }
+
+   @Test
+   public void testRetryStrategyDistinguishesTimeouts() throws Exception {
+      String url = serve(out -> stall());
+      Get get = new Get(url).readTimeout(200);
+      FallbackRequest request = new FallbackRequest()
+            .tryRequest(get, false, RetryStrategy.onlyOn(RetryStrategy.maxTotalTries(3), ConnectTimeoutException.class));
+      try {
+         request.execute();
+         fail("Expected the request to fail");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ReadTimeoutException.class));
+      }
+      assertEquals(1, connections.get());
+      connections.set(0);
+      request = new FallbackRequest()
+            .tryRequest(get, false, RetryStrategy.onlyOn(RetryStrategy.maxTotalTries(3), ReadTimeoutException.class));
+      try {
+         request.execute();
+         fail("Expected the request to fail");
+      } catch (RuntimeException e) {
+         assertNotNull("Unexpected " + e, find(e, ReadTimeoutException.class));
+      }
+      assertEquals(3, connections.get());
+   }
+}
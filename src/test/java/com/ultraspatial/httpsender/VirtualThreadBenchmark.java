@@ -0,0 +1,74 @@
+package com.ultraspatial.httpsender;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sends a large number of concurrent requests to a local server that delays each response, and 
+ * reports the throughput and the peak number of platform threads. Not run as part of the tests.
+ * <pre>
+ * java -cp target/classes:target/test-classes com.ultraspatial.httpsender.VirtualThreadBenchmark \
+ *    [requests (50000)] [delay ms (1000)] [bounded|virtual (virtual if available)]
+ * </pre>
+ * Each request in flight holds a socket at each end, so for the default 50000 the open file limit 
+ * (ulimit -n) must be well above 100000, and the ephemeral port range wide enough.
+ */
+public class VirtualThreadBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      int requests = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+      long delay = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+      boolean virtual = args.length > 2 ? args[2].equals("virtual") : Executors.virtualThreadsAvailable();
+
+      byte[] body = "OK".getBytes(StandardCharsets.UTF_8);
+      ScheduledExecutorService timer = java.util.concurrent.Executors.newScheduledThreadPool(4);
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), requests);
+      server.createContext("/", exchange -> timer.schedule(() -> {
+         exchange.sendResponseHeaders(200, body.length);
+         exchange.getResponseBody().write(body);
+         exchange.close();
+         return null;
+      }, delay, TimeUnit.MILLISECONDS));
+      server.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(4));
+      server.start();
+
+      ExecutorService executor = virtual ? Executors.newVirtualThreadExecutor() : new BoundedExecutor();
+      Get get = new Get("http://127.0.0.1:" + server.getAddress().getPort() + "/").connectionPool(null).freeze();
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      threads.resetPeakThreadCount();
+      CountDownLatch done = new CountDownLatch(requests);
+      AtomicInteger failures = new AtomicInteger();
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+         get.executeAsync(executor).whenComplete((response, thrown) -> {
+            if (thrown == null) {
+               response.bodyAsString();
+            } else {
+               failures.incrementAndGet();
+            }
+            done.countDown();
+         });
+      }
+      done.await();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.printf("%s executor: %d requests (%d failed), %d ms server delay%n", 
+            virtual ? "Virtual thread" : "Bounded", requests, failures.get(), delay);
+      System.out.printf("Elapsed %.2f s, throughput %.0f requests/s, peak platform threads %d%n", 
+            seconds, requests / seconds, threads.getPeakThreadCount());
+
+      executor.shutdown();
+      server.stop(0);
+      timer.shutdown();
+      ((ExecutorService) server.getExecutor()).shutdown();
+   }
+}
@@ -0,0 +1,307 @@
+package com.ultraspatial.httpsender.fallback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.ultraspatial.httpsender.BoundedExecutor;
+import com.ultraspatial.httpsender.Deadline;
+import com.ultraspatial.httpsender.DeadlineExceededException;
+import com.ultraspatial.httpsender.Executors;
+import com.ultraspatial.httpsender.Get;
+import com.ultraspatial.httpsender.Request;
+import com.ultraspatial.httpsender.Response;
+import com.ultraspatial.httpsender.ResponseFuture;
+
+public class FallbackRequestTest {
+
+   //Fails a number of times, then responds with the given status
+   private static class FlakyRequest implements Request {
+
+      private final AtomicInteger failures;
+      private final int status;
+      private final long delay;
+      private final AtomicInteger attempts = new AtomicInteger();
+      private final List<Thread> startedOn = new CopyOnWriteArrayList<>();
+      private volatile Response last;
+
+      FlakyRequest(int failures, int status) {
+         this(failures, status, 0);
+      }
+
+      FlakyRequest(int failures, int status, long delay) {
+         this.failures = new AtomicInteger(failures);
+         this.status = status;
+         this.delay = delay;
+      }
+
+      @Override
+      public Response execute() {
+         attempts.incrementAndGet();
+         if (failures.getAndDecrement() > 0) {
+            throw new IllegalStateException("failed");
+         }
+         last = new Response(new Get("http://test.only.com"), "HTTP/1.1", status, "", Collections.emptyMap(), 
+               new ByteArrayInputStream(new byte[0]), System.currentTimeMillis());
+         return last;
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync(Executor executor) {
+         startedOn.add(Thread.currentThread());
+         CompletableFuture<Response> cf = new CompletableFuture<>();
+         CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            try {
+               cf.complete(execute());
+            } catch (RuntimeException e) {
+               cf.completeExceptionally(e);
+            }
+         });
+         return cf;
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   @Test
+   public void testBackoffDoesNotHoldAThread() throws Exception {
+      Logger.getLogger(FallbackRequest.class.getName()).setLevel(Level.OFF);
+      //A direct Executor: if backing off held a thread, it would be the caller's
+      Executor direct = Runnable::run;
+      List<CompletableFuture<Response>> futures = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int i = 0; i < 1000; i++) {
+         FallbackRequest fallback = new FallbackRequest()
+               .tryRequest(new FlakyRequest(2, 200), false, RetryStrategy.maxTotalTries(3), BackoffStrategy.specified(300));
+         futures.add(fallback.executeAsync(direct));
+      }
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 300);
+      Logger.getLogger(FallbackRequest.class.getName()).setLevel(null);
+      for (CompletableFuture<Response> future : futures) {
+         assertEquals(200, future.get(10, TimeUnit.SECONDS).getResponseCode());
+      }
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 600);
+   }
+
+   @Test
+   public void testAttemptAfterBackoffIsStartedOnTheExecutor() throws Exception {
+      BoundedExecutor executor = new BoundedExecutor(2, 10, BoundedExecutor.SaturationPolicy.CALLER_RUNS);
+      try {
+         FlakyRequest flaky = new FlakyRequest(1, 200);
+         FallbackRequest fallback = new FallbackRequest().outlierDetector(null)
+               .tryRequest(flaky, false, RetryStrategy.maxTotalTries(2), BackoffStrategy.specified(50));
+         assertEquals(200, fallback.executeAsync(executor).get(5, TimeUnit.SECONDS).getResponseCode());
+         assertEquals(2, flaky.startedOn.size());
+         assertTrue(flaky.startedOn.get(1).getName().startsWith("httpsender-"));
+         assertFalse(flaky.startedOn.get(1).getName().equals("httpsender-fallback-timer"));
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testAttemptAfterBackoffFailsWhenExecutorIsSaturated() throws Exception {
+      Logger.getLogger(FallbackRequest.class.getName()).setLevel(Level.OFF);
+      CountDownLatch release = new CountDownLatch(1);
+      BoundedExecutor executor = new BoundedExecutor(1, 1, BoundedExecutor.SaturationPolicy.CALLER_RUNS);
+      try {
+         //One thread busy until released, and one task filling the queue
+         executor.execute(() -> {
+            try {
+               release.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         });
+         executor.execute(() -> {});
+         FlakyRequest flaky = new FlakyRequest(1, 200);
+         FallbackRequest fallback = new FallbackRequest().outlierDetector(null)
+               .tryRequest(flaky, false, RetryStrategy.maxTotalTries(2), BackoffStrategy.specified(50));
+         try {
+            fallback.executeAsync(executor).get(5, TimeUnit.SECONDS);
+            fail("Succeeded on a saturated executor");
+         } catch (ExecutionException e) {
+            assertTrue(e.getCause().getCause() instanceof RejectedExecutionException);
+         }
+         //The retry was not run by the timer thread in place of the executor
+         assertEquals(1, flaky.attempts.get());
+      } finally {
+         Logger.getLogger(FallbackRequest.class.getName()).setLevel(null);
+         release.countDown();
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testAsyncFallsBackInOrder() throws Exception {
+      FlakyRequest first = new FlakyRequest(0, 503);
+      FlakyRequest nested = new FlakyRequest(5, 200);
+      FlakyRequest last = new FlakyRequest(0, 200);
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(first, true, RetryStrategy.maxTotalTries(2))
+            .tryRequest(new FallbackRequest().tryRequest(nested, false, RetryStrategy.maxTotalTries(2)))
+            .tryRequest(last);
+      assertEquals(200, fallback.executeAsync().get(10, TimeUnit.SECONDS).getResponseCode());
+      assertEquals(2, first.attempts.get());
+      assertEquals(2, nested.attempts.get());
+      assertEquals(1, last.attempts.get());
+   }
+
+   @Test
+   public void testAsyncFailureCompletesFuture() throws Exception {
+      FallbackRequest fallback = new FallbackRequest().tryRequest(new FlakyRequest(10, 200), false, RetryStrategy.maxTotalTries(3));
+      try {
+         fallback.executeAsync().get(10, TimeUnit.SECONDS);
+         fail("Succeeded");
+      } catch (java.util.concurrent.ExecutionException e) {
+         assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+      }
+   }
+
+   @Test
+   public void testInterruptDuringBackoffIsNotSwallowed() {
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(new FlakyRequest(1, 200), false, RetryStrategy.maxTotalTries(2), BackoffStrategy.specified(10000));
+      Thread.currentThread().interrupt();
+      try {
+         fallback.execute();
+         fail("Interrupt was ignored");
+      } catch (RuntimeException e) {
+         assertTrue(e.getCause() instanceof InterruptedException);
+         assertTrue(Thread.interrupted());
+      }
+   }
+
+   @Test
+   public void testRaceReturnsFirstAcceptableResponse() throws Exception {
+      FlakyRequest slow = new FlakyRequest(0, 200, 500);
+      FlakyRequest fastError = new FlakyRequest(0, 503, 0);
+      FlakyRequest fast = new FlakyRequest(0, 200, 50);
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(slow)
+            .tryRequest(fastError, true)
+            .tryRequest(fast)
+            .race();
+      long start = System.currentTimeMillis();
+      Response response = fallback.execute();
+      assertTrue(System.currentTimeMillis() - start < 450);
+      assertSame(fast.last, response);
+      Thread.sleep(700);
+      assertTrue("Losing response was not closed", slow.last.isComplete());
+   }
+
+   @Test
+   public void testRaceWidthStartsNextWhenOneFails() throws Exception {
+      FlakyRequest failing = new FlakyRequest(10, 200, 0);
+      FlakyRequest slow = new FlakyRequest(0, 200, 300);
+      FlakyRequest nested = new FlakyRequest(1, 200, 0);
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(failing, false, RetryStrategy.maxTotalTries(2))
+            .tryRequest(slow)
+            .tryRequest(new FallbackRequest().tryRequest(nested, false, RetryStrategy.maxTotalTries(2)))
+            .race(2);
+      Response response = fallback.executeAsync().get(10, TimeUnit.SECONDS);
+      assertSame(nested.last, response);
+      assertEquals(2, failing.attempts.get());
+      assertEquals(2, nested.attempts.get());
+   }
+
+   @Test
+   public void testRaceFailsWhenAllFail() throws Exception {
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(new FlakyRequest(10, 200, 0))
+            .tryRequest(new FlakyRequest(10, 200, 50))
+            .race();
+      try {
+         fallback.execute();
+         fail("Succeeded");
+      } catch (RuntimeException e) {
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+   }
+
+   @Test
+   public void testDeadlineBoundsNestedRetries() throws Exception {
+      Logger.getLogger(FallbackRequest.class.getName()).setLevel(Level.OFF);
+      FlakyRequest failing = new FlakyRequest(Integer.MAX_VALUE, 200);
+      FallbackRequest fallback = new FallbackRequest()
+            .tryRequest(new FallbackRequest()
+                  .tryRequest(failing, false, RetryStrategy.forever(), BackoffStrategy.specified(20)))
+            .deadline(300);
+      long start = System.nanoTime();
+      try {
+         fallback.execute();
+         fail("Succeeded");
+      } catch (RuntimeException e) {
+         long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+         assertTrue("Took " + elapsed + " ms", elapsed < 2000);
+      } finally {
+         Logger.getLogger(FallbackRequest.class.getName()).setLevel(null);
+      }
+      assertTrue(failing.attempts.get() > 1);
+   }
+
+   @Test
+   public void testDeadlineEndsAsyncExecution() throws Exception {
+      FallbackRequest fallback = new FallbackRequest().tryRequest(new FlakyRequest(0, 200, 5000));
+      ResponseFuture future = fallback.executeAsync(Executors.defaultExecutor(), Deadline.after(200));
+      try {
+         future.get(2, TimeUnit.SECONDS);
+         fail("Succeeded");
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof DeadlineExceededException);
+      }
+   }
+
+   @Test
+   public void testCancelStopsRetries() throws Exception {
+      Logger.getLogger(FallbackRequest.class.getName()).setLevel(Level.OFF);
+      try {
+         FlakyRequest failing = new FlakyRequest(Integer.MAX_VALUE, 200);
+         FallbackRequest fallback = new FallbackRequest()
+               .tryRequest(failing, false, RetryStrategy.forever(), BackoffStrategy.specified(10));
+         ResponseFuture future = fallback.executeAsync();
+         Thread.sleep(100);
+         assertTrue(future.cancel(true));
+         int attempts = failing.attempts.get();
+         Thread.sleep(200);
+         //One attempt may have been starting as the future was cancelled
+         assertTrue(failing.attempts.get() <= attempts + 1);
+      } finally {
+         Logger.getLogger(FallbackRequest.class.getName()).setLevel(null);
+      }
+   }
+}
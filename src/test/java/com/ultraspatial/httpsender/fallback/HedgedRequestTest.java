@@ -0,0 +1,155 @@
+package com.ultraspatial.httpsender.fallback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.ultraspatial.httpsender.BoundedExecutor;
+import com.ultraspatial.httpsender.Get;
+import com.ultraspatial.httpsender.Request;
+import com.ultraspatial.httpsender.Response;
+
+public class HedgedRequestTest {
+
+   //Responds after a fixed delay, or fails if delay is negative
+   private static class DelayedRequest implements Request {
+
+      private final long delay;
+      private volatile int executions;
+      private volatile Response last;
+
+      DelayedRequest(long delay) {
+         this.delay = delay;
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync(Executor executor) {
+         executions++;
+         CompletableFuture<Response> cf = new CompletableFuture<>();
+         if (delay < 0) {
+            cf.completeExceptionally(new IllegalStateException("failed"));
+            return cf;
+         }
+         CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            last = new Response(new Get("http://test.only.com"), "HTTP/1.1", 200, "OK", Collections.emptyMap(), 
+                  new ByteArrayInputStream("body".getBytes()), System.currentTimeMillis());
+            cf.complete(last);
+         });
+         return cf;
+      }
+
+      @Override
+      public Response execute() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void executeAsync(Consumer<Response> consumer, Consumer<Throwable> error, Executor executor) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAsync() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   @Test
+   public void testBackupWinsWhenPrimaryIsSlow() throws Exception {
+      DelayedRequest primary = new DelayedRequest(500);
+      DelayedRequest backup = new DelayedRequest(0);
+      HedgedRequest hedged = new HedgedRequest(primary).backup(backup).hedgeDelay(50).hedgeBudget(1);
+      Response response = hedged.execute();
+      assertSame(backup.last, response);
+      assertEquals(1, hedged.getHedgesFired());
+      assertEquals(1, hedged.getHedgesWon());
+      Thread.sleep(700);
+      assertTrue("Losing response was not closed", primary.last.isComplete());
+   }
+
+   @Test
+   public void testNoHedgeWhenPrimaryIsFast() throws Exception {
+      DelayedRequest primary = new DelayedRequest(0);
+      DelayedRequest backup = new DelayedRequest(0);
+      HedgedRequest hedged = new HedgedRequest(primary).backup(backup).hedgeDelay(500).hedgeBudget(1);
+      Response response = hedged.execute();
+      assertSame(primary.last, response);
+      assertEquals(0, hedged.getHedgesFired());
+      assertEquals(0, backup.executions);
+   }
+
+   @Test
+   public void testBudgetLimitsHedges() throws Exception {
+      DelayedRequest primary = new DelayedRequest(100);
+      DelayedRequest backup = new DelayedRequest(0);
+      HedgedRequest hedged = new HedgedRequest(primary).backup(backup).hedgeDelay(0).hedgeBudget(0.25);
+      for (int i = 0; i < 8; i++) {
+         hedged.execute().close();
+      }
+      assertEquals(8, hedged.getExecuted());
+      assertEquals(2, hedged.getHedgesFired());
+   }
+
+   @Test
+   public void testBackupIsNotSentByTheTimerWhenExecutorIsSaturated() throws Exception {
+      CountDownLatch release = new CountDownLatch(1);
+      BoundedExecutor executor = new BoundedExecutor(1, 1, BoundedExecutor.SaturationPolicy.CALLER_RUNS);
+      try {
+         //One thread busy until released, and one task filling the queue
+         executor.execute(() -> {
+            try {
+               release.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         });
+         executor.execute(() -> {});
+         DelayedRequest primary = new DelayedRequest(300);
+         DelayedRequest backup = new DelayedRequest(0);
+         HedgedRequest hedged = new HedgedRequest(primary).backup(backup).hedgeDelay(50).hedgeBudget(1);
+         Response response = hedged.executeAsync(executor).get(5, TimeUnit.SECONDS);
+         assertSame(primary.last, response);
+         assertEquals(1, hedged.getHedgesFired());
+         assertEquals(0, backup.executions);
+      } finally {
+         release.countDown();
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testBackupIsSentAtOnceWhenPrimaryFails() throws Exception {
+      DelayedRequest primary = new DelayedRequest(-1);
+      DelayedRequest backup = new DelayedRequest(0);
+      HedgedRequest hedged = new HedgedRequest(primary).backup(backup).hedgeDelay(10000).hedgeBudget(1);
+      long start = System.currentTimeMillis();
+      Response response = hedged.execute();
+      assertSame(backup.last, response);
+      assertTrue(System.currentTimeMillis() - start < 5000);
+   }
+
+   @Test
+   public void testAdaptiveDelayFollowsObservedLatency() throws Exception {
+      DelayedRequest primary = new DelayedRequest(0);
+      HedgedRequest hedged = new HedgedRequest(primary).hedgeDelay(5000).adaptiveDelay(0.95).hedgeBudget(0);
+      for (int i = 0; i < 40; i++) {
+         hedged.execute().close();
+      }
+      assertTrue(hedged.getCurrentDelay() < 5000);
+   }
+}